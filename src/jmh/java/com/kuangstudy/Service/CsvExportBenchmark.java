@@ -0,0 +1,82 @@
+package com.kuangstudy.Service;
+
+import com.kuangstudy.util.BlackholeOutputStream;
+import com.kuangstudy.util.CsvWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CSV生成+MS932编码
+ * stringBuffer是以前 downloadCsv 的做法（整个文件拼成字符串再getBytes），作为对照
+ * parallel是分区并行生成，按CPU核数并行，每个分区20000行
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CsvExportBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    private int rows;
+
+    private final CsvExportService csvExportService = new CsvExportService();
+
+    private ForkJoinPool pool;
+
+    @Setup
+    public void setUp() {
+        pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public long streaming(Blackhole blackhole) throws IOException {
+        BlackholeOutputStream outputStream = new BlackholeOutputStream(blackhole);
+        CsvWriter writer = new CsvWriter(outputStream, CsvExportService.MS932);
+        csvExportService.writeHeader(writer);
+        csvExportService.writeRows(writer, 0, rows);
+        writer.finish();
+        return outputStream.getCount();
+    }
+
+    @Benchmark
+    public byte[] stringBuffer() throws IOException {
+        StringBuffer csv = new StringBuffer();
+        csv.append("氏名");
+        csv.append(",性別");
+        for (int i = 0; i < rows; i++) {
+            csv.append("\r\n");
+            csv.append("千手柱間" + i);
+            csv.append(",男性");
+        }
+        return csv.toString().getBytes("MS932");
+    }
+
+    @Benchmark
+    public long parallel(Blackhole blackhole) throws IOException {
+        BlackholeOutputStream outputStream = new BlackholeOutputStream(blackhole);
+        csvExportService.writeCsvParallel(null, outputStream, pool, rows, 20000, pool.getParallelism() * 2);
+        return outputStream.getCount();
+    }
+}
@@ -0,0 +1,86 @@
+package com.kuangstudy.Service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 小文件上传的落盘方式：16个线程同时写16KB的文件（同一个目录），每个文件按 file.durability.mode 落盘后才算完成
+ * 按 -p mode=none,sync,group,fast 分别测试，结果和磁盘有关，要在实际部署的磁盘上跑（默认的临时目录可能是tmpfs）
+ * 可以用 -jvmArgs -Djava.io.tmpdir=/data/tmp 指定目录
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Threads(16)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 5, time = 3)
+public class DurabilityBenchmark {
+
+    @Param({"none", "sync", "group", "fast"})
+    private String mode;
+
+    private Path dir;
+
+    private byte[] content;
+
+    private ExecutorService executor;
+
+    private DurabilityService durabilityService;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("durability-benchmark");
+        content = new byte[16 * 1024];
+        new Random(42).nextBytes(content);
+        executor = Executors.newFixedThreadPool(4);
+        durabilityService = new DurabilityService();
+        ReflectionTestUtils.setField(durabilityService, "syncExecutor", executor);
+        ReflectionTestUtils.setField(durabilityService, "mode", mode);
+        ReflectionTestUtils.setField(durabilityService, "window", Duration.ZERO);
+        ReflectionTestUtils.setField(durabilityService, "maxBatch", 64);
+        ReflectionTestUtils.setField(durabilityService, "waitTimeout", Duration.ofSeconds(10));
+        durabilityService.start();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        durabilityService.stop();
+        executor.shutdownNow();
+        FileSystemUtils.deleteRecursively(dir);
+    }
+
+    /**
+     * 一次小文件上传：写文件 + 落盘
+     */
+    @Benchmark
+    public Path writeSmallFile() throws IOException {
+        Path file = dir.resolve(UUID.randomUUID() + ".jpg");
+        Files.write(file, content);
+        durabilityService.awaitDurable(file);
+        return file;
+    }
+}
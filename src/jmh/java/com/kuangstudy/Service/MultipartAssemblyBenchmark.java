@@ -0,0 +1,145 @@
+package com.kuangstudy.Service;
+
+import com.kuangstudy.util.BlackholeOutputStream;
+import com.kuangstudy.util.RangeUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * multipart响应体的拼装：/api/preview/pdfs 的 multipart/mixed 和多区间Range的 multipart/byteranges
+ * sequentialFlush 是以前 getPdfs 的写法（每次写完都flush），作为对照
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MultipartAssemblyBenchmark {
+
+    private static final String BOUNDARY = "PDFBOUNDARY1234567890";
+
+    @Param({"3", "20"})
+    private int parts;
+
+    @Param({"262144", "1048576"})
+    private int partSize;
+
+    private Path dir;
+
+    private List<FileIndexService.FileEntry> entries;
+
+    private List<RangeUtils.ByteRange> ranges;
+
+    private ExecutorService executor;
+
+    private MultipartMixedService multipartMixedService;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("multipart-benchmark");
+        entries = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < parts; i++) {
+            byte[] content = new byte[partSize];
+            random.nextBytes(content);
+            Path file = dir.resolve("sample" + i + ".pdf");
+            Files.write(file, content);
+            entries.add(new FileIndexService.FileEntry(file.getFileName().toString(), file, partSize,
+                    Files.getLastModifiedTime(file).toMillis()));
+        }
+        // 第一个文件上均匀取parts个区间
+        ranges = new ArrayList<>();
+        long step = partSize / parts;
+        for (int i = 0; i < parts; i++) {
+            ranges.add(new RangeUtils.ByteRange(i * step, i * step + step / 2));
+        }
+
+        executor = Executors.newFixedThreadPool(4);
+        multipartMixedService = new MultipartMixedService();
+        ReflectionTestUtils.setField(multipartMixedService, "prefetchExecutor", executor);
+        ReflectionTestUtils.setField(multipartMixedService, "prefetchParts", 4);
+        ReflectionTestUtils.setField(multipartMixedService, "prefetchBytes", DataSize.ofMegabytes(16));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        FileSystemUtils.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public long sequentialFlush(Blackhole blackhole) throws IOException {
+        BlackholeOutputStream outputStream = new BlackholeOutputStream(blackhole);
+        for (FileIndexService.FileEntry entry : entries) {
+            String headers = "--" + BOUNDARY + "\r\n" +
+                    "Content-Type: application/pdf\r\n" +
+                    "Content-Disposition: inline; filename=\"" +
+                    URLEncoder.encode(entry.getName(), StandardCharsets.UTF_8.toString()) + "\"\r\n" +
+                    "Content-Length: " + entry.getSize() + "\r\n" +
+                    "\r\n";
+            outputStream.write(headers.getBytes(StandardCharsets.UTF_8));
+            outputStream.flush();
+            try (InputStream fileInputStream = Files.newInputStream(entry.getPath())) {
+                byte[] buffer = new byte[8192];
+                int bytesRead;
+                while ((bytesRead = fileInputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, bytesRead);
+                }
+                outputStream.flush();
+            }
+            outputStream.write("\r\n".getBytes(StandardCharsets.UTF_8));
+            outputStream.flush();
+        }
+        outputStream.write(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        outputStream.flush();
+        return outputStream.getCount();
+    }
+
+    @Benchmark
+    public long pipelined(Blackhole blackhole) throws IOException {
+        BlackholeOutputStream outputStream = new BlackholeOutputStream(blackhole);
+        multipartMixedService.write(entries, BOUNDARY, "application/pdf", outputStream);
+        return outputStream.getCount();
+    }
+
+    @Benchmark
+    public long byteRanges(Blackhole blackhole) throws IOException {
+        OutputStream outputStream = new BlackholeOutputStream(blackhole);
+        FileIndexService.FileEntry entry = entries.get(0);
+        try (FileChannel channel = FileChannel.open(entry.getPath(), StandardOpenOption.READ)) {
+            RangeUtils.writeRanges(channel, ranges, BOUNDARY, "video/mp4", entry.getSize(), outputStream);
+        }
+        return RangeUtils.multipartLength(ranges, BOUNDARY, "video/mp4", entry.getSize());
+    }
+}
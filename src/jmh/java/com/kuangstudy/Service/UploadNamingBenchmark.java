@@ -0,0 +1,117 @@
+package com.kuangstudy.Service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 上传时每个文件都要做的命名和目录处理：UUID文件名、日期目录、目标目录创建、访问链接
+ * 目录布局按 -p layout=date,sharded 分别测试
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class UploadNamingBenchmark {
+
+    private Path uploadFolder;
+
+    @Param({UploadLayoutService.DATE, UploadLayoutService.SHARDED})
+    private String layout;
+
+    private UploadService uploadService;
+
+    private UploadLayoutService uploadLayoutService;
+
+    private String dateDir;
+
+    private long dirCounter;
+
+    private static final String FILE_NAME = "3f2504e0-4f89-11d3-9a0c-0305e82c3301.jpg";
+
+    @Setup
+    public void setup() throws IOException {
+        uploadFolder = Files.createTempDirectory("upload-benchmark");
+        uploadLayoutService = new UploadLayoutService();
+        ReflectionTestUtils.setField(uploadLayoutService, "uploadFolder", uploadFolder.toString() + "/");
+        ReflectionTestUtils.setField(uploadLayoutService, "type", layout);
+        ReflectionTestUtils.setField(uploadLayoutService, "shardLevels", 1);
+        uploadService = new UploadService();
+        ReflectionTestUtils.setField(uploadService, "uploadFolder", uploadFolder.toString() + "/");
+        ReflectionTestUtils.setField(uploadService, "staticPath", "http://localhost:8777");
+        ReflectionTestUtils.setField(uploadService, "staticPatternPath", "/upload/file/**");
+        ReflectionTestUtils.setField(uploadService, "uploadLayoutService", uploadLayoutService);
+        dateDir = uploadLayoutService.currentDateDir();
+        uploadLayoutService.resolveTargetDir("/bbs", dateDir, FILE_NAME);
+    }
+
+    /**
+     * 每轮结束删除新建的目录，避免目录越来越多影响结果
+     */
+    @TearDown(Level.Iteration)
+    public void cleanNewDirs() throws IOException {
+        FileSystemUtils.deleteRecursively(uploadFolder.resolve("new"));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        FileSystemUtils.deleteRecursively(uploadFolder);
+    }
+
+    @Benchmark
+    public String generateFileName() {
+        return uploadService.generateFileName("IMG_20220101_123456.jpg");
+    }
+
+    @Benchmark
+    public String currentDateDir() {
+        return uploadLayoutService.currentDateDir();
+    }
+
+    /**
+     * 目标目录已经存在（大部分上传的情况）
+     */
+    @Benchmark
+    public File resolveExistingDir() {
+        return uploadLayoutService.resolveTargetDir("/bbs", dateDir, FILE_NAME);
+    }
+
+    /**
+     * 每次都新建目录（新的一天、新的业务目录）
+     */
+    @Benchmark
+    public File resolveNewDir() {
+        return uploadLayoutService.resolveTargetDir("/new/" + (dirCounter++), dateDir, FILE_NAME);
+    }
+
+    /**
+     * 一次上传的完整命名过程
+     */
+    @Benchmark
+    public String nameAndUrl() {
+        String uniqueFileName = uploadService.generateFileName("IMG_20220101_123456.jpg");
+        String currentDateDir = uploadLayoutService.currentDateDir();
+        uploadLayoutService.resolveTargetDir("/bbs", currentDateDir, uniqueFileName);
+        return uploadService.buildUrl(uploadLayoutService.relativePath("/bbs", currentDateDir, uniqueFileName));
+    }
+}
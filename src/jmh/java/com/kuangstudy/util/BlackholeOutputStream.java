@@ -0,0 +1,35 @@
+package com.kuangstudy.util;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.OutputStream;
+
+/**
+ * 基准测试用的输出流：写出的数据交给Blackhole，防止被JIT优化掉，同时统计字节数
+ */
+public class BlackholeOutputStream extends OutputStream {
+
+    private final Blackhole blackhole;
+
+    private long count;
+
+    public BlackholeOutputStream(Blackhole blackhole) {
+        this.blackhole = blackhole;
+    }
+
+    @Override
+    public void write(int b) {
+        blackhole.consume(b);
+        count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        blackhole.consume(b);
+        count += len;
+    }
+
+    public long getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,124 @@
+package com.kuangstudy.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 文件复制到响应流：不同的缓冲区大小和文件大小
+ * 文件在page cache里，测的是复制循环本身的开销，不包括磁盘和网络
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class FileCopyBenchmark {
+
+    @Param({"65536", "1048576", "16777216"})
+    private int fileSize;
+
+    @Param({"8192", "65536", "262144"})
+    private int bufferSize;
+
+    private Path file;
+
+    @Setup
+    public void setup() throws IOException {
+        file = Files.createTempFile("copy-benchmark", ".bin");
+        byte[] content = new byte[fileSize];
+        new Random(42).nextBytes(content);
+        Files.write(file, content);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * 以前 getPdfs / getVideo 的 InputStream 复制循环
+     */
+    @Benchmark
+    public long inputStreamLoop(Blackhole blackhole) throws IOException {
+        BlackholeOutputStream outputStream = new BlackholeOutputStream(blackhole);
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            byte[] buffer = new byte[bufferSize];
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, bytesRead);
+            }
+        }
+        return outputStream.getCount();
+    }
+
+    /**
+     * 按位置读取（Range请求的做法）
+     */
+    @Benchmark
+    public long channelPositionalRead(Blackhole blackhole) throws IOException {
+        BlackholeOutputStream outputStream = new BlackholeOutputStream(blackhole);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+            long position = 0;
+            while (position < fileSize) {
+                buffer.clear();
+                int bytesRead = channel.read(buffer, position);
+                outputStream.write(buffer.array(), 0, bytesRead);
+                position += bytesRead;
+            }
+        }
+        return outputStream.getCount();
+    }
+
+    /**
+     * 非阻塞输出和multipart使用的 StreamSegment
+     */
+    @Benchmark
+    public long streamSegment(Blackhole blackhole) throws IOException {
+        BlackholeOutputStream outputStream = new BlackholeOutputStream(blackhole);
+        StreamSegment.writeTo(Collections.singletonList(StreamSegment.file(file, 0, fileSize)), 0,
+                outputStream, bufferSize);
+        return outputStream.getCount();
+    }
+
+    /**
+     * transferTo 不使用自己的缓冲区（和bufferSize参数无关），作为对照
+     */
+    @Benchmark
+    public long transferTo(Blackhole blackhole) throws IOException {
+        BlackholeOutputStream outputStream = new BlackholeOutputStream(blackhole);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             WritableByteChannel target = Channels.newChannel(outputStream)) {
+            long position = 0;
+            while (position < fileSize) {
+                position += channel.transferTo(position, fileSize - position, target);
+            }
+        }
+        return outputStream.getCount();
+    }
+}
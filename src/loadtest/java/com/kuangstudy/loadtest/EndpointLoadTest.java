@@ -0,0 +1,109 @@
+package com.kuangstudy.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 整个应用的压测：以随机端口启动应用，按配置的比例并发请求上传、CSV导出、视频Range读取和ping，
+ * 把每个接口的吞吐量、耗时百分位、错误率和GC停顿写到 target/loadtest-report.json，CI可以比较两次提交的报告
+ * 运行：mvn -Ploadtest test，参数（-D）：
+ * - loadtest.mix：场景和权重，默认 ping:20,video:10,upload:2,csv:1
+ * - loadtest.concurrency：并发的客户端数，默认32
+ * - loadtest.warmup / loadtest.duration：预热和统计的时间，默认10s / 30s
+ * - loadtest.uploadSize / loadtest.videoRange：上传的文件大小和每次读取的视频字节数，默认1MB / 256KB
+ * - loadtest.maxErrorRate：总错误率超过这个值时测试失败，默认0.01
+ * 准入控制拒绝的请求（429、503）也算错误，按状态码的次数在报告的statuses中
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "file.uploadFolder=target/loadtest/upload/",
+        "file.export.folder=target/loadtest/export-cache",
+        "file.hls.indexFolder=target/loadtest/hls-index"
+})
+class EndpointLoadTest {
+
+    private static final String VIDEO_FILE = "IMG_1337.mp4";
+
+    @LocalServerPort
+    private int port;
+
+    @Test
+    void mixedLoad() throws IOException, InterruptedException {
+        int concurrency = Integer.getInteger("loadtest.concurrency", 32);
+        Duration warmup = duration("loadtest.warmup", "10s");
+        Duration duration = duration("loadtest.duration", "30s");
+        String mix = System.getProperty("loadtest.mix", "ping:20,video:10,upload:2,csv:1");
+        double maxErrorRate = Double.parseDouble(System.getProperty("loadtest.maxErrorRate", "0.01"));
+        Path reportFile = Paths.get(System.getProperty("loadtest.report", "target/loadtest-report.json"));
+
+        List<LoadScenario> scenarios = scenarios(mix);
+        LoadRunner runner = new LoadRunner(URI.create("http://localhost:" + port), scenarios, concurrency, Duration.ofSeconds(60));
+        Map<String, Object> result = runner.run(warmup, duration);
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("mix", mix);
+        report.put("warmupSeconds", warmup.getSeconds());
+        report.put("java", System.getProperty("java.version"));
+        report.put("processors", Runtime.getRuntime().availableProcessors());
+        report.put("maxHeapBytes", Runtime.getRuntime().maxMemory());
+        report.putAll(result);
+        Files.createDirectories(reportFile.toAbsolutePath().getParent());
+        new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(reportFile.toFile(), report);
+        System.out.println("load test report: " + reportFile.toAbsolutePath());
+
+        @SuppressWarnings("unchecked")
+        Map<String, Object> total = (Map<String, Object>) result.get("total");
+        assertTrue(((Number) total.get("requests")).longValue() > 0, "no request was completed");
+        assertTrue(((Number) total.get("errorRate")).doubleValue() <= maxErrorRate, "error rate " + total.get("errorRate") + " > " + maxErrorRate);
+    }
+
+    private static List<LoadScenario> scenarios(String mix) throws IOException {
+        int uploadSize = (int) DataSize.parse(System.getProperty("loadtest.uploadSize", "1MB")).toBytes();
+        long videoRange = DataSize.parse(System.getProperty("loadtest.videoRange", "256KB")).toBytes();
+        long videoSize = Files.size(Paths.get("src/main/resources/video", VIDEO_FILE));
+
+        List<LoadScenario> scenarios = new ArrayList<>();
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.trim().split(":");
+            int weight = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+            switch (parts[0].trim()) {
+                case "ping":
+                    scenarios.add(LoadScenario.ping(weight));
+                    break;
+                case "video":
+                    scenarios.add(LoadScenario.video(weight, VIDEO_FILE, videoSize, videoRange));
+                    break;
+                case "upload":
+                    scenarios.add(LoadScenario.upload(weight, uploadSize));
+                    break;
+                case "csv":
+                    scenarios.add(LoadScenario.csv(weight));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown load scenario: " + parts[0]);
+            }
+        }
+        return scenarios;
+    }
+
+    private static Duration duration(String key, String defaultValue) {
+        return DurationStyle.detectAndParse(System.getProperty(key, defaultValue));
+    }
+}
@@ -0,0 +1,175 @@
+package com.kuangstudy.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 闭环压测：concurrency个客户端线程，每个线程按权重随机选一个场景，发出请求、读完响应体，再发下一个
+ * 先预热warmup（不统计，让JIT和各种缓存稳定下来），再统计duration
+ * 应用和压测在同一个JVM中，GC统计的是整个JVM（应用 + 客户端）在统计期间的停顿
+ */
+class LoadRunner {
+
+    private final URI baseUri;
+
+    private final List<LoadScenario> scenarios;
+
+    private final int concurrency;
+
+    private final HttpClient client;
+
+    private final Duration requestTimeout;
+
+    private final int totalWeight;
+
+    LoadRunner(URI baseUri, List<LoadScenario> scenarios, int concurrency, Duration requestTimeout) {
+        this.baseUri = baseUri;
+        this.scenarios = scenarios;
+        this.concurrency = concurrency;
+        this.requestTimeout = requestTimeout;
+        this.totalWeight = scenarios.stream().mapToInt(LoadScenario::getWeight).sum();
+        if (totalWeight <= 0) {
+            throw new IllegalArgumentException("No load scenario has a positive weight");
+        }
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+    }
+
+    /**
+     * 执行压测，返回报告（可以直接序列化成JSON）
+     */
+    Map<String, Object> run(Duration warmup, Duration duration) throws InterruptedException {
+        Map<String, LoadStats> warmupStats = newStats();
+        runPhase(warmupStats, warmup);
+
+        Map<String, LoadStats> stats = newStats();
+        long gcTimeBefore = gcTimeMillis();
+        long gcCountBefore = gcCount();
+        long start = System.nanoTime();
+        runPhase(stats, duration);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long gcTime = gcTimeMillis() - gcTimeBefore;
+        long gcCount = gcCount() - gcCountBefore;
+
+        Map<String, Object> endpoints = new LinkedHashMap<>();
+        long requests = 0;
+        long errors = 0;
+        for (Map.Entry<String, LoadStats> entry : stats.entrySet()) {
+            endpoints.put(entry.getKey(), entry.getValue().toReport(seconds));
+            requests += entry.getValue().getCount();
+            errors += entry.getValue().getErrors();
+        }
+        Map<String, Object> gc = new LinkedHashMap<>();
+        gc.put("pauseMillis", gcTime);
+        gc.put("collections", gcCount);
+        gc.put("pauseRatio", gcTime / 1000.0 / seconds);
+
+        Map<String, Object> total = new LinkedHashMap<>();
+        total.put("requests", requests);
+        total.put("errors", errors);
+        total.put("errorRate", requests == 0 ? 0 : (double) errors / requests);
+        total.put("throughput", requests / seconds);
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("seconds", seconds);
+        report.put("concurrency", concurrency);
+        report.put("total", total);
+        report.put("endpoints", endpoints);
+        report.put("gc", gc);
+        return report;
+    }
+
+    private Map<String, LoadStats> newStats() {
+        Map<String, LoadStats> stats = new LinkedHashMap<>();
+        for (LoadScenario scenario : scenarios) {
+            stats.put(scenario.getName(), new LoadStats());
+        }
+        return stats;
+    }
+
+    private void runPhase(Map<String, LoadStats> stats, Duration duration) throws InterruptedException {
+        if (duration.isZero() || duration.isNegative()) {
+            return;
+        }
+        long deadline = System.nanoTime() + duration.toNanos();
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            workers.execute(() -> {
+                while (System.nanoTime() < deadline && !Thread.currentThread().isInterrupted()) {
+                    LoadScenario scenario = pick(ThreadLocalRandom.current());
+                    execute(scenario, stats.get(scenario.getName()));
+                }
+            });
+        }
+        workers.shutdown();
+        // 最后一批请求最多再等一个请求超时
+        if (!workers.awaitTermination(duration.toMillis() + requestTimeout.toMillis() + 1000, TimeUnit.MILLISECONDS)) {
+            workers.shutdownNow();
+        }
+    }
+
+    private LoadScenario pick(ThreadLocalRandom random) {
+        int value = random.nextInt(totalWeight);
+        for (LoadScenario scenario : scenarios) {
+            value -= scenario.getWeight();
+            if (value < 0) {
+                return scenario;
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    /**
+     * 发出一个请求并读完响应体，耗时包括读响应体的时间
+     */
+    private void execute(LoadScenario scenario, LoadStats stats) {
+        long start = System.nanoTime();
+        try {
+            HttpResponse<InputStream> response = client.send(
+                    scenario.newRequest(baseUri, ThreadLocalRandom.current()).timeout(requestTimeout).build(),
+                    HttpResponse.BodyHandlers.ofInputStream());
+            long bytes;
+            try (InputStream body = response.body()) {
+                bytes = body.transferTo(OutputStream.nullOutputStream());
+            }
+            stats.record(String.valueOf(response.statusCode()), response.statusCode() == scenario.getExpectedStatus(),
+                    System.nanoTime() - start, bytes);
+        } catch (IOException e) {
+            stats.record(e.getClass().getSimpleName(), false, System.nanoTime() - start, 0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static long gcTimeMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, bean.getCollectionTime());
+        }
+        return total;
+    }
+
+    private static long gcCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, bean.getCollectionCount());
+        }
+        return total;
+    }
+}
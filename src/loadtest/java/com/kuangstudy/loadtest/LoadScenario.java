@@ -0,0 +1,108 @@
+package com.kuangstudy.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiFunction;
+
+/**
+ * 压测场景：一种请求和它在混合中的权重
+ * 请求由 (baseUri, 随机数) 生成，每次请求都重新生成（Range的位置、上传的文件名是随机的）
+ */
+class LoadScenario {
+
+    private final String name;
+
+    private final int weight;
+
+    private final int expectedStatus;
+
+    private final BiFunction<URI, ThreadLocalRandom, HttpRequest.Builder> requestFactory;
+
+    LoadScenario(String name, int weight, int expectedStatus, BiFunction<URI, ThreadLocalRandom, HttpRequest.Builder> requestFactory) {
+        this.name = name;
+        this.weight = weight;
+        this.expectedStatus = expectedStatus;
+        this.requestFactory = requestFactory;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    int getWeight() {
+        return weight;
+    }
+
+    int getExpectedStatus() {
+        return expectedStatus;
+    }
+
+    /**
+     * 新的请求，超时等公共设置由 LoadRunner 补上
+     */
+    HttpRequest.Builder newRequest(URI baseUri, ThreadLocalRandom random) {
+        return requestFactory.apply(baseUri, random);
+    }
+
+    /**
+     * PageController：POST /ping/post，几乎没有处理，测的是Tomcat线程和过滤器链本身的开销
+     */
+    static LoadScenario ping(int weight) {
+        return new LoadScenario("ping", weight, 200, (base, random) -> HttpRequest.newBuilder(base.resolve("/ping/post"))
+                .POST(HttpRequest.BodyPublishers.noBody()));
+    }
+
+    /**
+     * DownloadController：POST /download/csv，完整的100万行导出（不压缩）
+     */
+    static LoadScenario csv(int weight) {
+        return new LoadScenario("csv", weight, 200, (base, random) -> HttpRequest.newBuilder(base.resolve("/download/csv"))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString("{\"param1\":\"loadtest\"}")));
+    }
+
+    /**
+     * FileStreamController：GET /api/preview/video，在文件内随机位置读取rangeBytes字节（播放器拖动进度条）
+     */
+    static LoadScenario video(int weight, String fileName, long fileSize, long rangeBytes) {
+        long length = Math.min(rangeBytes, fileSize);
+        return new LoadScenario("video", weight, 206, (base, random) -> {
+            long start = random.nextLong(fileSize - length + 1);
+            return HttpRequest.newBuilder(base.resolve("/api/preview/video?file=" + fileName))
+                    .header("Range", "bytes=" + start + "-" + (start + length - 1))
+                    .GET();
+        });
+    }
+
+    /**
+     * UploadController：POST /upload/file2，multipart上传一个fileSize字节的文件
+     * 文件内容每个场景生成一次，文件名每次随机，所以不会被当作同一个文件
+     */
+    static LoadScenario upload(int weight, int fileSize) {
+        byte[] content = new byte[fileSize];
+        new Random(fileSize).nextBytes(content);
+        return new LoadScenario("upload", weight, 200, (base, random) -> {
+            String boundary = "----loadtest" + Long.toHexString(random.nextLong());
+            byte[] body = multipart(boundary, "load-" + Long.toHexString(random.nextLong()) + ".bin", content);
+            return HttpRequest.newBuilder(base.resolve("/upload/file2?dir=loadtest"))
+                    .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(body));
+        });
+    }
+
+    private static byte[] multipart(String boundary, String fileName, byte[] content) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(content.length + 256);
+        byte[] head = ("--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"" + fileName + "\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+        byte[] tail = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8);
+        body.write(head, 0, head.length);
+        body.write(content, 0, content.length);
+        body.write(tail, 0, tail.length);
+        return body.toByteArray();
+    }
+}
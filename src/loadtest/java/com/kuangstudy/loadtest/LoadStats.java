@@ -0,0 +1,83 @@
+package com.kuangstudy.loadtest;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 一个场景的统计：请求数、错误数、字节数、按状态码的次数和每个请求的耗时
+ * 耗时全部保存（一次压测最多几十万个long），报告时排序计算百分位，不做近似
+ */
+class LoadStats {
+
+    private long[] latencies = new long[1024];
+
+    private int count;
+
+    private long errors;
+
+    private long bytes;
+
+    private final Map<String, Long> statuses = new TreeMap<>();
+
+    synchronized void record(String status, boolean success, long latencyNanos, long responseBytes) {
+        if (count == latencies.length) {
+            latencies = Arrays.copyOf(latencies, count * 2);
+        }
+        latencies[count++] = latencyNanos;
+        if (!success) {
+            errors++;
+        }
+        bytes += responseBytes;
+        statuses.merge(status, 1L, Long::sum);
+    }
+
+    synchronized long getCount() {
+        return count;
+    }
+
+    synchronized long getErrors() {
+        return errors;
+    }
+
+    /**
+     * 报告中的一项，耗时单位是毫秒
+     */
+    synchronized Map<String, Object> toReport(double seconds) {
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        Map<String, Object> latency = new LinkedHashMap<>();
+        latency.put("mean", count == 0 ? 0 : millis(Arrays.stream(sorted).sum() / count));
+        latency.put("p50", millis(percentile(sorted, 0.50)));
+        latency.put("p90", millis(percentile(sorted, 0.90)));
+        latency.put("p99", millis(percentile(sorted, 0.99)));
+        latency.put("p999", millis(percentile(sorted, 0.999)));
+        latency.put("max", count == 0 ? 0 : millis(sorted[count - 1]));
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("requests", count);
+        report.put("errors", errors);
+        report.put("errorRate", count == 0 ? 0 : (double) errors / count);
+        report.put("throughput", count / seconds);
+        report.put("bytesPerSecond", bytes / seconds);
+        report.put("latencyMillis", latency);
+        report.put("statuses", new TreeMap<>(statuses));
+        return report;
+    }
+
+    /**
+     * nearest-rank百分位
+     */
+    static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(p * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+}
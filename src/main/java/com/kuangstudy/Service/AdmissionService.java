@@ -0,0 +1,236 @@
+package com.kuangstudy.Service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 准入控制：按接口类别限制同时进行的请求占用的资源，超过预算时短暂排队，排不上就拒绝，
+ * 节点在突发流量下变慢、拒绝一部分请求，而不是内存耗尽（Full GC）或者线程耗尽
+ * - upload：正在上传的请求体总字节数（Content-Length）
+ * - export：CSV导出占用的内存（每个导出按固定的缓冲区加上并行导出的分区缓冲区估算）
+ * - video / pdf / file：每类流式输出的并发数
+ */
+@Service
+public class AdmissionService {
+
+    public static final String UPLOAD = "upload";
+    public static final String EXPORT = "export";
+    public static final String VIDEO = "video";
+    public static final String PDF = "pdf";
+    public static final String FILE = "file";
+
+    @Autowired
+    private CsvExportService csvExportService;
+
+    @Value("${admission.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 预算不够时最多排队多久
+     */
+    @Value("${admission.queueTimeout:500ms}")
+    private Duration queueTimeout;
+
+    /**
+     * 每类请求最多多少个在排队，再来的直接拒绝
+     */
+    @Value("${admission.maxWaiting:50}")
+    private int maxWaiting;
+
+    /**
+     * 拒绝时让客户端多久以后重试（Retry-After）
+     */
+    @Value("${admission.retryAfter:2s}")
+    private Duration retryAfter;
+
+    @Value("${admission.upload.maxBytes:256MB}")
+    private DataSize uploadMaxBytes;
+
+    /**
+     * 没有Content-Length（chunked）的上传按这个大小计算
+     */
+    @Value("${admission.upload.unknownSize:10MB}")
+    private DataSize uploadUnknownSize;
+
+    @Value("${admission.export.maxBytes:64MB}")
+    private DataSize exportMaxBytes;
+
+    /**
+     * 每个CSV导出除了并行分区缓冲区以外估算占用的内存（编码和gzip缓冲区）
+     */
+    @Value("${admission.export.bytesPerRequest:2MB}")
+    private DataSize exportBytesPerRequest;
+
+    @Value("${admission.stream.video:200}")
+    private int maxVideoStreams;
+
+    @Value("${admission.stream.pdf:200}")
+    private int maxPdfStreams;
+
+    @Value("${admission.stream.file:500}")
+    private int maxFileStreams;
+
+    private final Map<String, Budget> budgets = new LinkedHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        budgets.put(UPLOAD, new Budget(UPLOAD, uploadMaxBytes.toBytes(), maxWaiting));
+        budgets.put(EXPORT, new Budget(EXPORT, exportMaxBytes.toBytes(), maxWaiting));
+        budgets.put(VIDEO, new Budget(VIDEO, maxVideoStreams, maxWaiting));
+        budgets.put(PDF, new Budget(PDF, maxPdfStreams, maxWaiting));
+        budgets.put(FILE, new Budget(FILE, maxFileStreams, maxWaiting));
+    }
+
+    /**
+     * 申请预算，不够时最多排队 queueTimeout
+     * @param amount upload/export是字节数，流式输出是1
+     */
+    public Result acquire(String budget, long amount) throws InterruptedException {
+        if (!enabled) {
+            return Result.ADMITTED;
+        }
+        return budgets.get(budget).acquire(amount, queueTimeout.toNanos());
+    }
+
+    /**
+     * 请求结束（包括异步输出结束）时归还预算，amount必须和acquire时一致
+     */
+    public void release(String budget, long amount) {
+        if (enabled) {
+            budgets.get(budget).release(amount);
+        }
+    }
+
+    /**
+     * 上传请求占用的预算
+     */
+    public long uploadCost(long contentLength) {
+        return contentLength < 0 ? uploadUnknownSize.toBytes() : contentLength;
+    }
+
+    /**
+     * CSV导出请求占用的预算：固定部分加上并行导出最多同时存在的分区缓冲区
+     */
+    public long exportCost() {
+        return exportBytesPerRequest.toBytes() + csvExportService.getPartitionBufferBytes();
+    }
+
+    public long getRetryAfterSeconds() {
+        return Math.max(1, retryAfter.getSeconds());
+    }
+
+    public Collection<Budget> getBudgets() {
+        return Collections.unmodifiableCollection(budgets.values());
+    }
+
+    public enum Result {
+        ADMITTED,
+        /**
+         * 排队的请求已经太多，没有排队直接拒绝
+         */
+        QUEUE_FULL,
+        /**
+         * 排队超时
+         */
+        TIMED_OUT
+    }
+
+    /**
+     * 一类请求的预算
+     * 单个请求比整个预算还大时按整个预算计算：没有其它请求时可以单独进行，不会永远排不上
+     */
+    public static final class Budget {
+        private final String name;
+        private final long capacity;
+        private final int maxWaiting;
+        private long used;
+        private int waiting;
+        private final LongAdder admitted = new LongAdder();
+        private final LongAdder queueFull = new LongAdder();
+        private final LongAdder timedOut = new LongAdder();
+
+        Budget(String name, long capacity, int maxWaiting) {
+            this.name = name;
+            this.capacity = capacity;
+            this.maxWaiting = maxWaiting;
+        }
+
+        Result acquire(long amount, long timeoutNanos) throws InterruptedException {
+            amount = Math.min(amount, capacity);
+            synchronized (this) {
+                if (used + amount <= capacity) {
+                    used += amount;
+                    admitted.increment();
+                    return Result.ADMITTED;
+                }
+                if (waiting >= maxWaiting || timeoutNanos <= 0) {
+                    queueFull.increment();
+                    return Result.QUEUE_FULL;
+                }
+                waiting++;
+                try {
+                    long deadline = System.nanoTime() + timeoutNanos;
+                    while (used + amount > capacity) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            timedOut.increment();
+                            return Result.TIMED_OUT;
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    }
+                    used += amount;
+                    admitted.increment();
+                    return Result.ADMITTED;
+                } finally {
+                    waiting--;
+                }
+            }
+        }
+
+        void release(long amount) {
+            synchronized (this) {
+                used -= Math.min(amount, capacity);
+                notifyAll();
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCapacity() {
+            return capacity;
+        }
+
+        public synchronized long getUsed() {
+            return used;
+        }
+
+        public synchronized int getWaiting() {
+            return waiting;
+        }
+
+        public long getAdmitted() {
+            return admitted.sum();
+        }
+
+        public long getQueueFull() {
+            return queueFull.sum();
+        }
+
+        public long getTimedOut() {
+            return timedOut.sum();
+        }
+    }
+}
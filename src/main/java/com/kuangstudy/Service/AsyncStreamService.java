@@ -0,0 +1,295 @@
+package com.kuangstudy.Service;
+
+import com.kuangstudy.util.StreamSegment;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 非阻塞的异步文件流输出（Servlet 3.1 WriteListener）
+ * 以前视频和PDF的响应都是在Tomcat的请求线程上同步写出的，慢速的客户端会一直占着线程，
+ * 几百个手机用户就能把线程池占满，连 /upload/file 和 /ping/post 都进不来。
+ * 现在控制器设置好响应头后调用 start()，请求线程立刻返回，
+ * 之后只有客户端能接收数据时（isReady()为true）才由容器线程读一块文件写出去，
+ * 所以少量线程就能同时维持几千个连接。
+ * 每个流都有写超时：超过 writeIdleTimeout 没有写出任何数据就关闭连接
+ * 写出前向 BandwidthScheduler 申请令牌，限速时拿不到令牌就先返回，补充令牌后再继续写
+ */
+@Service
+public class AsyncStreamService {
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    /**
+     * 连续多久写不出数据（客户端不接收）就断开
+     */
+    @Value("${stream.writeIdleTimeout:30s}")
+    private Duration writeIdleTimeout;
+
+    /**
+     * 单个流的总时长上限，0表示不限制（大视频在慢速网络下可能要传很久）
+     */
+    @Value("${stream.maxDuration:0s}")
+    private Duration maxDuration;
+
+    @Autowired
+    private BandwidthScheduler bandwidthScheduler;
+
+    private final Set<StreamWriter> activeStreams = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder idleTimeouts = new LongAdder();
+
+    private ScheduledExecutorService watchdog;
+
+    @PostConstruct
+    public void init() {
+        watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "stream-write-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(100, writeIdleTimeout.toMillis() / 4);
+        watchdog.scheduleWithFixedDelay(this::checkIdleStreams, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        watchdog.shutdownNow();
+    }
+
+    /**
+     * 开始异步输出，调用前需要设置好状态码和响应头
+     * @param lookAhead 提前对后面几个段调用 prefetch()
+     * @param recorder 写出的字节数、首字节时间等指标，流结束时调用 finish()
+     */
+    public void start(HttpServletRequest request, HttpServletResponse response,
+                      List<StreamSegment> segments, int lookAhead, StreamMetrics.Recorder recorder) throws IOException {
+        AsyncContext asyncContext = request.startAsync(request, response);
+        asyncContext.setTimeout(maxDuration.toMillis());
+        StreamWriter writer = new StreamWriter(asyncContext, response.getOutputStream(), segments, lookAhead, recorder);
+        asyncContext.addListener(writer);
+        activeStreams.add(writer);
+        // 设置WriteListener后容器马上会回调 onWritePossible
+        writer.outputStream.setWriteListener(writer);
+    }
+
+    public int getActiveStreams() {
+        return activeStreams.size();
+    }
+
+    public long getIdleTimeouts() {
+        return idleTimeouts.sum();
+    }
+
+    private void checkIdleStreams() {
+        long now = System.nanoTime();
+        for (StreamWriter writer : activeStreams) {
+            if (now - writer.lastProgress > writeIdleTimeout.toNanos()) {
+                idleTimeouts.increment();
+                System.out.println("stream write timeout, closing: " + writer.asyncContext.getRequest());
+                writer.abort();
+            }
+        }
+    }
+
+    private final class StreamWriter implements WriteListener, AsyncListener {
+        private final AsyncContext asyncContext;
+        private final ServletOutputStream outputStream;
+        private final List<StreamSegment> segments;
+        private final int lookAhead;
+        private final StreamMetrics.Recorder recorder;
+        private final BandwidthScheduler.Flow flow = bandwidthScheduler.open();
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        private int index;
+        private int prefetched;
+        private boolean waiting;
+        private volatile long lastProgress = System.nanoTime();
+
+        StreamWriter(AsyncContext asyncContext, ServletOutputStream outputStream,
+                     List<StreamSegment> segments, int lookAhead, StreamMetrics.Recorder recorder) {
+            this.asyncContext = asyncContext;
+            this.outputStream = outputStream;
+            this.segments = segments;
+            this.lookAhead = lookAhead;
+            this.recorder = recorder;
+            // buffer平时处于读模式，没有待写出的数据
+            buffer.flip();
+            prefetch();
+        }
+
+        @Override
+        public synchronized void onWritePossible() throws IOException {
+            if (finished.get()) {
+                return;
+            }
+            while (outputStream.isReady()) {
+                if (!buffer.hasRemaining()) {
+                    buffer.clear();
+                    boolean blocked = fillBuffer();
+                    buffer.flip();
+                    if (!buffer.hasRemaining()) {
+                        if (!blocked) {
+                            finish();
+                        }
+                        // 等数据准备好后 resume() 会再次进来
+                        return;
+                    }
+                }
+                int length = flow.tryAcquire(buffer.remaining(), this::resume);
+                if (length == 0) {
+                    // 限速：补充令牌后 resume() 会再次进来
+                    return;
+                }
+                outputStream.write(buffer.array(), buffer.position(), length);
+                recorder.written(length);
+                buffer.position(buffer.position() + length);
+                lastProgress = System.nanoTime();
+            }
+            // isReady()为false：客户端暂时不收，容器会在可写时再回调，线程直接返回
+        }
+
+        /**
+         * 从当前段开始尽量填满缓冲区
+         * @return 当前段的数据还没准备好返回true
+         */
+        private boolean fillBuffer() throws IOException {
+            while (buffer.hasRemaining() && index < segments.size()) {
+                StreamSegment segment = segments.get(index);
+                if (!segment.isReady()) {
+                    if (!waiting) {
+                        waiting = true;
+                        segment.whenReady(this::segmentReady);
+                    }
+                    return true;
+                }
+                if (!segment.fill(buffer)) {
+                    segment.close();
+                    index++;
+                    prefetch();
+                }
+            }
+            return false;
+        }
+
+        private void prefetch() {
+            while (prefetched < segments.size() && prefetched <= index + lookAhead) {
+                segments.get(prefetched++).prefetch();
+            }
+        }
+
+        private void segmentReady() {
+            synchronized (this) {
+                waiting = false;
+            }
+            resume();
+        }
+
+        /**
+         * 预读完成、补充令牌后由其它线程调用，交回容器线程继续写
+         */
+        private void resume() {
+            if (finished.get()) {
+                return;
+            }
+            // 等数据期间不算空闲
+            lastProgress = System.nanoTime();
+            try {
+                asyncContext.start(() -> {
+                    try {
+                        onWritePossible();
+                    } catch (IOException e) {
+                        onError(e);
+                    }
+                });
+            } catch (IllegalStateException e) {
+                // 请求已经结束（客户端断开或超时）
+                finish();
+            }
+        }
+
+        private void finish() {
+            if (release()) {
+                try {
+                    asyncContext.complete();
+                } catch (IllegalStateException ignored) {
+                    // 容器已经结束了这个请求
+                }
+            }
+        }
+
+        /**
+         * 写超时：响应已经发出一部分，正常complete()的话连接会作为keep-alive保留，
+         * 客户端会一直等剩下的数据。这里改成让容器马上触发异步超时，按出错处理关闭连接
+         */
+        private void abort() {
+            if (release()) {
+                try {
+                    asyncContext.setTimeout(1);
+                } catch (IllegalStateException ignored) {
+                }
+            }
+        }
+
+        private synchronized boolean release() {
+            if (!finished.compareAndSet(false, true)) {
+                return false;
+            }
+            activeStreams.remove(this);
+            flow.close();
+            for (StreamSegment segment : segments) {
+                segment.close();
+            }
+            recorder.finish();
+            return true;
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            // 客户端断开等情况，释放文件句柄
+            finish();
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            finish();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            // 不调用complete()：超时交给容器按出错处理，连接会被关闭，客户端不会一直等剩下的数据
+            release();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            finish();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package com.kuangstudy.Service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 视频、PDF、上传文件静态资源输出的带宽调度（令牌桶）
+ * 以前每个流都是客户端能收多快就写多快，几个高速客户端就能占满出口带宽，其它人的播放卡住。
+ * - perStream：每个流的速率上限
+ * - global：所有流合计的速率上限，按最大最小公平（water-filling）分给需要数据的流，
+ *   用不完的份额（客户端收得慢）分给其它流
+ * - burst：新开始的流先发送的字节数（播放器起播的缓冲），计入全局限制，最多预支1秒的全局带宽；
+ *   流结束时没用完的令牌还给全局（304、小缩略图、短的Range读取用不了多少），不会拖慢其它流
+ * 定时器每 tick 补充一次令牌，拿不到令牌的流登记回调，补充后由定时器线程唤醒
+ * perStream和global都是0时不限速，不启动定时器
+ */
+@Service
+public class BandwidthScheduler {
+
+    /**
+     * 每个流最少能攒下的令牌，保证一次能写出一块完整的缓冲区
+     */
+    private static final long MIN_FLOW_CAPACITY = 64 * 1024;
+
+    /**
+     * 每个流每秒最多发送的字节数，0表示不限制
+     */
+    @Value("${stream.bandwidth.perStream:0}")
+    private DataSize perStreamRate;
+
+    /**
+     * 所有流合计每秒最多发送的字节数，0表示不限制
+     */
+    @Value("${stream.bandwidth.global:0}")
+    private DataSize globalRate;
+
+    @Value("${stream.bandwidth.burst:2MB}")
+    private DataSize burst;
+
+    @Value("${stream.bandwidth.tick:10ms}")
+    private Duration tick;
+
+    private final Set<Flow> flows = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder throttled = new LongAdder();
+
+    private final LongAdder grantedBytes = new LongAdder();
+
+    /**
+     * 全局令牌，新流的突发量会预支成负数，之后先还上再分配
+     */
+    private long globalTokens;
+
+    private long lastTick;
+
+    private ScheduledExecutorService timer;
+
+    @PostConstruct
+    public void init() {
+        if (!isEnabled()) {
+            return;
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "stream-bandwidth");
+            thread.setDaemon(true);
+            return thread;
+        });
+        lastTick = System.nanoTime();
+        timer.scheduleAtFixedRate(this::refill, tick.toNanos(), tick.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+    }
+
+    public boolean isEnabled() {
+        return perStreamRate.toBytes() > 0 || globalRate.toBytes() > 0;
+    }
+
+    /**
+     * 开始一个流，结束时必须调用 Flow.close()
+     */
+    public Flow open() {
+        Flow flow = new Flow();
+        if (!isEnabled()) {
+            return flow;
+        }
+        long initial = burst.toBytes();
+        long global = globalRate.toBytes();
+        if (global > 0) {
+            synchronized (this) {
+                // 预支的全局带宽最多1秒，超过时新流没有突发量，按公平份额发送
+                initial = Math.max(0, Math.min(initial, globalTokens + global));
+                globalTokens -= initial;
+            }
+        }
+        flow.tokens = initial;
+        flow.limited = true;
+        flows.add(flow);
+        return flow;
+    }
+
+    public int getActiveFlows() {
+        return flows.size();
+    }
+
+    public long getThrottled() {
+        return throttled.sum();
+    }
+
+    public long getGrantedBytes() {
+        return grantedBytes.sum();
+    }
+
+    /**
+     * 令牌桶最多攒下两个tick的量
+     */
+    private long capacity(long rate) {
+        return Math.max(MIN_FLOW_CAPACITY, rate * 2 * tick.toNanos() / TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /**
+     * 定时补充令牌：先按perStream算出每个流这次最多能拿多少，
+     * 再把全局令牌从需要得少的流开始平均分，分不完的留给后面需要得多的流
+     */
+    synchronized void refill() {
+        long now = System.nanoTime();
+        long elapsed = now - lastTick;
+        lastTick = now;
+        long perStream = perStreamRate.toBytes();
+        long global = globalRate.toBytes();
+        long capacity = capacity(perStream > 0 ? perStream : global);
+        long perStreamRefill = perStream > 0 ? perStream * elapsed / TimeUnit.SECONDS.toNanos(1) : Long.MAX_VALUE;
+
+        List<Flow> hungry = new ArrayList<>();
+        for (Flow flow : flows) {
+            synchronized (flow) {
+                flow.need = Math.min(perStreamRefill, capacity - flow.tokens);
+            }
+            if (flow.need > 0) {
+                hungry.add(flow);
+            }
+        }
+
+        if (global > 0) {
+            globalTokens = Math.min(globalTokens + global * elapsed / TimeUnit.SECONDS.toNanos(1), capacity(global));
+            hungry.sort(Comparator.comparingLong(flow -> flow.need));
+            int remaining = hungry.size();
+            for (Flow flow : hungry) {
+                long share = globalTokens > 0 ? globalTokens / remaining : 0;
+                long grant = Math.min(flow.need, share);
+                globalTokens -= flow.grant(grant);
+                remaining--;
+            }
+        } else {
+            for (Flow flow : hungry) {
+                flow.grant(flow.need);
+            }
+        }
+    }
+
+    /**
+     * 一个流的令牌桶
+     * 非阻塞输出用 tryAcquire()，拿不到时登记回调；阻塞输出用 acquire()
+     */
+    public final class Flow {
+        private volatile boolean limited;
+        private long tokens;
+        private long need;
+        private Runnable waiter;
+
+        /**
+         * 拿到最多wanted字节的令牌，返回0时（令牌用完）补充令牌后会调用一次onTokens
+         */
+        public int tryAcquire(int wanted, Runnable onTokens) {
+            if (!limited) {
+                return wanted;
+            }
+            synchronized (this) {
+                if (tokens > 0) {
+                    int granted = (int) Math.min(wanted, tokens);
+                    tokens -= granted;
+                    grantedBytes.add(granted);
+                    return granted;
+                }
+                throttled.increment();
+                waiter = onTokens;
+                return 0;
+            }
+        }
+
+        /**
+         * 拿到最多wanted字节的令牌，令牌用完时等待补充
+         */
+        public int acquire(int wanted) throws InterruptedIOException {
+            if (!limited) {
+                return wanted;
+            }
+            synchronized (this) {
+                if (tokens <= 0) {
+                    throttled.increment();
+                }
+                while (tokens <= 0 && limited) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("bandwidth wait interrupted");
+                    }
+                }
+                if (!limited) {
+                    return wanted;
+                }
+                int granted = (int) Math.min(wanted, tokens);
+                tokens -= granted;
+                grantedBytes.add(granted);
+                return granted;
+            }
+        }
+
+        /**
+         * @return 实际给出的令牌，流已经结束时是0
+         */
+        private long grant(long amount) {
+            if (amount <= 0) {
+                return 0;
+            }
+            Runnable callback;
+            synchronized (this) {
+                if (!limited) {
+                    return 0;
+                }
+                tokens += amount;
+                callback = waiter;
+                waiter = null;
+                notifyAll();
+            }
+            if (callback != null) {
+                callback.run();
+            }
+            return amount;
+        }
+
+        /**
+         * 流结束，没用完的令牌（预支的突发量和分到的份额）还给全局
+         */
+        public void close() {
+            flows.remove(this);
+            long unused;
+            synchronized (this) {
+                if (!limited) {
+                    return;
+                }
+                limited = false;
+                unused = tokens;
+                tokens = 0;
+                waiter = null;
+                notifyAll();
+            }
+            long global = globalRate.toBytes();
+            if (global > 0 && unused > 0) {
+                // 不能在持有流的锁时拿调度器的锁，refill是先拿调度器再拿流
+                synchronized (BandwidthScheduler.this) {
+                    globalTokens = Math.min(globalTokens + unused, capacity(global));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,452 @@
+package com.kuangstudy.Service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.kuangstudy.storage.StorageBackend;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 断点续传的分片上传
+ * 流程：init 创建上传任务 -> PUT 第N个分片（可乱序、可并发） -> status 查询缺失的分片 -> commit 完成
+ * init时直接在 uploadFolder/dir/yyyyMMdd 下预分配一个 .part 文件，每个分片按 index*chunkSize 定位写入，
+ * commit时只是把 .part 重命名成正式文件名，不需要再合并拷贝一次
+ * 使用对象存储时 .part 文件仍然在本节点的uploadFolder中拼装（同一个上传任务的请求要到同一个节点），
+ * commit时整个文件分片并行上传到存储，然后删除本地文件
+ * 每个任务的信息和已收到的分片记在 chunk.stateFolder/uploadId.json 中，重启后客户端仍然可以只补传缺失的分片；
+ * 超过 chunk.idleTimeout 没有任何请求的任务删除 .part 文件和任务信息
+ */
+@Service
+public class ChunkUploadService {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * 单个上传任务最多的分片数
+     */
+    private static final long MAX_CHUNK_COUNT = 100000;
+
+    private static final String STATE_SUFFIX = ".json";
+
+    @Autowired
+    private UploadService uploadService;
+
+    @Autowired
+    private UploadLayoutService uploadLayoutService;
+
+    @Autowired
+    private FileIndexService fileIndexService;
+
+    @Autowired
+    private StreamMetrics streamMetrics;
+
+    @Autowired
+    @Qualifier("uploadStorage")
+    private StorageBackend uploadStorage;
+
+    @Autowired
+    private DurabilityService durabilityService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value("${file.chunk.maxFileSize:10GB}")
+    private DataSize maxFileSize;
+
+    @Value("${file.chunk.maxChunkSize:16MB}")
+    private DataSize maxChunkSize;
+
+    @Value("${file.chunk.stateFolder:chunk-uploads}")
+    private String stateFolder;
+
+    /**
+     * 任务多久没有请求（分片、查询）后删除
+     */
+    @Value("${file.chunk.idleTimeout:24h}")
+    private Duration idleTimeout;
+
+    private Path stateDir;
+
+    private final Map<String, ChunkUpload> uploads = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService cleaner;
+
+    @PostConstruct
+    public void init() throws IOException {
+        stateDir = Paths.get(stateFolder).toAbsolutePath().normalize();
+        Files.createDirectories(stateDir);
+        // 重启前的上传任务，.part 文件已经不在的任务直接删除
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(stateDir)) {
+            for (Path file : files) {
+                ChunkUpload upload = file.getFileName().toString().endsWith(STATE_SUFFIX) ? load(file) : null;
+                if (upload == null) {
+                    Files.deleteIfExists(file);
+                } else {
+                    uploads.put(upload.uploadId, upload);
+                }
+            }
+        }
+
+        cleaner = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "chunk-upload-cleaner");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, Math.min(idleTimeout.toMillis() / 4, TimeUnit.HOURS.toMillis(1)));
+        cleaner.scheduleWithFixedDelay(this::expire, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        cleaner.shutdownNow();
+    }
+
+    /**
+     * 创建分片上传任务
+     * @return 上传任务信息，客户端后续用uploadId上传分片
+     */
+    public Map<String, Object> init(String dir, String originalFileName, long fileSize, long chunkSize) throws IOException {
+        if (fileSize <= 0 || fileSize > maxFileSize.toBytes()) {
+            throw new IllegalArgumentException("fileSize must be between 1 and " + maxFileSize.toBytes());
+        }
+        if (chunkSize <= 0 || chunkSize > maxChunkSize.toBytes()) {
+            throw new IllegalArgumentException("chunkSize must be between 1 and " + maxChunkSize.toBytes());
+        }
+        if ((fileSize + chunkSize - 1) / chunkSize > MAX_CHUNK_COUNT) {
+            throw new IllegalArgumentException("too many chunks, use a chunkSize of at least " + (fileSize / MAX_CHUNK_COUNT + 1));
+        }
+
+        String uniqueFileName = uploadService.generateFileName(originalFileName);
+        String dateDir = uploadLayoutService.currentDateDir();
+        File targetFileDir = uploadLayoutService.resolveTargetDir(dir, dateDir, uniqueFileName);
+        File partFile = new File(targetFileDir, uniqueFileName + ".part");
+
+        // 预分配文件大小（稀疏文件），各分片直接写到最终位置
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(partFile, "rw")) {
+            randomAccessFile.setLength(fileSize);
+        }
+
+        ChunkUpload upload = new ChunkUpload(UUID.randomUUID().toString(), dir, dateDir, uniqueFileName,
+                partFile, fileSize, chunkSize);
+        try {
+            save(upload);
+        } catch (IOException e) {
+            Files.deleteIfExists(partFile.toPath());
+            throw e;
+        }
+        uploads.put(upload.uploadId, upload);
+        return status(upload);
+    }
+
+    /**
+     * 写入第index个分片，重复上传同一个分片会覆盖之前的内容
+     * 覆盖前先把这个分片标记成未收到（并保存），写完才重新标记，中途失败时不会把写了一半的分片当成已收到
+     * @throws NoSuchElementException 任务不存在，或者写入期间任务被放弃、过期
+     * @throws IllegalStateException 任务正在commit，或者同一个分片正在被另一个请求写入
+     */
+    public Map<String, Object> writeChunk(String uploadId, int index, InputStream inputStream) throws IOException {
+        ChunkUpload upload = getUpload(uploadId);
+        if (index < 0 || index >= upload.chunkCount) {
+            throw new IllegalArgumentException("chunk index must be between 0 and " + (upload.chunkCount - 1));
+        }
+        synchronized (upload) {
+            checkOpen(upload);
+            if (upload.writing.get(index)) {
+                throw new IllegalStateException("chunk " + index + " of upload " + uploadId + " is being written");
+            }
+            if (upload.received.get(index)) {
+                upload.received.clear(index);
+                save(upload);
+            }
+            upload.writing.set(index);
+            upload.writers++;
+            upload.lastAccess = System.currentTimeMillis();
+        }
+
+        long position = index * upload.chunkSize;
+        long expected = Math.min(upload.chunkSize, upload.fileSize - position);
+        boolean complete = false;
+        // 每个分片单独打开文件，不为空闲的任务占用文件描述符；不同分片写同一个文件的不同位置，可以并发
+        try (FileChannel channel = FileChannel.open(upload.partFile.toPath(), StandardOpenOption.WRITE)) {
+            byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, expected)];
+            long written = 0;
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer)) != -1) {
+                if (written + bytesRead > expected) {
+                    throw new IllegalArgumentException("chunk " + index + " is larger than " + expected + " bytes");
+                }
+                ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, bytesRead);
+                while (byteBuffer.hasRemaining()) {
+                    written += channel.write(byteBuffer, position + written);
+                }
+            }
+            streamMetrics.recordRead("chunk", written);
+            if (written != expected) {
+                throw new IllegalArgumentException("chunk " + index + " expected " + expected + " bytes but got " + written);
+            }
+            complete = true;
+        } catch (NoSuchFileException e) {
+            // abort 或过期已经删除了 .part 文件
+            throw new NoSuchElementException("upload " + uploadId + " not found");
+        } finally {
+            synchronized (upload) {
+                upload.writers--;
+                upload.writing.clear(index);
+                upload.lastAccess = System.currentTimeMillis();
+                if (complete) {
+                    checkOpen(upload);
+                    upload.received.set(index);
+                    save(upload);
+                }
+            }
+        }
+        return status(upload);
+    }
+
+    /**
+     * 查询上传进度，客户端断线后根据missing只补传缺失的分片
+     */
+    public Map<String, Object> status(String uploadId) {
+        ChunkUpload upload = getUpload(uploadId);
+        upload.lastAccess = System.currentTimeMillis();
+        return status(upload);
+    }
+
+    /**
+     * 所有分片都到齐后，把 .part 文件重命名成正式文件
+     * @throws IllegalStateException 还有分片没有收到，或者还有分片正在写入
+     */
+    public Map<String, Object> commit(String uploadId) throws IOException {
+        ChunkUpload upload = getUpload(uploadId);
+        synchronized (upload) {
+            checkOpen(upload);
+            if (upload.received.cardinality() != upload.chunkCount) {
+                throw new IllegalStateException("upload " + uploadId + " is missing "
+                        + (upload.chunkCount - upload.received.cardinality()) + " chunks");
+            }
+            if (upload.writers > 0) {
+                throw new IllegalStateException("upload " + uploadId + " has " + upload.writers + " chunks in progress");
+            }
+            upload.closed = true;
+            uploads.remove(uploadId);
+        }
+
+        String relativePath = uploadLayoutService.relativePath(upload.dir, upload.dateDir, upload.uniqueFileName);
+        if (uploadStorage.isLocal()) {
+            File targetFile = new File(upload.partFile.getParentFile(), upload.uniqueFileName);
+            Files.move(upload.partFile.toPath(), targetFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            durabilityService.awaitDurable(targetFile.toPath());
+            fileIndexService.refresh(FileIndexService.UPLOAD, targetFile.toPath());
+        } else {
+            try (InputStream inputStream = Files.newInputStream(upload.partFile.toPath())) {
+                uploadStorage.put(relativePath, inputStream, upload.fileSize);
+            } catch (IOException e) {
+                // 上传到存储失败，恢复上传任务，客户端可以重试commit
+                synchronized (upload) {
+                    upload.closed = false;
+                    upload.lastAccess = System.currentTimeMillis();
+                }
+                uploads.put(uploadId, upload);
+                throw e;
+            }
+            Files.deleteIfExists(upload.partFile.toPath());
+        }
+        Files.deleteIfExists(statePath(uploadId));
+        streamMetrics.recordUpload("chunk", upload.dir, upload.fileSize);
+
+        Map<String, Object> map = new HashMap<>();
+        map.put("url", uploadService.buildUrl(relativePath));
+        map.put("size", upload.fileSize);
+        return map;
+    }
+
+    /**
+     * 放弃上传，删除已经写入的分片，正在写入的分片请求会失败
+     */
+    public void abort(String uploadId) throws IOException {
+        ChunkUpload upload = getUpload(uploadId);
+        synchronized (upload) {
+            checkOpen(upload);
+            upload.closed = true;
+            uploads.remove(uploadId);
+        }
+        delete(upload);
+    }
+
+    /**
+     * 删除空闲超过 idleTimeout 的任务（没有正在写入的分片）
+     */
+    private void expire() {
+        long deadline = System.currentTimeMillis() - idleTimeout.toMillis();
+        for (ChunkUpload upload : uploads.values()) {
+            synchronized (upload) {
+                if (upload.closed || upload.writers > 0 || upload.lastAccess > deadline) {
+                    continue;
+                }
+                upload.closed = true;
+                uploads.remove(upload.uploadId);
+            }
+            try {
+                delete(upload);
+                System.out.println("chunk upload " + upload.uploadId + " expired, " + upload.partFile + " deleted");
+            } catch (IOException e) {
+                System.out.println("chunk upload " + upload.uploadId + " cleanup failed: " + e);
+            }
+        }
+    }
+
+    private void delete(ChunkUpload upload) throws IOException {
+        Files.deleteIfExists(upload.partFile.toPath());
+        Files.deleteIfExists(statePath(upload.uploadId));
+    }
+
+    private ChunkUpload getUpload(String uploadId) {
+        ChunkUpload upload = uploads.get(uploadId);
+        if (upload == null) {
+            throw new NoSuchElementException("upload " + uploadId + " not found");
+        }
+        return upload;
+    }
+
+    /**
+     * 在upload的锁内调用
+     */
+    private static void checkOpen(ChunkUpload upload) {
+        if (upload.closed) {
+            throw new NoSuchElementException("upload " + upload.uploadId + " not found");
+        }
+    }
+
+    private Map<String, Object> status(ChunkUpload upload) {
+        List<Integer> missing = new ArrayList<>();
+        int receivedCount;
+        synchronized (upload) {
+            for (int i = upload.received.nextClearBit(0); i < upload.chunkCount; i = upload.received.nextClearBit(i + 1)) {
+                missing.add(i);
+            }
+            receivedCount = upload.received.cardinality();
+        }
+
+        Map<String, Object> map = new HashMap<>();
+        map.put("uploadId", upload.uploadId);
+        map.put("fileSize", upload.fileSize);
+        map.put("chunkSize", upload.chunkSize);
+        map.put("chunkCount", upload.chunkCount);
+        map.put("received", receivedCount);
+        map.put("missing", missing);
+        return map;
+    }
+
+    private Path statePath(String uploadId) {
+        return stateDir.resolve(uploadId + STATE_SUFFIX);
+    }
+
+    /**
+     * 保存任务信息和已收到的分片（先写临时文件再重命名），在upload的锁内调用
+     * 只在分片写完之后记录，进程重启不会丢失已经记录的分片；掉电时是否丢失取决于 file.durability
+     */
+    private void save(ChunkUpload upload) throws IOException {
+        Map<String, Object> state = new HashMap<>();
+        state.put("uploadId", upload.uploadId);
+        state.put("dir", upload.dir);
+        state.put("dateDir", upload.dateDir);
+        state.put("uniqueFileName", upload.uniqueFileName);
+        state.put("partFile", upload.partFile.getAbsolutePath());
+        state.put("fileSize", upload.fileSize);
+        state.put("chunkSize", upload.chunkSize);
+        state.put("received", Base64.getEncoder().encodeToString(upload.received.toByteArray()));
+
+        Path path = statePath(upload.uploadId);
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        objectMapper.writeValue(tmp.toFile(), state);
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * 读取重启前保存的任务
+     * @return .part 文件已经不存在或者任务信息无法解析时返回null
+     */
+    private ChunkUpload load(Path path) {
+        try {
+            Map<?, ?> state = objectMapper.readValue(path.toFile(), Map.class);
+            File partFile = new File((String) state.get("partFile"));
+            if (!partFile.isFile()) {
+                return null;
+            }
+            ChunkUpload upload = new ChunkUpload((String) state.get("uploadId"), (String) state.get("dir"),
+                    (String) state.get("dateDir"), (String) state.get("uniqueFileName"), partFile,
+                    ((Number) state.get("fileSize")).longValue(), ((Number) state.get("chunkSize")).longValue());
+            upload.received.or(BitSet.valueOf(Base64.getDecoder().decode((String) state.get("received"))));
+            return upload;
+        } catch (IOException | RuntimeException e) {
+            System.out.println("chunk upload state " + path + " ignored: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * 一个分片上传任务的状态，writers、closed、received、writing在对象锁内访问
+     */
+    private static class ChunkUpload {
+        private final String uploadId;
+        private final String dir;
+        private final String dateDir;
+        private final String uniqueFileName;
+        private final File partFile;
+        private final long fileSize;
+        private final long chunkSize;
+        private final int chunkCount;
+        private final BitSet received;
+        /**
+         * 正在写入的分片，不保存
+         */
+        private final BitSet writing = new BitSet();
+        private int writers;
+        private boolean closed;
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        ChunkUpload(String uploadId, String dir, String dateDir, String uniqueFileName,
+                    File partFile, long fileSize, long chunkSize) {
+            this.uploadId = uploadId;
+            this.dir = dir;
+            this.dateDir = dateDir;
+            this.uniqueFileName = uniqueFileName;
+            this.partFile = partFile;
+            this.fileSize = fileSize;
+            this.chunkSize = chunkSize;
+            this.chunkCount = (int) ((fileSize + chunkSize - 1) / chunkSize);
+            this.received = new BitSet(chunkCount);
+        }
+    }
+}
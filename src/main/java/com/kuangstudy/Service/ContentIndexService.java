@@ -0,0 +1,173 @@
+package com.kuangstudy.Service;
+
+import com.kuangstudy.storage.StorageBackend;
+import com.kuangstudy.storage.StorageObject;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 上传文件的内容索引：SHA-256 -> 已经存储的文件
+ * 同样内容的文件再次上传时不再写一份新的，而是指向已有的文件。
+ * 索引保存在 uploadFolder/.content-index 中，每行一条 "hash\tsize\t相对路径"，只追加不修改，启动时加载到内存
+ * 使用对象存储时索引仍然是每个节点自己的，只是少了查重的机会，不影响正确性
+ */
+@Service
+public class ContentIndexService {
+
+    private static final String INDEX_FILE_NAME = ".content-index";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    @Value("${file.uploadFolder}")
+    private String uploadFolder;
+
+    @Autowired
+    @Qualifier("uploadStorage")
+    private StorageBackend uploadStorage;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private File indexFile;
+
+    @PostConstruct
+    public void load() throws IOException {
+        indexFile = new File(uploadFolder, INDEX_FILE_NAME);
+        if (!indexFile.exists()) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length == 3) {
+                    // 后写入的记录覆盖先写入的
+                    entries.put(fields[0], new Entry(Long.parseLong(fields[1]), fields[2]));
+                }
+            }
+        }
+    }
+
+    /**
+     * 查找内容相同的已存储文件
+     * @return 已存储文件相对uploadFolder的路径，文件已经不存在或者大小对不上时返回null
+     */
+    public String lookup(String hash, long size) {
+        Entry entry = entries.get(hash);
+        if (entry == null || entry.size != size) {
+            return null;
+        }
+        StorageObject object;
+        try {
+            object = uploadStorage.stat(entry.relativePath);
+        } catch (IOException e) {
+            // 存储暂时访问不了，这次不查重
+            return null;
+        }
+        if (object == null || object.getSize() != size) {
+            // 文件被删除或者被替换了，索引作废
+            entries.remove(hash, entry);
+            return null;
+        }
+        return entry.relativePath;
+    }
+
+    /**
+     * 登记新存储的文件
+     */
+    public synchronized void register(String hash, long size, String relativePath) throws IOException {
+        entries.put(hash, new Entry(size, relativePath));
+        indexFile.getParentFile().mkdirs();
+        try (OutputStream outputStream = new FileOutputStream(indexFile, true)) {
+            outputStream.write((hash + "\t" + size + "\t" + relativePath + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * 文件被移动后（目录布局迁移）更新索引中的路径，新记录追加到索引文件末尾
+     * @param moves 旧路径 -> 新路径，都是相对uploadFolder的路径，开头没有斜杠
+     * @return 更新的记录数
+     */
+    public synchronized int relocate(Map<String, String> moves) throws IOException {
+        int relocated = 0;
+        StringBuilder lines = new StringBuilder();
+        for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+            Entry entry = mapEntry.getValue();
+            String newPath = moves.get(stripLeadingSlash(entry.relativePath));
+            if (newPath != null) {
+                mapEntry.setValue(new Entry(entry.size, newPath));
+                lines.append(mapEntry.getKey()).append('\t').append(entry.size).append('\t').append(newPath).append('\n');
+                relocated++;
+            }
+        }
+        if (relocated > 0) {
+            try (OutputStream outputStream = new FileOutputStream(indexFile, true)) {
+                outputStream.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return relocated;
+    }
+
+    private static String stripLeadingSlash(String path) {
+        int start = 0;
+        while (start < path.length() && path.charAt(start) == '/') {
+            start++;
+        }
+        return path.substring(start);
+    }
+
+    /**
+     * 流式计算输入流的SHA-256，不关闭输入流
+     */
+    public static String sha256(InputStream inputStream) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[8192];
+        int bytesRead;
+        while ((bytesRead = inputStream.read(buffer)) != -1) {
+            digest.update(buffer, 0, bytesRead);
+        }
+        return toHex(digest.digest());
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    private static class Entry {
+        private final long size;
+        private final String relativePath;
+
+        Entry(long size, String relativePath) {
+            this.size = size;
+            this.relativePath = relativePath;
+        }
+    }
+}
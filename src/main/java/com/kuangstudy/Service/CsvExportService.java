@@ -0,0 +1,165 @@
+package com.kuangstudy.Service;
+
+import com.kuangstudy.dto.TestDto;
+import com.kuangstudy.util.CsvWriter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * CSV导出
+ * 以前是把100万行拼到StringBuffer里，再toString、再getBytes("MS932")，堆上同时存在3份完整数据，
+ * 而且全部生成完之前一个字节都发不出去。
+ * 现在边生成边编码边写出，每个请求只占用CsvWriter里固定大小的两个缓冲区。
+ * 并行模式（file.export.parallel.enabled）下按行号分区，每个分区在 csvEncodePool 中生成并编码到自己的缓冲区，
+ * 再严格按分区顺序写出。最多同时存在lookahead个分区的缓冲区，每个导出的内存上限约为
+ * lookahead * partitionRows * 24 字节（默认 4 * 20000 * 24 ≈ 1.9MB），和CPU核数无关，准入控制按这个大小计算。
+ * MS932没有编码状态，分区分别编码后直接拼接和整体编码的结果完全一样。
+ */
+@Service
+public class CsvExportService {
+
+    public static final Charset MS932 = Charset.forName("MS932");
+
+    public static final int ROW_COUNT = 1000000;
+
+    /**
+     * 一行大约的字节数，用来预估分区缓冲区的大小
+     */
+    private static final int ESTIMATED_ROW_BYTES = 24;
+
+    @Autowired
+    @Qualifier("csvEncodePool")
+    private ForkJoinPool csvEncodePool;
+
+    @Value("${file.export.parallel.enabled:true}")
+    private boolean parallel;
+
+    @Value("${file.export.parallel.partitionRows:20000}")
+    private int partitionRows;
+
+    /**
+     * 最多提前生成多少个分区（包括正在等待写出的），决定每个导出的内存上限
+     */
+    @Value("${file.export.parallel.lookahead:4}")
+    private int lookahead;
+
+    /**
+     * 导出的文件名，对应以前 testDt.getParam1()+".csv"
+     */
+    public String getFileName(TestDto testDto) {
+        return testDto.getParam1() + ".csv";
+    }
+
+    /**
+     * 把CSV内容按MS932编码流式写到输出流，不关闭输出流
+     */
+    public void writeCsv(TestDto testDto, OutputStream outputStream) throws IOException {
+        // 只有一个线程时并行只会多一次缓冲区拷贝
+        if (isParallel()) {
+            writeCsvParallel(testDto, outputStream, csvEncodePool, ROW_COUNT, partitionRows, lookahead);
+            return;
+        }
+        CsvWriter writer = new CsvWriter(outputStream, MS932);
+        writeHeader(writer);
+        writeRows(writer, 0, ROW_COUNT);
+        writer.finish();
+    }
+
+    /**
+     * 一个导出的分区缓冲区最多占用的字节数（顺序导出时是0，只有CsvWriter固定大小的缓冲区）
+     */
+    public long getPartitionBufferBytes() {
+        return isParallel() ? (long) lookahead * partitionRows * ESTIMATED_ROW_BYTES : 0;
+    }
+
+    private boolean isParallel() {
+        return parallel && lookahead > 1 && ROW_COUNT > partitionRows && csvEncodePool.getParallelism() > 1;
+    }
+
+    public void writeHeader(CsvWriter writer) throws IOException {
+        writer.append("氏名");
+        writer.append(",性別");
+    }
+
+    /**
+     * 写出[from, to)范围内的数据行，每行前面带换行符
+     */
+    public void writeRows(CsvWriter writer, int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            writer.newLine();
+            writer.append("千手柱間").append(i);
+            writer.append(",男性");
+        }
+    }
+
+    /**
+     * 分区并行生成rowCount行：每个分区由pool生成并编码到自己的缓冲区，写出线程按分区顺序等待并写出。
+     * 写出一个分区后才提交下一个，所以最多同时有lookahead个分区在生成或者等待写出；
+     * 客户端慢时生成也跟着停下来，不会无限占用内存。写出失败（客户端断开）时取消还没开始的分区
+     */
+    public void writeCsvParallel(TestDto testDto, OutputStream outputStream, ForkJoinPool pool,
+                                 int rowCount, int partitionRows, int lookahead) throws IOException {
+        int partitions = (rowCount + partitionRows - 1) / partitionRows;
+        Deque<ForkJoinTask<ByteArrayOutputStream>> window = new ArrayDeque<>(lookahead);
+        int next = 0;
+        try {
+            while (next < partitions || !window.isEmpty()) {
+                while (next < partitions && window.size() < lookahead) {
+                    int from = next * partitionRows;
+                    int to = Math.min(from + partitionRows, rowCount);
+                    boolean header = next == 0;
+                    window.add(pool.submit(() -> encodePartition(header, from, to)));
+                    next++;
+                }
+                join(window.poll()).writeTo(outputStream);
+            }
+            outputStream.flush();
+        } finally {
+            for (ForkJoinTask<ByteArrayOutputStream> task : window) {
+                task.cancel(false);
+            }
+        }
+    }
+
+    private ByteArrayOutputStream encodePartition(boolean header, int from, int to) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream((to - from) * ESTIMATED_ROW_BYTES);
+        CsvWriter writer = new CsvWriter(buffer, MS932);
+        if (header) {
+            writeHeader(writer);
+        }
+        writeRows(writer, from, to);
+        writer.finish();
+        return buffer;
+    }
+
+    private static ByteArrayOutputStream join(ForkJoinTask<ByteArrayOutputStream> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("CSV export interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package com.kuangstudy.Service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 上传文件的落盘（fsync）策略，file.durability.mode：
+ * none  ：不fsync（原来的行为），数据在page cache里，机器掉电时最近上传的文件可能丢失
+ * sync  ：每个文件写完单独fsync文件和目录后才返回，最安全，但小文件多时磁盘IOPS全耗在fsync上
+ * group ：组提交，同一目录下的文件攒成一批一起fsync，整批落盘后所有请求才返回。
+ *         目录空闲时马上fsync，不额外等待；上一批fsync期间到达的文件自动成为下一批，磁盘越忙批次越大。
+ *         一批文件的元数据在同一个日志事务里，几十个文件只需要一两次磁盘刷新
+ * fast  ：写完立即返回，落盘和group一样在后台按批进行，掉电时最多丢失最近一个window内的文件
+ */
+@Service
+public class DurabilityService {
+
+    public static final String NONE = "none";
+    public static final String SYNC = "sync";
+    public static final String GROUP = "group";
+    public static final String FAST = "fast";
+
+    private static final boolean WINDOWS = System.getProperty("os.name", "").toLowerCase().startsWith("windows");
+
+    @Autowired
+    @Qualifier("syncExecutor")
+    private Executor syncExecutor;
+
+    @Value("${file.durability.mode:none}")
+    private String mode;
+
+    /**
+     * 目录空闲时，一批的第一个文件到达后再等多久才开始fsync（多攒一些文件），0表示不等
+     */
+    @Value("${file.durability.window:0ms}")
+    private Duration window;
+
+    /**
+     * 一批最多多少个文件，凑够了不等window、也不等上一批完成，马上fsync
+     */
+    @Value("${file.durability.maxBatch:64}")
+    private int maxBatch;
+
+    /**
+     * group模式下请求最多等多久，超时按失败处理
+     */
+    @Value("${file.durability.waitTimeout:10s}")
+    private Duration waitTimeout;
+
+    /**
+     * 每个目录的批次状态，所有访问都在锁内进行
+     */
+    private final Map<Path, DirQueue> queues = new HashMap<>();
+
+    private ScheduledExecutorService timer;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder syncedFiles = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    @PostConstruct
+    public void start() {
+        if (!GROUP.equals(mode) && !FAST.equals(mode) && !SYNC.equals(mode) && !NONE.equals(mode)) {
+            throw new IllegalArgumentException("Unknown file.durability.mode: " + mode);
+        }
+        if (GROUP.equals(mode) || FAST.equals(mode)) {
+            timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "file-sync-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * 停止时把还在攒的批次全部落盘（fast模式下已经返回给客户端的文件）
+     */
+    @PreDestroy
+    public void stop() {
+        if (timer == null) {
+            return;
+        }
+        timer.shutdownNow();
+        Map<Path, Batch> remaining = new HashMap<>();
+        synchronized (queues) {
+            for (DirQueue queue : queues.values()) {
+                if (queue.collecting != null) {
+                    remaining.put(queue.dir, take(queue));
+                }
+            }
+        }
+        remaining.forEach(this::flush);
+    }
+
+    /**
+     * 新写入（或者新建了硬链接、重命名）的文件，按配置的模式落盘
+     * group/sync 模式下文件和所在目录都落盘后才返回；none/fast 模式马上返回
+     */
+    public void awaitDurable(Path file) throws IOException {
+        if (NONE.equals(mode)) {
+            return;
+        }
+        if (SYNC.equals(mode)) {
+            force(file);
+            forceDir(file.getParent());
+            batches.increment();
+            syncedFiles.increment();
+            return;
+        }
+        CompletableFuture<Void> durable = enqueue(file);
+        if (FAST.equals(mode)) {
+            return;
+        }
+        try {
+            durable.get(waitTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for fsync: " + file);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof UncheckedIOException ? ((UncheckedIOException) cause).getCause()
+                    : new IOException("fsync failed: " + file, cause);
+        } catch (TimeoutException e) {
+            throw new IOException("fsync timed out after " + waitTimeout + ": " + file);
+        }
+    }
+
+    private CompletableFuture<Void> enqueue(Path file) {
+        Path dir = file.getParent();
+        Batch flushNow = null;
+        boolean schedule = false;
+        CompletableFuture<Void> durable;
+        synchronized (queues) {
+            DirQueue queue = queues.computeIfAbsent(dir, DirQueue::new);
+            if (queue.collecting == null) {
+                queue.collecting = new Batch(System.nanoTime());
+                schedule = !window.isZero();
+            }
+            Batch batch = queue.collecting;
+            batch.files.add(file);
+            durable = batch.durable;
+            if (batch.files.size() >= maxBatch || (queue.flushing == 0 && window.isZero())) {
+                flushNow = take(queue);
+            }
+        }
+        if (flushNow != null) {
+            submit(dir, flushNow);
+        } else if (schedule) {
+            timer.schedule(() -> onWindowElapsed(dir), window.toNanos(), TimeUnit.NANOSECONDS);
+        }
+        return durable;
+    }
+
+    /**
+     * 一批的等待时间到了：目录没有正在进行的fsync就开始这一批，否则等上一批完成后再开始
+     */
+    private void onWindowElapsed(Path dir) {
+        Batch batch = null;
+        synchronized (queues) {
+            DirQueue queue = queues.get(dir);
+            if (queue != null && queue.flushing == 0 && isDue(queue.collecting)) {
+                batch = take(queue);
+            }
+        }
+        if (batch != null) {
+            submit(dir, batch);
+        }
+    }
+
+    /**
+     * 在fsync线程中落盘，完成后接着处理这期间攒下的下一批
+     */
+    private void submit(Path dir, Batch first) {
+        syncExecutor.execute(() -> {
+            Batch batch = first;
+            while (batch != null) {
+                flush(dir, batch);
+                batch = next(dir);
+            }
+        });
+    }
+
+    private Batch next(Path dir) {
+        synchronized (queues) {
+            DirQueue queue = queues.get(dir);
+            queue.flushing--;
+            if (queue.flushing == 0 && isDue(queue.collecting)) {
+                return take(queue);
+            }
+            if (queue.flushing == 0 && queue.collecting == null) {
+                queues.remove(dir);
+            }
+            return null;
+        }
+    }
+
+    private boolean isDue(Batch batch) {
+        return batch != null && System.nanoTime() - batch.createdNanos >= window.toNanos();
+    }
+
+    private static Batch take(DirQueue queue) {
+        Batch batch = queue.collecting;
+        queue.collecting = null;
+        queue.flushing++;
+        return batch;
+    }
+
+    /**
+     * 一批文件逐个fsync，最后fsync一次目录（新文件的目录项）
+     * 同一批的元数据在同一个文件系统日志事务里，第一次fsync提交日志后，后面的fsync基本只是等待
+     */
+    private void flush(Path dir, Batch batch) {
+        try {
+            for (Path file : batch.files) {
+                force(file);
+            }
+            forceDir(dir);
+            batches.increment();
+            syncedFiles.add(batch.files.size());
+            batch.durable.complete(null);
+        } catch (IOException | RuntimeException e) {
+            failures.increment();
+            System.out.println("fsync failed in " + dir + ": " + e);
+            batch.durable.completeExceptionally(e instanceof IOException ? new UncheckedIOException((IOException) e) : e);
+        }
+    }
+
+    /**
+     * 只刷新数据和读取数据需要的元数据（fdatasync），修改时间等不必落盘；新文件的目录项由 forceDir 落盘
+     */
+    private static void force(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Windows不能打开目录fsync，目录项由NTFS自己的日志保证
+     */
+    private static void forceDir(Path dir) throws IOException {
+        if (WINDOWS || dir == null) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    public long getSyncedFiles() {
+        return syncedFiles.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * 一个目录正在攒的一批和正在fsync的批数
+     */
+    private static final class DirQueue {
+        private final Path dir;
+        private Batch collecting;
+        private int flushing;
+
+        DirQueue(Path dir) {
+            this.dir = dir;
+        }
+    }
+
+    /**
+     * 同一目录下一起fsync的一批文件
+     */
+    private static final class Batch {
+        private final List<Path> files = new ArrayList<>();
+        private final CompletableFuture<Void> durable = new CompletableFuture<>();
+        private final long createdNanos;
+
+        Batch(long createdNanos) {
+            this.createdNanos = createdNanos;
+        }
+    }
+}
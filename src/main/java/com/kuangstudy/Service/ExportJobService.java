@@ -0,0 +1,492 @@
+package com.kuangstudy.Service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.kuangstudy.dto.TestDto;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * CSV的异步导出任务
+ * 以前每个导出请求都在请求里从头生成100万行，同样的条件同时请求几次就生成几次。
+ * 现在客户端提交导出条件得到任务id，轮询（或者长轮询）任务状态，完成后下载生成好的文件（支持Range）。
+ * - 条件相同（TestDto的所有字段）的任务正在进行时，新的提交直接合并到这个任务
+ * - 生成好的文件保存在 export.folder 中，在 ttl 内、总大小不超过 maxBytes 时同样的条件直接返回，不再生成
+ * - 生成在 exportExecutor 中进行，不占用请求线程；新任务从提交到生成结束占用导出的准入预算（和同步导出共用），
+ *   预算不够时提交被拒绝，合并到已有任务和直接返回文件的提交不占用
+ * 重启后已经生成的文件仍然有效（文件名就是条件的摘要），过期后删除
+ */
+@Service
+public class ExportJobService {
+
+    private static final String ARTIFACT_SUFFIX = ".csv";
+
+    @Autowired
+    private CsvExportService csvExportService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private AdmissionService admissionService;
+
+    @Autowired
+    @Qualifier("exportExecutor")
+    private Executor exportExecutor;
+
+    @Value("${file.export.folder:export-cache}")
+    private String folder;
+
+    /**
+     * 生成好的文件总大小上限，超过时删除最久没有用到的
+     */
+    @Value("${file.export.cache.maxBytes:2GB}")
+    private DataSize maxBytes;
+
+    /**
+     * 生成好的文件保留多久（从生成完成开始算），过期后同样的条件重新生成
+     */
+    @Value("${file.export.cache.ttl:1h}")
+    private Duration ttl;
+
+    private Path exportDir;
+
+    /**
+     * 任务id -> 任务，包括正在进行、已完成和失败的任务
+     */
+    private final ConcurrentMap<String, ExportJob> jobs = new ConcurrentHashMap<>();
+
+    /**
+     * 条件摘要 -> 正在进行的任务
+     */
+    private final Map<String, ExportJob> running = new LinkedHashMap<>();
+
+    /**
+     * 条件摘要 -> 生成好的文件，按最近使用排序
+     */
+    private final Map<String, Artifact> artifacts = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * 条件摘要 -> 生成好的文件对应的已完成任务，同样的条件再提交时返回这个任务，不再每次新建
+     */
+    private final Map<String, ExportJob> completed = new HashMap<>();
+
+    private long cachedBytes;
+
+    private final LongAdder submitted = new LongAdder();
+
+    private final LongAdder coalesced = new LongAdder();
+
+    private final LongAdder cacheHits = new LongAdder();
+
+    private ScheduledExecutorService cleaner;
+
+    @PostConstruct
+    public void init() throws IOException {
+        exportDir = Paths.get(folder).toAbsolutePath().normalize();
+        Files.createDirectories(exportDir);
+        // 重启前生成的文件，写了一半的临时文件直接删除
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(exportDir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(ARTIFACT_SUFFIX)) {
+                    String key = name.substring(0, name.length() - ARTIFACT_SUFFIX.length());
+                    adopt(key, file, Files.size(file), Files.getLastModifiedTime(file).toMillis());
+                } else {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+        evict();
+
+        cleaner = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "export-cache-cleaner");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, ttl.toMillis() / 4);
+        cleaner.scheduleWithFixedDelay(this::evict, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        cleaner.shutdownNow();
+    }
+
+    /**
+     * 提交导出任务：同样的条件有生成好的文件时返回已完成的任务，有正在进行的任务时返回那个任务
+     * @throws RejectedExecutionException 导出预算不够或者导出线程池已满
+     */
+    public ExportJob submit(TestDto testDto) {
+        String key = key(testDto);
+        String fileName = csvExportService.getFileName(testDto);
+        ExportJob job;
+        synchronized (this) {
+            submitted.increment();
+            ExportJob existing = running.get(key);
+            if (existing != null) {
+                coalesced.increment();
+                return existing;
+            }
+            Artifact artifact = artifacts.get(key);
+            if (artifact != null && !artifact.isExpired(System.currentTimeMillis())) {
+                cacheHits.increment();
+                job = completed.get(key);
+                if (job == null || job.artifact != artifact) {
+                    // 重启前生成的文件还没有对应的任务
+                    job = new ExportJob(key, fileName);
+                    job.complete(artifact);
+                    completed.put(key, job);
+                    jobs.put(job.getId(), job);
+                }
+                return job;
+            }
+            job = new ExportJob(key, fileName);
+            running.put(key, job);
+            jobs.put(job.getId(), job);
+        }
+        long cost = admissionService.exportCost();
+        if (!acquireBudget(cost)) {
+            RejectedExecutionException e = new RejectedExecutionException("export budget exhausted");
+            abandon(job, e);
+            throw e;
+        }
+        try {
+            ExportJob started = job;
+            exportExecutor.execute(() -> {
+                try {
+                    run(started, testDto);
+                } finally {
+                    admissionService.release(AdmissionService.EXPORT, cost);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            admissionService.release(AdmissionService.EXPORT, cost);
+            abandon(job, e);
+            throw e;
+        }
+        return job;
+    }
+
+    private boolean acquireBudget(long cost) {
+        try {
+            return admissionService.acquire(AdmissionService.EXPORT, cost) == AdmissionService.Result.ADMITTED;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * 没能开始的任务：删除，已经合并到这个任务上的请求（长轮询）得到失败
+     */
+    private void abandon(ExportJob job, Exception e) {
+        synchronized (this) {
+            running.remove(job.key, job);
+            jobs.remove(job.getId());
+        }
+        job.fail(e);
+    }
+
+    public ExportJob getJob(String id) {
+        return jobs.get(id);
+    }
+
+    /**
+     * 同样条件已经生成好的文件（/download/csv 直接返回它，不再生成），没有时返回null
+     */
+    public synchronized Artifact findArtifact(TestDto testDto) {
+        Artifact artifact = artifacts.get(key(testDto));
+        if (artifact == null || artifact.isExpired(System.currentTimeMillis()) || !Files.exists(artifact.path)) {
+            return null;
+        }
+        cacheHits.increment();
+        return artifact;
+    }
+
+    public synchronized int getRunningJobs() {
+        return running.size();
+    }
+
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    public long getSubmitted() {
+        return submitted.sum();
+    }
+
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    /**
+     * 导出条件的摘要：TestDto所有字段的JSON的SHA-256
+     */
+    String key(TestDto testDto) {
+        try {
+            byte[] json = objectMapper.writeValueAsBytes(testDto);
+            return ContentIndexService.toHex(ContentIndexService.newDigest().digest(json));
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private void run(ExportJob job, TestDto testDto) {
+        job.status = Status.RUNNING;
+        Path target = exportDir.resolve(job.key + ARTIFACT_SUFFIX);
+        Path tmp = exportDir.resolve(job.key + "." + job.getId() + ".tmp");
+        try {
+            try (OutputStream outputStream = new CountingOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmp), 64 * 1024), job.written)) {
+                csvExportService.writeCsv(testDto, outputStream);
+            }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Artifact artifact;
+            synchronized (this) {
+                artifact = adopt(job.key, target, Files.size(target), System.currentTimeMillis());
+                running.remove(job.key, job);
+                job.complete(artifact);
+                completed.put(job.key, job);
+            }
+            evict();
+        } catch (IOException | RuntimeException e) {
+            System.out.println("export failed: " + job.getId() + ": " + e);
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException ignored) {
+            }
+            synchronized (this) {
+                running.remove(job.key, job);
+            }
+            job.fail(e);
+        }
+    }
+
+    private synchronized Artifact adopt(String key, Path path, long size, long createdAt) {
+        Artifact artifact = new Artifact(path, size, createdAt, createdAt + ttl.toMillis());
+        Artifact previous = artifacts.put(key, artifact);
+        if (previous != null) {
+            cachedBytes -= previous.size;
+        }
+        cachedBytes += size;
+        return artifact;
+    }
+
+    /**
+     * 删除过期的文件，总大小超过上限时删除最久没有用到的；完成的任务在文件删除后也一起删除
+     */
+    synchronized void evict() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Artifact>> iterator = artifacts.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Artifact> entry = iterator.next();
+            Artifact artifact = entry.getValue();
+            if (artifact.isExpired(now) || cachedBytes > maxBytes.toBytes()) {
+                iterator.remove();
+                completed.remove(entry.getKey());
+                cachedBytes -= artifact.size;
+                artifact.evicted = true;
+                try {
+                    // 正在下载的请求已经打开了文件，删除不影响它（Windows下删除失败，下次再删）
+                    Files.deleteIfExists(artifact.path);
+                } catch (IOException e) {
+                    System.out.println("export cache delete failed: " + artifact.path + ": " + e);
+                }
+            }
+        }
+        jobs.values().removeIf(job -> job.isFinished()
+                && (job.artifact == null ? job.finishedAt + ttl.toMillis() < now : job.artifact.evicted));
+    }
+
+    public enum Status {
+        QUEUED,
+        RUNNING,
+        DONE,
+        FAILED
+    }
+
+    /**
+     * 生成好的文件
+     */
+    public static final class Artifact {
+        private final Path path;
+        private final long size;
+        private final long createdAt;
+        private final long expiresAt;
+        private volatile boolean evicted;
+
+        Artifact(Path path, long size, long createdAt, long expiresAt) {
+            this.path = path;
+            this.size = size;
+            this.createdAt = createdAt;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getCreatedAt() {
+            return createdAt;
+        }
+
+        /**
+         * 同一个文件内容不变，ETag由生成时间和大小决定
+         */
+        public String getETag() {
+            return "\"" + Long.toHexString(createdAt) + "-" + Long.toHexString(size) + "\"";
+        }
+    }
+
+    public static final class ExportJob {
+        private final String id = UUID.randomUUID().toString();
+        private final String key;
+        private final String fileName;
+        private final long createdAt = System.currentTimeMillis();
+        private final AtomicLong written = new AtomicLong();
+        private final CompletableFuture<ExportJob> completion = new CompletableFuture<>();
+        private volatile Status status = Status.QUEUED;
+        private volatile Artifact artifact;
+        private volatile String error;
+        private volatile long finishedAt;
+
+        ExportJob(String key, String fileName) {
+            this.key = key;
+            this.fileName = fileName;
+        }
+
+        void complete(Artifact artifact) {
+            this.artifact = artifact;
+            this.written.set(artifact.size);
+            this.finishedAt = System.currentTimeMillis();
+            this.status = Status.DONE;
+            completion.complete(this);
+        }
+
+        void fail(Exception e) {
+            this.error = e.getMessage();
+            this.finishedAt = System.currentTimeMillis();
+            this.status = Status.FAILED;
+            completion.complete(this);
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public boolean isFinished() {
+            return status == Status.DONE || status == Status.FAILED;
+        }
+
+        /**
+         * 已完成并且文件还在时返回文件，否则返回null
+         */
+        public Artifact getArtifact() {
+            Artifact current = artifact;
+            return current == null || current.evicted ? null : current;
+        }
+
+        /**
+         * 任务完成（成功或失败）时完成，长轮询用
+         */
+        public CompletableFuture<ExportJob> getCompletion() {
+            return completion;
+        }
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("id", id);
+            map.put("status", status);
+            map.put("fileName", fileName);
+            map.put("written", written.get());
+            map.put("createdAt", createdAt);
+            if (isFinished()) {
+                map.put("finishedAt", finishedAt);
+            }
+            if (status == Status.DONE) {
+                map.put("size", artifact.size);
+                map.put("url", "/export/jobs/" + id + "/file");
+            }
+            if (error != null) {
+                map.put("error", error);
+            }
+            return map;
+        }
+    }
+
+    /**
+     * 统计写出的字节数（任务进度），批量写直接转给下层流
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private final AtomicLong count;
+
+        CountingOutputStream(OutputStream out, AtomicLong count) {
+            super(out);
+            this.count = count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count.incrementAndGet();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count.addAndGet(len);
+        }
+    }
+}
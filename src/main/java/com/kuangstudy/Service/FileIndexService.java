@@ -0,0 +1,489 @@
+package com.kuangstudy.Service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.kuangstudy.storage.StorageObject;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * 媒体目录和上传目录的内存文件索引
+ * 启动时扫描一次，之后通过WatchService增量更新。
+ * 列表、是否存在、文件大小、修改时间都直接查内存，请求处理中不再调用 Files.exists / Files.size 等系统调用，
+ * 序列化好的列表结果也缓存起来，只有目录发生变化时才失效
+ */
+@Service
+public class FileIndexService {
+
+    public static final String VIDEO = "video";
+    public static final String PDF = "pdf";
+    public static final String UPLOAD = "upload";
+
+    /**
+     * 缓存的序列化结果最多保留多少条，超过时全部清空
+     */
+    private static final int MAX_CACHED_LISTINGS = 1024;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value("${file.videoFolder:src/main/resources/video}")
+    private String videoFolder;
+
+    @Value("${file.pdfFolder:src/main/resources/pdf}")
+    private String pdfFolder;
+
+    @Value("${file.uploadFolder}")
+    private String uploadFolder;
+
+    private final Map<String, Root> roots = new LinkedHashMap<>();
+
+    private final Map<WatchKey, WatchedDir> watchKeys = new ConcurrentHashMap<>();
+
+    private final Set<Path> watchedDirs = ConcurrentHashMap.newKeySet();
+
+    private WatchService watchService;
+
+    private Thread watchThread;
+
+    /**
+     * 索引中的一个文件，不可变
+     */
+    public static final class FileEntry {
+        private final String name;
+        private final Path path;
+        private final long size;
+        private final long lastModified;
+        private final String eTag;
+
+        FileEntry(String name, Path path, long size, long lastModified) {
+            this.name = name;
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            // 强ETag：文件大小+修改时间，文件一变索引条目就会被替换，ETag也跟着变
+            this.eTag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+        }
+
+        /**
+         * 相对根目录的路径，分隔符统一为"/"
+         */
+        public String getName() {
+            return name;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+
+        /**
+         * 转换成存储接口的文件信息，ETag不变
+         */
+        public StorageObject toStorageObject() {
+            return new StorageObject(name, size, lastModified, eTag, path);
+        }
+    }
+
+    /**
+     * 一个被索引的根目录
+     */
+    private static final class Root {
+        private final String name;
+        private final Path dir;
+        private final boolean recursive;
+        private final ConcurrentSkipListMap<String, FileEntry> entries = new ConcurrentSkipListMap<>();
+        private final AtomicInteger count = new AtomicInteger();
+        private final Map<String, byte[]> listingCache = new ConcurrentHashMap<>();
+        private final AtomicLong version = new AtomicLong();
+        private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+        Root(String name, Path dir, boolean recursive) {
+            this.name = name;
+            this.dir = dir;
+            this.recursive = recursive;
+        }
+
+        void put(FileEntry entry) {
+            if (entries.put(entry.getName(), entry) == null) {
+                count.incrementAndGet();
+            }
+            version.incrementAndGet();
+            listingCache.clear();
+            for (Listener listener : listeners) {
+                try {
+                    listener.onUpdate(entry);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        void remove(String name) {
+            FileEntry removed = entries.remove(name);
+            if (removed != null) {
+                count.decrementAndGet();
+            }
+            version.incrementAndGet();
+            listingCache.clear();
+            if (removed != null) {
+                for (Listener listener : listeners) {
+                    try {
+                        listener.onRemove(removed);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 索引变化的回调，在上传线程或者监听线程中执行，不能做耗时操作
+     */
+    public interface Listener {
+        void onUpdate(FileEntry entry);
+
+        default void onRemove(FileEntry entry) {
+        }
+    }
+
+    private static final class WatchedDir {
+        private final Root root;
+        private final Path dir;
+
+        WatchedDir(Root root, Path dir) {
+            this.root = root;
+            this.dir = dir;
+        }
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        roots.put(VIDEO, new Root(VIDEO, Paths.get(videoFolder).toAbsolutePath().normalize(), false));
+        roots.put(PDF, new Root(PDF, Paths.get(pdfFolder).toAbsolutePath().normalize(), false));
+        roots.put(UPLOAD, new Root(UPLOAD, Paths.get(uploadFolder).toAbsolutePath().normalize(), true));
+
+        watchService = FileSystems.getDefault().newWatchService();
+        for (Root root : roots.values()) {
+            scan(root, root.dir);
+        }
+
+        watchThread = new Thread(this::watchLoop, "file-index-watcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    @PreDestroy
+    public void stop() throws IOException {
+        watchService.close();
+    }
+
+    /**
+     * 根目录的绝对路径
+     */
+    public Path getRootDir(String root) {
+        return getRoot(root).dir;
+    }
+
+    /**
+     * 注册索引变化的回调，只会收到注册之后的变化，已有的文件用 forEach 遍历
+     */
+    public void addListener(String root, Listener listener) {
+        getRoot(root).listeners.add(listener);
+    }
+
+    /**
+     * 遍历索引中的所有文件
+     */
+    public void forEach(String root, Consumer<FileEntry> action) {
+        getRoot(root).entries.values().forEach(action);
+    }
+
+    /**
+     * 按相对路径查找文件，不存在返回null
+     */
+    public FileEntry get(String root, String name) {
+        return getRoot(root).entries.get(name);
+    }
+
+    /**
+     * 根目录下的文件总数
+     */
+    public int count(String root) {
+        return getRoot(root).count.get();
+    }
+
+    /**
+     * 按文件名排序的游标分页
+     * @param cursor 上一页最后一个文件名，第一页传null
+     */
+    public List<FileEntry> page(String root, String cursor, int limit) {
+        ConcurrentSkipListMap<String, FileEntry> entries = getRoot(root).entries;
+        Map<String, FileEntry> tail = cursor == null || cursor.isEmpty() ? entries : entries.tailMap(cursor, false);
+        List<FileEntry> page = new ArrayList<>(Math.min(limit, 64));
+        for (FileEntry entry : tail.values()) {
+            if (page.size() >= limit) {
+                break;
+            }
+            page.add(entry);
+        }
+        return page;
+    }
+
+    /**
+     * 分页列表的JSON：{"total": 总数, itemsField: [...], "nextCursor": 下一页游标}
+     * 序列化好的字节数组会缓存起来，目录有任何变化时缓存全部失效
+     * @param itemsField 列表字段名，同时区分不同接口的缓存
+     * @param itemMapper 索引条目转换成json对象
+     */
+    public byte[] listingJson(String root, String cursor, int limit, String itemsField,
+                              Function<FileEntry, Map<String, Object>> itemMapper) {
+        Root r = getRoot(root);
+        String key = itemsField + "|" + limit + "|" + (cursor == null ? "" : cursor);
+        byte[] bytes = r.listingCache.get(key);
+        if (bytes != null) {
+            return bytes;
+        }
+
+        long version = r.version.get();
+        List<FileEntry> page = page(root, cursor, limit);
+        List<Map<String, Object>> items = new ArrayList<>(page.size());
+        for (FileEntry entry : page) {
+            items.add(itemMapper.apply(entry));
+        }
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("total", r.count.get());
+        response.put(itemsField, items);
+        response.put("nextCursor", page.size() == limit && !page.isEmpty()
+                && r.entries.higherKey(page.get(page.size() - 1).getName()) != null
+                ? page.get(page.size() - 1).getName() : null);
+        try {
+            bytes = objectMapper.writeValueAsBytes(response);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+
+        // 生成期间目录发生了变化的话不缓存，避免缓存旧数据
+        if (r.version.get() == version) {
+            if (r.listingCache.size() >= MAX_CACHED_LISTINGS) {
+                r.listingCache.clear();
+            }
+            r.listingCache.put(key, bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * 主动刷新一个文件的索引（例如上传完成后立即可见，不必等WatchService的事件）
+     */
+    public void refresh(String root, Path path) {
+        Root r = getRoot(root);
+        path = path.toAbsolutePath().normalize();
+        if (!watchedDirs.contains(path.getParent())) {
+            // 新建的目录（或者启动时根目录还不存在），从最上层没有监听的目录开始补充扫描并注册监听，
+            // 分片布局下每天会新建很多目录，不能每次都扫描整个根目录
+            Path start = path.getParent();
+            while (!start.equals(r.dir) && start.startsWith(r.dir) && !watchedDirs.contains(start.getParent())) {
+                start = start.getParent();
+            }
+            try {
+                scan(r, start.startsWith(r.dir) ? start : r.dir);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        update(r, path);
+    }
+
+    private Root getRoot(String root) {
+        Root r = roots.get(root);
+        if (r == null) {
+            throw new IllegalArgumentException("Unknown index root: " + root);
+        }
+        return r;
+    }
+
+    /**
+     * 扫描目录并注册监听，递归的根目录包括所有子目录
+     */
+    private void scan(Root root, Path start) throws IOException {
+        if (!Files.isDirectory(start)) {
+            return;
+        }
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (!dir.equals(root.dir) && (!root.recursive || isIgnored(dir))) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                register(root, dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && !isIgnored(file)) {
+                    root.put(new FileEntry(relativeName(root, file), file, attrs.size(), attrs.lastModifiedTime().toMillis()));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void register(Root root, Path dir) throws IOException {
+        WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        watchKeys.put(key, new WatchedDir(root, dir));
+        watchedDirs.add(dir);
+    }
+
+    private void watchLoop() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            WatchedDir watched = watchKeys.get(key);
+            if (watched != null) {
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    handleEvent(watched, event);
+                }
+            }
+            if (!key.reset()) {
+                WatchedDir removed = watchKeys.remove(key);
+                if (removed != null) {
+                    watchedDirs.remove(removed.dir);
+                }
+            }
+        }
+    }
+
+    private void handleEvent(WatchedDir watched, WatchEvent<?> event) {
+        Root root = watched.root;
+        try {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // 事件太多丢失了，重新扫描整个目录
+                rescan(root, watched.dir);
+                return;
+            }
+            Path path = watched.dir.resolve((Path) event.context());
+            if (isIgnored(path)) {
+                return;
+            }
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                if (root.recursive) {
+                    scan(root, path);
+                }
+                return;
+            }
+            if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                String prefix = relativeName(root, path);
+                // 删除的可能是文件也可能是目录
+                root.remove(prefix);
+                for (String name : new ArrayList<>(root.entries.subMap(prefix + "/", prefix + "/\uffff").keySet())) {
+                    root.remove(name);
+                }
+                return;
+            }
+            update(root, path);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void update(Root root, Path path) {
+        String name = relativeName(root, path);
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            if (attrs.isRegularFile() && !isIgnored(path)) {
+                root.put(new FileEntry(name, path, attrs.size(), attrs.lastModifiedTime().toMillis()));
+            }
+        } catch (NoSuchFileException e) {
+            root.remove(name);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void rescan(Root root, Path dir) throws IOException {
+        String prefix = dir.equals(root.dir) ? "" : relativeName(root, dir) + "/";
+        List<String> stale = new ArrayList<>(prefix.isEmpty() ? root.entries.keySet()
+                : root.entries.subMap(prefix, prefix + "\uffff").keySet());
+        for (String name : stale) {
+            if (!Files.exists(root.dir.resolve(name))) {
+                root.remove(name);
+            }
+        }
+        scan(root, dir);
+    }
+
+    private String relativeName(Root root, Path path) {
+        return root.dir.relativize(path).toString().replace('\\', '/');
+    }
+
+    /**
+     * 隐藏文件（内容索引等）、上传过程中的临时文件和预压缩文件（a.txt 旁边的 a.txt.gz）不进索引
+     */
+    private boolean isIgnored(Path path) {
+        Path fileName = path.getFileName();
+        if (fileName == null) {
+            return false;
+        }
+        String name = fileName.toString();
+        if (name.startsWith(".") || name.endsWith(".part") || name.endsWith(".link")) {
+            return true;
+        }
+        return name.endsWith(PrecompressionService.SUFFIX)
+                && Files.exists(path.resolveSibling(name.substring(0, name.length() - PrecompressionService.SUFFIX.length())));
+    }
+}
@@ -0,0 +1,351 @@
+package com.kuangstudy.Service;
+
+import com.kuangstudy.storage.StorageBackend;
+import com.kuangstudy.storage.StorageObject;
+import com.kuangstudy.util.StreamSegment;
+import com.kuangstudy.video.Mp4Segmenter;
+import com.kuangstudy.video.SegmentIndex;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.DigestUtils;
+import org.springframework.util.unit.DataSize;
+
+import javax.annotation.PostConstruct;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Collectors;
+
+/**
+ * 视频的分段（HLS）输出
+ * 以前视频只能作为一个整体的流返回，CDN只能缓存整个文件，播放器也没法并行预取。
+ * 现在每个视频生成一个分段索引（见 Mp4Segmenter），按索引返回播放列表（m3u8）、初始化段和各个分段，
+ * 分段的URL带索引版本号，内容不变，CDN和浏览器可以长期缓存。
+ * 索引在视频加入目录时在后台生成（启动时对已有视频也生成），还没有时在第一次访问时生成，
+ * 保存在 indexFolder 中，重启后直接读取，源文件或分段参数变了才重新生成
+ */
+@Service
+public class HlsService implements FileIndexService.Listener {
+
+    @Autowired
+    private FileIndexService fileIndexService;
+
+    @Autowired
+    @Qualifier("videoStorage")
+    private StorageBackend videoStorage;
+
+    @Autowired
+    @Qualifier("hlsExecutor")
+    private Executor hlsExecutor;
+
+    @Autowired
+    @Qualifier("storageExecutor")
+    private Executor storageExecutor;
+
+    @Value("${file.hls.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 分段时长，实际在这之后的第一个关键帧切分
+     */
+    @Value("${file.hls.segmentDuration:6s}")
+    private Duration segmentDuration;
+
+    /**
+     * 分段的视频数据达到这个大小也切分（码率很高的视频），0表示只按时长
+     */
+    @Value("${file.hls.segmentMaxBytes:0}")
+    private DataSize segmentMaxBytes;
+
+    @Value("${file.hls.indexFolder:hls-index}")
+    private String indexFolder;
+
+    @Value("${file.hls.extensions:mp4,mov,m4v}")
+    private String[] extensions;
+
+    /**
+     * 内存中最多保留多少个视频的索引，其它的用到时从磁盘读
+     */
+    @Value("${file.hls.cachedIndexes:64}")
+    private int cachedIndexes;
+
+    private Path indexDir;
+
+    private Set<String> videoExtensions;
+
+    private String settings;
+
+    private Map<String, SegmentIndex> loaded;
+
+    /**
+     * 正在生成的索引，同一个视频同时只生成一次
+     */
+    private final ConcurrentMap<String, CompletableFuture<SegmentIndex>> inFlight = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() throws IOException {
+        indexDir = Paths.get(indexFolder).toAbsolutePath().normalize();
+        Files.createDirectories(indexDir);
+        videoExtensions = Arrays.stream(extensions)
+                .map(ext -> ext.trim().toLowerCase(Locale.ROOT))
+                .collect(Collectors.toSet());
+        settings = Mp4Segmenter.settings(segmentDuration.toMillis(), segmentMaxBytes.toBytes());
+        loaded = new LinkedHashMap<String, SegmentIndex>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SegmentIndex> eldest) {
+                return size() > cachedIndexes;
+            }
+        };
+        if (enabled && videoStorage.isLocal()) {
+            fileIndexService.addListener(FileIndexService.VIDEO, this);
+            fileIndexService.forEach(FileIndexService.VIDEO, this::onUpdate);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isVideo(String fileName) {
+        int dotIndex = fileName.lastIndexOf('.');
+        return dotIndex != -1 && videoExtensions.contains(fileName.substring(dotIndex + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * 查找视频文件，不存在或者不是能分段的视频时返回null
+     */
+    public StorageObject find(String fileName) throws IOException {
+        if (!isVideo(fileName)) {
+            return null;
+        }
+        if (videoStorage.isLocal()) {
+            FileIndexService.FileEntry entry = fileIndexService.get(FileIndexService.VIDEO, fileName);
+            return entry == null ? null : entry.toStorageObject();
+        }
+        try {
+            return videoStorage.stat(fileName);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 取得视频的分段索引：内存、磁盘上都没有（或者已经过期）时生成
+     * @throws IllegalArgumentException 不能分段的文件（不是MP4/MOV或者已损坏）
+     */
+    public SegmentIndex getIndex(StorageObject source) throws IOException {
+        SegmentIndex index;
+        synchronized (loaded) {
+            index = loaded.get(source.getKey());
+        }
+        if (index != null && index.matches(source.getETag(), settings)) {
+            return index;
+        }
+        index = load(source);
+        if (index == null) {
+            index = build(source);
+        }
+        synchronized (loaded) {
+            loaded.put(source.getKey(), index);
+        }
+        return index;
+    }
+
+    /**
+     * 分段和初始化段URL中的版本号，源文件或分段参数变了URL就会变
+     */
+    public static String version(SegmentIndex index) {
+        String digest = DigestUtils.md5DigestAsHex(
+                (index.getSourceETag() + "/" + index.getSettings()).getBytes(StandardCharsets.UTF_8));
+        return digest.substring(0, 12);
+    }
+
+    /**
+     * 播放列表（VOD），分段和初始化段使用相对路径
+     */
+    public String playlist(SegmentIndex index) {
+        String query = "?v=" + version(index);
+        StringBuilder builder = new StringBuilder(64 + index.getSegments().size() * 32);
+        builder.append("#EXTM3U\n")
+                .append("#EXT-X-VERSION:7\n")
+                .append("#EXT-X-TARGETDURATION:").append(index.getTargetDuration()).append('\n')
+                .append("#EXT-X-MEDIA-SEQUENCE:0\n")
+                .append("#EXT-X-PLAYLIST-TYPE:VOD\n")
+                .append("#EXT-X-INDEPENDENT-SEGMENTS\n")
+                .append("#EXT-X-MAP:URI=\"init.mp4").append(query).append("\"\n");
+        List<SegmentIndex.Segment> segments = index.getSegments();
+        for (int i = 0; i < segments.size(); i++) {
+            builder.append("#EXTINF:").append(String.format(Locale.ROOT, "%.3f", segments.get(i).getDuration())).append(",\n")
+                    .append(i).append(".m4s").append(query).append('\n');
+        }
+        builder.append("#EXT-X-ENDLIST\n");
+        return builder.toString();
+    }
+
+    /**
+     * 一个分段的响应体：生成好的头部 + 源文件中的各个区间
+     */
+    public List<StreamSegment> segmentBody(StorageObject source, SegmentIndex.Segment segment) {
+        List<StreamSegment> body = new ArrayList<>(segment.getOffsets().length + 1);
+        if (segment.getHeader().length > 0) {
+            body.add(StreamSegment.bytes(segment.getHeader()));
+        }
+        for (int i = 0; i < segment.getOffsets().length; i++) {
+            long position = segment.getOffsets()[i];
+            long length = segment.getLengths()[i];
+            if (source.getLocalPath() != null) {
+                body.add(StreamSegment.file(source.getLocalPath(), position, length));
+            } else {
+                body.add(StreamSegment.stream(() -> videoStorage.getRange(source.getKey(), position, length),
+                        length, storageExecutor));
+            }
+        }
+        return body;
+    }
+
+    /**
+     * 视频加入目录或者被修改：在后台生成索引
+     */
+    @Override
+    public void onUpdate(FileIndexService.FileEntry entry) {
+        if (!isVideo(entry.getName()) || entry.getSize() == 0) {
+            return;
+        }
+        StorageObject source = entry.toStorageObject();
+        try {
+            hlsExecutor.execute(() -> {
+                try {
+                    getIndex(source);
+                } catch (IOException | RuntimeException e) {
+                    System.out.println("hls index failed: " + source.getKey() + ": " + e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 队列满了，第一次访问时再生成
+        }
+    }
+
+    @Override
+    public void onRemove(FileIndexService.FileEntry entry) {
+        synchronized (loaded) {
+            loaded.remove(entry.getName());
+        }
+        try {
+            Files.deleteIfExists(indexPath(entry.getName()));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private Path indexPath(String key) {
+        Path path = indexDir.resolve(key + ".hls").normalize();
+        if (!path.startsWith(indexDir)) {
+            throw new IllegalArgumentException("Invalid video name: " + key);
+        }
+        return path;
+    }
+
+    /**
+     * 读取磁盘上的索引，没有或者已经过期时返回null
+     */
+    private SegmentIndex load(StorageObject source) {
+        Path path = indexPath(source.getKey());
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            SegmentIndex index = SegmentIndex.readFrom(in);
+            return index != null && index.matches(source.getETag(), settings) ? index : null;
+        } catch (IOException e) {
+            System.out.println("hls index unreadable, rebuilding: " + path + ": " + e);
+            return null;
+        }
+    }
+
+    private SegmentIndex build(StorageObject source) throws IOException {
+        CompletableFuture<SegmentIndex> future = new CompletableFuture<>();
+        CompletableFuture<SegmentIndex> existing = inFlight.putIfAbsent(source.getKey(), future);
+        if (existing != null) {
+            return await(existing);
+        }
+        try {
+            long start = System.nanoTime();
+            SegmentIndex index = Mp4Segmenter.index((offset, length) -> read(source, offset, length),
+                    source.getSize(), source.getETag(), segmentDuration.toMillis(), segmentMaxBytes.toBytes());
+            save(source.getKey(), index);
+            System.out.println("hls index built: " + source.getKey() + " " + index.getSegments().size() + " segments in "
+                    + (System.nanoTime() - start) / 1_000_000 + "ms");
+            future.complete(index);
+            return index;
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(source.getKey(), future);
+        }
+    }
+
+    private static SegmentIndex await(CompletableFuture<SegmentIndex> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for hls index", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private byte[] read(StorageObject source, long offset, int length) throws IOException {
+        try (InputStream inputStream = videoStorage.getRange(source.getKey(), offset, length)) {
+            byte[] bytes = inputStream.readNBytes(length);
+            if (bytes.length != length) {
+                throw new IOException("Unexpected end of " + source.getKey() + " at " + (offset + bytes.length));
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * 先写临时文件再改名，重启时不会读到写了一半的索引
+     */
+    private void save(String key, SegmentIndex index) throws IOException {
+        Path path = indexPath(key);
+        Files.createDirectories(path.getParent());
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            index.writeTo(out);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
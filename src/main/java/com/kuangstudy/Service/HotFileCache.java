@@ -0,0 +1,200 @@
+package com.kuangstudy.Service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 热点文件缓存（字节数组返回模式用）
+ * 文件用内存映射（mmap）加载，数据在堆外的page cache里，不管多少人同时看同一个文件，堆上都不会再分配文件大小的数组。
+ * - 总字节数有上限，超过时按LRU淘汰
+ * - 文件修改时间或大小变化时自动重新加载
+ * - 同一个文件同时有N个冷请求时只加载一次（single-flight）
+ */
+@Service
+public class HotFileCache {
+
+    @Value("${file.cache.maxBytes:512MB}")
+    private DataSize maxBytes;
+
+    @Value("${file.cache.maxFileSize:128MB}")
+    private DataSize maxFileSize;
+
+    /**
+     * accessOrder=true 的LinkedHashMap就是LRU，所有访问都在锁内进行
+     */
+    private final LinkedHashMap<Path, CachedFile> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final Map<Path, CompletableFuture<CachedFile>> loading = new ConcurrentHashMap<>();
+
+    private long currentBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder bypasses = new LongAdder();
+
+    private static final class CachedFile {
+        private final ByteBuffer buffer;
+        private final long size;
+        private final long lastModified;
+
+        CachedFile(ByteBuffer buffer, long size, long lastModified) {
+            this.buffer = buffer;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * 取得文件内容
+     * @param entry 文件索引中的条目，用来判断缓存是否已经过期
+     * @return 只读的ByteBuffer，每次返回新的duplicate，调用方可以随意修改position/limit
+     */
+    public ByteBuffer get(FileIndexService.FileEntry entry) throws IOException {
+        Path path = entry.getPath();
+        synchronized (cache) {
+            CachedFile cached = cache.get(path);
+            if (cached != null) {
+                if (cached.size == entry.getSize() && cached.lastModified == entry.getLastModified()) {
+                    hits.increment();
+                    return cached.buffer.duplicate();
+                }
+                // 文件已经变了，丢弃旧的缓存
+                remove(path);
+            }
+        }
+        misses.increment();
+
+        if (entry.getSize() > maxFileSize.toBytes() || entry.getSize() > maxBytes.toBytes()) {
+            // 太大的文件不进缓存，也用mmap返回，同样不占堆内存
+            if (entry.getSize() > Integer.MAX_VALUE) {
+                throw new IOException("File too large for byte array mode: " + path);
+            }
+            bypasses.increment();
+            return map(path, entry.getSize()).asReadOnlyBuffer();
+        }
+
+        CompletableFuture<CachedFile> future = new CompletableFuture<>();
+        CompletableFuture<CachedFile> existing = loading.putIfAbsent(path, future);
+        if (existing != null) {
+            // 已经有其它请求在加载，等它加载完
+            return join(existing).buffer.duplicate();
+        }
+
+        try {
+            CachedFile loaded = new CachedFile(map(path, entry.getSize()).asReadOnlyBuffer(),
+                    entry.getSize(), entry.getLastModified());
+            loads.increment();
+            put(path, loaded);
+            future.complete(loaded);
+            return loaded.buffer.duplicate();
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(path, future);
+        }
+    }
+
+    /**
+     * 命中率等统计信息
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        synchronized (cache) {
+            stats.put("entries", cache.size());
+            stats.put("bytes", currentBytes);
+        }
+        stats.put("maxBytes", maxBytes.toBytes());
+        stats.put("hits", hits.sum());
+        stats.put("misses", misses.sum());
+        stats.put("loads", loads.sum());
+        stats.put("evictions", evictions.sum());
+        stats.put("bypasses", bypasses.sum());
+        return stats;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getCurrentBytes() {
+        synchronized (cache) {
+            return currentBytes;
+        }
+    }
+
+    private void put(Path path, CachedFile file) {
+        synchronized (cache) {
+            CachedFile previous = cache.put(path, file);
+            if (previous != null) {
+                currentBytes -= previous.size;
+            }
+            currentBytes += file.size;
+
+            // 按最久未访问的顺序淘汰，直到总大小不超过上限
+            Iterator<Map.Entry<Path, CachedFile>> iterator = cache.entrySet().iterator();
+            while (currentBytes > maxBytes.toBytes() && iterator.hasNext()) {
+                Map.Entry<Path, CachedFile> eldest = iterator.next();
+                if (eldest.getKey().equals(path)) {
+                    continue;
+                }
+                iterator.remove();
+                currentBytes -= eldest.getValue().size;
+                evictions.increment();
+            }
+        }
+    }
+
+    private void remove(Path path) {
+        CachedFile removed = cache.remove(path);
+        if (removed != null) {
+            currentBytes -= removed.size;
+        }
+    }
+
+    /**
+     * 映射后的内存在MappedByteBuffer被GC回收时释放，文件通道关闭后映射依然有效
+     */
+    private MappedByteBuffer map(Path path, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, channel.size()));
+        }
+    }
+
+    private CachedFile join(CompletableFuture<CachedFile> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,452 @@
+package com.kuangstudy.Service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
+/**
+ * 上传图片的缩略图（按宽度等比缩小的版本）
+ * 以前前端显示200px的缩略图也要下载几MB的原图。现在图片上传后在后台线程池里生成配置的几个宽度，
+ * 保存在原图旁边的隐藏文件里（a.jpg -> .a_w200.jpg，不进文件索引），
+ * 访问时在静态资源链接后面加 ?w=200 就返回缩略图（见 ImageDerivativeResourceResolver）。
+ * 缩略图不存在（旧文件、重启前没生成完）时在第一次访问时生成，同一个缩略图的并发请求只生成一次；
+ * 请求线程最多等 waitTimeout（很短），没生成完就先返回原图，缩略图在后台继续生成，之后的请求返回缩略图。
+ * 宽度只能是配置的几种，请求的宽度向上取到最接近的一种，超过所有配置宽度或者原图更小时直接返回原图
+ */
+@Service
+public class ImageDerivativeService implements FileIndexService.Listener {
+
+    public static final String WIDTH_PARAM = "w";
+
+    @Autowired
+    private FileIndexService fileIndexService;
+
+    @Autowired
+    @Qualifier("imageExecutor")
+    private Executor imageExecutor;
+
+    @Value("${file.image.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 生成的宽度（像素）
+     */
+    @Value("${file.image.widths:200,800}")
+    private int[] widths;
+
+    @Value("${file.image.extensions:jpg,jpeg,png,gif,bmp}")
+    private String[] extensions;
+
+    @Value("${file.image.jpegQuality:0.85}")
+    private float jpegQuality;
+
+    /**
+     * 超过这个像素数的图片不处理，防止解码超大图片把内存用光
+     */
+    @Value("${file.image.maxPixels:50000000}")
+    private long maxPixels;
+
+    /**
+     * 第一次访问时请求线程等待生成的最长时间，超过就先返回原图（生成在后台继续）
+     */
+    @Value("${file.image.waitTimeout:200ms}")
+    private Duration waitTimeout;
+
+    /**
+     * 内存中最多记录多少个缩略图的状态，超过时淘汰最久没有访问的（之后访问时重新检查磁盘上的文件）
+     */
+    @Value("${file.image.maxCachedVariants:100000}")
+    private int maxCachedVariants;
+
+    private Set<String> imageExtensions;
+
+    /**
+     * 缩略图 -> 生成结果，只有源文件修改时间一致的结果才会被使用
+     * accessOrder=true 的LinkedHashMap按LRU淘汰，所有访问都在锁内进行
+     */
+    private final Map<Path, Variant> variants = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * 正在生成的缩略图，同一个缩略图同时只生成一次（生成的是源文件生成结束时的版本，见 renderCurrent）
+     */
+    private final ConcurrentMap<Path, CompletableFuture<Variant>> inFlight = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        // 不使用磁盘缓存文件，图片都不大，在内存中处理
+        ImageIO.setUseCache(false);
+        Arrays.sort(widths);
+        imageExtensions = Arrays.stream(extensions)
+                .map(ext -> ext.trim().toLowerCase(Locale.ROOT))
+                .collect(Collectors.toSet());
+        if (enabled) {
+            // 已有的图片不在启动时批量生成，第一次访问时再生成
+            fileIndexService.addListener(FileIndexService.UPLOAD, this);
+        }
+    }
+
+    /**
+     * 把请求的宽度参数取到最接近的配置宽度
+     * @return 参数不合法或者比所有配置宽度都大（应该返回原图）时返回null
+     */
+    public Integer resolveWidth(String widthParam) {
+        if (!enabled || widthParam == null) {
+            return null;
+        }
+        int requested;
+        try {
+            requested = Integer.parseInt(widthParam.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (requested <= 0) {
+            return null;
+        }
+        for (int width : widths) {
+            if (width >= requested) {
+                return width;
+            }
+        }
+        return null;
+    }
+
+    public boolean isImage(String fileName) {
+        int dotIndex = fileName.lastIndexOf('.');
+        return dotIndex != -1 && imageExtensions.contains(fileName.substring(dotIndex + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * 缩略图的ETag，和原图的ETag区分开
+     */
+    public static String variantETag(String eTag, int width) {
+        return eTag.substring(0, eTag.length() - 1) + "-w" + width + "\"";
+    }
+
+    /**
+     * 取得指定宽度的缩略图，还没有的话生成（并发请求共用一次生成）
+     * @param width resolveWidth() 返回的宽度
+     * @return 应该返回原图时（原图更小、不是能处理的图片、生成失败或者超时）返回null
+     */
+    public Path getVariant(Path source, int width) {
+        Path variantPath = variantPath(source, width);
+        try {
+            long sourceModified = Files.getLastModifiedTime(source).toMillis();
+            Variant variant = findVariant(variantPath, sourceModified);
+            if (variant == null) {
+                variant = generate(source, width).get(waitTimeout.toMillis(), TimeUnit.MILLISECONDS);
+            }
+            return variant.generated ? variantPath : null;
+        } catch (TimeoutException | ExecutionException | IOException e) {
+            // 生成失败、线程池满了或者等太久，这次先返回原图
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * 缩略图是否已经生成好（不等待、不触发生成），还没有时返回的是原图，ETag也要用原图的
+     */
+    public boolean isVariantReady(Path source, long sourceModified, int width) {
+        try {
+            Variant variant = findVariant(variantPath(source, width), sourceModified);
+            return variant != null && variant.generated;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 上传完成（或文件被修改）后在后台生成所有宽度
+     */
+    @Override
+    public void onUpdate(FileIndexService.FileEntry entry) {
+        if (!isImage(entry.getName()) || entry.getSize() == 0) {
+            return;
+        }
+        for (int width : widths) {
+            Path variantPath = variantPath(entry.getPath(), width);
+            try {
+                // 文件被移动过来（目录布局迁移）时缩略图也已经在旁边了
+                if (findVariant(variantPath, entry.getLastModified()) == null) {
+                    generate(entry.getPath(), width);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public void onRemove(FileIndexService.FileEntry entry) {
+        if (!isImage(entry.getName())) {
+            return;
+        }
+        for (int width : widths) {
+            Path variantPath = variantPath(entry.getPath(), width);
+            synchronized (variants) {
+                variants.remove(variantPath);
+            }
+            try {
+                Files.deleteIfExists(variantPath);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 源文件这个版本的生成结果：先查内存，没有的话查磁盘上已经生成的缩略图（重启前生成的、被淘汰的），
+     * 缩略图的修改时间和源文件相同（生成时设置的）就是从这个版本生成的，直接使用
+     */
+    private Variant findVariant(Path variantPath, long sourceModified) throws IOException {
+        Variant variant;
+        synchronized (variants) {
+            variant = variants.get(variantPath);
+        }
+        if (variant != null && variant.sourceModified == sourceModified) {
+            return variant;
+        }
+        if (Files.exists(variantPath) && Files.getLastModifiedTime(variantPath).toMillis() == sourceModified) {
+            variant = new Variant(sourceModified, true);
+            putVariant(variantPath, variant);
+            return variant;
+        }
+        return null;
+    }
+
+    private void putVariant(Path variantPath, Variant variant) {
+        synchronized (variants) {
+            variants.put(variantPath, variant);
+            Iterator<Path> eldest = variants.keySet().iterator();
+            while (variants.size() > maxCachedVariants && eldest.hasNext()) {
+                eldest.next();
+                eldest.remove();
+            }
+        }
+    }
+
+    private CompletableFuture<Variant> generate(Path source, int width) {
+        Path variantPath = variantPath(source, width);
+        CompletableFuture<Variant> future = new CompletableFuture<>();
+        CompletableFuture<Variant> existing = inFlight.putIfAbsent(variantPath, future);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            imageExecutor.execute(() -> {
+                try {
+                    // 源文件在生成期间变了（还在写入、或者又被修改）：丢弃这次的结果，按现在的版本重新生成，
+                    // 这期间的onUpdate共用这次生成，所以不能只生成开始时的版本
+                    Variant variant = renderCurrent(source, variantPath, width);
+                    while (variant == null) {
+                        variant = renderCurrent(source, variantPath, width);
+                    }
+                    future.complete(variant);
+                } catch (IOException | RuntimeException e) {
+                    System.out.println("image variant failed: " + source + " w" + width + ": " + e);
+                    future.completeExceptionally(e);
+                } finally {
+                    inFlight.remove(variantPath, future);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(variantPath, future);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * 从源文件现在的版本生成缩略图，生成完再检查一次源文件的修改时间和大小，
+     * 读到的不是这个版本（还在写入、或者生成期间又被修改）时丢弃，返回null
+     * 缩略图的修改时间设置成源文件这个版本的修改时间，findVariant 据此判断是不是从当前版本生成的
+     */
+    private Variant renderCurrent(Path source, Path variantPath, int width) throws IOException {
+        long sourceModified = Files.getLastModifiedTime(source).toMillis();
+        long sourceSize = Files.size(source);
+        Path temp = variantPath.resolveSibling(variantPath.getFileName() + ".part");
+        try {
+            boolean generated;
+            try {
+                generated = render(source, temp, width);
+            } catch (IOException | RuntimeException e) {
+                // 写了一半的图片解码失败不算生成失败
+                if (isChanged(source, sourceModified, sourceSize)) {
+                    return null;
+                }
+                throw e;
+            }
+            if (isChanged(source, sourceModified, sourceSize)) {
+                return null;
+            }
+            if (generated) {
+                Files.setLastModifiedTime(temp, FileTime.fromMillis(sourceModified));
+                Files.move(temp, variantPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                // 检查之后、移动之前又被修改：磁盘上的缩略图是旧版本的修改时间，不会被新版本使用，再生成一次
+                if (isChanged(source, sourceModified, sourceSize)) {
+                    return null;
+                }
+            }
+            Variant variant = new Variant(sourceModified, generated);
+            putVariant(variantPath, variant);
+            return variant;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static boolean isChanged(Path source, long sourceModified, long sourceSize) throws IOException {
+        return Files.getLastModifiedTime(source).toMillis() != sourceModified || Files.size(source) != sourceSize;
+    }
+
+    /**
+     * 生成缩略图，写到target
+     * @return 原图不比目标宽度大、或者不是能处理的图片时返回false（使用原图）
+     */
+    private boolean render(Path source, Path target, int width) throws IOException {
+        BufferedImage image;
+        try (ImageInputStream inputStream = ImageIO.createImageInputStream(source.toFile())) {
+            Iterator<ImageReader> readers = inputStream == null ? null : ImageIO.getImageReaders(inputStream);
+            if (readers == null || !readers.hasNext()) {
+                return false;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(inputStream, true, true);
+                int sourceWidth = reader.getWidth(0);
+                int sourceHeight = reader.getHeight(0);
+                if (sourceWidth <= width || (long) sourceWidth * sourceHeight > maxPixels) {
+                    return false;
+                }
+                // 大图解码时隔行隔列读取，只解码到目标宽度的2倍左右，内存和CPU都省很多
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = Math.max(1, sourceWidth / (width * 2));
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                image = reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+
+        String format = formatName(source);
+        boolean alpha = image.getColorModel().hasAlpha() && !"jpg".equals(format);
+        int height = Math.max(1, (int) Math.round((double) image.getHeight() * width / image.getWidth()));
+        write(scale(image, width, height, alpha), format, target);
+        return true;
+    }
+
+    /**
+     * 双线性插值缩小，一次缩小太多倍会丢细节（出现锯齿），所以每次最多缩小一半
+     */
+    private static BufferedImage scale(BufferedImage source, int width, int height, boolean alpha) {
+        int type = alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage current = source;
+        int currentWidth = source.getWidth();
+        int currentHeight = source.getHeight();
+        do {
+            currentWidth = Math.max(width, currentWidth / 2);
+            currentHeight = Math.max(height, currentHeight / 2);
+            BufferedImage next = new BufferedImage(currentWidth, currentHeight, type);
+            Graphics2D graphics = next.createGraphics();
+            try {
+                if (!alpha) {
+                    // 透明的png/gif转成不透明时用白色背景
+                    graphics.setColor(Color.WHITE);
+                    graphics.fillRect(0, 0, currentWidth, currentHeight);
+                }
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                graphics.drawImage(current, 0, 0, currentWidth, currentHeight, null);
+            } finally {
+                graphics.dispose();
+            }
+            current = next;
+        } while (currentWidth != width || currentHeight != height);
+        return current;
+    }
+
+    private void write(BufferedImage image, String format, Path target) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if (!writers.hasNext()) {
+            throw new IOException("no image writer for " + format);
+        }
+        ImageWriter writer = writers.next();
+        try (ImageOutputStream outputStream = ImageIO.createImageOutputStream(Files.newOutputStream(target))) {
+            writer.setOutput(outputStream);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if ("jpg".equals(format)) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(jpegQuality);
+            }
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * 缩略图使用和原图相同的格式
+     */
+    private static String formatName(Path source) {
+        String name = source.getFileName().toString();
+        String ext = name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT);
+        return "jpeg".equals(ext) ? "jpg" : ext;
+    }
+
+    /**
+     * a.jpg -> .a_w200.jpg，以点开头，文件索引不收录
+     */
+    static Path variantPath(Path source, int width) {
+        String name = source.getFileName().toString();
+        int dotIndex = name.lastIndexOf('.');
+        return source.resolveSibling("." + name.substring(0, dotIndex) + "_w" + width + name.substring(dotIndex));
+    }
+
+    private static final class Variant {
+        private final long sourceModified;
+        private final boolean generated;
+
+        Variant(long sourceModified, boolean generated) {
+            this.sourceModified = sourceModified;
+            this.generated = generated;
+        }
+    }
+}
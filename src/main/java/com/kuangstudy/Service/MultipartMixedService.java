@@ -0,0 +1,252 @@
+package com.kuangstudy.Service;
+
+import com.kuangstudy.storage.StorageBackend;
+import com.kuangstudy.storage.StorageObject;
+import com.kuangstudy.util.StreamSegment;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * 流水线方式输出多文件的 multipart/mixed 响应
+ * 以前是一个文件发完才开始读下一个文件，而且每写一个头、一段内容、一个换行都flush一次。
+ * 现在发送当前文件的同时，后面的文件已经在预读线程池中并发读取，
+ * 头信息和小块数据先合并在输出缓冲区里，只有在等待下一个文件时才flush，
+ * 总耗时接近于"最慢的一次读取 + 网络传输时间"
+ */
+@Service
+public class MultipartMixedService {
+
+    public static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    @Autowired
+    @Qualifier("prefetchExecutor")
+    private Executor prefetchExecutor;
+
+    @Autowired
+    @Qualifier("storageExecutor")
+    private Executor storageExecutor;
+
+    /**
+     * 最多提前预读几个文件
+     */
+    @Value("${file.prefetch.parts:4}")
+    private int prefetchParts;
+
+    /**
+     * 每个请求预读到内存中的总字节数上限，平均分给预读窗口内的文件，
+     * 超过分到的大小的文件不预读，发送时直接从磁盘读
+     */
+    @Value("${file.prefetch.bytesPerRequest:16MB}")
+    private DataSize prefetchBytes;
+
+    /**
+     * 按顺序输出所有文件（阻塞模式），每个文件一个part
+     */
+    public void write(List<FileIndexService.FileEntry> entries, String boundary, String contentType,
+                      OutputStream outputStream) throws IOException {
+        StreamSegment.writeTo(segments(entries, boundary, contentType), prefetchParts, outputStream, WRITE_BUFFER_SIZE);
+    }
+
+    /**
+     * 整个响应体的各段：每个文件一段，最后是结束边界
+     * 阻塞输出用 write()，非阻塞输出交给 AsyncStreamService
+     */
+    public List<StreamSegment> segments(List<FileIndexService.FileEntry> entries, String boundary, String contentType) {
+        List<StorageObject> objects = new ArrayList<>(entries.size());
+        for (FileIndexService.FileEntry entry : entries) {
+            objects.add(entry.toStorageObject());
+        }
+        return segments(objects, null, boundary, contentType);
+    }
+
+    /**
+     * 同上，文件来自存储：本地文件直接按路径读取，对象存储中的文件通过storage读取
+     */
+    public List<StreamSegment> segments(List<StorageObject> objects, StorageBackend storage, String boundary, String contentType) {
+        long stageLimit = prefetchBytes.toBytes() / Math.max(1, prefetchParts);
+        List<StreamSegment> segments = new ArrayList<>(objects.size() + 1);
+        for (StorageObject object : objects) {
+            segments.add(new PartSegment(object, storage, boundary, contentType, object.getSize() <= stageLimit));
+        }
+        // 结束multipart响应
+        segments.add(StreamSegment.bytes(("--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8)));
+        return segments;
+    }
+
+    public int getPrefetchParts() {
+        return prefetchParts;
+    }
+
+    /**
+     * part头信息，用于拼接（也供基准测试使用）
+     */
+    public static byte[] partHeader(String boundary, String contentType, String fileName, long contentLength) {
+        String headers = "--" + boundary + "\r\n" +
+                "Content-Type: " + contentType + "\r\n" +
+                "Content-Disposition: inline; filename=\"" + encode(fileName) + "\"\r\n" +
+                "Content-Length: " + contentLength + "\r\n" +
+                "\r\n";
+        return headers.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 如果单个文件出错，写一个错误part（纯文本）并继续其它文件
+     */
+    private static byte[] errorPart(String boundary, String fileName, Exception e) {
+        String errorMsg = "读取文件 " + fileName + " 失败: " + e.getMessage();
+        String errorHeaders = "--" + boundary + "\r\n" +
+                "Content-Type: text/plain; charset=utf-8\r\n" +
+                "Content-Disposition: inline; filename=\"error-" + encode(fileName) + ".txt\"\r\n" +
+                "Content-Length: " + errorMsg.getBytes(StandardCharsets.UTF_8).length + "\r\n\r\n" +
+                errorMsg + "\r\n";
+        return errorHeaders.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 一个文件对应的part：头信息 + 文件内容 + 换行
+     * 小文件在预读线程池中整个读进内存；大文件发送时才从磁盘（或存储）按区间读取
+     */
+    private final class PartSegment extends StreamSegment {
+        private final StorageObject object;
+        private final StorageBackend storage;
+        private final String boundary;
+        private final String contentType;
+        private final boolean stage;
+
+        private CompletableFuture<byte[]> staged;
+        private List<StreamSegment> parts;
+        private int index;
+
+        PartSegment(StorageObject object, StorageBackend storage, String boundary, String contentType, boolean stage) {
+            this.object = object;
+            this.storage = storage;
+            this.boundary = boundary;
+            this.contentType = contentType;
+            this.stage = stage;
+        }
+
+        @Override
+        public void prefetch() {
+            if (stage && staged == null) {
+                staged = CompletableFuture.supplyAsync(this::read, prefetchExecutor);
+            }
+        }
+
+        @Override
+        public boolean isReady() {
+            return staged == null || staged.isDone();
+        }
+
+        @Override
+        public void whenReady(Runnable callback) {
+            staged.whenComplete((content, e) -> callback.run());
+        }
+
+        @Override
+        public boolean fill(ByteBuffer buffer) throws IOException {
+            if (parts == null) {
+                parts = resolve();
+            }
+            while (index < parts.size()) {
+                if (parts.get(index).fill(buffer)) {
+                    return true;
+                }
+                parts.get(index).close();
+                index++;
+            }
+            return false;
+        }
+
+        @Override
+        public void close() {
+            if (parts != null) {
+                for (StreamSegment part : parts) {
+                    part.close();
+                }
+            }
+            // 释放预读的内容
+            staged = null;
+        }
+
+        private List<StreamSegment> resolve() {
+            try {
+                if (staged != null) {
+                    byte[] content = join(staged);
+                    return Arrays.asList(
+                            StreamSegment.bytes(partHeader(boundary, contentType, object.getName(), content.length)),
+                            StreamSegment.bytes(content),
+                            StreamSegment.bytes(CRLF));
+                }
+                // 在写头信息之前确认文件还在，取实际大小
+                if (object.getLocalPath() != null) {
+                    long size = Files.size(object.getLocalPath());
+                    return Arrays.asList(
+                            StreamSegment.bytes(partHeader(boundary, contentType, object.getName(), size)),
+                            StreamSegment.file(object.getLocalPath(), 0, size),
+                            StreamSegment.bytes(CRLF));
+                }
+                StorageObject current = storage.stat(object.getKey());
+                if (current == null) {
+                    throw new FileNotFoundException(object.getKey());
+                }
+                long size = current.getSize();
+                return Arrays.asList(
+                        StreamSegment.bytes(partHeader(boundary, contentType, object.getName(), size)),
+                        StreamSegment.stream(() -> storage.getRange(object.getKey(), 0, size), size, storageExecutor),
+                        StreamSegment.bytes(CRLF));
+            } catch (IOException e) {
+                return Collections.singletonList(StreamSegment.bytes(errorPart(boundary, object.getName(), e)));
+            }
+        }
+
+        private byte[] read() {
+            try {
+                if (object.getLocalPath() != null) {
+                    return Files.readAllBytes(object.getLocalPath());
+                }
+                try (InputStream inputStream = storage.getRange(object.getKey(), 0, -1)) {
+                    return inputStream.readAllBytes();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private static byte[] join(CompletableFuture<byte[]> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static String encode(String fileName) {
+        return URLEncoder.encode(fileName, StandardCharsets.UTF_8);
+    }
+}
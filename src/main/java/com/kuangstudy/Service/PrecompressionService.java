@@ -0,0 +1,245 @@
+package com.kuangstudy.Service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Collectors;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 上传文件的预压缩
+ * 文本类的上传文件（txt、csv、json、svg...）在后台线程中压缩一次，生成旁边的 a.txt.gz，
+ * 静态资源访问时客户端支持gzip就直接返回压缩文件（见 PrecompressedResourceResolver），每个请求不再重复压缩。
+ * 文件被修改后旧的压缩文件立即停止使用，重新压缩完成后再启用；压缩后节省不到10%的文件不保留压缩版本。
+ * 压缩文件的修改时间设成源文件的修改时间，gzip尾部记录了原始大小，重启后两者都和源文件相同才继续使用。
+ * 注：目前没有纯Java的brotli编码器（只有解码器），所以只生成gzip
+ */
+@Service
+public class PrecompressionService implements FileIndexService.Listener {
+
+    public static final String SUFFIX = ".gz";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @Autowired
+    private FileIndexService fileIndexService;
+
+    @Autowired
+    @Qualifier("precompressExecutor")
+    private Executor precompressExecutor;
+
+    @Value("${file.precompress.enabled:true}")
+    private boolean enabled;
+
+    @Value("${file.precompress.extensions:txt,csv,json,js,css,html,htm,svg,xml,md,log}")
+    private String[] extensions;
+
+    @Value("${file.precompress.minSize:1KB}")
+    private DataSize minSize;
+
+    private Set<String> compressibleExtensions;
+
+    /**
+     * 源文件 -> 生成压缩文件时源文件的修改时间，只有登记在这里的压缩文件才会被使用
+     */
+    private final Map<Path, Long> sidecars = new ConcurrentHashMap<>();
+
+    /**
+     * 压缩效果不好的文件，同一个版本不再重复尝试
+     */
+    private final Map<Path, Long> incompressible = new ConcurrentHashMap<>();
+
+    /**
+     * 排队或正在压缩的文件 -> 索引中最新的版本，压缩期间文件又变化时，压缩完成后按最新的版本再压缩一次
+     */
+    private final Map<Path, FileIndexService.FileEntry> pending = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        compressibleExtensions = Arrays.stream(extensions)
+                .map(ext -> ext.trim().toLowerCase(Locale.ROOT))
+                .collect(Collectors.toSet());
+        if (!enabled) {
+            return;
+        }
+        fileIndexService.addListener(FileIndexService.UPLOAD, this);
+        // 启动时已有的文件：已经有压缩文件的直接登记，没有的排队压缩
+        fileIndexService.forEach(FileIndexService.UPLOAD, this::onUpdate);
+    }
+
+    /**
+     * 可以使用的压缩文件，没有（或者源文件已经变了）返回null
+     */
+    public Path getSidecar(Path source) {
+        return sidecars.containsKey(source) ? sidecarPath(source) : null;
+    }
+
+    /**
+     * 压缩版本的ETag，和原文件的ETag区分开
+     */
+    public static String gzipETag(String eTag) {
+        return eTag.substring(0, eTag.length() - 1) + "-gz\"";
+    }
+
+    @Override
+    public void onUpdate(FileIndexService.FileEntry entry) {
+        if (!isCompressible(entry)) {
+            return;
+        }
+        Path source = entry.getPath();
+        Long compressed = sidecars.get(source);
+        if (compressed != null) {
+            if (compressed == entry.getLastModified()) {
+                return;
+            }
+            // 源文件变了，旧的压缩文件不能再用
+            sidecars.remove(source);
+        }
+        Long skipped = incompressible.get(source);
+        if (skipped != null && skipped == entry.getLastModified()) {
+            return;
+        }
+        if (pending.put(source, entry) != null) {
+            // 已经在排队或者正在压缩，完成后会按这个版本再压缩
+            return;
+        }
+        try {
+            precompressExecutor.execute(() -> {
+                FileIndexService.FileEntry current = entry;
+                try {
+                    compress(current);
+                    while (!pending.remove(source, current)) {
+                        current = pending.get(source);
+                        compress(current);
+                    }
+                } catch (RuntimeException e) {
+                    pending.remove(source);
+                    throw e;
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 队列满了，这个文件先不压缩，下次文件变化时再试
+            pending.remove(source);
+        }
+    }
+
+    @Override
+    public void onRemove(FileIndexService.FileEntry entry) {
+        Path source = entry.getPath();
+        sidecars.remove(source);
+        incompressible.remove(source);
+        try {
+            Files.deleteIfExists(sidecarPath(source));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private boolean isCompressible(FileIndexService.FileEntry entry) {
+        if (entry.getSize() < minSize.toBytes()) {
+            return false;
+        }
+        String name = entry.getName();
+        int dotIndex = name.lastIndexOf('.');
+        return dotIndex != -1 && compressibleExtensions.contains(name.substring(dotIndex + 1).toLowerCase(Locale.ROOT));
+    }
+
+    private void compress(FileIndexService.FileEntry entry) {
+        Path source = entry.getPath();
+        Path target = sidecarPath(source);
+        Path temp = target.resolveSibling(target.getFileName() + ".part");
+        try {
+            // 重启后已经存在的压缩文件，是从源文件的这个版本生成的就直接使用
+            if (Files.exists(target) && isBuiltFrom(target, entry)) {
+                sidecars.put(source, entry.getLastModified());
+                return;
+            }
+
+            long lastModified = Files.getLastModifiedTime(source).toMillis();
+            long read;
+            try (InputStream inputStream = Files.newInputStream(source);
+                 OutputStream outputStream = new BestGzipOutputStream(Files.newOutputStream(temp))) {
+                read = inputStream.transferTo(outputStream);
+            }
+            // 读到的不是索引中的这个版本（还在写入、或者压缩期间又被修改），丢弃；
+            // 索引更新后pending中是新的版本，这次压缩结束后会再压缩
+            if (lastModified != entry.getLastModified() || read != entry.getSize()
+                    || Files.getLastModifiedTime(source).toMillis() != lastModified) {
+                Files.delete(temp);
+                return;
+            }
+            if (Files.size(temp) > entry.getSize() * 0.9) {
+                Files.delete(temp);
+                incompressible.put(source, entry.getLastModified());
+                return;
+            }
+            Files.setLastModifiedTime(temp, FileTime.fromMillis(entry.getLastModified()));
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            sidecars.put(source, entry.getLastModified());
+        } catch (IOException e) {
+            e.printStackTrace();
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * 压缩文件的修改时间等于源文件的修改时间，并且gzip尾部的原始大小（ISIZE，模2^32）等于源文件大小
+     */
+    private static boolean isBuiltFrom(Path target, FileIndexService.FileEntry entry) throws IOException {
+        if (Files.getLastModifiedTime(target).toMillis() != entry.getLastModified()) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(target)) {
+            long size = channel.size();
+            if (size < 18) {
+                return false;
+            }
+            ByteBuffer trailer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            while (trailer.hasRemaining()) {
+                if (channel.read(trailer, size - 4 + trailer.position()) < 0) {
+                    return false;
+                }
+            }
+            return (trailer.getInt(0) & 0xffffffffL) == (entry.getSize() & 0xffffffffL);
+        }
+    }
+
+    private static Path sidecarPath(Path source) {
+        return source.resolveSibling(source.getFileName() + SUFFIX);
+    }
+
+    /**
+     * 只压缩一次，用最高压缩率
+     */
+    private static final class BestGzipOutputStream extends GZIPOutputStream {
+        BestGzipOutputStream(OutputStream out) throws IOException {
+            super(out, BUFFER_SIZE);
+            def.setLevel(Deflater.BEST_COMPRESSION);
+        }
+    }
+}
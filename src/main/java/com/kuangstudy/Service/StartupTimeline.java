@@ -0,0 +1,276 @@
+package com.kuangstudy.Service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.event.ApplicationEnvironmentPreparedEvent;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.boot.context.metrics.buffering.BufferingApplicationStartup;
+import org.springframework.boot.context.metrics.buffering.StartupTimeline.TimelineEvent;
+import org.springframework.boot.web.context.WebServerInitializedEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.metrics.ApplicationStartup;
+import org.springframework.core.metrics.StartupStep;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 启动时间线：JVM启动、main、Web服务器启动、容器刷新完成、应用就绪、第一个请求完成，
+ * 都是从JVM启动开始算的毫秒数；另外从 BufferingApplicationStartup 统计容器刷新的耗时和创建最慢的几个bean
+ * 就绪时和第一个请求完成时输出到控制台，配置了 startup.timeline.report 时同时写成JSON（CI比较两次提交的启动时间）
+ * startup.warmup=true 时就绪前先请求自己几个接口（页面、JSON），延迟初始化的bean和请求处理用到的类在这时加载，
+ * 这期间 readiness 还不是 ACCEPTING_TRAFFIC，负载均衡不会把真实请求发过来
+ * startup.training=true 时是生成AppCDS归档的训练运行：预热后退出
+ * 时间线只在 startup.timeline.enabled=true 时（faststart配置）记录和输出，其它配置下不缓存启动步骤
+ */
+@Service
+public class StartupTimeline {
+
+    private static final long JVM_STARTED = ManagementFactory.getRuntimeMXBean().getStartTime();
+
+    /**
+     * BufferingApplicationStartup 最多缓存的启动步骤数
+     */
+    private static final int STARTUP_STEPS = 10000;
+
+    private static volatile long mainStarted;
+
+    @Autowired
+    private ConfigurableApplicationContext applicationContext;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value("${startup.timeline.enabled:false}")
+    private boolean enabled;
+
+    /**
+     * JSON报告的路径，为空时只输出到控制台
+     */
+    @Value("${startup.timeline.report:}")
+    private String reportFile;
+
+    /**
+     * 报告中列出创建最慢的几个bean（耗时包括它依赖的bean）
+     */
+    @Value("${startup.timeline.slowBeans:10}")
+    private int slowBeans;
+
+    @Value("${startup.warmup:false}")
+    private boolean warmup;
+
+    @Value("${startup.training:false}")
+    private boolean training;
+
+    /**
+     * 阶段名 -> 从JVM启动开始的毫秒数
+     */
+    private final Map<String, Long> phases = new LinkedHashMap<>();
+
+    private final Map<String, Object> details = new LinkedHashMap<>();
+
+    private final AtomicBoolean firstRequestRecorded = new AtomicBoolean();
+
+    private volatile int port;
+
+    /**
+     * main方法开始执行时调用，用来区分JVM启动（类加载、JIT）和Spring启动的耗时
+     */
+    public static void mainStarted() {
+        mainStarted = System.currentTimeMillis();
+    }
+
+    /**
+     * 配置了 startup.timeline.enabled=true 时记录启动的各个步骤（每个bean的创建耗时等）
+     * 配置在环境准备好之后才能读到，这时容器还没有创建，在这里设置 ApplicationStartup
+     */
+    public static void install(SpringApplication application) {
+        application.addListeners(new BufferingInstaller());
+    }
+
+    @EventListener
+    public void onWebServerInitialized(WebServerInitializedEvent event) {
+        port = event.getWebServer().getPort();
+        mark("webServerStarted");
+    }
+
+    @EventListener
+    public void onContextRefreshed(ContextRefreshedEvent event) {
+        if (event.getApplicationContext() == applicationContext) {
+            mark("contextRefreshed");
+        }
+    }
+
+    @EventListener
+    public void onApplicationReady(ApplicationReadyEvent event) {
+        if (event.getApplicationContext() != applicationContext) {
+            return;
+        }
+        mark("applicationReady");
+        collectBeanTimings();
+        boolean warmedUp = false;
+        if (warmup || training) {
+            warmedUp = warmUp();
+            mark("warmedUp");
+        }
+        report();
+        if (training) {
+            // 在事件监听器里不能关闭容器，另开线程
+            int exitCode = warmedUp ? 0 : 1;
+            Thread thread = new Thread(() -> System.exit(Math.max(exitCode, SpringApplication.exit(applicationContext))),
+                    "startup-training");
+            thread.start();
+        }
+    }
+
+    public boolean isFirstRequestRecorded() {
+        return firstRequestRecorded.get();
+    }
+
+    /**
+     * 第一个完成的请求（StartupTimelineFilter调用），只记录一次
+     */
+    public void firstRequestCompleted(String uri, long startedMillis, long completedMillis) {
+        if (!firstRequestRecorded.compareAndSet(false, true)) {
+            return;
+        }
+        synchronized (this) {
+            phases.put("firstRequestStarted", startedMillis - JVM_STARTED);
+            phases.put("firstRequestCompleted", completedMillis - JVM_STARTED);
+            details.put("firstRequestUri", uri);
+            details.put("firstRequestMillis", completedMillis - startedMillis);
+        }
+        report();
+    }
+
+    private synchronized void mark(String phase) {
+        if (phases.isEmpty() && mainStarted > 0) {
+            phases.put("main", mainStarted - JVM_STARTED);
+        }
+        phases.put(phase, System.currentTimeMillis() - JVM_STARTED);
+    }
+
+    /**
+     * 容器刷新的耗时、创建的bean数和最慢的bean，需要main中设置 BufferingApplicationStartup
+     */
+    private void collectBeanTimings() {
+        ApplicationStartup startup = applicationContext.getApplicationStartup();
+        if (!(startup instanceof BufferingApplicationStartup)) {
+            return;
+        }
+        List<TimelineEvent> events = ((BufferingApplicationStartup) startup).getBufferedTimeline().getEvents();
+        List<TimelineEvent> instantiations = new ArrayList<>();
+        long refreshMillis = 0;
+        for (TimelineEvent event : events) {
+            String name = event.getStartupStep().getName();
+            if (name.equals("spring.beans.instantiate")) {
+                instantiations.add(event);
+            } else if (name.equals("spring.context.refresh")) {
+                refreshMillis = event.getDuration().toMillis();
+            }
+        }
+        instantiations.sort(Comparator.comparing(TimelineEvent::getDuration).reversed());
+        Map<String, Long> slowest = new LinkedHashMap<>();
+        for (TimelineEvent event : instantiations.subList(0, Math.min(slowBeans, instantiations.size()))) {
+            slowest.put(tag(event.getStartupStep(), "beanName"), event.getDuration().toMillis());
+        }
+        synchronized (this) {
+            details.put("contextRefreshMillis", refreshMillis);
+            details.put("beansInstantiated", instantiations.size());
+            details.put("slowestBeansMillis", slowest);
+        }
+    }
+
+    private static String tag(StartupStep step, String key) {
+        for (StartupStep.Tag tag : step.getTags()) {
+            if (tag.getKey().equals(key)) {
+                return tag.getValue();
+            }
+        }
+        return step.getName();
+    }
+
+    private void report() {
+        if (!enabled) {
+            return;
+        }
+        Map<String, Object> report = new LinkedHashMap<>();
+        synchronized (this) {
+            report.put("phasesMillis", new LinkedHashMap<>(phases));
+            report.putAll(details);
+        }
+        System.out.println("startup timeline: " + report);
+        if (reportFile.isEmpty()) {
+            return;
+        }
+        try {
+            Path path = Paths.get(reportFile).toAbsolutePath();
+            Files.createDirectories(path.getParent());
+            objectMapper.writer().with(SerializationFeature.INDENT_OUTPUT).writeValue(path.toFile(), report);
+        } catch (IOException e) {
+            System.out.println("startup timeline report failed: " + e);
+        }
+    }
+
+    private static final class BufferingInstaller implements ApplicationListener<ApplicationEnvironmentPreparedEvent> {
+        @Override
+        public void onApplicationEvent(ApplicationEnvironmentPreparedEvent event) {
+            if (event.getEnvironment().getProperty("startup.timeline.enabled", Boolean.class, false)) {
+                event.getSpringApplication().setApplicationStartup(new BufferingApplicationStartup(STARTUP_STEPS));
+            }
+        }
+    }
+
+    /**
+     * 请求页面（FreeMarker）和JSON接口（Jackson），失败时只输出日志，不影响启动
+     */
+    private boolean warmUp() {
+        try {
+            request("GET", "/upload", null);
+            request("POST", "/ping/post", null);
+            request("POST", "/ping/post/param", "{\"param1\":\"warmup\"}");
+            return true;
+        } catch (IOException e) {
+            System.out.println("startup warmup request failed: " + e);
+            return false;
+        }
+    }
+
+    private void request(String method, String path, String json) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+        connection.setRequestMethod(method);
+        if (json != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            try (OutputStream outputStream = connection.getOutputStream()) {
+                outputStream.write(json.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        try (InputStream inputStream = connection.getInputStream()) {
+            inputStream.transferTo(OutputStream.nullOutputStream());
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
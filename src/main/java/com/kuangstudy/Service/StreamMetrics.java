@@ -0,0 +1,244 @@
+package com.kuangstudy.Service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 上传、下载、预览接口的指标（Micrometer，/actuator/prometheus）
+ * - stream.duration / stream.ttfb：每个接口从开始到写完、到写出第一个字节的耗时（直方图）
+ * - stream.bytes.written：写出的字节数，按时间求导就是每秒字节数
+ * - stream.inflight：正在输出的流
+ * - upload.bytes.read / upload.size：上传读取的字节数和按dir统计的文件大小分布
+ * - stream.bandwidth.*：限速中的流、拿不到令牌的次数和发出的令牌字节数
+ * - admission.*：准入控制每类预算的占用、排队和拒绝次数（upload/export是字节数，其它是并发数）
+ * - export.*：导出任务的提交、合并到进行中任务、命中导出缓存的次数，进行中的任务和缓存的字节数
+ * 非阻塞输出的接口（视频、PDF）不经过springboot的 http.server.requests 统计，所以这里自己计时。
+ * 所有Meter在第一次使用时创建后缓存，复制循环里只做计数，不分配对象
+ */
+@Service
+public class StreamMetrics {
+
+    /**
+     * dir是客户端传的，最多给这么多个不同的dir单独统计，其余的归到 other，避免标签无限增长
+     */
+    private static final int MAX_DIR_TAGS = 100;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private HotFileCache hotFileCache;
+
+    @Autowired
+    private AsyncStreamService asyncStreamService;
+
+    @Autowired
+    private DurabilityService durabilityService;
+
+    @Autowired
+    private AdmissionService admissionService;
+
+    @Autowired
+    private BandwidthScheduler bandwidthScheduler;
+
+    @Autowired
+    private ExportJobService exportJobService;
+
+    private final ConcurrentMap<String, EndpointMeters> endpoints = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, Counter> uploadBytes = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, DistributionSummary> uploadSizes = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void bindGauges() {
+        FunctionCounter.builder("hotfile.cache.hits", hotFileCache, HotFileCache::getHits).register(meterRegistry);
+        FunctionCounter.builder("hotfile.cache.misses", hotFileCache, HotFileCache::getMisses).register(meterRegistry);
+        FunctionCounter.builder("hotfile.cache.evictions", hotFileCache, HotFileCache::getEvictions).register(meterRegistry);
+        Gauge.builder("hotfile.cache.bytes", hotFileCache, HotFileCache::getCurrentBytes)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("stream.async.active", asyncStreamService, AsyncStreamService::getActiveStreams)
+                .register(meterRegistry);
+        FunctionCounter.builder("stream.async.idle.timeouts", asyncStreamService, AsyncStreamService::getIdleTimeouts)
+                .register(meterRegistry);
+        FunctionCounter.builder("upload.fsync.batches", durabilityService, DurabilityService::getBatches)
+                .tag("mode", durabilityService.getMode())
+                .register(meterRegistry);
+        FunctionCounter.builder("upload.fsync.files", durabilityService, DurabilityService::getSyncedFiles)
+                .tag("mode", durabilityService.getMode())
+                .register(meterRegistry);
+        FunctionCounter.builder("upload.fsync.failures", durabilityService, DurabilityService::getFailures)
+                .register(meterRegistry);
+        Gauge.builder("stream.bandwidth.flows", bandwidthScheduler, BandwidthScheduler::getActiveFlows)
+                .register(meterRegistry);
+        FunctionCounter.builder("stream.bandwidth.throttled", bandwidthScheduler, BandwidthScheduler::getThrottled)
+                .register(meterRegistry);
+        FunctionCounter.builder("stream.bandwidth.granted.bytes", bandwidthScheduler, BandwidthScheduler::getGrantedBytes)
+                .register(meterRegistry);
+        FunctionCounter.builder("export.jobs.submitted", exportJobService, ExportJobService::getSubmitted)
+                .register(meterRegistry);
+        FunctionCounter.builder("export.jobs.coalesced", exportJobService, ExportJobService::getCoalesced)
+                .register(meterRegistry);
+        Gauge.builder("export.jobs.running", exportJobService, ExportJobService::getRunningJobs)
+                .register(meterRegistry);
+        FunctionCounter.builder("export.cache.hits", exportJobService, ExportJobService::getCacheHits)
+                .register(meterRegistry);
+        Gauge.builder("export.cache.bytes", exportJobService, ExportJobService::getCachedBytes)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        for (AdmissionService.Budget budget : admissionService.getBudgets()) {
+            Gauge.builder("admission.inflight", budget, AdmissionService.Budget::getUsed)
+                    .tag("budget", budget.getName())
+                    .register(meterRegistry);
+            Gauge.builder("admission.capacity", budget, AdmissionService.Budget::getCapacity)
+                    .tag("budget", budget.getName())
+                    .register(meterRegistry);
+            Gauge.builder("admission.waiting", budget, AdmissionService.Budget::getWaiting)
+                    .tag("budget", budget.getName())
+                    .register(meterRegistry);
+            FunctionCounter.builder("admission.admitted", budget, AdmissionService.Budget::getAdmitted)
+                    .tag("budget", budget.getName())
+                    .register(meterRegistry);
+            FunctionCounter.builder("admission.rejected", budget, AdmissionService.Budget::getQueueFull)
+                    .tag("budget", budget.getName())
+                    .tag("reason", "queue_full")
+                    .register(meterRegistry);
+            FunctionCounter.builder("admission.rejected", budget, AdmissionService.Budget::getTimedOut)
+                    .tag("budget", budget.getName())
+                    .tag("reason", "timeout")
+                    .register(meterRegistry);
+        }
+    }
+
+    /**
+     * 开始统计一次响应输出，结束时必须调用 Recorder.finish()
+     */
+    public Recorder start(String endpoint) {
+        EndpointMeters meters = meters(endpoint);
+        meters.inFlight.incrementAndGet();
+        return new Recorder(meters);
+    }
+
+    /**
+     * 由框架写出响应体的接口（ResponseEntity<Resource>），只统计字节数
+     */
+    public void recordWritten(String endpoint, long bytes) {
+        meters(endpoint).bytesWritten.increment(bytes);
+    }
+
+    /**
+     * 上传读取的字节数（分片上传每个分片调用一次）
+     * @param type multipart / stream / chunk
+     */
+    public void recordRead(String type, long bytes) {
+        Counter counter = uploadBytes.get(type);
+        if (counter == null) {
+            counter = uploadBytes.computeIfAbsent(type, key -> Counter.builder("upload.bytes.read")
+                    .baseUnit("bytes")
+                    .tag("type", key)
+                    .register(meterRegistry));
+        }
+        counter.increment(bytes);
+    }
+
+    /**
+     * 上传完成的文件大小，按dir统计分布
+     */
+    public void recordUpload(String type, String dir, long size) {
+        String dirTag = dir == null || dir.isEmpty() ? "none" : dir;
+        DistributionSummary summary = uploadSizes.get(type + '|' + dirTag);
+        if (summary == null) {
+            if (uploadSizes.size() >= MAX_DIR_TAGS) {
+                dirTag = "other";
+            }
+            String tag = dirTag;
+            summary = uploadSizes.computeIfAbsent(type + '|' + tag, key -> DistributionSummary.builder("upload.size")
+                    .baseUnit("bytes")
+                    .tag("type", type)
+                    .tag("dir", tag)
+                    .publishPercentileHistogram()
+                    .register(meterRegistry));
+        }
+        summary.record(size);
+    }
+
+    private EndpointMeters meters(String endpoint) {
+        return endpoints.computeIfAbsent(endpoint, key -> new EndpointMeters(meterRegistry, key));
+    }
+
+    private static final class EndpointMeters {
+        private final Timer duration;
+        private final Timer timeToFirstByte;
+        private final Counter bytesWritten;
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        EndpointMeters(MeterRegistry registry, String endpoint) {
+            duration = Timer.builder("stream.duration")
+                    .tag("endpoint", endpoint)
+                    .publishPercentileHistogram()
+                    .minimumExpectedValue(Duration.ofMillis(1))
+                    .maximumExpectedValue(Duration.ofMinutes(10))
+                    .register(registry);
+            timeToFirstByte = Timer.builder("stream.ttfb")
+                    .tag("endpoint", endpoint)
+                    .publishPercentileHistogram()
+                    .minimumExpectedValue(Duration.ofMillis(1))
+                    .maximumExpectedValue(Duration.ofSeconds(30))
+                    .register(registry);
+            bytesWritten = Counter.builder("stream.bytes.written")
+                    .baseUnit("bytes")
+                    .tag("endpoint", endpoint)
+                    .register(registry);
+            Gauge.builder("stream.inflight", inFlight, AtomicInteger::get)
+                    .tag("endpoint", endpoint)
+                    .register(registry);
+        }
+    }
+
+    /**
+     * 一次响应输出的计时和计数，同一时间只能有一个线程使用（不是线程安全的）
+     */
+    public static final class Recorder {
+        private final EndpointMeters meters;
+        private final long startNanos = System.nanoTime();
+        private boolean firstByteWritten;
+        private boolean finished;
+
+        private Recorder(EndpointMeters meters) {
+            this.meters = meters;
+        }
+
+        /**
+         * 每次写出数据后调用
+         */
+        public void written(long bytes) {
+            if (!firstByteWritten) {
+                firstByteWritten = true;
+                meters.timeToFirstByte.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+            }
+            meters.bytesWritten.increment(bytes);
+        }
+
+        public void finish() {
+            if (!finished) {
+                finished = true;
+                meters.inFlight.decrementAndGet();
+                meters.duration.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.kuangstudy.Service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 把旧布局（dir/yyyyMMdd/文件名）的上传文件移动到分片目录（dir/yyyyMMdd/ab/文件名）
+ * 启动时加参数 --file.layout.migrate=true 执行一次，服务照常运行：
+ * 每个文件是同一个磁盘上的原子重命名，迁移前后旧链接都能访问（LegacyUploadPathResourceResolver），
+ * 内容索引中的路径同时更新。上传中的 .part 文件不移动
+ */
+@Service
+@ConditionalOnProperty(name = "file.layout.migrate", havingValue = "true")
+public class UploadLayoutMigration implements ApplicationRunner {
+
+    @Autowired
+    private UploadLayoutService uploadLayoutService;
+
+    @Autowired
+    private ContentIndexService contentIndexService;
+
+    @Value("${file.uploadFolder}")
+    private String uploadFolder;
+
+    @Override
+    public void run(ApplicationArguments args) throws IOException {
+        if (!uploadLayoutService.isSharded()) {
+            System.out.println("upload layout migration skipped: file.layout.type is not " + UploadLayoutService.SHARDED);
+            return;
+        }
+        Path root = Paths.get(uploadFolder).toAbsolutePath().normalize();
+        List<Path> dateDirs;
+        try (Stream<Path> dirs = Files.walk(root)) {
+            dateDirs = dirs.filter(dir -> Files.isDirectory(dir)
+                    && UploadLayoutService.isDateDir(dir.getFileName().toString()))
+                    .collect(Collectors.toList());
+        }
+
+        Map<String, String> moves = new HashMap<>();
+        int failed = 0;
+        for (Path dateDir : dateDirs) {
+            // 先移动附属文件（缩略图、.gz），再移动原文件：原文件从旧位置消失时附属文件已经不在旧位置，不会被当成孤儿删除
+            List<Path> primary = new ArrayList<>();
+            List<Path> dependent = new ArrayList<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dateDir, Files::isRegularFile)) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    if (name.endsWith(".part") || name.endsWith(".link")) {
+                        continue;
+                    }
+                    if (name.startsWith(".") || name.endsWith(PrecompressionService.SUFFIX)) {
+                        dependent.add(file);
+                    } else {
+                        primary.add(file);
+                    }
+                }
+            }
+            dependent.addAll(primary);
+            for (Path file : dependent) {
+                String shardDir = uploadLayoutService.shardDir(file.getFileName().toString());
+                if (shardDir == null) {
+                    continue;
+                }
+                Path target = dateDir.resolve(shardDir).resolve(file.getFileName());
+                try {
+                    Files.createDirectories(target.getParent());
+                    move(file, target);
+                    moves.put(relativeName(root, file), relativeName(root, target));
+                } catch (FileAlreadyExistsException e) {
+                    if (removeIfLinked(file, target)) {
+                        moves.put(relativeName(root, file), relativeName(root, target));
+                        continue;
+                    }
+                    System.out.println("upload layout migration: target exists, skipped " + file);
+                    failed++;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    failed++;
+                }
+            }
+        }
+
+        int relocated = contentIndexService.relocate(moves);
+        System.out.println("upload layout migration finished: moved " + moves.size() + " files, "
+                + relocated + " content index entries updated, " + failed + " failed");
+    }
+
+    /**
+     * 移动文件，目标已经存在时抛出FileAlreadyExistsException
+     * ATOMIC_MOVE（rename）在POSIX上会直接覆盖已经存在的目标，所以先建硬链接（目标存在时失败）再删除原文件
+     */
+    private static void move(Path file, Path target) throws IOException {
+        try {
+            Files.createLink(target, file);
+        } catch (UnsupportedOperationException e) {
+            // 不支持硬链接的文件系统
+            if (Files.exists(target)) {
+                throw new FileAlreadyExistsException(target.toString());
+            }
+            Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+            return;
+        }
+        Files.delete(file);
+    }
+
+    /**
+     * 上次迁移建好硬链接后中断时，目标和原文件是同一个文件，删除旧位置即可
+     */
+    private static boolean removeIfLinked(Path file, Path target) {
+        try {
+            if (Files.isSameFile(file, target)) {
+                Files.delete(file);
+                return true;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    private static String relativeName(Path root, Path path) {
+        return root.relativize(path).toString().replace('\\', '/');
+    }
+}
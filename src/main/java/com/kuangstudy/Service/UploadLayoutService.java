@@ -0,0 +1,174 @@
+package com.kuangstudy.Service;
+
+import com.kuangstudy.storage.StorageBackend;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 上传文件的目录布局
+ * date：uploadFolder/dir/yyyyMMdd/文件名（原来的布局，一天的文件都在一个目录里）
+ * sharded：uploadFolder/dir/yyyyMMdd/ab/文件名，按UUID文件名的前几位再分一层（每层256个目录），
+ * 一天几十万个文件时每个目录只有几千个，目录查找不会越来越慢。
+ * 已经创建过的目录记在内存里，上传时不再每次都调用 exists()/mkdirs()；
+ * 日期目录名按天缓存，不再每次都new SimpleDateFormat
+ */
+@Service
+public class UploadLayoutService {
+
+    public static final String DATE = "date";
+    public static final String SHARDED = "sharded";
+
+    private static final DateTimeFormatter DATE_DIR_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    /**
+     * 缓存的目录数超过这个数时清空（过去日期的目录不会再用到）
+     */
+    private static final int MAX_KNOWN_DIRS = 100000;
+
+    @Value("${file.uploadFolder}")
+    private String uploadFolder;
+
+    @Value("${file.layout.type:sharded}")
+    private String type;
+
+    /**
+     * 分片目录的层数，每层取文件名的2个字符
+     */
+    @Value("${file.layout.shardLevels:1}")
+    private int shardLevels;
+
+    private final Set<String> knownDirs = ConcurrentHashMap.newKeySet();
+
+    private volatile DateDir dateDir = new DateDir(Long.MIN_VALUE, null);
+
+    /**
+     * 当天的日期目录名，例如 20220101
+     */
+    public String currentDateDir() {
+        DateDir current = dateDir;
+        long now = System.currentTimeMillis();
+        if (now >= current.validUntil) {
+            ZoneId zone = ZoneId.systemDefault();
+            LocalDate today = LocalDate.now(zone);
+            current = new DateDir(today.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli(), today.format(DATE_DIR_FORMAT));
+            dateDir = current;
+        }
+        return current.name;
+    }
+
+    /**
+     * 上传文件所在目录相对uploadFolder的路径：dir/yyyyMMdd 或者 dir/yyyyMMdd/ab
+     * dir来自客户端，和存储的key一样规范化，包含".."时抛出IllegalArgumentException，不能指向uploadFolder之外
+     */
+    public String relativeDir(String dir, String dateDir, String uniqueFileName) {
+        String dateRelativeDir = (dir == null ? null : StorageBackend.normalizeKey(dir)) + "/" + dateDir;
+        if (!SHARDED.equals(type)) {
+            return dateRelativeDir;
+        }
+        return dateRelativeDir + "/" + shardDir(uniqueFileName);
+    }
+
+    /**
+     * 上传文件相对uploadFolder的路径
+     */
+    public String relativePath(String dir, String dateDir, String uniqueFileName) {
+        return relativeDir(dir, dateDir, uniqueFileName) + "/" + uniqueFileName;
+    }
+
+    /**
+     * 上传文件的目标目录，不存在时创建，创建过的目录不再访问磁盘
+     */
+    public File resolveTargetDir(String dir, String dateDir, String uniqueFileName) {
+        String relativeDir = relativeDir(dir, dateDir, uniqueFileName);
+        //注意：服务器上传文件的根目录需要在配置类中做资源映射，才能让外部访问被上传的资源
+        File targetFileDir = new File(uploadFolder + relativeDir);
+        if (!knownDirs.contains(relativeDir)) {
+            targetFileDir.mkdirs();
+            if (targetFileDir.isDirectory()) {
+                if (knownDirs.size() >= MAX_KNOWN_DIRS) {
+                    knownDirs.clear();
+                }
+                knownDirs.add(relativeDir);
+            }
+        }
+        return targetFileDir;
+    }
+
+    /**
+     * 旧布局的路径（dir/yyyyMMdd/文件名）对应的分片布局路径，用于迁移后旧链接的访问
+     * @return 不是旧布局的路径时返回null
+     */
+    public String shardedPath(String relativePath) {
+        int slash = relativePath.lastIndexOf('/');
+        if (slash <= 0) {
+            return null;
+        }
+        String parent = relativePath.substring(0, slash);
+        String fileName = relativePath.substring(slash + 1);
+        String parentName = parent.substring(parent.lastIndexOf('/') + 1);
+        if (!isDateDir(parentName)) {
+            return null;
+        }
+        String shardDir = shardDir(fileName);
+        return shardDir == null ? null : parent + "/" + shardDir + "/" + fileName;
+    }
+
+    /**
+     * 文件名前 2*shardLevels 个字符组成的分片目录，例如 ab 或 ab/cd
+     * 缩略图等以点开头的附属文件和原文件放在同一个目录
+     * @return 文件名不是UUID开头时返回null
+     */
+    public String shardDir(String fileName) {
+        int start = fileName.startsWith(".") ? 1 : 0;
+        if (fileName.length() < start + shardLevels * 2) {
+            return null;
+        }
+        StringBuilder shard = new StringBuilder(shardLevels * 3);
+        for (int level = 0; level < shardLevels; level++) {
+            if (level > 0) {
+                shard.append('/');
+            }
+            for (int i = 0; i < 2; i++) {
+                char c = fileName.charAt(start + level * 2 + i);
+                if (Character.digit(c, 16) == -1) {
+                    return null;
+                }
+                shard.append(Character.toLowerCase(c));
+            }
+        }
+        return shard.toString();
+    }
+
+    public static boolean isDateDir(String name) {
+        if (name.length() != 8) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (!Character.isDigit(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean isSharded() {
+        return SHARDED.equals(type);
+    }
+
+    private static final class DateDir {
+        private final long validUntil;
+        private final String name;
+
+        DateDir(long validUntil, String name) {
+            this.validUntil = validUntil;
+            this.name = name;
+        }
+    }
+}
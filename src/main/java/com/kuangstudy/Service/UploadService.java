@@ -1,20 +1,72 @@
 package com.kuangstudy.Service;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.kuangstudy.storage.StorageBackend;
+import com.kuangstudy.storage.StorageObject;
+import com.kuangstudy.storage.StoragePage;
+import com.kuangstudy.util.LimitedInputStream;
+import com.kuangstudy.util.MultipartStreamParser;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.util.UriComponentsBuilder;
+import org.springframework.web.util.UriUtils;
 
+import javax.servlet.http.HttpServletRequest;
 import java.io.File;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 @Service
 public class UploadService {
 
+    @Autowired
+    private ContentIndexService contentIndexService;
+
+    @Autowired
+    private FileIndexService fileIndexService;
+
+    @Autowired
+    private StreamMetrics streamMetrics;
+
+    @Autowired
+    private UploadLayoutService uploadLayoutService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private DurabilityService durabilityService;
+
+    @Autowired
+    @Qualifier("uploadExecutor")
+    private Executor uploadExecutor;
+
+    @Autowired
+    @Qualifier("uploadStorage")
+    private StorageBackend uploadStorage;
+
     @Value("${file.uploadFolder}")
     private String uploadFolder;
 
@@ -24,6 +76,12 @@ public class UploadService {
     @Value("${file.staticPatternPath}")
     private String staticPatternPath;
 
+    @Value("${spring.servlet.multipart.max-file-size:1MB}")
+    private DataSize maxFileSize;
+
+    @Value("${spring.servlet.multipart.max-request-size:10MB}")
+    private DataSize maxRequestSize;
+
     /**
      * MultipartFile 这个关键的对象是SpringMVC提供的文件上传的接受类
      * 它的底层自动会去和HttpServletRequest中的getInputStream()方法进行融合
@@ -35,28 +93,7 @@ public class UploadService {
     public String uploadImg(MultipartFile multipartFile, String dir){
 
         try {
-
-            //step1:生成上传后的唯一文件名，注意服务器上的文件名一定要用英文，这是世界标准
-            String originalFileName = multipartFile.getOriginalFilename();
-            String fileSuffix = originalFileName.substring(originalFileName.lastIndexOf("."));
-            String uniqueFileName = UUID.randomUUID().toString()+fileSuffix;
-
-            //step2:指定文件上传的目标目录
-            String serverRootPath = uploadFolder;//注意：服务器上传文件的根目录需要在配置类中做资源映射，才能让外部访问被上传的资源
-            SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd");
-            String dateDir = dateFormat.format(new Date());
-            File targetFileDir = new File(serverRootPath+dir, dateDir);
-            if (!targetFileDir.exists()){
-                targetFileDir.mkdirs();
-            }
-
-            // step3:将文件流中的内容输出到指定目录，生成被上传的文件
-            File targetFile = new File(targetFileDir, uniqueFileName);
-            multipartFile.transferTo(targetFile);
-
-            String fileName = dir + "/" + dateDir + "/" + uniqueFileName;
-            return staticPath + staticPatternPath.replace("*", "") + "/" + fileName;
-
+            return store(multipartFile, dir);
         } catch (IOException e) {
             e.printStackTrace();
             return "upload failed";
@@ -67,29 +104,8 @@ public class UploadService {
     public Map<String, Object> uploadImgMap(MultipartFile multipartFile, String dir){
 
         try {
-
-            //step1:生成上传后的唯一文件名，注意服务器上的文件名一定要用英文，这是世界标准
-            String originalFileName = multipartFile.getOriginalFilename();
-            String fileSuffix = originalFileName.substring(originalFileName.lastIndexOf("."));
-            String uniqueFileName = UUID.randomUUID().toString()+fileSuffix;
-
-            //step2:指定文件上传的目标目录
-            String serverRootPath = uploadFolder;//注意：服务器上传文件的根目录需要在配置类中做资源映射，才能让外部访问被上传的资源
-            SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd");
-            String dateDir = dateFormat.format(new Date());
-            File targetFileDir = new File(serverRootPath+dir, dateDir);
-            if (!targetFileDir.exists()){
-                targetFileDir.mkdirs();
-            }
-
-            // step3:将文件流中的内容输出到指定目录，生成被上传的文件
-            File targetFile = new File(targetFileDir, uniqueFileName);
-            multipartFile.transferTo(targetFile);
-
-            String fileName = dir + "/" + dateDir + "/" + uniqueFileName;
-
             Map<String, Object> map = new HashMap<>();
-            map.put("url", staticPath + staticPatternPath.replace("*", "") + "/" + fileName);
+            map.put("url", store(multipartFile, dir));
             map.put("size", multipartFile.getSize());
             //map.put("还想返回什么自己div吧", anything);
             return map;
@@ -99,4 +115,309 @@ public class UploadService {
         }
 
     }
+
+    /**
+     * 一次上传多个文件：每个文件在上传线程池中并行保存（计算hash、查重、移动到目标目录）
+     * 一个文件失败不影响其它文件，结果按上传的顺序返回，失败的文件带error
+     */
+    public Map<String, Object> uploadBatch(List<MultipartFile> multipartFiles, String dir) {
+        List<CompletableFuture<Map<String, Object>>> futures = new ArrayList<>(multipartFiles.size());
+        for (MultipartFile multipartFile : multipartFiles) {
+            futures.add(CompletableFuture.supplyAsync(() -> storeResult(multipartFile, dir), uploadExecutor));
+        }
+
+        // 必须等所有文件都保存完再返回，请求结束后servlet会删除multipart的临时文件
+        List<Map<String, Object>> files = new ArrayList<>(futures.size());
+        int failed = 0;
+        for (CompletableFuture<Map<String, Object>> future : futures) {
+            Map<String, Object> result = future.join();
+            if (result.containsKey("error")) {
+                failed++;
+            }
+            files.add(result);
+        }
+
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("succeeded", files.size() - failed);
+        map.put("failed", failed);
+        map.put("files", files);
+        return map;
+    }
+
+    /**
+     * 保存一个文件，异常转换成结果中的error
+     */
+    private Map<String, Object> storeResult(MultipartFile multipartFile, String dir) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("name", multipartFile.getOriginalFilename());
+        result.put("size", multipartFile.getSize());
+        if (multipartFile.isEmpty()) {
+            result.put("error", "empty file");
+            return result;
+        }
+        try {
+            result.put("url", store(multipartFile, dir));
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            result.put("error", "upload failed");
+        }
+        return result;
+    }
+
+    /**
+     * 保存上传的文件，返回资源映射链接
+     * 内容和已存储的文件完全相同时，不再写一份新的，而是硬链接到已有的文件（同一个inode，磁盘和page cache都只有一份）
+     * multipart的内容已经被servlet缓存（内存或临时文件），先读一遍算hash再决定写不写，重复的文件不写盘；
+     * /upload/stream 的请求流只能读一次，只能边写边算hash、写完再查重（storeStream）
+     */
+    String store(MultipartFile multipartFile, String dir) throws IOException {
+        if (!uploadStorage.isLocal()) {
+            return storeRemote(multipartFile, dir);
+        }
+
+        //step1:生成上传后的唯一文件名，注意服务器上的文件名一定要用英文，这是世界标准
+        String uniqueFileName = generateFileName(multipartFile.getOriginalFilename());
+
+        //step2:指定文件上传的目标目录
+        String dateDir = uploadLayoutService.currentDateDir();
+        File targetFileDir = uploadLayoutService.resolveTargetDir(dir, dateDir, uniqueFileName);
+        File targetFile = new File(targetFileDir, uniqueFileName);
+        String relativePath = uploadLayoutService.relativePath(dir, dateDir, uniqueFileName);
+
+        //step3:计算文件内容的hash，查找是否已经存过相同内容的文件
+        String hash;
+        try (InputStream inputStream = multipartFile.getInputStream()) {
+            hash = ContentIndexService.sha256(inputStream);
+        }
+        long size = multipartFile.getSize();
+        streamMetrics.recordRead("multipart", size);
+        streamMetrics.recordUpload("multipart", dir, size);
+        String existingPath = contentIndexService.lookup(hash, size);
+        if (existingPath != null) {
+            try {
+                Files.createLink(targetFile.toPath(), new File(uploadFolder, existingPath).toPath());
+                durabilityService.awaitDurable(targetFile.toPath());
+                fileIndexService.refresh(FileIndexService.UPLOAD, targetFile.toPath());
+                return buildUrl(relativePath);
+            } catch (IOException | UnsupportedOperationException e) {
+                // 文件系统不支持硬链接（或跨磁盘），直接返回已有文件的链接
+                return buildUrl(existingPath);
+            }
+        }
+
+        // step4:将文件流中的内容输出到指定目录，生成被上传的文件
+        multipartFile.transferTo(targetFile);
+        // 按 file.durability.mode 落盘，group模式下和同一目录的其它上传一起fsync
+        durabilityService.awaitDurable(targetFile.toPath());
+        contentIndexService.register(hash, size, relativePath);
+        fileIndexService.refresh(FileIndexService.UPLOAD, targetFile.toPath());
+        return buildUrl(relativePath);
+    }
+
+    /**
+     * 保存到对象存储：内容已经存过时直接返回已有文件的链接（对象存储没有硬链接）
+     */
+    private String storeRemote(MultipartFile multipartFile, String dir) throws IOException {
+        String uniqueFileName = generateFileName(multipartFile.getOriginalFilename());
+        String relativePath = uploadLayoutService.relativePath(dir, uploadLayoutService.currentDateDir(), uniqueFileName);
+
+        String hash;
+        try (InputStream inputStream = multipartFile.getInputStream()) {
+            hash = ContentIndexService.sha256(inputStream);
+        }
+        long size = multipartFile.getSize();
+        streamMetrics.recordRead("multipart", size);
+        streamMetrics.recordUpload("multipart", dir, size);
+        String existingPath = contentIndexService.lookup(hash, size);
+        if (existingPath != null) {
+            return buildUrl(existingPath);
+        }
+
+        try (InputStream inputStream = multipartFile.getInputStream()) {
+            uploadStorage.put(relativePath, inputStream, size);
+        }
+        contentIndexService.register(hash, size, relativePath);
+        return buildUrl(relativePath);
+    }
+
+    /**
+     * 直接读取请求流的上传：自己解析 request.getInputStream() 中的multipart内容，
+     * 文件part边读边写到最终的日期目录，只有这一次写盘，不经过servlet的multipart临时文件和transferTo
+     * dir可以放在url参数中，也可以作为表单字段放在文件前面
+     * @return 返回json格式的上传结果信息，和uploadImgMap一致
+     */
+    public Map<String, Object> uploadStream(HttpServletRequest request) throws IOException {
+        String boundary = MultipartStreamParser.extractBoundary(request.getContentType());
+        if (boundary == null) {
+            throw new IllegalArgumentException("Content-Type must be multipart/form-data");
+        }
+        if (request.getContentLengthLong() > maxRequestSize.toBytes()) {
+            throw new MaxUploadSizeExceededException(maxRequestSize.toBytes());
+        }
+
+        // 注意：不能用request.getParameter，它会触发servlet去解析整个multipart请求
+        String dir = UriComponentsBuilder.newInstance().query(request.getQueryString()).build().getQueryParams().getFirst("dir");
+        if (dir != null) {
+            dir = UriUtils.decode(dir, StandardCharsets.UTF_8);
+        }
+
+        InputStream requestStream = new LimitedInputStream(request.getInputStream(), maxRequestSize.toBytes());
+        MultipartStreamParser parser = new MultipartStreamParser(requestStream, boundary);
+        Map<String, Object> result = null;
+        MultipartStreamParser.Part part;
+        while ((part = parser.nextPart()) != null) {
+            if (!part.isFile()) {
+                if ("dir".equals(part.getName()) && dir == null) {
+                    dir = part.getString(255);
+                }
+                continue;
+            }
+            // 只处理第一个文件，其余的跳过
+            if (result != null || part.getFileName().isEmpty()) {
+                continue;
+            }
+            if (dir == null) {
+                throw new IllegalArgumentException("dir must be sent before the file part");
+            }
+            result = storeStream(part.getFileName(), part.getInputStream(), dir);
+        }
+        if (result == null) {
+            throw new IllegalArgumentException("No file part found");
+        }
+        return result;
+    }
+
+    /**
+     * 把文件流直接写到目标目录，写的同时计算hash，写完再查重
+     */
+    private Map<String, Object> storeStream(String originalFileName, InputStream inputStream, String dir) throws IOException {
+        if (!uploadStorage.isLocal()) {
+            return storeStreamRemote(originalFileName, inputStream, dir);
+        }
+        String uniqueFileName = generateFileName(originalFileName);
+        String dateDir = uploadLayoutService.currentDateDir();
+        File targetFile = new File(uploadLayoutService.resolveTargetDir(dir, dateDir, uniqueFileName), uniqueFileName);
+        String relativePath = uploadLayoutService.relativePath(dir, dateDir, uniqueFileName);
+
+        MessageDigest digest = ContentIndexService.newDigest();
+        long size = 0;
+        try (InputStream limited = new LimitedInputStream(inputStream, maxFileSize.toBytes());
+             OutputStream outputStream = Files.newOutputStream(targetFile.toPath(), StandardOpenOption.CREATE_NEW)) {
+            byte[] buffer = new byte[64 * 1024];
+            int bytesRead;
+            while ((bytesRead = limited.read(buffer)) != -1) {
+                digest.update(buffer, 0, bytesRead);
+                outputStream.write(buffer, 0, bytesRead);
+                size += bytesRead;
+            }
+        } catch (IOException | RuntimeException e) {
+            // 超过大小限制或者客户端断开，删除写了一半的文件
+            Files.deleteIfExists(targetFile.toPath());
+            throw e;
+        }
+
+        streamMetrics.recordRead("stream", size);
+        streamMetrics.recordUpload("stream", dir, size);
+
+        // 内容已经存过的话，用硬链接替换刚写的文件，释放重复占用的空间
+        String hash = ContentIndexService.toHex(digest.digest());
+        String existingPath = contentIndexService.lookup(hash, size);
+        if (existingPath == null) {
+            contentIndexService.register(hash, size, relativePath);
+        } else {
+            Path link = targetFile.toPath().resolveSibling(uniqueFileName + ".link");
+            try {
+                Files.createLink(link, new File(uploadFolder, existingPath).toPath());
+                Files.move(link, targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException | UnsupportedOperationException e) {
+                // 不支持硬链接时保留刚写的文件
+                Files.deleteIfExists(link);
+            }
+        }
+        durabilityService.awaitDurable(targetFile.toPath());
+
+        fileIndexService.refresh(FileIndexService.UPLOAD, targetFile.toPath());
+
+        Map<String, Object> map = new HashMap<>();
+        map.put("url", buildUrl(relativePath));
+        map.put("size", size);
+        return map;
+    }
+
+    /**
+     * 文件流直接上传到对象存储（大文件自动分片并行上传），写的同时计算hash；
+     * 内容已经存过时删除刚上传的文件，返回已有文件的链接
+     */
+    private Map<String, Object> storeStreamRemote(String originalFileName, InputStream inputStream, String dir) throws IOException {
+        String uniqueFileName = generateFileName(originalFileName);
+        String relativePath = uploadLayoutService.relativePath(dir, uploadLayoutService.currentDateDir(), uniqueFileName);
+
+        MessageDigest digest = ContentIndexService.newDigest();
+        LimitedInputStream limited = new LimitedInputStream(inputStream, maxFileSize.toBytes());
+        uploadStorage.put(relativePath, new DigestInputStream(limited, digest), -1);
+        long size = limited.getCount();
+
+        streamMetrics.recordRead("stream", size);
+        streamMetrics.recordUpload("stream", dir, size);
+
+        String hash = ContentIndexService.toHex(digest.digest());
+        String existingPath = contentIndexService.lookup(hash, size);
+        String url;
+        if (existingPath == null) {
+            contentIndexService.register(hash, size, relativePath);
+            url = buildUrl(relativePath);
+        } else {
+            uploadStorage.delete(relativePath);
+            url = buildUrl(existingPath);
+        }
+
+        Map<String, Object> map = new HashMap<>();
+        map.put("url", url);
+        map.put("size", size);
+        return map;
+    }
+
+    /**
+     * 生成上传后的唯一文件名：UUID + 原文件后缀
+     */
+    String generateFileName(String originalFileName) {
+        int dotIndex = originalFileName.lastIndexOf(".");
+        String fileSuffix = dotIndex == -1 ? "" : originalFileName.substring(dotIndex);
+        return UUID.randomUUID().toString() + fileSuffix;
+    }
+
+    /**
+     * 已上传文件的分页列表，来自内存索引；使用对象存储时直接分页查询存储
+     */
+    public byte[] listUploads(String cursor, int limit) throws IOException {
+        if (!uploadStorage.isLocal()) {
+            StoragePage page = uploadStorage.list("", cursor, limit);
+            List<Map<String, Object>> files = new ArrayList<>(page.getObjects().size());
+            for (StorageObject object : page.getObjects()) {
+                Map<String, Object> fileInfo = new LinkedHashMap<>();
+                fileInfo.put("url", buildUrl(object.getKey()));
+                fileInfo.put("size", object.getSize());
+                fileInfo.put("lastModified", FileTime.fromMillis(object.getLastModified()).toString());
+                files.add(fileInfo);
+            }
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("files", files);
+            map.put("nextCursor", page.getNextCursor());
+            return objectMapper.writeValueAsBytes(map);
+        }
+        return fileIndexService.listingJson(FileIndexService.UPLOAD, cursor, limit, "files", entry -> {
+            Map<String, Object> fileInfo = new LinkedHashMap<>();
+            fileInfo.put("url", buildUrl(entry.getName()));
+            fileInfo.put("size", entry.getSize());
+            fileInfo.put("lastModified", FileTime.fromMillis(entry.getLastModified()).toString());
+            return fileInfo;
+        });
+    }
+
+    /**
+     * 被上传资源的外部访问链接
+     */
+    String buildUrl(String relativePath) {
+        return staticPath + staticPatternPath.replace("*", "") + "/" + relativePath;
+    }
 }
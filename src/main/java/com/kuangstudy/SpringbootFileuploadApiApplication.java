@@ -1,5 +1,6 @@
 package com.kuangstudy;
 
+import com.kuangstudy.Service.StartupTimeline;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 
@@ -7,7 +8,11 @@ import org.springframework.boot.autoconfigure.SpringBootApplication;
 public class SpringbootFileuploadApiApplication {
 
     public static void main(String[] args) {
-        SpringApplication.run(SpringbootFileuploadApiApplication.class, args);
+        StartupTimeline.mainStarted();
+        SpringApplication application = new SpringApplication(SpringbootFileuploadApiApplication.class);
+        //startup.timeline.enabled=true（faststart配置）时记录启动的各个步骤，StartupTimeline 和 /actuator/startup 使用
+        StartupTimeline.install(application);
+        application.run(args);
     }
 
 }
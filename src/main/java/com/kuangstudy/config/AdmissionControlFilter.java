@@ -0,0 +1,181 @@
+package com.kuangstudy.config;
+
+import com.kuangstudy.Service.AdmissionService;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.UrlPathHelper;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 准入控制：在读取请求体、打开文件之前按接口类别申请预算（见 AdmissionService）
+ * 排队超时返回429，排队的请求太多直接返回503，都带 Retry-After
+ * 异步输出（StreamingResponseBody、AsyncStreamService）的请求在异步结束时才归还预算
+ */
+public class AdmissionControlFilter extends OncePerRequestFilter {
+
+    private final AdmissionService admissionService;
+
+    /**
+     * 静态资源访问路径的前缀，例如 /upload/file/
+     */
+    private final String staticPathPrefix;
+
+    private final UrlPathHelper urlPathHelper = new UrlPathHelper();
+
+    public AdmissionControlFilter(AdmissionService admissionService, String staticPatternPath) {
+        this.admissionService = admissionService;
+        this.staticPathPrefix = staticPatternPath.replace("**", "");
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        String budget = classify(request);
+        if (budget == null) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+        long amount = cost(budget, request);
+
+        AdmissionService.Result result;
+        try {
+            result = admissionService.acquire(budget, amount);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result = AdmissionService.Result.TIMED_OUT;
+        }
+        if (result != AdmissionService.Result.ADMITTED) {
+            reject(response, budget, result);
+            return;
+        }
+
+        Release release = new Release(budget, amount);
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            if (request.isAsyncStarted()) {
+                // 响应还在异步输出，输出结束（完成、出错、超时）时归还
+                request.getAsyncContext().addListener(release);
+            } else {
+                release.run();
+            }
+        }
+    }
+
+    /**
+     * 请求属于哪一类预算，不需要准入控制的请求返回null
+     */
+    String classify(HttpServletRequest request) {
+        String method = request.getMethod();
+        String path = urlPathHelper.getPathWithinApplication(request);
+        if ("POST".equals(method) || "PUT".equals(method)) {
+            if (path.startsWith("/upload/")) {
+                return AdmissionService.UPLOAD;
+            }
+            // 提交导出任务（/export/jobs）马上返回，导出预算由 ExportJobService 在任务运行期间占用
+            if (path.equals("/download/csv")) {
+                return AdmissionService.EXPORT;
+            }
+            return null;
+        }
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            return null;
+        }
+        switch (path) {
+            case "/api/preview/video":
+            case "/api/preview/video/bytes":
+                return AdmissionService.VIDEO;
+            case "/api/preview/pdf":
+            case "/api/preview/pdf/bytes":
+            case "/api/preview/pdfs":
+                return AdmissionService.PDF;
+            default:
+                if (path.startsWith("/api/preview/video/hls/")) {
+                    return AdmissionService.VIDEO;
+                }
+                // 导出好的CSV文件，和静态文件一样只是读磁盘（导出本身在 exportExecutor 中，不占请求线程）
+                if (path.startsWith("/export/jobs/") && path.endsWith("/file")) {
+                    return AdmissionService.FILE;
+                }
+                return path.startsWith(staticPathPrefix) ? AdmissionService.FILE : null;
+        }
+    }
+
+    private long cost(String budget, HttpServletRequest request) {
+        switch (budget) {
+            case AdmissionService.UPLOAD:
+                return admissionService.uploadCost(request.getContentLengthLong());
+            case AdmissionService.EXPORT:
+                return admissionService.exportCost();
+            default:
+                return 1;
+        }
+    }
+
+    private void reject(HttpServletResponse response, String budget, AdmissionService.Result result) throws IOException {
+        HttpStatus status = result == AdmissionService.Result.TIMED_OUT
+                ? HttpStatus.TOO_MANY_REQUESTS : HttpStatus.SERVICE_UNAVAILABLE;
+        System.out.println("admission rejected: " + budget + " " + result);
+        response.setStatus(status.value());
+        response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(admissionService.getRetryAfterSeconds()));
+        if (AdmissionService.UPLOAD.equals(budget)) {
+            // 请求体没有读取，关闭连接，不让容器去读完它
+            response.setHeader(HttpHeaders.CONNECTION, "close");
+        }
+        response.setContentType("application/json");
+        String errorJson = "{\"message\": \"Server busy (" + budget + "), retry later\"}";
+        response.getOutputStream().write(errorJson.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 归还预算，同步结束和异步监听器都可能调用，只归还一次
+     */
+    private final class Release implements AsyncListener, Runnable {
+        private final String budget;
+        private final long amount;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Release(String budget, long amount) {
+            this.budget = budget;
+            this.amount = amount;
+        }
+
+        @Override
+        public void run() {
+            if (released.compareAndSet(false, true)) {
+                admissionService.release(budget, amount);
+            }
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            run();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            run();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            run();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            // 再次startAsync时监听器会被清掉，需要重新注册
+            event.getAsyncContext().addListener(this);
+        }
+    }
+}
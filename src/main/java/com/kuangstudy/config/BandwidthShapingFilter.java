@@ -0,0 +1,107 @@
+package com.kuangstudy.config;
+
+import com.kuangstudy.Service.BandwidthScheduler;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+
+/**
+ * 上传文件静态资源的限速
+ * 静态资源处理器（ResourceHttpRequestHandler）在请求线程上同步写出，这里包装响应的输出流，
+ * 每次写之前向 BandwidthScheduler 申请令牌，令牌用完时请求线程等待补充
+ */
+public class BandwidthShapingFilter extends OncePerRequestFilter {
+
+    private final BandwidthScheduler bandwidthScheduler;
+
+    public BandwidthShapingFilter(BandwidthScheduler bandwidthScheduler) {
+        this.bandwidthScheduler = bandwidthScheduler;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !bandwidthScheduler.isEnabled() || !"GET".equals(request.getMethod());
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        BandwidthScheduler.Flow flow = bandwidthScheduler.open();
+        try {
+            filterChain.doFilter(request, new ShapedResponse(response, flow));
+        } finally {
+            flow.close();
+        }
+    }
+
+    private static final class ShapedResponse extends HttpServletResponseWrapper {
+        private final BandwidthScheduler.Flow flow;
+        private ServletOutputStream outputStream;
+
+        ShapedResponse(HttpServletResponse response, BandwidthScheduler.Flow flow) {
+            super(response);
+            this.flow = flow;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (outputStream == null) {
+                outputStream = new ShapedOutputStream(super.getOutputStream(), flow);
+            }
+            return outputStream;
+        }
+    }
+
+    private static final class ShapedOutputStream extends ServletOutputStream {
+        private final ServletOutputStream delegate;
+        private final BandwidthScheduler.Flow flow;
+
+        ShapedOutputStream(ServletOutputStream delegate, BandwidthScheduler.Flow flow) {
+            this.delegate = delegate;
+            this.flow = flow;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            flow.acquire(1);
+            delegate.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int length = flow.acquire(len);
+                delegate.write(b, off, length);
+                off += length;
+                len -= length;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            delegate.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+
+        @Override
+        public boolean isReady() {
+            return delegate.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            delegate.setWriteListener(writeListener);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.kuangstudy.config;
+
+import com.kuangstudy.Service.FileIndexService;
+import com.kuangstudy.Service.ImageDerivativeService;
+import com.kuangstudy.Service.PrecompressionService;
+import com.kuangstudy.Service.UploadLayoutService;
+import com.kuangstudy.util.ContentEncodingUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.util.UriUtils;
+import org.springframework.web.util.UrlPathHelper;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 上传文件静态资源的协商缓存
+ * 在静态资源处理器之前按内存索引设置ETag/Last-Modified，
+ * If-None-Match/If-Modified-Since命中时直接返回304，不访问磁盘
+ * 有预压缩文件时，gzip版本使用不同的ETag，并加上 Vary: Accept-Encoding；图片缩略图（?w=200）也使用不同的ETag
+ */
+public class ConditionalGetInterceptor implements HandlerInterceptor {
+
+    private final FileIndexService fileIndexService;
+
+    private final PrecompressionService precompressionService;
+
+    private final ImageDerivativeService imageDerivativeService;
+
+    private final UploadLayoutService uploadLayoutService;
+
+    /**
+     * 静态资源访问路径的前缀，例如 /upload/file/
+     */
+    private final String pathPrefix;
+
+    private final UrlPathHelper urlPathHelper = new UrlPathHelper();
+
+    public ConditionalGetInterceptor(FileIndexService fileIndexService, PrecompressionService precompressionService,
+                                     ImageDerivativeService imageDerivativeService, UploadLayoutService uploadLayoutService,
+                                     String staticPatternPath) {
+        this.fileIndexService = fileIndexService;
+        this.precompressionService = precompressionService;
+        this.imageDerivativeService = imageDerivativeService;
+        this.uploadLayoutService = uploadLayoutService;
+        this.pathPrefix = staticPatternPath.replace("**", "");
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        String method = request.getMethod();
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            return true;
+        }
+
+        FileIndexService.FileEntry entry = lookup(request);
+        if (entry == null) {
+            return true;
+        }
+        String eTag = entry.getETag();
+        if (imageDerivativeService.isImage(entry.getName())) {
+            Integer width = imageDerivativeService.resolveWidth(request.getParameter(ImageDerivativeService.WIDTH_PARAM));
+            // 缩略图还没生成好时返回的是原图，用原图的ETag，生成好之后客户端的协商缓存自然失效
+            if (width != null && imageDerivativeService.isVariantReady(entry.getPath(), entry.getLastModified(), width)) {
+                eTag = ImageDerivativeService.variantETag(eTag, width);
+            }
+        }
+        if (precompressionService.getSidecar(entry.getPath()) != null) {
+            response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+            if (ContentEncodingUtils.acceptsGzip(request.getHeader(HttpHeaders.ACCEPT_ENCODING))) {
+                eTag = PrecompressionService.gzipETag(eTag);
+            }
+        }
+        // 返回304时不再交给静态资源处理器
+        return !new ServletWebRequest(request, response).checkNotModified(eTag, entry.getLastModified());
+    }
+
+    /**
+     * 根据请求路径查找上传目录索引中的文件
+     */
+    FileIndexService.FileEntry lookup(HttpServletRequest request) {
+        String path = urlPathHelper.getPathWithinApplication(request);
+        if (!path.startsWith(pathPrefix)) {
+            return null;
+        }
+        // 上传接口返回的链接中有双斜杠（/upload/file//bbs/...），这里统一去掉开头的斜杠
+        String relativePath = path.substring(pathPrefix.length());
+        while (relativePath.startsWith("/")) {
+            relativePath = relativePath.substring(1);
+        }
+        relativePath = UriUtils.decode(relativePath, StandardCharsets.UTF_8);
+        FileIndexService.FileEntry entry = fileIndexService.get(FileIndexService.UPLOAD, relativePath);
+        if (entry == null) {
+            // 旧布局的链接，文件已经迁移到分片目录
+            String shardedPath = uploadLayoutService.shardedPath(relativePath);
+            if (shardedPath != null) {
+                entry = fileIndexService.get(FileIndexService.UPLOAD, shardedPath);
+            }
+        }
+        return entry;
+    }
+}
@@ -0,0 +1,172 @@
+package com.kuangstudy.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * 后台线程池配置，全部是有界的：线程数和队列长度都有上限
+ */
+@Configuration
+public class ExecutorConfiguration {
+
+    /**
+     * 文件预读线程池：多文件multipart响应在发送当前文件时，提前读取后面的文件
+     * 队列满时由请求线程自己读取（CallerRunsPolicy），退化成顺序读取而不是报错
+     */
+    @Bean
+    public ThreadPoolTaskExecutor prefetchExecutor(@Value("${file.prefetch.threads:8}") int threads,
+                                                   @Value("${file.prefetch.queueCapacity:256}") int queueCapacity) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(threads);
+        executor.setMaxPoolSize(threads);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix("file-prefetch-");
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        return executor;
+    }
+
+    /**
+     * Spring MVC异步请求（StreamingResponseBody等）的线程池
+     * 自己定义了线程池后springboot不会再创建默认的applicationTaskExecutor，
+     * 不指定的话MVC会退回到每个请求新建线程的SimpleAsyncTaskExecutor
+     * 队列满时拒绝新任务（请求失败），而不是无限制地创建线程
+     */
+    @Bean
+    public ThreadPoolTaskExecutor mvcAsyncExecutor(@Value("${stream.async.threads:16}") int threads,
+                                                   @Value("${stream.async.queueCapacity:1000}") int queueCapacity) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(threads);
+        executor.setMaxPoolSize(threads);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix("mvc-async-");
+        return executor;
+    }
+
+    /**
+     * 上传文件预压缩的线程池，压缩是CPU密集的，线程数不多
+     * 队列满时直接拒绝（PrecompressionService里跳过这个文件），不占用请求线程
+     */
+    @Bean
+    public ThreadPoolTaskExecutor precompressExecutor(@Value("${file.precompress.threads:1}") int threads,
+                                                      @Value("${file.precompress.queueCapacity:10000}") int queueCapacity) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(threads);
+        executor.setMaxPoolSize(threads);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix("file-precompress-");
+        return executor;
+    }
+
+    /**
+     * 图片缩略图生成的线程池，解码和缩放占用CPU和内存，线程数要少
+     * 队列满时拒绝：后台生成跳过，访问时返回原图
+     */
+    @Bean
+    public ThreadPoolTaskExecutor imageExecutor(@Value("${file.image.threads:2}") int threads,
+                                                @Value("${file.image.queueCapacity:200}") int queueCapacity) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(threads);
+        executor.setMaxPoolSize(threads);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix("image-derivative-");
+        return executor;
+    }
+
+    /**
+     * 批量上传时并行保存文件的线程池
+     * 队列满时由请求线程自己保存（CallerRunsPolicy），只是变慢，不会让上传失败
+     */
+    @Bean
+    public ThreadPoolTaskExecutor uploadExecutor(@Value("${file.batch.threads:4}") int threads,
+                                                 @Value("${file.batch.queueCapacity:100}") int queueCapacity) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(threads);
+        executor.setMaxPoolSize(threads);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix("file-upload-");
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        return executor;
+    }
+
+    /**
+     * 对象存储的分片上传、并行读取、打开远程文件流的线程池，线程大部分时间在等网络
+     * 队列满时由调用线程自己执行（CallerRunsPolicy），只是并行度降低
+     */
+    @Bean
+    public ThreadPoolTaskExecutor storageExecutor(@Value("${file.storage.threads:32}") int threads,
+                                                  @Value("${file.storage.queueCapacity:1000}") int queueCapacity) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(threads);
+        executor.setMaxPoolSize(threads);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix("file-storage-");
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        return executor;
+    }
+
+    /**
+     * 上传文件组提交（fsync）的线程池，不同目录的批次并行落盘
+     * 队列满时由提交的线程自己fsync（CallerRunsPolicy）
+     */
+    @Bean
+    public ThreadPoolTaskExecutor syncExecutor(@Value("${file.durability.threads:4}") int threads,
+                                               @Value("${file.durability.queueCapacity:1000}") int queueCapacity) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(threads);
+        executor.setMaxPoolSize(threads);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix("file-sync-");
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        return executor;
+    }
+
+    /**
+     * 视频分段索引生成的线程池，只读moov和少量box头，一个线程就够
+     * 队列满时拒绝：后台生成跳过，第一次访问时生成
+     */
+    @Bean
+    public ThreadPoolTaskExecutor hlsExecutor(@Value("${file.hls.threads:1}") int threads,
+                                              @Value("${file.hls.queueCapacity:1000}") int queueCapacity) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(threads);
+        executor.setMaxPoolSize(threads);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix("hls-index-");
+        return executor;
+    }
+
+    /**
+     * CSV导出任务的线程池，一个任务要生成100万行，线程数不要多
+     * 队列满时拒绝：提交接口返回503
+     */
+    @Bean
+    public ThreadPoolTaskExecutor exportExecutor(@Value("${file.export.threads:2}") int threads,
+                                                 @Value("${file.export.queueCapacity:100}") int queueCapacity) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(threads);
+        executor.setMaxPoolSize(threads);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix("csv-export-");
+        return executor;
+    }
+
+    /**
+     * CSV分区并行生成和编码的线程池（CsvExportService.writeCsvParallel），纯CPU计算，默认和CPU核数一样多
+     * 提交的分区数由导出方的预读窗口限制，所以不需要队列上限
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ForkJoinPool csvEncodePool(@Value("${file.export.parallel.threads:0}") int threads) {
+        int parallelism = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        return new ForkJoinPool(parallelism, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("csv-encode-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+    }
+}
@@ -0,0 +1,54 @@
+package com.kuangstudy.config;
+
+import com.kuangstudy.Service.ImageDerivativeService;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.lang.Nullable;
+import org.springframework.web.servlet.resource.AbstractResourceResolver;
+import org.springframework.web.servlet.resource.ResourceResolverChain;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * 上传图片的缩略图：静态资源链接后面加 ?w=200 时返回缩略图，没有的话先生成
+ * 原图比请求的宽度小、或者生成失败时返回原图
+ */
+public class ImageDerivativeResourceResolver extends AbstractResourceResolver {
+
+    private final ImageDerivativeService imageDerivativeService;
+
+    public ImageDerivativeResourceResolver(ImageDerivativeService imageDerivativeService) {
+        this.imageDerivativeService = imageDerivativeService;
+    }
+
+    @Override
+    protected Resource resolveResourceInternal(@Nullable HttpServletRequest request, String requestPath,
+                                               List<? extends Resource> locations, ResourceResolverChain chain) {
+        Resource resource = chain.resolveResource(request, requestPath, locations);
+        if (resource == null || request == null || !imageDerivativeService.isImage(requestPath)) {
+            return resource;
+        }
+        Integer width = imageDerivativeService.resolveWidth(request.getParameter(ImageDerivativeService.WIDTH_PARAM));
+        if (width == null) {
+            return resource;
+        }
+        try {
+            Path variant = imageDerivativeService.getVariant(resource.getFile().toPath().toAbsolutePath().normalize(), width);
+            if (variant != null) {
+                return new FileSystemResource(variant);
+            }
+        } catch (IOException e) {
+            // 不是文件系统上的资源，不处理
+        }
+        return resource;
+    }
+
+    @Override
+    protected String resolveUrlPathInternal(String resourceUrlPath, List<? extends Resource> locations,
+                                            ResourceResolverChain chain) {
+        return chain.resolveUrlPath(resourceUrlPath, locations);
+    }
+}
@@ -0,0 +1,40 @@
+package com.kuangstudy.config;
+
+import com.kuangstudy.Service.UploadLayoutService;
+import org.springframework.core.io.Resource;
+import org.springframework.lang.Nullable;
+import org.springframework.web.servlet.resource.AbstractResourceResolver;
+import org.springframework.web.servlet.resource.ResourceResolverChain;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.List;
+
+/**
+ * 旧布局的上传文件链接（dir/yyyyMMdd/文件名）：文件已经迁移到分片目录时，到 dir/yyyyMMdd/ab/文件名 查找
+ * 分片目录由文件名决定，不需要额外的映射表
+ */
+public class LegacyUploadPathResourceResolver extends AbstractResourceResolver {
+
+    private final UploadLayoutService uploadLayoutService;
+
+    public LegacyUploadPathResourceResolver(UploadLayoutService uploadLayoutService) {
+        this.uploadLayoutService = uploadLayoutService;
+    }
+
+    @Override
+    protected Resource resolveResourceInternal(@Nullable HttpServletRequest request, String requestPath,
+                                               List<? extends Resource> locations, ResourceResolverChain chain) {
+        Resource resource = chain.resolveResource(request, requestPath, locations);
+        if (resource != null) {
+            return resource;
+        }
+        String shardedPath = uploadLayoutService.shardedPath(requestPath);
+        return shardedPath == null ? null : chain.resolveResource(request, shardedPath, locations);
+    }
+
+    @Override
+    protected String resolveUrlPathInternal(String resourceUrlPath, List<? extends Resource> locations,
+                                            ResourceResolverChain chain) {
+        return chain.resolveUrlPath(resourceUrlPath, locations);
+    }
+}
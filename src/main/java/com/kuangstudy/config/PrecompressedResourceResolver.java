@@ -0,0 +1,137 @@
+package com.kuangstudy.config;
+
+import com.kuangstudy.Service.PrecompressionService;
+import com.kuangstudy.util.ContentEncodingUtils;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.lang.Nullable;
+import org.springframework.web.servlet.resource.AbstractResourceResolver;
+import org.springframework.web.servlet.resource.HttpResource;
+import org.springframework.web.servlet.resource.ResourceResolverChain;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * 上传文件静态资源的预压缩版本
+ * 客户端支持gzip、并且 PrecompressionService 已经生成了压缩文件时，直接返回 a.txt.gz（Content-Encoding: gzip）。
+ * 和spring自带的EncodedResourceResolver不同，是否有压缩文件查的是内存中的登记，每个请求不用多访问一次磁盘
+ */
+public class PrecompressedResourceResolver extends AbstractResourceResolver {
+
+    private final PrecompressionService precompressionService;
+
+    public PrecompressedResourceResolver(PrecompressionService precompressionService) {
+        this.precompressionService = precompressionService;
+    }
+
+    @Override
+    protected Resource resolveResourceInternal(@Nullable HttpServletRequest request, String requestPath,
+                                               List<? extends Resource> locations, ResourceResolverChain chain) {
+        Resource resource = chain.resolveResource(request, requestPath, locations);
+        if (resource == null || request == null
+                || !ContentEncodingUtils.acceptsGzip(request.getHeader(HttpHeaders.ACCEPT_ENCODING))) {
+            return resource;
+        }
+        try {
+            Path sidecar = precompressionService.getSidecar(resource.getFile().toPath().toAbsolutePath().normalize());
+            if (sidecar != null) {
+                return new GzipResource(resource, new FileSystemResource(sidecar));
+            }
+        } catch (IOException e) {
+            // 不是文件系统上的资源，不处理
+        }
+        return resource;
+    }
+
+    @Override
+    protected String resolveUrlPathInternal(String resourceUrlPath, List<? extends Resource> locations,
+                                            ResourceResolverChain chain) {
+        return chain.resolveUrlPath(resourceUrlPath, locations);
+    }
+
+    /**
+     * 内容是压缩文件，文件名（决定Content-Type）是原文件的
+     */
+    private static final class GzipResource extends AbstractResource implements HttpResource {
+        private final Resource original;
+        private final Resource gzipped;
+
+        GzipResource(Resource original, Resource gzipped) {
+            this.original = original;
+            this.gzipped = gzipped;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return gzipped.getInputStream();
+        }
+
+        @Override
+        public boolean exists() {
+            return gzipped.exists();
+        }
+
+        @Override
+        public boolean isReadable() {
+            return gzipped.isReadable();
+        }
+
+        @Override
+        public URL getURL() throws IOException {
+            return gzipped.getURL();
+        }
+
+        @Override
+        public URI getURI() throws IOException {
+            return gzipped.getURI();
+        }
+
+        @Override
+        public File getFile() throws IOException {
+            return gzipped.getFile();
+        }
+
+        @Override
+        public long contentLength() throws IOException {
+            return gzipped.contentLength();
+        }
+
+        @Override
+        public long lastModified() throws IOException {
+            return gzipped.lastModified();
+        }
+
+        @Override
+        public Resource createRelative(String relativePath) throws IOException {
+            return gzipped.createRelative(relativePath);
+        }
+
+        @Override
+        @Nullable
+        public String getFilename() {
+            return original.getFilename();
+        }
+
+        @Override
+        public String getDescription() {
+            return gzipped.getDescription();
+        }
+
+        @Override
+        public HttpHeaders getResponseHeaders() {
+            HttpHeaders headers = new HttpHeaders();
+            headers.add(HttpHeaders.CONTENT_ENCODING, ContentEncodingUtils.GZIP);
+            headers.add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+            return headers;
+        }
+    }
+}
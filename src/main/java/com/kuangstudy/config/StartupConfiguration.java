@@ -0,0 +1,21 @@
+package com.kuangstudy.config;
+
+import org.springframework.boot.LazyInitializationExcludeFilter;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.stereotype.Controller;
+
+/**
+ * 延迟初始化（faststart：spring.main.lazy-initialization=true）时仍然在启动时创建的bean
+ * controller和它依赖的service在启动时创建，第一个请求不用等它们初始化（索引扫描、目录创建等）；
+ * 其它用不到的bean（没有用到的自动配置、actuator端点等）在第一次使用时才创建
+ */
+@Configuration
+public class StartupConfiguration {
+
+    @Bean
+    public static LazyInitializationExcludeFilter eagerControllers() {
+        return (beanName, beanDefinition, beanType) -> AnnotatedElementUtils.hasAnnotation(beanType, Controller.class);
+    }
+}
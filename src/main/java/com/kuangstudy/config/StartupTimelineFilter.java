@@ -0,0 +1,38 @@
+package com.kuangstudy.config;
+
+import com.kuangstudy.Service.StartupTimeline;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * 记录启动后第一个完成的请求（StartupTimeline），之后只多一次判断
+ * 异步请求在请求线程返回时就算完成，不等异步输出结束
+ */
+public class StartupTimelineFilter extends OncePerRequestFilter {
+
+    private final StartupTimeline startupTimeline;
+
+    public StartupTimelineFilter(StartupTimeline startupTimeline) {
+        this.startupTimeline = startupTimeline;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        if (startupTimeline.isFirstRequestRecorded()) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+        long started = System.currentTimeMillis();
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            startupTimeline.firstRequestCompleted(request.getRequestURI(), started, System.currentTimeMillis());
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.kuangstudy.config;
+
+import com.kuangstudy.storage.LocalStorageBackend;
+import com.kuangstudy.storage.S3StorageBackend;
+import com.kuangstudy.storage.StorageBackend;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
+
+import java.net.URI;
+import java.nio.file.Paths;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+/**
+ * 文件存储配置：file.storage.type=local 用本地目录（默认），s3 用S3兼容的对象存储
+ * 上传文件、视频、PDF各一个存储，使用对象存储时是同一个bucket下的不同前缀，多个节点共用
+ */
+@Configuration
+public class StorageConfiguration {
+
+    public static final String LOCAL = "local";
+    public static final String S3 = "s3";
+
+    @Value("${file.storage.type:local}")
+    private String type;
+
+    @Value("${file.storage.s3.endpoint:}")
+    private String endpoint;
+
+    @Value("${file.storage.s3.region:us-east-1}")
+    private String region;
+
+    @Value("${file.storage.s3.bucket:}")
+    private String bucket;
+
+    @Value("${file.storage.s3.accessKey:}")
+    private String accessKey;
+
+    @Value("${file.storage.s3.secretKey:}")
+    private String secretKey;
+
+    /**
+     * bucket中所有key的公共前缀，例如 springboot-test-api/
+     */
+    @Value("${file.storage.s3.prefix:}")
+    private String prefix;
+
+    /**
+     * 分片上传的分片大小，至少5MB
+     */
+    @Value("${file.storage.s3.partSize:8MB}")
+    private DataSize partSize;
+
+    /**
+     * 每个上传/读取同时进行的请求数
+     */
+    @Value("${file.storage.s3.parallelism:4}")
+    private int parallelism;
+
+    /**
+     * 大区间并行读取的分段大小，每个流读取时最少占用两个分段
+     */
+    @Value("${file.storage.s3.readPartSize:1MB}")
+    private DataSize readPartSize;
+
+    /**
+     * 所有流预读的分段合计最多占用的内存，三个存储共用
+     */
+    @Value("${file.storage.s3.readAhead:64MB}")
+    private DataSize readAheadSize;
+
+    private Semaphore readAhead;
+
+    @Bean
+    public StorageBackend uploadStorage(@Value("${file.uploadFolder}") String uploadFolder,
+                                        @Qualifier("storageExecutor") Executor storageExecutor) {
+        return create(uploadFolder, "upload/", storageExecutor);
+    }
+
+    @Bean
+    public StorageBackend videoStorage(@Value("${file.videoFolder:src/main/resources/video}") String videoFolder,
+                                       @Qualifier("storageExecutor") Executor storageExecutor) {
+        return create(videoFolder, "video/", storageExecutor);
+    }
+
+    @Bean
+    public StorageBackend pdfStorage(@Value("${file.pdfFolder:src/main/resources/pdf}") String pdfFolder,
+                                     @Qualifier("storageExecutor") Executor storageExecutor) {
+        return create(pdfFolder, "pdf/", storageExecutor);
+    }
+
+    private StorageBackend create(String localFolder, String keyPrefix, Executor executor) {
+        if (LOCAL.equals(type)) {
+            return new LocalStorageBackend(Paths.get(localFolder));
+        }
+        if (!S3.equals(type)) {
+            throw new IllegalArgumentException("Unknown file.storage.type: " + type);
+        }
+        if (endpoint.isEmpty() || bucket.isEmpty()) {
+            throw new IllegalArgumentException("file.storage.s3.endpoint and file.storage.s3.bucket are required");
+        }
+        if (readAhead == null) {
+            readAhead = new Semaphore((int) Math.min(Integer.MAX_VALUE, readAheadSize.toBytes()));
+        }
+        return new S3StorageBackend(URI.create(endpoint), region, bucket, accessKey, secretKey,
+                prefix + keyPrefix, (int) partSize.toBytes(), parallelism, (int) readPartSize.toBytes(), readAhead,
+                executor);
+    }
+}
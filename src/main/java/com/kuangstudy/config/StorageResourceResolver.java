@@ -0,0 +1,50 @@
+package com.kuangstudy.config;
+
+import com.kuangstudy.storage.StorageBackend;
+import com.kuangstudy.storage.StorageObject;
+import com.kuangstudy.storage.StorageResource;
+import org.springframework.core.io.Resource;
+import org.springframework.lang.Nullable;
+import org.springframework.web.servlet.resource.AbstractResourceResolver;
+import org.springframework.web.servlet.resource.ResourceResolverChain;
+import org.springframework.web.util.UriUtils;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * 使用对象存储时的上传文件静态资源：按请求路径stat存储中的文件，内容在写响应时才按需读取（支持Range）
+ * 放在资源解析链的最后，不再交给后面的本地目录解析
+ */
+public class StorageResourceResolver extends AbstractResourceResolver {
+
+    private final StorageBackend storage;
+
+    public StorageResourceResolver(StorageBackend storage) {
+        this.storage = storage;
+    }
+
+    @Override
+    protected Resource resolveResourceInternal(@Nullable HttpServletRequest request, String requestPath,
+                                               List<? extends Resource> locations, ResourceResolverChain chain) {
+        try {
+            String key = StorageBackend.normalizeKey(UriUtils.decode(requestPath, StandardCharsets.UTF_8));
+            StorageObject object = storage.stat(key);
+            return object == null ? null : new StorageResource(storage, object);
+        } catch (IllegalArgumentException e) {
+            // 路径中有".."
+            return null;
+        } catch (IOException e) {
+            logger.warn("Failed to stat storage object: " + requestPath, e);
+            return null;
+        }
+    }
+
+    @Override
+    protected String resolveUrlPathInternal(String resourceUrlPath, List<? extends Resource> locations,
+                                            ResourceResolverChain chain) {
+        return resourceUrlPath;
+    }
+}
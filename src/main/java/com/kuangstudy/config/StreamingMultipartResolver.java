@@ -0,0 +1,55 @@
+package com.kuangstudy.config;
+
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
+import org.springframework.web.multipart.MultipartException;
+import org.springframework.web.multipart.MultipartHttpServletRequest;
+import org.springframework.web.multipart.support.StandardServletMultipartResolver;
+import org.springframework.web.util.UrlPathHelper;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 默认的multipart解析器会在进入Controller之前把整个请求解析掉，文件先落到临时目录。
+ * 对直接读取请求流的上传接口跳过这一步，让Controller自己从 request.getInputStream() 解析。
+ * 另外按接口限制请求的总大小：servlet的限制是所有接口共用的（取最大的那个），批量上传以外的接口在这里按原来的大小限制
+ */
+public class StreamingMultipartResolver extends StandardServletMultipartResolver {
+
+    private final Set<String> streamingPaths;
+
+    private final UrlPathHelper urlPathHelper = new UrlPathHelper();
+
+    /**
+     * 接口路径 -> 请求总大小上限，没有配置的接口使用 defaultMaxRequestSize
+     */
+    private final Map<String, Long> maxRequestSizes;
+
+    private final long defaultMaxRequestSize;
+
+    public StreamingMultipartResolver(Set<String> streamingPaths, Map<String, Long> maxRequestSizes,
+                                      long defaultMaxRequestSize) {
+        this.streamingPaths = streamingPaths;
+        this.maxRequestSizes = maxRequestSizes;
+        this.defaultMaxRequestSize = defaultMaxRequestSize;
+    }
+
+    @Override
+    public boolean isMultipart(HttpServletRequest request) {
+        if (streamingPaths.contains(urlPathHelper.getPathWithinApplication(request))) {
+            return false;
+        }
+        return super.isMultipart(request);
+    }
+
+    @Override
+    public MultipartHttpServletRequest resolveMultipart(HttpServletRequest request) throws MultipartException {
+        long maxRequestSize = maxRequestSizes.getOrDefault(urlPathHelper.getPathWithinApplication(request), defaultMaxRequestSize);
+        // 没有Content-Length（chunked）的请求只受servlet的限制
+        if (maxRequestSize >= 0 && request.getContentLengthLong() > maxRequestSize) {
+            throw new MaxUploadSizeExceededException(maxRequestSize);
+        }
+        return super.resolveMultipart(request);
+    }
+}
@@ -1,25 +1,177 @@
 package com.kuangstudy.config;
 
+import com.kuangstudy.Service.AdmissionService;
+import com.kuangstudy.Service.BandwidthScheduler;
+import com.kuangstudy.Service.FileIndexService;
+import com.kuangstudy.Service.ImageDerivativeService;
+import com.kuangstudy.Service.PrecompressionService;
+import com.kuangstudy.Service.StartupTimeline;
+import com.kuangstudy.Service.UploadLayoutService;
+import com.kuangstudy.storage.StorageBackend;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.web.servlet.MultipartProperties;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.multipart.MultipartResolver;
+import org.springframework.web.servlet.DispatcherServlet;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.ResourceHandlerRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
+import javax.servlet.MultipartConfigElement;
+import java.time.Duration;
+import java.util.Collections;
+
 @Configuration
 public class WebMvcConfiguration implements WebMvcConfigurer {
 
+    @Autowired
+    private FileIndexService fileIndexService;
+
+    @Autowired
+    private PrecompressionService precompressionService;
+
+    @Autowired
+    private ImageDerivativeService imageDerivativeService;
+
+    @Autowired
+    private UploadLayoutService uploadLayoutService;
+
+    @Autowired
+    private AdmissionService admissionService;
+
+    @Autowired
+    private BandwidthScheduler bandwidthScheduler;
+
+    @Autowired
+    private StartupTimeline startupTimeline;
+
+    @Autowired
+    @Qualifier("uploadStorage")
+    private StorageBackend uploadStorage;
+
     @Value("${file.staticPatternPath}")
     private String staticPatternPath;
 
     @Value("${file.uploadFolder}")
     private String uploadFolder;
 
+    @Autowired
+    @Qualifier("mvcAsyncExecutor")
+    private AsyncTaskExecutor mvcAsyncExecutor;
+
+    /**
+     * 异步请求的超时时间，CSV导出等在这个时间内没写完就中断
+     */
+    @Value("${stream.async.timeout:10m}")
+    private Duration asyncTimeout;
+
     //这个就是springboot中springMVC让开发者去配置文件上传的额外静态资源服务配置
     @Override
     public void addResourceHandlers(ResourceHandlerRegistry registry) {
         //注册额外静态资源目录
         //registry.addResourceHandler("访问路径").addResourceLocations("file:服务器资源所在路径");
         //registry.addResourceHandler("/upload/file/**").addResourceLocations("file:D://02_ALL_WORKSPACE/99_tmp/");
-        registry.addResourceHandler(staticPatternPath).addResourceLocations("file:"+uploadFolder);
+        //ETag/Last-Modified由ConditionalGetInterceptor按内存索引设置，这里不再每次请求都去读文件的修改时间
+        if (!uploadStorage.isLocal()) {
+            //对象存储：缩略图和预压缩只对本地文件生成，这里直接从存储读取
+            registry.addResourceHandler(staticPatternPath)
+                    .resourceChain(false)
+                    .addResolver(new LegacyUploadPathResourceResolver(uploadLayoutService))
+                    .addResolver(new StorageResourceResolver(uploadStorage));
+            return;
+        }
+        registry.addResourceHandler(staticPatternPath).addResourceLocations("file:"+uploadFolder)
+                .setUseLastModified(false)
+                //旧布局的链接到分片目录查找；?w=200 返回缩略图；客户端支持gzip时返回预先压缩好的文件
+                .resourceChain(false)
+                .addResolver(new LegacyUploadPathResourceResolver(uploadLayoutService))
+                .addResolver(new ImageDerivativeResourceResolver(imageDerivativeService))
+                .addResolver(new PrecompressedResourceResolver(precompressionService));
+    }
+
+    //上传文件的协商缓存：304直接在拦截器里返回
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(new ConditionalGetInterceptor(fileIndexService, precompressionService,
+                        imageDerivativeService, uploadLayoutService, staticPatternPath))
+                .addPathPatterns(staticPatternPath);
+    }
+
+    //StreamingResponseBody在有界线程池中执行
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.setTaskExecutor(mvcAsyncExecutor);
+        configurer.setDefaultTimeout(asyncTimeout.toMillis());
+    }
+
+    /**
+     * 批量上传一个请求的总大小上限
+     */
+    @Value("${file.batch.maxRequestSize:100MB}")
+    private DataSize batchMaxRequestSize;
+
+    /**
+     * 替换springboot默认的multipart解析器，/upload/stream 不经过servlet的multipart解析和临时文件
+     * /upload/files（批量上传）的请求总大小另外限制
+     */
+    @Bean(name = DispatcherServlet.MULTIPART_RESOLVER_BEAN_NAME)
+    public MultipartResolver multipartResolver(MultipartProperties multipartProperties) {
+        return new StreamingMultipartResolver(Collections.singleton("/upload/stream"),
+                Collections.singletonMap("/upload/files", batchMaxRequestSize.toBytes()),
+                multipartProperties.getMaxRequestSize().toBytes());
+    }
+
+    /**
+     * servlet的multipart配置是所有接口共用的，请求总大小取批量上传和普通上传中大的那个，
+     * 具体每个接口的限制在 StreamingMultipartResolver 里检查
+     */
+    @Bean
+    public MultipartConfigElement multipartConfigElement(MultipartProperties multipartProperties) {
+        MultipartConfigElement config = multipartProperties.createMultipartConfig();
+        return new MultipartConfigElement(config.getLocation(), config.getMaxFileSize(),
+                Math.max(config.getMaxRequestSize(), batchMaxRequestSize.toBytes()),
+                config.getFileSizeThreshold());
+    }
+
+    /**
+     * 准入控制放在其它过滤器之前，被拒绝的请求不读取请求体、不进入springMVC
+     */
+    @Bean
+    public FilterRegistrationBean<AdmissionControlFilter> admissionControlFilter() {
+        FilterRegistrationBean<AdmissionControlFilter> registration =
+                new FilterRegistrationBean<>(new AdmissionControlFilter(admissionService, staticPatternPath));
+        registration.setOrder(Ordered.HIGHEST_PRECEDENCE + 1);
+        return registration;
+    }
+
+    /**
+     * 上传文件静态资源的限速（视频、PDF在 AsyncStreamService 里限速）
+     */
+    @Bean
+    public FilterRegistrationBean<BandwidthShapingFilter> bandwidthShapingFilter() {
+        FilterRegistrationBean<BandwidthShapingFilter> registration =
+                new FilterRegistrationBean<>(new BandwidthShapingFilter(bandwidthScheduler));
+        registration.addUrlPatterns(staticPatternPath.replace("**", "*"));
+        registration.setOrder(Ordered.HIGHEST_PRECEDENCE + 2);
+        return registration;
+    }
+
+    /**
+     * 第一个请求的耗时记到启动时间线里，放在最前面，准入控制的排队时间也算在内
+     */
+    @Bean
+    public FilterRegistrationBean<StartupTimelineFilter> startupTimelineFilter() {
+        FilterRegistrationBean<StartupTimelineFilter> registration =
+                new FilterRegistrationBean<>(new StartupTimelineFilter(startupTimeline));
+        registration.setOrder(Ordered.HIGHEST_PRECEDENCE);
+        return registration;
     }
 }
@@ -0,0 +1,106 @@
+package com.kuangstudy.controller;
+
+import com.kuangstudy.Service.ChunkUploadService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * 分片上传（断点续传）
+ * 1. POST /upload/chunk/init?dir=bbs&fileName=a.mp4&fileSize=123&chunkSize=4194304 创建任务，返回uploadId
+ * 2. PUT  /upload/chunk/{uploadId}/{index} 请求体就是分片的原始字节，可以乱序、并发上传
+ * 3. GET  /upload/chunk/{uploadId} 查询进度，missing是还没收到的分片
+ * 4. POST /upload/chunk/{uploadId}/commit 完成上传，返回和 /upload/file2 一样的url和size
+ * 分片不走multipart解析，所以不受 spring.servlet.multipart.max-file-size 的限制
+ * 任务不存在（已完成、已放弃或过期）返回404，和commit冲突（还有分片没收到、还有分片正在写入）
+ * 或者同一个分片正在被另一个请求写入时返回409
+ */
+@Controller
+@CrossOrigin
+public class ChunkUploadController {
+
+    @Autowired
+    private ChunkUploadService chunkUploadService;
+
+    @PostMapping("/upload/chunk/init")
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> init(@RequestParam("dir") String dir,
+                                                    @RequestParam("fileName") String fileName,
+                                                    @RequestParam("fileSize") long fileSize,
+                                                    @RequestParam(value = "chunkSize", defaultValue = "4194304") long chunkSize) throws IOException {
+        try {
+            return ResponseEntity.ok(chunkUploadService.init(dir, fileName, fileSize, chunkSize));
+        } catch (IllegalArgumentException e) {
+            return error(HttpStatus.BAD_REQUEST, e);
+        }
+    }
+
+    @PutMapping("/upload/chunk/{uploadId}/{index}")
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> uploadChunk(@PathVariable String uploadId,
+                                                           @PathVariable int index,
+                                                           HttpServletRequest request) throws IOException {
+        try {
+            return ResponseEntity.ok(chunkUploadService.writeChunk(uploadId, index, request.getInputStream()));
+        } catch (NoSuchElementException e) {
+            return error(HttpStatus.NOT_FOUND, e);
+        } catch (IllegalStateException e) {
+            return error(HttpStatus.CONFLICT, e);
+        } catch (IllegalArgumentException e) {
+            return error(HttpStatus.BAD_REQUEST, e);
+        }
+    }
+
+    @GetMapping("/upload/chunk/{uploadId}")
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> status(@PathVariable String uploadId) {
+        try {
+            return ResponseEntity.ok(chunkUploadService.status(uploadId));
+        } catch (NoSuchElementException e) {
+            return error(HttpStatus.NOT_FOUND, e);
+        }
+    }
+
+    @PostMapping("/upload/chunk/{uploadId}/commit")
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> commit(@PathVariable String uploadId) throws IOException {
+        try {
+            return ResponseEntity.ok(chunkUploadService.commit(uploadId));
+        } catch (NoSuchElementException e) {
+            return error(HttpStatus.NOT_FOUND, e);
+        } catch (IllegalStateException e) {
+            // 还有分片没有上传或者正在上传，客户端应该先查询status补传
+            return error(HttpStatus.CONFLICT, e);
+        }
+    }
+
+    @DeleteMapping("/upload/chunk/{uploadId}")
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> abort(@PathVariable String uploadId) throws IOException {
+        try {
+            chunkUploadService.abort(uploadId);
+            return ResponseEntity.noContent().build();
+        } catch (NoSuchElementException e) {
+            return error(HttpStatus.NOT_FOUND, e);
+        }
+    }
+
+    private ResponseEntity<Map<String, Object>> error(HttpStatus status, RuntimeException e) {
+        return ResponseEntity.status(status).body(Collections.singletonMap("error", e.getMessage()));
+    }
+}
@@ -1,41 +1,92 @@
 package com.kuangstudy.controller;
 
+import com.kuangstudy.Service.CsvExportService;
+import com.kuangstudy.Service.ExportJobService;
+import com.kuangstudy.Service.StreamMetrics;
 import com.kuangstudy.dto.TestDto;
+import com.kuangstudy.util.ContentEncodingUtils;
+import com.kuangstudy.util.MeteredOutputStream;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
-import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
-import org.springframework.web.bind.annotation.RequestParam;
-import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.zip.GZIPOutputStream;
 
 @Controller
 public class DownloadController {
 
+    private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
+    @Autowired
+    private CsvExportService csvExportService;
+
+    @Autowired
+    private ExportJobService exportJobService;
+
+    @Autowired
+    private StreamMetrics streamMetrics;
+
+    /**
+     * CSV流式导出：边生成边按MS932编码写到响应流
+     * 不再一次性拼出整个文件，第一批数据生成后马上就能发给客户端，每个请求的内存占用固定
+     * 生成和写出在异步线程池（WebMvcConfiguration.configureAsyncSupport）中进行，请求线程马上返回
+     * 客户端支持gzip时边生成边压缩（CSV重复内容多，一般能压到原来的1/5以下），指标统计的是压缩后实际写出的字节数
+     * 同样的条件已经由 /export/jobs 导出过（在缓存期内）时直接输出导出好的文件，不再重新生成
+     */
     @PostMapping("/download/csv")
-    @ResponseBody
-    public ResponseEntity<byte[]> downloadCsv(
-            @RequestBody TestDto testDt) throws Exception{
-        HttpHeaders header = new HttpHeaders();
-        header.add("Content-Type", "text/csv; charset=MS932");
-
-        header.setContentDispositionFormData("filename", testDt.getParam1()+".csv");
-        String csvData = null;
-        try {
-            StringBuffer csv = new StringBuffer();
-            csv.append("氏名");
-            csv.append(",性別");
-            for (int i = 0;i<1000000;i++) {
-                csv.append("\r\n");
-                csv.append("千手柱間"+i);
-                csv.append(",男性");
+    public ResponseEntity<StreamingResponseBody> downloadCsv(@RequestBody TestDto testDt,
+                                                             @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding) {
+        boolean gzip = ContentEncodingUtils.acceptsGzip(acceptEncoding);
+        ResponseEntity.BodyBuilder builder = ResponseEntity.ok()
+                .header(HttpHeaders.CONTENT_TYPE, "text/csv; charset=MS932")
+                .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.formData()
+                        .name("filename")
+                        .filename(csvExportService.getFileName(testDt))
+                        .build()
+                        .toString())
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (gzip) {
+            builder.header(HttpHeaders.CONTENT_ENCODING, ContentEncodingUtils.GZIP);
+        }
+        ExportJobService.Artifact artifact = exportJobService.findArtifact(testDt);
+        return builder.body(outputStream -> {
+            StreamMetrics.Recorder recorder = streamMetrics.start("/download/csv");
+            try {
+                MeteredOutputStream meteredOutputStream = new MeteredOutputStream(outputStream, recorder);
+                if (gzip) {
+                    GZIPOutputStream gzipOutputStream = new GZIPOutputStream(meteredOutputStream, GZIP_BUFFER_SIZE);
+                    writeCsv(testDt, artifact, gzipOutputStream);
+                    // 写出gzip尾部，不关闭响应流（由框架关闭）
+                    gzipOutputStream.finish();
+                } else {
+                    writeCsv(testDt, artifact, meteredOutputStream);
+                }
+            } finally {
+                recorder.finish();
+            }
+        });
+    }
+
+    private void writeCsv(TestDto testDt, ExportJobService.Artifact artifact, OutputStream outputStream) throws IOException {
+        if (artifact != null) {
+            try (InputStream inputStream = Files.newInputStream(artifact.getPath())) {
+                inputStream.transferTo(outputStream);
+                return;
+            } catch (NoSuchFileException e) {
+                // 打开之前刚好过期删除，重新生成
             }
-            csvData=csv.toString();
-        }catch (Exception e){
-            System.out.println(e);
-            return new ResponseEntity<>(null, header, HttpStatus.INTERNAL_SERVER_ERROR);
-        };
-        return new ResponseEntity<>(csvData.getBytes("MS932"), header, HttpStatus.OK);
+        }
+        csvExportService.writeCsv(testDt, outputStream);
     }
 }
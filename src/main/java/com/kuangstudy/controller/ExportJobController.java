@@ -0,0 +1,122 @@
+package com.kuangstudy.controller;
+
+import com.kuangstudy.Service.AdmissionService;
+import com.kuangstudy.Service.ExportJobService;
+import com.kuangstudy.dto.TestDto;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * CSV的异步导出
+ * 1. POST /export/jobs 请求体和 /download/csv 一样，返回202和任务状态（Location是任务的地址）
+ *    同样的条件正在导出时返回同一个任务，已经导出过（在缓存期内）时直接返回已完成的任务
+ * 2. GET  /export/jobs/{id}?wait=30 查询状态，带wait时最多等待wait秒，任务完成马上返回（长轮询）
+ * 3. GET  /export/jobs/{id}/file 下载导出的文件，支持Range（断点续传）
+ */
+@Controller
+public class ExportJobController {
+
+    /**
+     * 长轮询最多等待的秒数
+     */
+    private static final long MAX_WAIT_SECONDS = 60;
+
+    private static final MediaType CSV_TYPE = MediaType.parseMediaType("text/csv; charset=MS932");
+
+    @Autowired
+    private ExportJobService exportJobService;
+
+    @Autowired
+    private AdmissionService admissionService;
+
+    @PostMapping("/export/jobs")
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> submit(@RequestBody TestDto testDto) {
+        System.out.println("/export/jobs " + testDto);
+        ExportJobService.ExportJob job;
+        try {
+            job = exportJobService.submit(testDto);
+        } catch (RejectedExecutionException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(admissionService.getRetryAfterSeconds()))
+                    .body(Collections.singletonMap("error", "Too many export jobs"));
+        }
+        return ResponseEntity.accepted()
+                .location(URI.create("/export/jobs/" + job.getId()))
+                .body(job.toMap());
+    }
+
+    @GetMapping("/export/jobs/{id}")
+    @ResponseBody
+    public DeferredResult<ResponseEntity<Map<String, Object>>> status(@PathVariable("id") String id,
+                                                                      @RequestParam(value = "wait", defaultValue = "0") long wait) {
+        ExportJobService.ExportJob job = exportJobService.getJob(id);
+        long timeout = Math.min(Math.max(wait, 0), MAX_WAIT_SECONDS) * 1000;
+        DeferredResult<ResponseEntity<Map<String, Object>>> result = new DeferredResult<>(timeout > 0 ? timeout : null);
+        if (job == null) {
+            result.setResult(notFound(id));
+        } else if (timeout == 0 || job.isFinished()) {
+            result.setResult(ResponseEntity.ok(job.toMap()));
+        } else {
+            // 超时时返回当前的进度，客户端再次轮询
+            result.onTimeout(() -> result.setResult(ResponseEntity.ok(job.toMap())));
+            job.getCompletion().thenAccept(finished -> result.setResult(ResponseEntity.ok(finished.toMap())));
+        }
+        return result;
+    }
+
+    /**
+     * 导出的文件，Range请求由框架按 Resource 处理（206、多段、416）
+     */
+    @GetMapping("/export/jobs/{id}/file")
+    @ResponseBody
+    public ResponseEntity<?> download(@PathVariable("id") String id, WebRequest webRequest) {
+        ExportJobService.ExportJob job = exportJobService.getJob(id);
+        if (job == null) {
+            return notFound(id);
+        }
+        if (!job.isFinished()) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(job.toMap());
+        }
+        ExportJobService.Artifact artifact = job.getArtifact();
+        if (artifact == null) {
+            // 失败的任务，或者文件已经过期删除
+            return ResponseEntity.status(HttpStatus.GONE).body(job.toMap());
+        }
+        if (webRequest.checkNotModified(artifact.getETag())) {
+            return null;
+        }
+        return ResponseEntity.ok()
+                .contentType(CSV_TYPE)
+                .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment()
+                        .filename(job.getFileName())
+                        .build()
+                        .toString())
+                .header(HttpHeaders.CACHE_CONTROL, "private, no-cache")
+                .eTag(artifact.getETag())
+                .body(new FileSystemResource(artifact.getPath()));
+    }
+
+    private static ResponseEntity<Map<String, Object>> notFound(String id) {
+        return ResponseEntity.status(HttpStatus.NOT_FOUND).body(Collections.singletonMap("error", "No such export job: " + id));
+    }
+}
@@ -1,51 +1,116 @@
 package com.kuangstudy.controller;
 
+import com.kuangstudy.Service.AsyncStreamService;
+import com.kuangstudy.Service.FileIndexService;
+import com.kuangstudy.Service.HotFileCache;
+import com.kuangstudy.Service.MultipartMixedService;
+import com.kuangstudy.Service.StreamMetrics;
+import com.kuangstudy.storage.StorageBackend;
+import com.kuangstudy.storage.StorageObject;
+import com.kuangstudy.storage.StoragePage;
+import com.kuangstudy.storage.StorageResource;
+import com.kuangstudy.util.ByteBufferResource;
+import com.kuangstudy.util.RangeUtils;
+import com.kuangstudy.util.StreamSegment;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.InputStreamResource;
 import org.springframework.core.io.Resource;
 import org.springframework.core.io.UrlResource;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.context.request.WebRequest;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.*;
-import java.net.URLEncoder;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
 
 @Controller
 public class FileStreamController {
 
+    @Autowired
+    private FileIndexService fileIndexService;
+
+    @Autowired
+    private HotFileCache hotFileCache;
+
+    @Autowired
+    private MultipartMixedService multipartMixedService;
+
+    @Autowired
+    private AsyncStreamService asyncStreamService;
+
+    @Autowired
+    private StreamMetrics streamMetrics;
+
+    @Autowired
+    @Qualifier("videoStorage")
+    private StorageBackend videoStorage;
+
+    @Autowired
+    @Qualifier("pdfStorage")
+    private StorageBackend pdfStorage;
+
+    @Autowired
+    @Qualifier("storageExecutor")
+    private Executor storageExecutor;
+
+    /**
+     * 一次multipart请求最多包含的文件数
+     */
+    private static final int MAX_MULTIPART_FILES = 100;
+
     /**
      * 返回1个 PDF 的文件流
      * 对应 Express.js 版本：router.get("/api/preview/pdf", (_, res) => { ... })
      */
     @GetMapping("/api/preview/pdf")
     @ResponseBody
-    public ResponseEntity<Resource> getPdf() {
+    public ResponseEntity<Resource> getPdf(WebRequest webRequest) {
         try {
             // 构建PDF文件路径，对应Express.js中的 path.join(process.cwd(), "public", "pdf", "sample.pdf")
-            Path filePath = Paths.get("src/main/resources/pdf/sample.pdf");
-            Resource resource = new UrlResource(filePath.toUri());
-
-            if (!resource.exists() || !resource.isReadable()) {
+            // 是否存在直接查内存索引，不再访问磁盘
+            StorageObject entry = find(pdfStorage, FileIndexService.PDF, "sample.pdf");
+            if (entry == null) {
                 return ResponseEntity.notFound().build();
             }
 
+            // 协商缓存：ETag/Last-Modified都来自内存索引，没变就直接返回304，不打开文件
+            if (webRequest.checkNotModified(entry.getETag(), entry.getLastModified())) {
+                return null;
+            }
+            Resource resource = entry.getLocalPath() != null
+                    ? new UrlResource(entry.getLocalPath().toUri())
+                    : new StorageResource(pdfStorage, entry);
+
             // 设置响应头，对应Express.js中的 setHeader
             HttpHeaders headers = new HttpHeaders();
             headers.setContentType(MediaType.APPLICATION_PDF);
             headers.setContentDispositionFormData("inline", "test.pdf");
 
+            streamMetrics.recordWritten("/api/preview/pdf", entry.getSize());
             return ResponseEntity.ok()
                     .headers(headers)
                     .body(resource);
@@ -56,35 +121,43 @@ public class FileStreamController {
     }
 
     /**
-     * PDF文件的字节组返回模式，代码和视频文件的字节组返回模式基本没有差异，都是Files.readAllBytes
+     * PDF文件的字节组返回模式，代码和视频文件的字节组返回模式基本没有差异
+     * 以前每次请求都Files.readAllBytes，现在从热点文件缓存（内存映射）中取，不再按请求分配文件大小的数组
      */
     @GetMapping("/api/preview/pdf/bytes")
     @ResponseBody
-    public ResponseEntity<byte[]> getPdfBytes() {
+    public ResponseEntity<Resource> getPdfBytes(WebRequest webRequest) {
         try {
             System.out.println("/api/preview/pdf (字节数组模式)");
 
             // 构建PDF文件路径，对应Express.js中的 path.join(process.cwd(), "public", "pdf", "sample.pdf")
-            Path filePath = Paths.get("src/main/resources/pdf/sample.pdf");
-
-            if (!Files.exists(filePath)) {
+            StorageObject entry = find(pdfStorage, FileIndexService.PDF, "sample.pdf");
+            if (entry == null) {
                 return ResponseEntity.notFound().build();
             }
 
-            // 一次性读取整个文件到字节数组（对应 fs.readFileSync）
-            byte[] fileBytes = Files.readAllBytes(filePath);
-            long fileSize = fileBytes.length;
+            // 协商缓存：没变就直接返回304，不再读取文件
+            if (webRequest.checkNotModified(entry.getETag(), entry.getLastModified())) {
+                return null;
+            }
+            // 从热点文件缓存中取文件内容（对应 fs.readFileSync）
+            ByteBuffer fileBytes = readAll(FileIndexService.PDF, entry);
 
             // 构建响应头，对应Express.js中的 setHeader
             HttpHeaders headers = new HttpHeaders();
             headers.add("Content-Type", "application/pdf");
-            headers.add("Content-Length", String.valueOf(fileSize));
             headers.add("Content-Disposition", "inline; filename=test.pdf");
+            if (fileBytes == null) {
+                return storageResponse(pdfStorage, entry, null, headers, "/api/preview/pdf/bytes");
+            }
+            long fileSize = fileBytes.remaining();
+            headers.add("Content-Length", String.valueOf(fileSize));
 
-            // 返回完整的字节数组
+            // 返回完整的文件内容
+            streamMetrics.recordWritten("/api/preview/pdf/bytes", fileSize);
             return ResponseEntity.ok()
                     .headers(headers)
-                    .body(fileBytes);
+                    .body(fullBody(new ByteBufferResource(fileBytes, entry.getName())));
 
         } catch (IOException e) {
             return ResponseEntity.internalServerError().build();
@@ -96,19 +169,36 @@ public class FileStreamController {
      * 返回多个 PDF 的文件流（multipart/mixed）
      * 客户端需解析 multipart 边界并分别读取各部分的二进制内容
      * 对应 Express.js 版本：router.get("/api/preview/pdfs", async (_, res) => { ... })
+     * files参数可以指定文件列表（逗号分隔），不指定时返回默认的3个文件。
+     * 发送当前文件的同时预读后面的文件，见 MultipartMixedService；
+     * 响应体由 AsyncStreamService 非阻塞输出，慢速客户端不占用请求线程
      */
     @GetMapping("/api/preview/pdfs")
-    public void getPdfs(HttpServletResponse response) throws IOException {
+    public void getPdfs(@RequestParam(value = "files", required = false) List<String> files,
+                        HttpServletRequest request,
+                        HttpServletResponse response) throws IOException {
         System.out.println("/api/preview/pdfs");
 
         // 对应Express.js中的文件列表
-        List<String> fileNames = Arrays.asList("sample.pdf", "sample01.pdf", "sample02.pdf");
-        Path pdfDir = Paths.get("src/main/resources/pdf");
+        List<String> fileNames = files == null || files.isEmpty()
+                ? Arrays.asList("sample.pdf", "sample01.pdf", "sample02.pdf")
+                : files;
+        if (fileNames.size() > MAX_MULTIPART_FILES) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.setContentType("application/json");
+            String errorJson = "{\"message\": \"Too many files, max " + MAX_MULTIPART_FILES + "\"}";
+            response.getOutputStream().write(errorJson.getBytes(StandardCharsets.UTF_8));
+            return;
+        }
 
-        // 过滤存在的文件，对应Express.js中的 existing.filter(...)
-        List<String> existing = fileNames.stream()
-                .filter(fileName -> Files.exists(pdfDir.resolve(fileName)))
-                .collect(Collectors.toList());
+        // 过滤存在的文件，对应Express.js中的 existing.filter(...)，查内存索引
+        List<StorageObject> existing = new ArrayList<>(fileNames.size());
+        for (String fileName : fileNames) {
+            StorageObject entry = find(pdfStorage, FileIndexService.PDF, fileName);
+            if (entry != null) {
+                existing.add(entry);
+            }
+        }
 
         if (existing.isEmpty()) {
             response.setStatus(HttpServletResponse.SC_NOT_FOUND);
@@ -126,59 +216,11 @@ public class FileStreamController {
         response.setContentType("multipart/mixed; boundary=" + boundary);
         response.setHeader("Cache-Control", "no-cache");
 
-        // 统一使用OutputStream处理所有数据
-        OutputStream outputStream = response.getOutputStream();
-
-        // 顺序写入每个文件，对应Express.js中的 for循环
-        for (String fileName : existing) {
-            Path filePath = pdfDir.resolve(fileName);
-
-            try {
-                long fileSize = Files.size(filePath);
-
-                // 写入multipart边界和头信息
-                String headers = "--" + boundary + "\r\n" +
-                        "Content-Type: application/pdf\r\n" +
-                        "Content-Disposition: inline; filename=\"" +
-                        URLEncoder.encode(fileName, StandardCharsets.UTF_8.toString()) + "\"\r\n" +
-                        "Content-Length: " + fileSize + "\r\n" +
-                        "\r\n";
-                outputStream.write(headers.getBytes(StandardCharsets.UTF_8));
-                outputStream.flush();
-
-                // 直接将文件内容写入响应输出流
-                try (InputStream fileInputStream = Files.newInputStream(filePath)) {
-                    byte[] buffer = new byte[8192];
-                    int bytesRead;
-                    while ((bytesRead = fileInputStream.read(buffer)) != -1) {
-                        outputStream.write(buffer, 0, bytesRead);
-                    }
-                    outputStream.flush();
-                }
-
-                // 每个part结束需要换行，对应Express.js中的换行处理
-                outputStream.write("\r\n".getBytes(StandardCharsets.UTF_8));
-                outputStream.flush();
-
-            } catch (Exception e) {
-                // 如果单个文件出错，写一个错误part（纯文本）并继续其它文件
-                // 对应Express.js中的catch块
-                String errorMsg = "读取文件 " + fileName + " 失败: " + e.getMessage();
-                String errorHeaders = "--" + boundary + "\r\n" +
-                        "Content-Type: text/plain; charset=utf-8\r\n" +
-                        "Content-Disposition: inline; filename=\"error-" +
-                        URLEncoder.encode(fileName, StandardCharsets.UTF_8.toString()) + ".txt\"\r\n" +
-                        "Content-Length: " + errorMsg.getBytes(StandardCharsets.UTF_8).length + "\r\n\r\n" +
-                        errorMsg + "\r\n";
-                outputStream.write(errorHeaders.getBytes(StandardCharsets.UTF_8));
-                outputStream.flush();
-            }
-        }
-
-        // 结束multipart响应，对应Express.js中的 res.end()
-        String endBoundary = "--" + boundary + "--\r\n";
-        outputStream.write(endBoundary.getBytes(StandardCharsets.UTF_8));
-        outputStream.flush();
+        // 非阻塞输出，请求线程马上返回
+        asyncStreamService.start(request, response,
+                multipartMixedService.segments(existing, pdfStorage, boundary, "application/pdf"),
+                multipartMixedService.getPrefetchParts(),
+                streamMetrics.start("/api/preview/pdfs"));
     }
 
     /**
@@ -195,7 +237,7 @@ public class FileStreamController {
         System.out.println("/api/preview/video " + fileName);
 
         // 构建视频文件路径，对应Express.js中的 path.join
-        Path videoDir = Paths.get("src/main/resources/video");
+        Path videoDir = fileIndexService.getRootDir(FileIndexService.VIDEO);
         Path filePath = videoDir.resolve(fileName);
 
         // 安全检查：防止路径遍历攻击，对应Express.js中的安全检查
@@ -207,7 +249,8 @@ public class FileStreamController {
             return;
         }
 
-        if (!Files.exists(filePath)) {
+        StorageObject entry = find(videoStorage, FileIndexService.VIDEO, fileName);
+        if (entry == null) {
             response.setStatus(HttpServletResponse.SC_NOT_FOUND);
             response.setContentType("application/json");
             String errorJson = "{\"error\": \"Video file not found\"}";
@@ -215,39 +258,65 @@ public class FileStreamController {
             return;
         }
 
-        long fileSize = Files.size(filePath);
-        String rangeHeader = request.getHeader("Range");
+        // 协商缓存：ETag/Last-Modified没变就直接返回304，不打开文件
+        if (new ServletWebRequest(request, response).checkNotModified(entry.getETag(), entry.getLastModified())) {
+            return;
+        }
+
+        long fileSize = entry.getSize();
+        long lastModified = entry.getLastModified();
         String ext = getFileExtension(fileName).toLowerCase();
 
         // 动态设置 Content-Type，对应Express.js中的contentType设置
         String contentType = getVideoContentType(ext);
 
-        if (rangeHeader != null && rangeHeader.startsWith("bytes=")) {
-            // 这部分代码参考Express.js中被注释的Range请求处理
-            // 暂时直接返回整个文件，因为Express.js版本也是这样处理的
-            response.setStatus(HttpServletResponse.SC_OK);
-        } else {
-            // 客户端没有 Range 请求，返回整个文件，对应Express.js中的else分支
-            response.setStatus(HttpServletResponse.SC_OK);
+        // 解析Range请求头，If-Range不匹配时（文件已经变了）忽略Range返回完整文件
+        List<RangeUtils.ByteRange> ranges = RangeUtils.parseRanges(request.getHeader("Range"), fileSize);
+        if (ranges != null && !RangeUtils.isIfRangeSatisfied(request.getHeader("If-Range"), entry.getETag(), lastModified)) {
+            ranges = null;
         }
 
-        // 设置响应头，对应Express.js中的 res.writeHead
-        response.setContentType(contentType);
-        response.setHeader("Content-Length", String.valueOf(fileSize));
         response.setHeader("Accept-Ranges", "bytes");
         response.setHeader("Cache-Control", "public, max-age=3600");
 
-        // 流式分块传输文件，对应Express.js中的 fs.createReadStream(filePath).pipe(res)
-        try (InputStream fileInputStream = Files.newInputStream(filePath);
-             OutputStream outputStream = response.getOutputStream()) {
+        if (ranges != null && ranges.isEmpty()) {
+            // 请求的区间全部超出文件范围，返回416
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.setHeader("Content-Range", "bytes */" + fileSize);
+            return;
+        }
 
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            while ((bytesRead = fileInputStream.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, bytesRead);
+        // 按区间定位读取，拖动进度条时不会再读整个文件
+        // 响应体交给 AsyncStreamService 非阻塞输出，请求线程马上返回
+        List<StreamSegment> segments = new ArrayList<>();
+        if (ranges == null) {
+            // 客户端没有 Range 请求，返回整个文件，对应Express.js中的 fs.createReadStream(filePath).pipe(res)
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType(contentType);
+            response.setHeader("Content-Length", String.valueOf(fileSize));
+            segments.add(segment(videoStorage, entry, 0, fileSize));
+        } else if (ranges.size() == 1) {
+            // 单区间：206 + Content-Range
+            RangeUtils.ByteRange range = ranges.get(0);
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setContentType(contentType);
+            response.setHeader("Content-Range", range.toContentRange(fileSize));
+            response.setHeader("Content-Length", String.valueOf(range.length()));
+            segments.add(segment(videoStorage, entry, range.getStart(), range.length()));
+        } else {
+            // 多区间：206 + multipart/byteranges
+            String boundary = "VIDEOBOUNDARY" + System.currentTimeMillis();
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setContentType("multipart/byteranges; boundary=" + boundary);
+            response.setHeader("Content-Length",
+                    String.valueOf(RangeUtils.multipartLength(ranges, boundary, contentType, fileSize)));
+            for (RangeUtils.ByteRange range : ranges) {
+                segments.add(StreamSegment.bytes(RangeUtils.partHeader(boundary, contentType, range, fileSize)));
+                segments.add(segment(videoStorage, entry, range.getStart(), range.length()));
             }
-            outputStream.flush();
+            segments.add(StreamSegment.bytes(RangeUtils.partEnd(boundary)));
         }
+        asyncStreamService.start(request, response, segments, 0, streamMetrics.start("/api/preview/video"));
     }
 
     /**
@@ -262,52 +331,230 @@ public class FileStreamController {
      */
     @GetMapping("/api/preview/video/bytes")
     @ResponseBody
-    public ResponseEntity<byte[]> getVideoBytes(
+    public ResponseEntity<Resource> getVideoBytes(
             @RequestParam(value = "file", defaultValue = "IMG_1336.MOV") String fileName,
-            HttpServletRequest request) throws IOException {
+            HttpServletRequest request,
+            WebRequest webRequest) throws IOException {
 
         System.out.println("/api/preview/video " + fileName + " (字节数组模式)");
 
         // 构建视频文件路径，对应Express.js中的 path.join
-        Path videoDir = Paths.get("src/main/resources/video");
+        Path videoDir = fileIndexService.getRootDir(FileIndexService.VIDEO);
         Path filePath = videoDir.resolve(fileName);
 
         // 安全检查：防止路径遍历攻击，对应Express.js中的安全检查
         if (!filePath.normalize().startsWith(videoDir.normalize())) {
             return ResponseEntity.badRequest()
                     .contentType(MediaType.APPLICATION_JSON)
-                    .body("{\"error\": \"Invalid file path\"}".getBytes(StandardCharsets.UTF_8));
+                    .body(new ByteArrayResource("{\"error\": \"Invalid file path\"}".getBytes(StandardCharsets.UTF_8)));
         }
 
-        if (!Files.exists(filePath)) {
+        StorageObject entry = find(videoStorage, FileIndexService.VIDEO, fileName);
+        if (entry == null) {
             return ResponseEntity.notFound().build();
         }
 
+        // 协商缓存：没变就直接返回304，不再读取文件
+        if (webRequest.checkNotModified(entry.getETag(), entry.getLastModified())) {
+            return null;
+        }
+
         String ext = getFileExtension(fileName).toLowerCase();
         String contentType = getVideoContentType(ext);
-        String rangeHeader = request.getHeader("Range");
+        long fileSize = entry.getSize();
+        long lastModified = entry.getLastModified();
 
-        // 一次性读取整个文件到字节数组（对应 fs.readFileSync）
-        byte[] fileBytes = Files.readAllBytes(filePath);
-        long fileSize = fileBytes.length;
+        List<RangeUtils.ByteRange> ranges = RangeUtils.parseRanges(request.getHeader("Range"), fileSize);
+        if (ranges != null && !RangeUtils.isIfRangeSatisfied(request.getHeader("If-Range"), entry.getETag(), lastModified)) {
+            ranges = null;
+        }
 
         // 构建响应头
         HttpHeaders headers = new HttpHeaders();
-        headers.add("Content-Type", contentType);
-        headers.add("Content-Length", String.valueOf(fileSize));
         headers.add("Accept-Ranges", "bytes");
         headers.add("Cache-Control", "public, max-age=3600");
 
-        if (rangeHeader != null && rangeHeader.startsWith("bytes=")) {
-            // Range请求处理（可选实现）
-            // 暂时返回整个文件，与Express.js版本保持一致
-            System.out.println("收到Range请求，但返回完整文件: " + rangeHeader);
+        if (ranges != null && ranges.isEmpty()) {
+            headers.add("Content-Range", "bytes */" + fileSize);
+            return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE).headers(headers).build();
+        }
+
+        // 从热点文件缓存中取文件内容，热点文件只映射一次，所有请求共享同一份堆外内存
+        ByteBuffer fileBytes = readAll(FileIndexService.VIDEO, entry);
+        if (fileBytes == null) {
+            headers.add("Content-Type", contentType);
+            return storageResponse(videoStorage, entry, ranges, headers, "/api/preview/video/bytes");
+        }
+
+        if (ranges == null) {
+            headers.add("Content-Type", contentType);
+            headers.add("Content-Length", String.valueOf(fileSize));
+
+            // 返回完整的文件内容（If-Range不匹配时也是这里，不能再让spring按Range切区间）
+            streamMetrics.recordWritten("/api/preview/video/bytes", fileSize);
+            return ResponseEntity.ok()
+                    .headers(headers)
+                    .body(fullBody(new ByteBufferResource(fileBytes, entry.getName())));
+        }
+
+        if (ranges.size() == 1) {
+            // 单区间：直接切出缓存中对应的片段，不拷贝
+            RangeUtils.ByteRange range = ranges.get(0);
+            fileBytes.position((int) range.getStart());
+            fileBytes.limit((int) range.getEnd() + 1);
+            headers.add("Content-Type", contentType);
+            headers.add("Content-Range", range.toContentRange(fileSize));
+            headers.add("Content-Length", String.valueOf(range.length()));
+            streamMetrics.recordWritten("/api/preview/video/bytes", range.length());
+            return ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+                    .headers(headers)
+                    .body(new ByteBufferResource(fileBytes.slice(), entry.getName()));
+        }
+
+        // 多区间：只把请求的区间拼成multipart/byteranges
+        String boundary = "VIDEOBOUNDARY" + System.currentTimeMillis();
+        byte[] rangeBytes = RangeUtils.readRanges(fileBytes, ranges, boundary, contentType, fileSize);
+        headers.add("Content-Type", "multipart/byteranges; boundary=" + boundary);
+        headers.add("Content-Length", String.valueOf(rangeBytes.length));
+        streamMetrics.recordWritten("/api/preview/video/bytes", rangeBytes.length);
+
+        return ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+                .headers(headers)
+                .body(new ByteArrayResource(rangeBytes));
+    }
+
+    /**
+     * 热点文件缓存的命中率等统计信息
+     */
+    @GetMapping("/api/preview/cache/stats")
+    @ResponseBody
+    public Map<String, Object> getCacheStats() {
+        return hotFileCache.stats();
+    }
+
+    /**
+     * 查找文件：本地存储查内存索引（不访问磁盘），对象存储向存储查询
+     * @return 不存在或者文件名不合法时返回null
+     */
+    private StorageObject find(StorageBackend storage, String root, String fileName) throws IOException {
+        if (storage.isLocal()) {
+            FileIndexService.FileEntry entry = fileIndexService.get(root, fileName);
+            return entry == null ? null : entry.toStorageObject();
         }
+        try {
+            return storage.stat(fileName);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
 
-        // 返回完整的字节数组
+    /**
+     * 文件的全部内容：本地文件从热点文件缓存（内存映射）中取
+     * @return 对象存储中的文件（或者已经不在索引中的文件）返回null，不读进堆，由 storageResponse 流式返回
+     */
+    private ByteBuffer readAll(String root, StorageObject object) throws IOException {
+        if (object.getLocalPath() != null) {
+            FileIndexService.FileEntry entry = fileIndexService.get(root, object.getKey());
+            if (entry != null) {
+                return hotFileCache.get(entry);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 不经过热点文件缓存的字节数组模式响应：单区间只向存储请求这个区间，
+     * 多区间按顺序向存储请求各个区间，拼成multipart/byteranges；完整文件流式返回，堆上不分配文件大小的数组
+     */
+    private ResponseEntity<Resource> storageResponse(StorageBackend storage, StorageObject object,
+                                                     List<RangeUtils.ByteRange> ranges, HttpHeaders headers,
+                                                     String metric) throws IOException {
+        if (ranges != null && ranges.size() == 1) {
+            RangeUtils.ByteRange range = ranges.get(0);
+            headers.add("Content-Range", range.toContentRange(object.getSize()));
+            headers.add("Content-Length", String.valueOf(range.length()));
+            streamMetrics.recordWritten(metric, range.length());
+            return ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+                    .headers(headers)
+                    .body(new InputStreamResource(storage.getRange(object.getKey(), range.getStart(), range.length())));
+        }
+        if (ranges != null) {
+            String boundary = "VIDEOBOUNDARY" + System.currentTimeMillis();
+            String contentType = headers.getFirst(HttpHeaders.CONTENT_TYPE);
+            long length = RangeUtils.multipartLength(ranges, boundary, contentType, object.getSize());
+            headers.set(HttpHeaders.CONTENT_TYPE, "multipart/byteranges; boundary=" + boundary);
+            headers.setContentLength(length);
+            streamMetrics.recordWritten(metric, length);
+            return ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+                    .headers(headers)
+                    .body(new InputStreamResource(new SequenceInputStream(
+                            multipartParts(storage, object, ranges, boundary, contentType))));
+        }
+        headers.setContentLength(object.getSize());
+        streamMetrics.recordWritten(metric, object.getSize());
         return ResponseEntity.ok()
                 .headers(headers)
-                .body(fileBytes);
+                .body(fullBody(new StorageResource(storage, object)));
+    }
+
+    /**
+     * 返回完整文件时的响应体：包装成 InputStreamResource（需要自己设置Content-Length）
+     * spring 会按请求中的Range头重新切分200响应中的其它Resource，
+     * 这样If-Range不匹配、Range不合法时也会返回206或416，而不是这里决定的完整文件
+     */
+    private static Resource fullBody(Resource resource) throws IOException {
+        return new InputStreamResource(resource.getInputStream(), resource.getDescription());
+    }
+
+    /**
+     * multipart/byteranges 的各个部分：区间头、区间数据……、结束边界，
+     * 每个区间在读到它的时候才向存储请求，同一时间只打开一个区间
+     */
+    private static Enumeration<InputStream> multipartParts(StorageBackend storage, StorageObject object,
+                                                           List<RangeUtils.ByteRange> ranges, String boundary,
+                                                           String contentType) {
+        Iterator<RangeUtils.ByteRange> iterator = ranges.iterator();
+        return new Enumeration<InputStream>() {
+            private RangeUtils.ByteRange pending;
+            private boolean ended;
+
+            @Override
+            public boolean hasMoreElements() {
+                return pending != null || iterator.hasNext() || !ended;
+            }
+
+            @Override
+            public InputStream nextElement() {
+                if (pending != null) {
+                    RangeUtils.ByteRange range = pending;
+                    pending = null;
+                    try {
+                        return storage.getRange(object.getKey(), range.getStart(), range.length());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                if (iterator.hasNext()) {
+                    pending = iterator.next();
+                    return new ByteArrayInputStream(RangeUtils.partHeader(boundary, contentType, pending, object.getSize()));
+                }
+                if (ended) {
+                    throw new NoSuchElementException();
+                }
+                ended = true;
+                return new ByteArrayInputStream(RangeUtils.partEnd(boundary));
+            }
+        };
+    }
+
+    /**
+     * 文件的[position, position + length)区间：本地文件按区间读磁盘，对象存储发Range请求（大区间并行分段下载）
+     */
+    private StreamSegment segment(StorageBackend storage, StorageObject object, long position, long length) {
+        if (object.getLocalPath() != null) {
+            return StreamSegment.file(object.getLocalPath(), position, length);
+        }
+        return StreamSegment.stream(() -> storage.getRange(object.getKey(), position, length), length, storageExecutor);
     }
 
     /**
@@ -342,66 +589,103 @@ public class FileStreamController {
      * 返回多个视频文件的列表和元信息（推荐方案）
      * 客户端可根据列表按需请求单个视频流
      * 对应 Express.js 版本：router.get("/api/preview/videos", (req, res) => { ... })
+     * 列表来自内存索引，按文件名游标分页：第一页不传cursor，之后传上一页返回的nextCursor
      */
     @GetMapping("/api/preview/videos")
     @ResponseBody
-    public ResponseEntity<?> getVideos() {
+    public ResponseEntity<?> getVideos(
+            @RequestParam(value = "cursor", required = false) String cursor,
+            @RequestParam(value = "limit", defaultValue = "100") int limit) throws IOException {
         System.out.println("/api/preview/videos");
 
-        // 对应Express.js中的文件列表，基于实际文件
-        List<String> fileNames = Arrays.asList("IMG_1336.MOV", "IMG_1337.mp4");
-        Path videoDir = Paths.get("src/main/resources/video");
-
-        // 过滤存在的文件，对应Express.js中的 existing.filter(...)
-        List<String> existing = fileNames.stream()
-                .filter(fileName -> Files.exists(videoDir.resolve(fileName)))
-                .collect(Collectors.toList());
+        if (!videoStorage.isLocal()) {
+            Map<String, Object> listing = storageListing(videoStorage, cursor, clampLimit(limit), "videos", this::videoInfo);
+            if (cursor == null && ((List<?>) listing.get("videos")).isEmpty()) {
+                Map<String, String> errorResponse = new HashMap<>();
+                errorResponse.put("message", "No video files found");
+                return ResponseEntity.status(HttpServletResponse.SC_NOT_FOUND).body(errorResponse);
+            }
+            return ResponseEntity.ok(listing);
+        }
 
-        if (existing.isEmpty()) {
+        if (fileIndexService.count(FileIndexService.VIDEO) == 0) {
             // 对应Express.js中的404响应
             Map<String, String> errorResponse = new HashMap<>();
             errorResponse.put("message", "No video files found");
             return ResponseEntity.status(HttpServletResponse.SC_NOT_FOUND).body(errorResponse);
         }
 
-        // 构建视频列表，对应Express.js中的 videoList.map(...)
-        List<Map<String, Object>> videoList = existing.stream()
-                .map(fileName -> {
-                    try {
-                        Path filePath = videoDir.resolve(fileName);
-                        long fileSize = Files.size(filePath);
-                        String ext = getFileExtension(fileName).toLowerCase();
+        // 构建视频列表，对应Express.js中的 videoList.map(...)，序列化结果在目录变化前一直被缓存
+        byte[] body = fileIndexService.listingJson(FileIndexService.VIDEO, cursor, clampLimit(limit), "videos",
+                entry -> videoInfo(entry.toStorageObject()));
 
-                        // 根据文件扩展名设置 MIME 类型，对应Express.js中的mimeType设置
-                        String mimeType = getVideoContentType(ext);
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(body);
+    }
 
-                        // 获取文件最后修改时间
-                        String lastModified = Files.getLastModifiedTime(filePath).toString();
+    /**
+     * 返回PDF文件的列表和元信息，分页方式同 /api/preview/videos
+     */
+    @GetMapping("/api/preview/pdf/list")
+    @ResponseBody
+    public ResponseEntity<?> getPdfList(
+            @RequestParam(value = "cursor", required = false) String cursor,
+            @RequestParam(value = "limit", defaultValue = "100") int limit) throws IOException {
+        if (!pdfStorage.isLocal()) {
+            return ResponseEntity.ok(storageListing(pdfStorage, cursor, clampLimit(limit), "pdfs", this::pdfInfo));
+        }
+        byte[] body = fileIndexService.listingJson(FileIndexService.PDF, cursor, clampLimit(limit), "pdfs",
+                entry -> pdfInfo(entry.toStorageObject()));
+
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(body);
+    }
 
-                        Map<String, Object> videoInfo = new HashMap<>();
-                        videoInfo.put("fileName", fileName);
-                        videoInfo.put("size", fileSize);
-                        videoInfo.put("mimeType", mimeType);
-                        videoInfo.put("sizeFormatted", formatFileSize(fileSize));
-                        videoInfo.put("lastModified", lastModified);
+    private Map<String, Object> videoInfo(StorageObject entry) {
+        String ext = getFileExtension(entry.getName()).toLowerCase();
 
-                        return videoInfo;
-                    } catch (IOException e) {
-                        // 如果单个文件出错，记录错误但继续处理其他文件
-                        Map<String, Object> errorInfo = new HashMap<>();
-                        errorInfo.put("fileName", fileName);
-                        errorInfo.put("error", "Failed to read file: " + e.getMessage());
-                        return errorInfo;
-                    }
-                })
-                .collect(Collectors.toList());
+        Map<String, Object> videoInfo = new LinkedHashMap<>();
+        videoInfo.put("fileName", entry.getName());
+        videoInfo.put("size", entry.getSize());
+        videoInfo.put("mimeType", getVideoContentType(ext));
+        videoInfo.put("sizeFormatted", formatFileSize(entry.getSize()));
+        videoInfo.put("lastModified", FileTime.fromMillis(entry.getLastModified()).toString());
+        return videoInfo;
+    }
 
-        // 构建响应对象，对应Express.js中的 res.json({...})
-        Map<String, Object> response = new HashMap<>();
-        response.put("total", videoList.size());
-        response.put("videos", videoList);
+    private Map<String, Object> pdfInfo(StorageObject entry) {
+        Map<String, Object> pdfInfo = new LinkedHashMap<>();
+        pdfInfo.put("fileName", entry.getName());
+        pdfInfo.put("size", entry.getSize());
+        pdfInfo.put("mimeType", MediaType.APPLICATION_PDF_VALUE);
+        pdfInfo.put("sizeFormatted", formatFileSize(entry.getSize()));
+        pdfInfo.put("lastModified", FileTime.fromMillis(entry.getLastModified()).toString());
+        return pdfInfo;
+    }
+
+    /**
+     * 对象存储中的文件列表，直接分页查询存储，格式同内存索引的列表（没有total）
+     */
+    private Map<String, Object> storageListing(StorageBackend storage, String cursor, int limit, String itemsField,
+                                               Function<StorageObject, Map<String, Object>> itemMapper) throws IOException {
+        StoragePage page = storage.list("", cursor, limit);
+        List<Map<String, Object>> items = new ArrayList<>(page.getObjects().size());
+        for (StorageObject object : page.getObjects()) {
+            items.add(itemMapper.apply(object));
+        }
+        Map<String, Object> listing = new LinkedHashMap<>();
+        listing.put(itemsField, items);
+        listing.put("nextCursor", page.getNextCursor());
+        return listing;
+    }
 
-        return ResponseEntity.ok(response);
+    /**
+     * 分页大小限制在1~1000
+     */
+    private int clampLimit(int limit) {
+        return Math.max(1, Math.min(limit, 1000));
     }
 
     /**
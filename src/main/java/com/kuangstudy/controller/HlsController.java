@@ -0,0 +1,174 @@
+package com.kuangstudy.controller;
+
+import com.kuangstudy.Service.AsyncStreamService;
+import com.kuangstudy.Service.HlsService;
+import com.kuangstudy.Service.StreamMetrics;
+import com.kuangstudy.storage.StorageObject;
+import com.kuangstudy.video.SegmentIndex;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.context.request.WebRequest;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 视频的分段（HLS）输出
+ * 播放列表：/api/preview/video/hls/IMG_1337.mp4/index.m3u8
+ * 播放列表中的初始化段（init.mp4）和分段（0.m4s、1.m4s...）使用相对路径并带版本号（?v=），
+ * 版本号只在源文件或分段参数变了时改变，所以这两种响应可以被CDN和浏览器长期缓存；
+ * 请求的版本号不是当前版本时（播放器拿着视频修改前的播放列表）返回404，新的内容不会被缓存到旧版本的链接下
+ */
+@Controller
+public class HlsController {
+
+    private static final String CACHE_IMMUTABLE = "public, max-age=31536000, immutable";
+
+    private static final MediaType PLAYLIST_TYPE = MediaType.parseMediaType("application/vnd.apple.mpegurl");
+
+    @Autowired
+    private HlsService hlsService;
+
+    @Autowired
+    private AsyncStreamService asyncStreamService;
+
+    @Autowired
+    private StreamMetrics streamMetrics;
+
+    /**
+     * 播放列表，视频修改后内容会变，只做协商缓存
+     */
+    @GetMapping("/api/preview/video/hls/{file}/index.m3u8")
+    @ResponseBody
+    public ResponseEntity<?> getPlaylist(@PathVariable("file") String fileName, WebRequest webRequest) throws IOException {
+        System.out.println("/api/preview/video/hls " + fileName);
+        StorageObject source = hlsService.find(fileName);
+        if (!hlsService.isEnabled() || source == null) {
+            return ResponseEntity.notFound().build();
+        }
+        SegmentIndex index;
+        try {
+            index = hlsService.getIndex(source);
+        } catch (IllegalArgumentException e) {
+            return unsupported(e);
+        }
+        String eTag = "\"" + HlsService.version(index) + "\"";
+        if (webRequest.checkNotModified(eTag)) {
+            return null;
+        }
+        return ResponseEntity.ok()
+                .contentType(PLAYLIST_TYPE)
+                .header(HttpHeaders.CACHE_CONTROL, "no-cache")
+                .eTag(eTag)
+                .body(hlsService.playlist(index).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 初始化段（ftyp + moov）
+     */
+    @GetMapping("/api/preview/video/hls/{file}/init.mp4")
+    @ResponseBody
+    public ResponseEntity<?> getInit(@PathVariable("file") String fileName,
+                                     @RequestParam(value = "v", required = false) String version,
+                                     WebRequest webRequest) throws IOException {
+        StorageObject source = hlsService.find(fileName);
+        if (!hlsService.isEnabled() || source == null) {
+            return ResponseEntity.notFound().build();
+        }
+        SegmentIndex index;
+        try {
+            index = hlsService.getIndex(source);
+        } catch (IllegalArgumentException e) {
+            return unsupported(e);
+        }
+        String cacheControl = cacheControl(version, index);
+        if (cacheControl == null) {
+            return ResponseEntity.notFound().build();
+        }
+        String eTag = "\"" + HlsService.version(index) + "-init\"";
+        if (webRequest.checkNotModified(eTag)) {
+            return null;
+        }
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType("video/mp4"))
+                .header(HttpHeaders.CACHE_CONTROL, cacheControl)
+                .eTag(eTag)
+                .body(index.getInit());
+    }
+
+    /**
+     * 一个分段（moof + mdat），响应体由 AsyncStreamService 非阻塞输出
+     */
+    @GetMapping("/api/preview/video/hls/{file}/{segment}.m4s")
+    public void getSegment(@PathVariable("file") String fileName,
+                           @PathVariable("segment") String segmentNumber,
+                           @RequestParam(value = "v", required = false) String version,
+                           HttpServletRequest request,
+                           HttpServletResponse response) throws IOException {
+        StorageObject source = hlsService.find(fileName);
+        if (!hlsService.isEnabled() || source == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        SegmentIndex index;
+        try {
+            index = hlsService.getIndex(source);
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE);
+            return;
+        }
+        List<SegmentIndex.Segment> segments = index.getSegments();
+        int number;
+        try {
+            number = Integer.parseInt(segmentNumber);
+        } catch (NumberFormatException e) {
+            number = -1;
+        }
+        String cacheControl = cacheControl(version, index);
+        if (number < 0 || number >= segments.size() || cacheControl == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        if (new ServletWebRequest(request, response).checkNotModified("\"" + HlsService.version(index) + "-" + number + "\"")) {
+            return;
+        }
+        SegmentIndex.Segment segment = segments.get(number);
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("video/iso.segment");
+        response.setHeader(HttpHeaders.CACHE_CONTROL, cacheControl);
+        response.setHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(segment.getSize()));
+        asyncStreamService.start(request, response, hlsService.segmentBody(source, segment), 1,
+                streamMetrics.start("/api/preview/video/hls"));
+    }
+
+    /**
+     * 初始化段和分段的Cache-Control：带当前版本号的链接长期缓存，没有版本号的只做协商缓存
+     * @return 版本号不是当前版本时返回null（应该返回404）
+     */
+    private static String cacheControl(String version, SegmentIndex index) {
+        if (version == null) {
+            return "no-cache";
+        }
+        return version.equals(HlsService.version(index)) ? CACHE_IMMUTABLE : null;
+    }
+
+    private static ResponseEntity<?> unsupported(IllegalArgumentException e) {
+        return ResponseEntity.status(HttpStatus.UNSUPPORTED_MEDIA_TYPE)
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(Collections.singletonMap("error", "Video cannot be segmented: " + e.getMessage()));
+    }
+}
@@ -2,14 +2,23 @@ package com.kuangstudy.controller;
 
 import com.kuangstudy.Service.UploadService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
 import org.springframework.web.multipart.MultipartFile;
 
 import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 @Controller
@@ -18,6 +27,12 @@ public class UploadController {
     @Autowired
     private UploadService uploadService;
 
+    /**
+     * 批量上传一次最多的文件数
+     */
+    @Value("${file.batch.maxFiles:50}")
+    private int batchMaxFiles;
+
     /**
      * 文件异步上传的具体实现1
      * @param multipartFile
@@ -60,4 +75,60 @@ public class UploadController {
 
         return uploadService.uploadImgMap(multipartFile, dir);
     }
+
+    /**
+     * 文件异步上传的具体实现3：直接读取请求流
+     * 不经过servlet的multipart解析（不产生临时文件），文件内容直接写到最终目录
+     * @param request
+     * @return 返回json格式的上传结果信息
+     */
+    @PostMapping("/upload/stream")
+    @ResponseBody
+    @CrossOrigin
+    public ResponseEntity<Map<String, Object>> uploadStream(HttpServletRequest request) throws IOException {
+        try {
+            return ResponseEntity.ok(uploadService.uploadStream(request));
+        } catch (MaxUploadSizeExceededException e) {
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE)
+                    .body(Collections.singletonMap("error", e.getMessage()));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest()
+                    .body(Collections.singletonMap("error", e.getMessage()));
+        }
+    }
+
+    /**
+     * 批量上传：一个请求上传多个文件（表单字段名都是files），文件并行保存
+     * 单个文件的大小限制和其它上传接口相同（max-file-size），请求总大小由 file.batch.maxRequestSize 限制
+     * @param multipartFiles
+     * @param request
+     * @return 每个文件的结果（url、size，失败时是error），顺序和上传的顺序相同，部分失败时其它文件照常保存
+     */
+    @PostMapping("/upload/files")
+    @ResponseBody
+    @CrossOrigin
+    public ResponseEntity<Map<String, Object>> uploadFiles(@RequestParam("files") List<MultipartFile> multipartFiles,
+                                                           HttpServletRequest request) {
+        if (multipartFiles.size() > batchMaxFiles) {
+            return ResponseEntity.badRequest()
+                    .body(Collections.singletonMap("error", "too many files, max " + batchMaxFiles));
+        }
+
+        String dir = request.getParameter("dir");
+
+        return ResponseEntity.ok(uploadService.uploadBatch(multipartFiles, dir));
+    }
+
+    /**
+     * 已上传文件的分页列表（来自内存索引，不访问磁盘；使用对象存储时分页查询存储）
+     * 第一页不传cursor，之后传上一页返回的nextCursor
+     */
+    @GetMapping("/upload/list")
+    @ResponseBody
+    public ResponseEntity<byte[]> list(@RequestParam(value = "cursor", required = false) String cursor,
+                                       @RequestParam(value = "limit", defaultValue = "100") int limit) throws IOException {
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(uploadService.listUploads(cursor, Math.max(1, Math.min(limit, 1000))));
+    }
 }
@@ -0,0 +1,191 @@
+package com.kuangstudy.storage;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 本地磁盘存储，key就是相对根目录的路径
+ * 以点开头的隐藏文件（索引、缩略图等）和 .part 临时文件不出现在list()中
+ */
+public class LocalStorageBackend implements StorageBackend {
+
+    private final Path root;
+
+    public LocalStorageBackend(Path root) {
+        this.root = root.toAbsolutePath().normalize();
+    }
+
+    @Override
+    public void put(String key, InputStream inputStream, long size) throws IOException {
+        Path target = resolve(key);
+        Files.createDirectories(target.getParent());
+        // 先写到临时文件再重命名，读的一方不会看到写了一半的文件
+        Path temp = target.resolveSibling("." + target.getFileName() + "." + UUID.randomUUID() + ".part");
+        try {
+            try (OutputStream outputStream = Files.newOutputStream(temp, StandardOpenOption.CREATE_NEW)) {
+                inputStream.transferTo(outputStream);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    @Override
+    public InputStream getRange(String key, long offset, long length) throws IOException {
+        FileChannel channel = FileChannel.open(resolve(key), StandardOpenOption.READ);
+        channel.position(offset);
+        InputStream inputStream = Channels.newInputStream(channel);
+        return length < 0 ? inputStream : new RangeInputStream(inputStream, length);
+    }
+
+    @Override
+    public StorageObject stat(String key) throws IOException {
+        Path path = resolve(key);
+        try {
+            return toObject(StorageBackend.normalizeKey(key), path, Files.readAttributes(path, BasicFileAttributes.class));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public StoragePage list(String prefix, String cursor, int limit) throws IOException {
+        String normalizedPrefix = prefix == null ? "" : StorageBackend.normalizeKey(prefix);
+        if (prefix != null && prefix.endsWith("/") && !normalizedPrefix.isEmpty()) {
+            normalizedPrefix += "/";
+        }
+        // 从前缀中最深的目录开始找
+        int slash = normalizedPrefix.lastIndexOf('/');
+        Path start = slash == -1 ? root : resolve(normalizedPrefix.substring(0, slash));
+        if (!Files.isDirectory(start)) {
+            return new StoragePage(new ArrayList<>(), null);
+        }
+        String keyPrefix = normalizedPrefix;
+        List<String> keys;
+        try (Stream<Path> paths = Files.walk(start)) {
+            keys = paths.filter(path -> Files.isRegularFile(path) && !isHidden(path))
+                    .map(this::keyOf)
+                    .filter(key -> key.startsWith(keyPrefix) && (cursor == null || key.compareTo(cursor) > 0))
+                    .sorted()
+                    .limit(limit + 1L)
+                    .collect(Collectors.toList());
+        }
+        List<StorageObject> objects = new ArrayList<>(Math.min(keys.size(), limit));
+        for (String key : keys.subList(0, Math.min(keys.size(), limit))) {
+            StorageObject object = stat(key);
+            if (object != null) {
+                objects.add(object);
+            }
+        }
+        String nextCursor = keys.size() > limit ? keys.get(limit - 1) : null;
+        return new StoragePage(objects, nextCursor);
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        Files.deleteIfExists(resolve(key));
+    }
+
+    @Override
+    public Path localPath(String key) {
+        return resolve(key);
+    }
+
+    @Override
+    public boolean isLocal() {
+        return true;
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    private Path resolve(String key) {
+        Path path = root.resolve(StorageBackend.normalizeKey(key)).normalize();
+        if (!path.startsWith(root)) {
+            throw new IllegalArgumentException("Invalid storage key: " + key);
+        }
+        return path;
+    }
+
+    private String keyOf(Path path) {
+        return root.relativize(path).toString().replace('\\', '/');
+    }
+
+    private static boolean isHidden(Path path) {
+        String name = path.getFileName().toString();
+        return name.startsWith(".") || name.endsWith(".part");
+    }
+
+    private static StorageObject toObject(String key, Path path, BasicFileAttributes attrs) {
+        long size = attrs.size();
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        // 和文件索引的ETag格式相同：文件大小+修改时间
+        String eTag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+        return new StorageObject(key, size, lastModified, eTag, path);
+    }
+
+    /**
+     * 只读取前length个字节
+     */
+    private static final class RangeInputStream extends FilterInputStream {
+        private long remaining;
+
+        RangeInputStream(InputStream inputStream, long length) {
+            super(inputStream);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b != -1) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = super.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+    }
+}
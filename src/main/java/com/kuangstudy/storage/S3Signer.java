@@ -0,0 +1,145 @@
+package com.kuangstudy.storage;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * AWS Signature Version 4 签名（S3），请求体不参与签名（UNSIGNED-PAYLOAD），上传大文件时不用先算一遍SHA-256
+ * https://docs.aws.amazon.com/AmazonS3/latest/API/sig-v4-header-based-auth.html
+ */
+public class S3Signer {
+
+    public static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+
+    private static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final String region;
+    private final String accessKey;
+    private final String secretKey;
+
+    public S3Signer(String region, String accessKey, String secretKey) {
+        this.region = region;
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+    }
+
+    /**
+     * 计算签名用的请求头（x-amz-date、x-amz-content-sha256、Authorization）
+     * @param rawPath 已经编码的路径，和实际请求的完全一致
+     * @param query 未编码的查询参数
+     * @param headers 需要签名的其它请求头（不含host）
+     * @return 要加到请求上的请求头
+     */
+    public Map<String, String> sign(String method, String host, String rawPath, Map<String, String> query,
+                                    Map<String, String> headers, ZonedDateTime now) {
+        String amzDate = now.withZoneSameInstant(ZoneOffset.UTC).format(AMZ_DATE);
+        String date = amzDate.substring(0, 8);
+
+        TreeMap<String, String> signedHeaders = new TreeMap<>();
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            signedHeaders.put(header.getKey().toLowerCase(Locale.ROOT), header.getValue().trim());
+        }
+        signedHeaders.put("host", host);
+        signedHeaders.put("x-amz-content-sha256", UNSIGNED_PAYLOAD);
+        signedHeaders.put("x-amz-date", amzDate);
+
+        StringBuilder canonicalHeaders = new StringBuilder();
+        for (Map.Entry<String, String> header : signedHeaders.entrySet()) {
+            canonicalHeaders.append(header.getKey()).append(':').append(header.getValue()).append('\n');
+        }
+        String signedHeaderNames = String.join(";", signedHeaders.keySet());
+
+        String canonicalRequest = method + "\n"
+                + (rawPath.isEmpty() ? "/" : rawPath) + "\n"
+                + canonicalQuery(query) + "\n"
+                + canonicalHeaders + "\n"
+                + signedHeaderNames + "\n"
+                + UNSIGNED_PAYLOAD;
+
+        String scope = date + "/" + region + "/s3/aws4_request";
+        String stringToSign = "AWS4-HMAC-SHA256\n" + amzDate + "\n" + scope + "\n" + hex(sha256(canonicalRequest));
+
+        byte[] signingKey = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), date);
+        signingKey = hmac(signingKey, region);
+        signingKey = hmac(signingKey, "s3");
+        signingKey = hmac(signingKey, "aws4_request");
+        String signature = hex(hmac(signingKey, stringToSign));
+
+        Map<String, String> result = new TreeMap<>();
+        result.put("x-amz-content-sha256", UNSIGNED_PAYLOAD);
+        result.put("x-amz-date", amzDate);
+        result.put("Authorization", "AWS4-HMAC-SHA256 Credential=" + accessKey + "/" + scope
+                + ", SignedHeaders=" + signedHeaderNames + ", Signature=" + signature);
+        return result;
+    }
+
+    /**
+     * 按参数名排序、编码后的查询字符串，同时用作实际请求的查询字符串
+     */
+    public static String canonicalQuery(Map<String, String> query) {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, String> parameter : new TreeMap<>(query).entrySet()) {
+            if (builder.length() > 0) {
+                builder.append('&');
+            }
+            builder.append(uriEncode(parameter.getKey(), true)).append('=').append(uriEncode(parameter.getValue(), true));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * S3要求的URI编码：除了 A-Za-z0-9-_.~ 都编码，encodeSlash为false时保留"/"（对象key）
+     */
+    public static String uriEncode(String value, boolean encodeSlash) {
+        StringBuilder builder = new StringBuilder(value.length() + 16);
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xFF);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_' || c == '.' || c == '~' || (c == '/' && !encodeSlash)) {
+                builder.append(c);
+            } else {
+                builder.append('%').append(Character.toUpperCase(HEX[(b >> 4) & 0xF]))
+                        .append(Character.toUpperCase(HEX[b & 0xF]));
+            }
+        }
+        return builder.toString();
+    }
+
+    private static byte[] hmac(byte[] key, String data) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] sha256(String data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+}
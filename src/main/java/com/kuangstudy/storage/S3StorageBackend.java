@@ -0,0 +1,493 @@
+package com.kuangstudy.storage;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * S3兼容的对象存储（AWS S3、MinIO等），只用JDK自带的HttpClient，路径风格的URL：endpoint/bucket/key
+ * - 大文件分片上传（multipart upload），最多 parallelism 个分片同时上传，内存中最多 parallelism+1 个分片
+ * - 大区间读取拆成 readPartSize 大小的多个Range请求并行下载，按顺序交给调用方，前面的还在读时后面的已经在下载；
+ *   每个流正在读的和下一个分段不受限制，再往后预读的分段占用 readAhead（所有流共用的字节数），不够时不预读，
+ *   所以并发的流再多，预读占用的堆内存也有上限
+ * 只读取不超过 readPartSize 的区间时就是一次普通的Range请求
+ */
+public class S3StorageBackend implements StorageBackend {
+
+    /**
+     * S3要求除了最后一个分片，每个分片至少5MB
+     */
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(60);
+
+    private final String endpoint;
+    private final String host;
+    private final String bucket;
+    private final String keyPrefix;
+    private final int partSize;
+    private final int parallelism;
+    private final int readPartSize;
+    private final Semaphore readAhead;
+    private final Executor executor;
+    private final S3Signer signer;
+    private final HttpClient httpClient;
+
+    /**
+     * @param endpoint 例如 https://s3.ap-northeast-1.amazonaws.com、http://minio:9000
+     * @param keyPrefix 所有key前面加的前缀，例如 upload/，可以为空
+     * @param partSize 分片上传的分片大小
+     * @param parallelism 每个上传/读取同时进行的请求数
+     * @param readPartSize 并行读取的分段大小
+     * @param readAhead 预读的分段占用的字节数，可以被多个存储共用
+     * @param executor 执行分片上传和分片读取的线程池
+     */
+    public S3StorageBackend(URI endpoint, String region, String bucket, String accessKey, String secretKey,
+                            String keyPrefix, int partSize, int parallelism, int readPartSize, Semaphore readAhead,
+                            Executor executor) {
+        if (partSize < MIN_PART_SIZE) {
+            throw new IllegalArgumentException("partSize must be at least " + MIN_PART_SIZE);
+        }
+        String endpointString = endpoint.toString();
+        this.endpoint = endpointString.endsWith("/") ? endpointString.substring(0, endpointString.length() - 1) : endpointString;
+        this.host = endpoint.getPort() == -1 ? endpoint.getHost() : endpoint.getHost() + ":" + endpoint.getPort();
+        this.bucket = bucket;
+        this.keyPrefix = keyPrefix == null ? "" : keyPrefix;
+        this.partSize = partSize;
+        this.parallelism = Math.max(1, parallelism);
+        this.readPartSize = Math.max(1, readPartSize);
+        this.readAhead = readAhead;
+        this.executor = executor;
+        this.signer = new S3Signer(region, accessKey, secretKey);
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+    }
+
+    @Override
+    public void put(String key, InputStream inputStream, long size) throws IOException {
+        key = StorageBackend.normalizeKey(key);
+        byte[] first = readPart(inputStream);
+        if (first.length < partSize) {
+            // 一个分片就装得下，普通上传
+            HttpResponse<String> response = send("PUT", key, Collections.emptyMap(), Collections.emptyMap(),
+                    HttpRequest.BodyPublishers.ofByteArray(first), HttpResponse.BodyHandlers.ofString());
+            check(response, "put", key);
+            return;
+        }
+        multipartUpload(key, first, inputStream);
+    }
+
+    private void multipartUpload(String key, byte[] first, InputStream inputStream) throws IOException {
+        String uploadId = initiateMultipartUpload(key);
+        List<CompletableFuture<String>> parts = new ArrayList<>();
+        // 分片读进内存后交给线程池上传，同时在传输中的分片数有上限，内存占用固定
+        Semaphore inFlight = new Semaphore(parallelism);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        try {
+            byte[] part = first;
+            while (part.length > 0 && failure.get() == null) {
+                inFlight.acquire();
+                int partNumber = parts.size() + 1;
+                byte[] body = part;
+                CompletableFuture<String> future;
+                try {
+                    future = CompletableFuture.supplyAsync(() -> uploadPart(key, uploadId, partNumber, body), executor);
+                } catch (RuntimeException e) {
+                    inFlight.release();
+                    throw e;
+                }
+                future.whenComplete((eTag, e) -> {
+                    if (e != null) {
+                        failure.compareAndSet(null, e);
+                    }
+                    inFlight.release();
+                });
+                parts.add(future);
+                part = readPart(inputStream);
+            }
+            List<String> eTags = new ArrayList<>(parts.size());
+            for (CompletableFuture<String> future : parts) {
+                eTags.add(join(future));
+            }
+            completeMultipartUpload(key, uploadId, eTags);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abortMultipartUpload(key, uploadId, parts);
+            throw new InterruptedIOException("upload interrupted: " + key);
+        } catch (IOException | RuntimeException e) {
+            abortMultipartUpload(key, uploadId, parts);
+            throw e;
+        }
+    }
+
+    private String initiateMultipartUpload(String key) throws IOException {
+        HttpResponse<String> response = send("POST", key, Collections.singletonMap("uploads", ""), Collections.emptyMap(),
+                HttpRequest.BodyPublishers.noBody(), HttpResponse.BodyHandlers.ofString());
+        check(response, "initiate multipart upload", key);
+        return text(parseXml(response.body()).getDocumentElement(), "UploadId");
+    }
+
+    private String uploadPart(String key, String uploadId, int partNumber, byte[] body) {
+        Map<String, String> query = new LinkedHashMap<>();
+        query.put("partNumber", String.valueOf(partNumber));
+        query.put("uploadId", uploadId);
+        try {
+            HttpResponse<String> response = send("PUT", key, query, Collections.emptyMap(),
+                    HttpRequest.BodyPublishers.ofByteArray(body), HttpResponse.BodyHandlers.ofString());
+            check(response, "upload part " + partNumber, key);
+            return response.headers().firstValue("ETag")
+                    .orElseThrow(() -> new IOException("no ETag for part " + partNumber + " of " + key));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void completeMultipartUpload(String key, String uploadId, List<String> eTags) throws IOException {
+        StringBuilder xml = new StringBuilder("<CompleteMultipartUpload>");
+        for (int i = 0; i < eTags.size(); i++) {
+            xml.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>")
+                    .append(escapeXml(eTags.get(i))).append("</ETag></Part>");
+        }
+        xml.append("</CompleteMultipartUpload>");
+        HttpResponse<String> response = send("POST", key, Collections.singletonMap("uploadId", uploadId),
+                Collections.singletonMap("Content-Type", "application/xml"),
+                HttpRequest.BodyPublishers.ofString(xml.toString()), HttpResponse.BodyHandlers.ofString());
+        check(response, "complete multipart upload", key);
+        // 合并分片时出错，S3也可能返回200，错误在响应体里
+        if (response.body().contains("<Error>")) {
+            throw new IOException("S3 complete multipart upload failed: " + key + ": " + response.body());
+        }
+    }
+
+    /**
+     * 放弃分片上传，删除已经上传的分片（失败了也不影响原来的异常）
+     */
+    private void abortMultipartUpload(String key, String uploadId, List<CompletableFuture<String>> parts) {
+        for (CompletableFuture<String> part : parts) {
+            try {
+                part.join();
+            } catch (CompletionException | java.util.concurrent.CancellationException ignored) {
+            }
+        }
+        try {
+            send("DELETE", key, Collections.singletonMap("uploadId", uploadId), Collections.emptyMap(),
+                    HttpRequest.BodyPublishers.noBody(), HttpResponse.BodyHandlers.discarding());
+        } catch (IOException e) {
+            System.out.println("S3 abort multipart upload failed: " + key + ": " + e);
+        }
+    }
+
+    @Override
+    public InputStream getRange(String key, long offset, long length) throws IOException {
+        key = StorageBackend.normalizeKey(key);
+        if (length < 0) {
+            StorageObject object = stat(key);
+            if (object == null) {
+                throw new FileNotFoundException(key);
+            }
+            length = Math.max(0, object.getSize() - offset);
+        }
+        if (length == 0) {
+            return InputStream.nullInputStream();
+        }
+        if (length <= readPartSize) {
+            return openRange(key, offset, length);
+        }
+        return new ParallelRangeInputStream(key, offset, offset + length);
+    }
+
+    private InputStream openRange(String key, long offset, long length) throws IOException {
+        HttpResponse<InputStream> response = send("GET", key, Collections.emptyMap(),
+                Collections.singletonMap("Range", "bytes=" + offset + "-" + (offset + length - 1)),
+                HttpRequest.BodyPublishers.noBody(), HttpResponse.BodyHandlers.ofInputStream());
+        // 不支持Range的服务器或代理会返回200和整个文件，不能当成请求的区间
+        String expectedRange = "bytes " + offset + "-" + (offset + length - 1) + "/";
+        String contentRange = response.headers().firstValue("Content-Range").orElse("");
+        if (response.statusCode() != 206 || !contentRange.startsWith(expectedRange)) {
+            String body;
+            try (InputStream inputStream = response.body()) {
+                body = response.statusCode() == 200 ? "" : new String(inputStream.readNBytes(4096), java.nio.charset.StandardCharsets.UTF_8);
+            }
+            if (response.statusCode() == 404) {
+                throw new FileNotFoundException(key);
+            }
+            throw new IOException("S3 get failed: " + key + " bytes=" + offset + "+" + length + ": "
+                    + response.statusCode() + " " + contentRange + " " + body);
+        }
+        return response.body();
+    }
+
+    private byte[] fetchRange(String key, long offset, int length) {
+        try {
+            HttpResponse<byte[]> response = send("GET", key, Collections.emptyMap(),
+                    Collections.singletonMap("Range", "bytes=" + offset + "-" + (offset + length - 1)),
+                    HttpRequest.BodyPublishers.noBody(), HttpResponse.BodyHandlers.ofByteArray());
+            if (response.statusCode() == 404) {
+                throw new FileNotFoundException(key);
+            }
+            if (response.statusCode() != 206 || response.body().length != length) {
+                throw new IOException("S3 get range failed: " + key + " bytes=" + offset + "+" + length
+                        + ": " + response.statusCode());
+            }
+            return response.body();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public StorageObject stat(String key) throws IOException {
+        key = StorageBackend.normalizeKey(key);
+        HttpResponse<Void> response = send("HEAD", key, Collections.emptyMap(), Collections.emptyMap(),
+                HttpRequest.BodyPublishers.noBody(), HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() == 404) {
+            return null;
+        }
+        check(response, "stat", key);
+        long size = response.headers().firstValueAsLong("Content-Length").orElse(0);
+        long lastModified = response.headers().firstValue("Last-Modified")
+                .map(value -> ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli())
+                .orElse(0L);
+        String eTag = response.headers().firstValue("ETag").orElse(null);
+        return new StorageObject(key, size, lastModified, eTag, null);
+    }
+
+    @Override
+    public StoragePage list(String prefix, String cursor, int limit) throws IOException {
+        Map<String, String> query = new LinkedHashMap<>();
+        query.put("list-type", "2");
+        query.put("max-keys", String.valueOf(limit));
+        query.put("prefix", keyPrefix + (prefix == null ? "" : prefix));
+        if (cursor != null && !cursor.isEmpty()) {
+            query.put("start-after", keyPrefix + cursor);
+        }
+        HttpResponse<String> response = send("GET", null, query, Collections.emptyMap(),
+                HttpRequest.BodyPublishers.noBody(), HttpResponse.BodyHandlers.ofString());
+        check(response, "list", prefix);
+
+        Element result = parseXml(response.body()).getDocumentElement();
+        NodeList contents = result.getElementsByTagName("Contents");
+        List<StorageObject> objects = new ArrayList<>(contents.getLength());
+        for (int i = 0; i < contents.getLength(); i++) {
+            Element content = (Element) contents.item(i);
+            String key = text(content, "Key");
+            objects.add(new StorageObject(key.substring(keyPrefix.length()),
+                    Long.parseLong(text(content, "Size")),
+                    Instant.parse(text(content, "LastModified")).toEpochMilli(),
+                    text(content, "ETag"),
+                    null));
+        }
+        boolean truncated = "true".equals(text(result, "IsTruncated"));
+        String nextCursor = truncated && !objects.isEmpty() ? objects.get(objects.size() - 1).getKey() : null;
+        return new StoragePage(objects, nextCursor);
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        key = StorageBackend.normalizeKey(key);
+        HttpResponse<String> response = send("DELETE", key, Collections.emptyMap(), Collections.emptyMap(),
+                HttpRequest.BodyPublishers.noBody(), HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 404) {
+            check(response, "delete", key);
+        }
+    }
+
+    /**
+     * 签名并发送请求
+     * @param key 对象的key（不含keyPrefix），为null时是对bucket的请求
+     */
+    private <T> HttpResponse<T> send(String method, String key, Map<String, String> query, Map<String, String> headers,
+                                     HttpRequest.BodyPublisher body, HttpResponse.BodyHandler<T> bodyHandler) throws IOException {
+        String rawPath = "/" + bucket + (key == null ? "" : "/" + S3Signer.uriEncode(keyPrefix + key, false));
+        String queryString = S3Signer.canonicalQuery(query);
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(endpoint + rawPath
+                        + (queryString.isEmpty() ? "" : "?" + queryString)))
+                .timeout(REQUEST_TIMEOUT)
+                .method(method, body);
+        headers.forEach(builder::header);
+        signer.sign(method, host, rawPath, query, headers, ZonedDateTime.now()).forEach(builder::header);
+        try {
+            return httpClient.send(builder.build(), bodyHandler);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(method + " " + rawPath + " interrupted");
+        }
+    }
+
+    private static void check(HttpResponse<?> response, String action, String key) throws IOException {
+        if (response.statusCode() / 100 != 2) {
+            Object body = response.body();
+            throw new IOException("S3 " + action + " failed: " + key + ": " + response.statusCode()
+                    + (body instanceof String ? " " + body : ""));
+        }
+    }
+
+    /**
+     * 读取一个分片大小的数据，输入流结束时返回的数组会比较短（或者为空）
+     */
+    private byte[] readPart(InputStream inputStream) throws IOException {
+        return inputStream.readNBytes(partSize);
+    }
+
+    private static <T> T join(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static Document parseXml(String xml) throws IOException {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            return factory.newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException("invalid S3 response: " + xml, e);
+        }
+    }
+
+    private static String text(Element element, String tagName) {
+        NodeList nodes = element.getElementsByTagName(tagName);
+        return nodes.getLength() == 0 ? null : nodes.item(0).getTextContent();
+    }
+
+    private static String escapeXml(String value) {
+        return value.replace("&", "&amp;").replace("\"", "&quot;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    /**
+     * 并行分段读取：最多同时有 parallelism 个Range请求在下载，按顺序返回数据
+     * 窗口中的第一个分段总是下载，后面的分段要先拿到 readAhead，读完（或者关闭流）时归还
+     */
+    private final class ParallelRangeInputStream extends InputStream {
+        private final String key;
+        private final long end;
+        private final Deque<CompletableFuture<byte[]>> window = new ArrayDeque<>();
+        /**
+         * window中每个分段占用的readAhead，和window一一对应
+         */
+        private final Deque<Integer> windowPermits = new ArrayDeque<>();
+        private long nextOffset;
+        private byte[] current;
+        private int currentPermits;
+        private int position;
+
+        ParallelRangeInputStream(String key, long offset, long end) {
+            this.key = key;
+            this.nextOffset = offset;
+            this.end = end;
+            fillWindow();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (current == null || position >= current.length) {
+                if (!advance()) {
+                    return -1;
+                }
+            }
+            int count = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return current == null ? 0 : current.length - position;
+        }
+
+        @Override
+        public void close() {
+            for (CompletableFuture<byte[]> future : window) {
+                future.cancel(false);
+            }
+            window.clear();
+            for (int permits : windowPermits) {
+                readAhead.release(permits);
+            }
+            windowPermits.clear();
+            releaseCurrent();
+        }
+
+        private boolean advance() throws IOException {
+            releaseCurrent();
+            CompletableFuture<byte[]> next = window.poll();
+            if (next == null) {
+                return false;
+            }
+            currentPermits = windowPermits.poll();
+            fillWindow();
+            current = join(next);
+            position = 0;
+            return true;
+        }
+
+        private void releaseCurrent() {
+            readAhead.release(currentPermits);
+            currentPermits = 0;
+            current = null;
+        }
+
+        private void fillWindow() {
+            while (window.size() < parallelism && nextOffset < end) {
+                long offset = nextOffset;
+                int length = (int) Math.min(readPartSize, end - offset);
+                int permits = window.isEmpty() ? 0 : length;
+                if (permits > 0 && !readAhead.tryAcquire(permits)) {
+                    // 预读的内存用完了，读完窗口中的分段后再下载
+                    return;
+                }
+                nextOffset += length;
+                window.add(CompletableFuture.supplyAsync(() -> fetchRange(key, offset, length), executor));
+                windowPermits.add(permits);
+            }
+        }
+    }
+}
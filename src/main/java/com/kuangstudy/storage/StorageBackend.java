@@ -0,0 +1,77 @@
+package com.kuangstudy.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+/**
+ * 文件存储的抽象：本地磁盘（LocalStorageBackend）或者S3兼容的对象存储（S3StorageBackend）
+ * 多个无状态节点共用一个对象存储时，上传和预览都经过这里读写文件。
+ * key是相对路径（bbs/20220101/ab/a.jpg），分隔符是"/"，不能包含".."
+ */
+public interface StorageBackend {
+
+    /**
+     * 保存文件，已经存在时覆盖，不关闭输入流
+     * @param size 文件大小，不知道时传-1
+     */
+    void put(String key, InputStream inputStream, long size) throws IOException;
+
+    /**
+     * 读取文件的[offset, offset + length)区间，调用方负责关闭返回的流
+     * @param length 读取的长度，-1表示读到文件末尾
+     */
+    InputStream getRange(String key, long offset, long length) throws IOException;
+
+    /**
+     * 文件信息，不存在时返回null
+     */
+    StorageObject stat(String key) throws IOException;
+
+    /**
+     * 按key排序的游标分页
+     * @param prefix key的前缀，例如 bbs/
+     * @param cursor 上一页最后一个key，第一页传null
+     */
+    StoragePage list(String prefix, String cursor, int limit) throws IOException;
+
+    /**
+     * 删除文件，不存在时什么都不做
+     */
+    void delete(String key) throws IOException;
+
+    /**
+     * 文件在本地磁盘上的路径，调用方可以用零拷贝、内存映射、硬链接等只有本地文件才能用的方式
+     * @return 对象存储返回null
+     */
+    default Path localPath(String key) {
+        return null;
+    }
+
+    /**
+     * 是否是本地磁盘存储
+     */
+    default boolean isLocal() {
+        return false;
+    }
+
+    /**
+     * 统一key的格式：去掉开头的斜杠、空的和"."的路径段，包含".."时抛出IllegalArgumentException（防止路径遍历）
+     */
+    static String normalizeKey(String key) {
+        StringBuilder normalized = new StringBuilder(key.length());
+        for (String segment : key.replace('\\', '/').split("/")) {
+            if (segment.isEmpty() || ".".equals(segment)) {
+                continue;
+            }
+            if ("..".equals(segment)) {
+                throw new IllegalArgumentException("Invalid storage key: " + key);
+            }
+            if (normalized.length() > 0) {
+                normalized.append('/');
+            }
+            normalized.append(segment);
+        }
+        return normalized.toString();
+    }
+}
@@ -0,0 +1,56 @@
+package com.kuangstudy.storage;
+
+import java.nio.file.Path;
+
+/**
+ * 存储中的一个文件的信息，不可变
+ */
+public final class StorageObject {
+
+    private final String key;
+    private final long size;
+    private final long lastModified;
+    private final String eTag;
+    private final Path localPath;
+
+    public StorageObject(String key, long size, long lastModified, String eTag, Path localPath) {
+        this.key = key;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.eTag = eTag;
+        this.localPath = localPath;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * key的最后一段
+     */
+    public String getName() {
+        return key.substring(key.lastIndexOf('/') + 1);
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * 带双引号的ETag
+     */
+    public String getETag() {
+        return eTag;
+    }
+
+    /**
+     * 本地磁盘上的路径，对象存储中的文件为null
+     */
+    public Path getLocalPath() {
+        return localPath;
+    }
+}
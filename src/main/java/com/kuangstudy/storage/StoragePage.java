@@ -0,0 +1,28 @@
+package com.kuangstudy.storage;
+
+import java.util.List;
+
+/**
+ * list() 的一页结果
+ */
+public final class StoragePage {
+
+    private final List<StorageObject> objects;
+    private final String nextCursor;
+
+    public StoragePage(List<StorageObject> objects, String nextCursor) {
+        this.objects = objects;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<StorageObject> getObjects() {
+        return objects;
+    }
+
+    /**
+     * 下一页的游标，没有下一页时为null
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
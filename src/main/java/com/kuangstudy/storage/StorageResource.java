@@ -0,0 +1,107 @@
+package com.kuangstudy.storage;
+
+import org.springframework.core.io.AbstractResource;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 存储中的文件作为spring的Resource返回（ResponseEntity<Resource>、静态资源）
+ * 大小和修改时间来自stat的结果，不再请求存储；
+ * Range请求时spring先skip()再读，第一次读取之前的skip只是移动起始位置，只向存储请求需要的区间
+ */
+public class StorageResource extends AbstractResource {
+
+    private final StorageBackend storage;
+    private final StorageObject object;
+
+    public StorageResource(StorageBackend storage, StorageObject object) {
+        this.storage = storage;
+        this.object = object;
+    }
+
+    public StorageObject getObject() {
+        return object;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return new LazyRangeInputStream();
+    }
+
+    @Override
+    public boolean exists() {
+        return true;
+    }
+
+    @Override
+    public long contentLength() {
+        return object.getSize();
+    }
+
+    @Override
+    public long lastModified() {
+        return object.getLastModified();
+    }
+
+    @Override
+    public String getFilename() {
+        return object.getName();
+    }
+
+    @Override
+    public String getDescription() {
+        return "storage object [" + object.getKey() + "]";
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return this == other || (other instanceof StorageResource
+                && storage == ((StorageResource) other).storage
+                && object.getKey().equals(((StorageResource) other).object.getKey()));
+    }
+
+    @Override
+    public int hashCode() {
+        return object.getKey().hashCode();
+    }
+
+    private final class LazyRangeInputStream extends InputStream {
+        private long offset;
+        private InputStream delegate;
+
+        @Override
+        public int read() throws IOException {
+            return open().read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return open().read(b, off, len);
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (delegate != null) {
+                return delegate.skip(n);
+            }
+            long skipped = Math.max(0, Math.min(n, object.getSize() - offset));
+            offset += skipped;
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (delegate != null) {
+                delegate.close();
+            }
+        }
+
+        private InputStream open() throws IOException {
+            if (delegate == null) {
+                delegate = storage.getRange(object.getKey(), offset, object.getSize() - offset);
+            }
+            return delegate;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.kuangstudy.util;
+
+import java.util.Locale;
+
+/**
+ * Accept-Encoding 请求头的协商
+ */
+public final class ContentEncodingUtils {
+
+    public static final String GZIP = "gzip";
+
+    private ContentEncodingUtils() {
+    }
+
+    /**
+     * 客户端是否接受gzip，支持q值（gzip;q=0 表示不接受）和通配符 *
+     */
+    public static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.isEmpty()) {
+            return false;
+        }
+        boolean wildcard = false;
+        for (String token : acceptEncoding.split(",")) {
+            String[] parts = token.split(";");
+            String coding = parts[0].trim().toLowerCase(Locale.ROOT);
+            boolean accepted = quality(parts) > 0;
+            if (GZIP.equals(coding) || "x-gzip".equals(coding)) {
+                // 明确写了gzip时以它为准，不看通配符
+                return accepted;
+            }
+            if ("*".equals(coding)) {
+                wildcard = accepted;
+            }
+        }
+        return wildcard;
+    }
+
+    private static double quality(String[] parts) {
+        for (int i = 1; i < parts.length; i++) {
+            String param = parts[i].trim();
+            if (param.startsWith("q=") || param.startsWith("Q=")) {
+                try {
+                    return Double.parseDouble(param.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+}
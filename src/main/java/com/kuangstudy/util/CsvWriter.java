@@ -0,0 +1,137 @@
+package com.kuangstudy.util;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * 流式CSV写出器
+ * 字符先写进固定大小的CharBuffer，满了就编码到固定大小的ByteBuffer，再写到输出流。
+ * 两个缓冲区在整个导出过程中重复使用，所以内存占用和导出的行数无关。
+ * 非线程安全，一个导出请求用一个实例
+ */
+public class CsvWriter implements Flushable {
+
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private static final String LINE_SEPARATOR = "\r\n";
+
+    private final OutputStream outputStream;
+    private final CharsetEncoder encoder;
+    private final CharBuffer charBuffer;
+    private final ByteBuffer byteBuffer;
+    private final char[] digits = new char[20];
+
+    public CsvWriter(OutputStream outputStream, Charset charset) {
+        this(outputStream, charset, DEFAULT_BUFFER_SIZE);
+    }
+
+    public CsvWriter(OutputStream outputStream, Charset charset, int bufferSize) {
+        this.outputStream = outputStream;
+        // 和String.getBytes一样，无法编码的字符替换成"?"
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.charBuffer = CharBuffer.allocate(bufferSize);
+        // MS932等多字节编码一个字符最多占maxBytesPerChar个字节
+        this.byteBuffer = ByteBuffer.allocate((int) Math.ceil(bufferSize * encoder.maxBytesPerChar()));
+    }
+
+    public CsvWriter append(String value) throws IOException {
+        int offset = 0;
+        int length = value.length();
+        while (offset < length) {
+            if (!charBuffer.hasRemaining()) {
+                encode(false);
+            }
+            int count = Math.min(length - offset, charBuffer.remaining());
+            value.getChars(offset, offset + count, charBuffer.array(), charBuffer.position());
+            charBuffer.position(charBuffer.position() + count);
+            offset += count;
+        }
+        return this;
+    }
+
+    public CsvWriter append(char value) throws IOException {
+        if (!charBuffer.hasRemaining()) {
+            encode(false);
+        }
+        charBuffer.put(value);
+        return this;
+    }
+
+    /**
+     * 追加整数，不经过Integer.toString，避免每行产生临时字符串
+     */
+    public CsvWriter append(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            return append(Long.toString(value));
+        }
+        if (value < 0) {
+            append('-');
+            value = -value;
+        }
+        int position = digits.length;
+        do {
+            digits[--position] = (char) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        for (int i = position; i < digits.length; i++) {
+            append(digits[i]);
+        }
+        return this;
+    }
+
+    public CsvWriter newLine() throws IOException {
+        return append(LINE_SEPARATOR);
+    }
+
+    /**
+     * 把缓冲区中剩余的字符全部编码并写到输出流
+     */
+    @Override
+    public void flush() throws IOException {
+        encode(false);
+        writeBytes();
+        outputStream.flush();
+    }
+
+    /**
+     * 导出结束时调用，写出编码器内部残留的状态，不关闭输出流
+     */
+    public void finish() throws IOException {
+        encode(true);
+        while (encoder.flush(byteBuffer).isOverflow()) {
+            writeBytes();
+        }
+        writeBytes();
+        encoder.reset();
+        outputStream.flush();
+    }
+
+    private void encode(boolean endOfInput) throws IOException {
+        charBuffer.flip();
+        while (true) {
+            CoderResult result = encoder.encode(charBuffer, byteBuffer, endOfInput);
+            if (result.isOverflow()) {
+                writeBytes();
+                continue;
+            }
+            break;
+        }
+        charBuffer.compact();
+    }
+
+    private void writeBytes() throws IOException {
+        if (byteBuffer.position() > 0) {
+            outputStream.write(byteBuffer.array(), 0, byteBuffer.position());
+            byteBuffer.clear();
+        }
+    }
+}
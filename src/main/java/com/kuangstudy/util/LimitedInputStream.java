@@ -0,0 +1,58 @@
+package com.kuangstudy.util;
+
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 限制最多能读取的字节数，超过时抛出 MaxUploadSizeExceededException，
+ * 和servlet的multipart解析超过 max-file-size / max-request-size 时的异常保持一致
+ */
+public class LimitedInputStream extends FilterInputStream {
+
+    private final long limit;
+    private long count;
+
+    public LimitedInputStream(InputStream inputStream, long limit) {
+        super(inputStream);
+        this.limit = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) {
+            check(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0) {
+            check(n);
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        check(skipped);
+        return skipped;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    private void check(long n) {
+        count += n;
+        if (count > limit) {
+            throw new MaxUploadSizeExceededException(limit);
+        }
+    }
+}
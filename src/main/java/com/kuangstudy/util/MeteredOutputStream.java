@@ -0,0 +1,32 @@
+package com.kuangstudy.util;
+
+import com.kuangstudy.Service.StreamMetrics;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 统计写出字节数的输出流，批量写直接转给下层流（FilterOutputStream默认是逐字节写）
+ */
+public class MeteredOutputStream extends FilterOutputStream {
+
+    private final StreamMetrics.Recorder recorder;
+
+    public MeteredOutputStream(OutputStream out, StreamMetrics.Recorder recorder) {
+        super(out);
+        this.recorder = recorder;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        recorder.written(1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        recorder.written(len);
+    }
+}
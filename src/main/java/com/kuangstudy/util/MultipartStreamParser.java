@@ -0,0 +1,337 @@
+package com.kuangstudy.util;
+
+import org.springframework.http.ContentDisposition;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * multipart/form-data 请求流解析器
+ * 直接从 request.getInputStream() 按顺序读出每个part，part的内容也是一个流，
+ * 读多少解析多少，不会像servlet的multipart解析那样先把整个文件落到临时目录
+ *
+ * 用法：
+ * <pre>
+ * MultipartStreamParser parser = new MultipartStreamParser(request.getInputStream(), boundary);
+ * MultipartStreamParser.Part part;
+ * while ((part = parser.nextPart()) != null) {
+ *     part.getInputStream() ...
+ * }
+ * </pre>
+ */
+public class MultipartStreamParser {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAX_HEADER_SIZE = 8192;
+
+    private final InputStream inputStream;
+
+    /**
+     * part之间的分隔符 "\r\n--boundary"
+     */
+    private final byte[] delimiter;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int head;
+    private int tail;
+    private boolean eof;
+    private boolean finished;
+    private Part currentPart;
+
+    public MultipartStreamParser(InputStream inputStream, String boundary) {
+        this.inputStream = inputStream;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        // 第一个分隔符前面没有换行，预先放一个换行进去，这样所有分隔符都可以统一处理
+        buffer[0] = '\r';
+        buffer[1] = '\n';
+        tail = 2;
+    }
+
+    /**
+     * 从Content-Type请求头中取出boundary
+     * @return 不是multipart/form-data或者没有boundary时返回null
+     */
+    public static String extractBoundary(String contentType) {
+        if (contentType == null || !contentType.toLowerCase(Locale.ROOT).startsWith("multipart/form-data")) {
+            return null;
+        }
+        for (String param : contentType.split(";")) {
+            param = param.trim();
+            if (param.toLowerCase(Locale.ROOT).startsWith("boundary=")) {
+                String boundary = param.substring("boundary=".length());
+                if (boundary.length() > 1 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+                    boundary = boundary.substring(1, boundary.length() - 1);
+                }
+                return boundary.isEmpty() ? null : boundary;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 读取下一个part，上一个part没有读完的内容会被跳过
+     * @return 没有更多part时返回null
+     */
+    public Part nextPart() throws IOException {
+        if (finished) {
+            return null;
+        }
+        // 跳过前导内容（第一次调用）或者上一个part剩下的内容
+        if (currentPart == null) {
+            new Part(null).drain();
+        } else {
+            currentPart.drain();
+        }
+
+        // 分隔符后面是"--"表示结束，是"\r\n"表示后面跟着part的头信息
+        ensure(2);
+        if (tail - head >= 2 && buffer[head] == '-' && buffer[head + 1] == '-') {
+            finished = true;
+            return null;
+        }
+        skipLine();
+
+        Map<String, String> headers = readHeaders();
+        currentPart = new Part(headers);
+        return currentPart;
+    }
+
+    private Map<String, String> readHeaders() throws IOException {
+        Map<String, String> headers = new LinkedHashMap<>();
+        int total = 0;
+        while (true) {
+            String line = readLine();
+            total += line.length();
+            if (total > MAX_HEADER_SIZE) {
+                throw new IOException("Multipart part headers too large");
+            }
+            if (line.isEmpty()) {
+                return headers;
+            }
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+            }
+        }
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            if (head == tail) {
+                fill();
+                if (head == tail) {
+                    throw new IOException("Unexpected end of multipart stream");
+                }
+            }
+            byte b = buffer[head++];
+            if (b == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            if (line.length() > MAX_HEADER_SIZE) {
+                throw new IOException("Multipart header line too long");
+            }
+            // 头信息按UTF-8处理中文文件名，先按字节收集
+            line.append((char) (b & 0xFF));
+        }
+    }
+
+    private void skipLine() throws IOException {
+        readLine();
+    }
+
+    /**
+     * 保证缓冲区里至少有n个字节（流结束时可能不足）
+     */
+    private void ensure(int n) throws IOException {
+        while (tail - head < n && !eof) {
+            fill();
+        }
+    }
+
+    private void fill() throws IOException {
+        if (eof) {
+            return;
+        }
+        if (head > 0) {
+            System.arraycopy(buffer, head, buffer, 0, tail - head);
+            tail -= head;
+            head = 0;
+        }
+        int bytesRead = inputStream.read(buffer, tail, buffer.length - tail);
+        if (bytesRead == -1) {
+            eof = true;
+        } else {
+            tail += bytesRead;
+        }
+    }
+
+    /**
+     * 在缓冲区[head, tail)中查找分隔符，返回下标，找不到返回-1
+     */
+    private int indexOfDelimiter() {
+        int last = tail - delimiter.length;
+        byte first = delimiter[0];
+        for (int i = head; i <= last; i++) {
+            if (buffer[i] != first) {
+                continue;
+            }
+            int j = 1;
+            while (j < delimiter.length && buffer[i + j] == delimiter[j]) {
+                j++;
+            }
+            if (j == delimiter.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * multipart中的一个part
+     */
+    public class Part {
+
+        private final Map<String, String> headers;
+        private String name;
+        private String fileName;
+        private boolean done;
+
+        private final InputStream partInputStream = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                int n = read(single, 0, 1);
+                return n == -1 ? -1 : single[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return readBody(b, off, len);
+            }
+        };
+
+        Part(Map<String, String> headers) {
+            this.headers = headers;
+            if (headers != null) {
+                parseDisposition(headers.get("content-disposition"));
+            }
+        }
+
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase(Locale.ROOT));
+        }
+
+        /**
+         * 表单字段名
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * 文件名，普通表单字段返回null
+         */
+        public String getFileName() {
+            return fileName;
+        }
+
+        public boolean isFile() {
+            return getFileName() != null;
+        }
+
+        public String getContentType() {
+            return getHeader("content-type");
+        }
+
+        /**
+         * part内容的输入流，读到下一个分隔符为止
+         */
+        public InputStream getInputStream() {
+            return partInputStream;
+        }
+
+        /**
+         * 把普通表单字段的内容读成字符串
+         */
+        public String getString(int maxLength) throws IOException {
+            byte[] bytes = new byte[Math.min(maxLength + 1, 1024)];
+            int length = 0;
+            int n;
+            while ((n = readBody(bytes, length, bytes.length - length)) != -1) {
+                length += n;
+                if (length > maxLength) {
+                    throw new IOException("Multipart field " + getName() + " too large");
+                }
+                if (length == bytes.length) {
+                    byte[] larger = new byte[Math.min(bytes.length * 2, maxLength + 1)];
+                    System.arraycopy(bytes, 0, larger, 0, length);
+                    bytes = larger;
+                }
+            }
+            return new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+
+        private int readBody(byte[] b, int off, int len) throws IOException {
+            if (done) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                int index = indexOfDelimiter();
+                if (index == head) {
+                    // 遇到分隔符，当前part结束
+                    head += delimiter.length;
+                    done = true;
+                    return -1;
+                }
+                // 缓冲区末尾可能是分隔符的前半截，留下delimiter.length-1个字节不返回
+                int available = index != -1 ? index - head : tail - head - (delimiter.length - 1);
+                if (available > 0) {
+                    int count = Math.min(available, len);
+                    System.arraycopy(buffer, head, b, off, count);
+                    head += count;
+                    return count;
+                }
+                if (eof) {
+                    throw new IOException("Unexpected end of multipart stream");
+                }
+                fill();
+            }
+        }
+
+        void drain() throws IOException {
+            byte[] skip = new byte[8192];
+            while (readBody(skip, 0, skip.length) != -1) {
+                // 丢弃
+            }
+        }
+
+        private void parseDisposition(String disposition) {
+            if (disposition == null) {
+                return;
+            }
+            // 头信息是按ISO-8859-1逐字节读出来的，这里还原成UTF-8
+            disposition = new String(disposition.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+            // 引号中的分号（filename="a;b.jpg"）、filename*= 都由spring按RFC处理
+            try {
+                ContentDisposition contentDisposition = ContentDisposition.parse(disposition);
+                name = contentDisposition.getName();
+                fileName = contentDisposition.getFilename();
+            } catch (IllegalArgumentException e) {
+                // 格式不对的头信息当作没有，这个part没有字段名，会被忽略
+            }
+        }
+    }
+}
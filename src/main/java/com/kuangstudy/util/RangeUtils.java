@@ -0,0 +1,280 @@
+package com.kuangstudy.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * HTTP Range 请求（RFC 7233）的解析和按区间输出工具
+ * 支持 bytes=start-end、bytes=start-（开放区间）、bytes=-suffix（末尾N字节）以及多区间 multipart/byteranges
+ * 读取时只定位到请求的字节窗口，不会读取整个文件
+ */
+public final class RangeUtils {
+
+    /**
+     * 单个请求中允许的最大区间数，超过视为无法满足（防止恶意的大量小区间请求）
+     */
+    private static final int MAX_RANGES = 100;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private RangeUtils() {
+    }
+
+    /**
+     * 解析后的字节区间，start和end都是闭区间
+     */
+    public static final class ByteRange {
+        private final long start;
+        private final long end;
+
+        public ByteRange(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getEnd() {
+            return end;
+        }
+
+        public long length() {
+            return end - start + 1;
+        }
+
+        public String toContentRange(long fileSize) {
+            return "bytes " + start + "-" + end + "/" + fileSize;
+        }
+    }
+
+    /**
+     * 解析Range请求头
+     * @param rangeHeader Range请求头，可以为null
+     * @param fileSize 文件总大小
+     * @return null：没有Range或语法不合法，按完整文件(200)返回；
+     *         空列表：所有区间都无法满足，应返回416；
+     *         其它：需要返回的区间（重叠的区间已合并）
+     */
+    public static List<ByteRange> parseRanges(String rangeHeader, long fileSize) {
+        if (rangeHeader == null || !rangeHeader.startsWith("bytes=")) {
+            return null;
+        }
+
+        String[] specs = rangeHeader.substring("bytes=".length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return Collections.emptyList();
+        }
+
+        List<ByteRange> ranges = new ArrayList<>(specs.length);
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash == -1) {
+                // 语法错误时按规范忽略整个Range头
+                return null;
+            }
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            try {
+                if (first.isEmpty()) {
+                    // bytes=-500 末尾500字节
+                    long suffix = Long.parseLong(last);
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    if (suffix > 0 && fileSize > 0) {
+                        ranges.add(new ByteRange(Math.max(0, fileSize - suffix), fileSize - 1));
+                    }
+                } else {
+                    long start = Long.parseLong(first);
+                    long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                    if (start < 0 || end < start) {
+                        return null;
+                    }
+                    // 起点超出文件大小的区间无法满足，直接丢弃
+                    if (start < fileSize) {
+                        ranges.add(new ByteRange(start, Math.min(end, fileSize - 1)));
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return mergeRanges(ranges);
+    }
+
+    /**
+     * 合并重叠或相邻的区间，避免同一段数据被重复发送
+     */
+    private static List<ByteRange> mergeRanges(List<ByteRange> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        boolean overlapping = false;
+        List<ByteRange> sorted = new ArrayList<>(ranges);
+        sorted.sort(Comparator.comparingLong(ByteRange::getStart));
+        for (int i = 1; i < sorted.size(); i++) {
+            if (sorted.get(i).getStart() <= sorted.get(i - 1).getEnd() + 1) {
+                overlapping = true;
+                break;
+            }
+        }
+        // 互不重叠时保持客户端请求的顺序
+        if (!overlapping) {
+            return ranges;
+        }
+        List<ByteRange> merged = new ArrayList<>();
+        ByteRange current = sorted.get(0);
+        for (int i = 1; i < sorted.size(); i++) {
+            ByteRange next = sorted.get(i);
+            if (next.getStart() <= current.getEnd() + 1) {
+                current = new ByteRange(current.getStart(), Math.max(current.getEnd(), next.getEnd()));
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return merged;
+    }
+
+    /**
+     * If-Range 校验：只有客户端缓存的版本和当前文件一致时才按区间返回，否则返回完整文件
+     * @param ifRange If-Range请求头，可以为null
+     * @param etag 当前文件的强ETag，可以为null
+     * @param lastModified 当前文件的最后修改时间（毫秒）
+     */
+    public static boolean isIfRangeSatisfied(String ifRange, String etag, long lastModified) {
+        if (ifRange == null || ifRange.isEmpty()) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // 弱ETag不能用于If-Range
+            return etag != null && !ifRange.startsWith("W/") && ifRange.equals(etag);
+        }
+        try {
+            long date = ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            // HTTP日期只精确到秒
+            return date / 1000 == lastModified / 1000;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    /**
+     * multipart/byteranges 响应的总长度，用于设置Content-Length
+     */
+    public static long multipartLength(List<ByteRange> ranges, String boundary, String contentType, long fileSize) {
+        long length = 0;
+        for (ByteRange range : ranges) {
+            length += partHeader(boundary, contentType, range, fileSize).length + range.length();
+        }
+        return length + partEnd(boundary).length;
+    }
+
+    /**
+     * 把指定区间写到输出流，单区间直接写数据，多区间按 multipart/byteranges 格式写
+     */
+    public static void writeRanges(FileChannel channel, List<ByteRange> ranges, String boundary,
+                                   String contentType, long fileSize, OutputStream outputStream) throws IOException {
+        if (ranges.size() == 1) {
+            ByteRange range = ranges.get(0);
+            copyRange(channel, range.getStart(), range.length(), outputStream);
+            return;
+        }
+        for (ByteRange range : ranges) {
+            outputStream.write(partHeader(boundary, contentType, range, fileSize));
+            copyRange(channel, range.getStart(), range.length(), outputStream);
+        }
+        outputStream.write(partEnd(boundary));
+    }
+
+    /**
+     * 字节数组模式：只把请求的区间读进内存
+     */
+    public static byte[] readRanges(FileChannel channel, List<ByteRange> ranges, String boundary,
+                                    String contentType, long fileSize) throws IOException {
+        long length = ranges.size() == 1 ? ranges.get(0).length()
+                : multipartLength(ranges, boundary, contentType, fileSize);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream((int) length);
+        writeRanges(channel, ranges, boundary, contentType, fileSize, outputStream);
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * 字节数组模式：从缓存的文件内容中只取出请求的区间，按 multipart/byteranges 格式拼接
+     */
+    public static byte[] readRanges(ByteBuffer content, List<ByteRange> ranges, String boundary,
+                                    String contentType, long fileSize) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(
+                (int) multipartLength(ranges, boundary, contentType, fileSize));
+        for (ByteRange range : ranges) {
+            outputStream.write(partHeader(boundary, contentType, range, fileSize));
+            ByteBuffer slice = content.duplicate();
+            slice.position((int) range.getStart());
+            slice.limit((int) range.getEnd() + 1);
+            byte[] chunk = new byte[Math.min(BUFFER_SIZE, slice.remaining())];
+            while (slice.hasRemaining()) {
+                int count = Math.min(chunk.length, slice.remaining());
+                slice.get(chunk, 0, count);
+                outputStream.write(chunk, 0, count);
+            }
+        }
+        outputStream.write(partEnd(boundary));
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * 从文件的position位置开始，定位读取length个字节写到输出流
+     */
+    public static void copyRange(FileChannel channel, long position, long length, OutputStream outputStream) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(length, 1))];
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+        long remaining = length;
+        while (remaining > 0) {
+            byteBuffer.clear();
+            if (remaining < buffer.length) {
+                byteBuffer.limit((int) remaining);
+            }
+            int bytesRead = channel.read(byteBuffer, position);
+            if (bytesRead == -1) {
+                throw new IOException("Unexpected end of file at position " + position);
+            }
+            outputStream.write(buffer, 0, bytesRead);
+            position += bytesRead;
+            remaining -= bytesRead;
+        }
+    }
+
+    /**
+     * multipart/byteranges 中一个区间的头信息（前面带换行）
+     */
+    public static byte[] partHeader(String boundary, String contentType, ByteRange range, long fileSize) {
+        String header = "\r\n--" + boundary + "\r\n" +
+                "Content-Type: " + contentType + "\r\n" +
+                "Content-Range: " + range.toContentRange(fileSize) + "\r\n" +
+                "\r\n";
+        return header.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * multipart/byteranges 的结束边界
+     */
+    public static byte[] partEnd(String boundary) {
+        return ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,273 @@
+package com.kuangstudy.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * 响应体的一段数据（头信息、文件的某个区间等）
+ * 非阻塞输出时，写线程每次只从当前段取一个缓冲区大小的数据，取不到数据时不会阻塞线程
+ */
+public abstract class StreamSegment {
+
+    /**
+     * 开始准备数据（例如提交预读），默认什么都不做
+     */
+    public void prefetch() {
+    }
+
+    /**
+     * 数据是否已经准备好，没准备好时写线程会调用 whenReady 注册回调后先返回
+     */
+    public boolean isReady() {
+        return true;
+    }
+
+    /**
+     * 数据准备好后调用 callback，只在 isReady() 返回false时调用
+     */
+    public void whenReady(Runnable callback) {
+        callback.run();
+    }
+
+    /**
+     * 把数据读进buffer（写模式），buffer满了或者本段结束时返回
+     * @return 本段还有数据返回true，已经全部读完返回false
+     */
+    public abstract boolean fill(ByteBuffer buffer) throws IOException;
+
+    /**
+     * 释放资源（打开的文件等），正常结束和中途出错都会调用
+     */
+    public void close() {
+    }
+
+    public static StreamSegment bytes(byte[] bytes) {
+        return new BytesSegment(bytes);
+    }
+
+    /**
+     * 文件的[position, position + length)区间，第一次读取时才打开文件
+     */
+    public static StreamSegment file(Path path, long position, long length) {
+        return new FileSegment(path, position, length);
+    }
+
+    /**
+     * 输入流中的length个字节（例如对象存储的Range请求）
+     * prefetch() 时在executor中打开输入流，连接建立之前写线程不会阻塞等待
+     */
+    public static StreamSegment stream(Callable<InputStream> opener, long length, Executor executor) {
+        return new InputStreamSegment(opener, length, executor);
+    }
+
+    /**
+     * 同步写出所有段（阻塞模式），用于后台任务和基准测试
+     * 小段数据合并在缓冲区里，只有缓冲区满了、或者要等下一段数据时才写出
+     * @param lookAhead 提前对后面几个段调用 prefetch()
+     */
+    public static void writeTo(List<StreamSegment> segments, int lookAhead, OutputStream outputStream,
+                               int bufferSize) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+        try {
+            int prefetched = 0;
+            for (int i = 0; i < segments.size(); i++) {
+                while (prefetched < segments.size() && prefetched <= i + lookAhead) {
+                    segments.get(prefetched++).prefetch();
+                }
+                StreamSegment segment = segments.get(i);
+                if (!segment.isReady() && buffer.position() > 0) {
+                    // 下一段还没准备好，先把已有的数据发出去
+                    outputStream.write(buffer.array(), 0, buffer.position());
+                    outputStream.flush();
+                    buffer.clear();
+                }
+                while (segment.fill(buffer)) {
+                    outputStream.write(buffer.array(), 0, buffer.position());
+                    buffer.clear();
+                }
+                segment.close();
+            }
+            outputStream.write(buffer.array(), 0, buffer.position());
+            outputStream.flush();
+        } finally {
+            for (StreamSegment segment : segments) {
+                segment.close();
+            }
+        }
+    }
+
+    private static final class BytesSegment extends StreamSegment {
+        private final byte[] bytes;
+        private int offset;
+
+        BytesSegment(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public boolean fill(ByteBuffer buffer) {
+            int count = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, count);
+            offset += count;
+            return offset < bytes.length;
+        }
+    }
+
+    private static final class FileSegment extends StreamSegment {
+        private final Path path;
+        private long position;
+        private long remaining;
+        private FileChannel channel;
+
+        FileSegment(Path path, long position, long length) {
+            this.path = path;
+            this.position = position;
+            this.remaining = length;
+        }
+
+        @Override
+        public boolean fill(ByteBuffer buffer) throws IOException {
+            if (remaining <= 0) {
+                return false;
+            }
+            if (channel == null) {
+                channel = FileChannel.open(path, StandardOpenOption.READ);
+            }
+            while (buffer.hasRemaining() && remaining > 0) {
+                int limit = buffer.limit();
+                if (buffer.remaining() > remaining) {
+                    buffer.limit(buffer.position() + (int) remaining);
+                }
+                int bytesRead = channel.read(buffer, position);
+                buffer.limit(limit);
+                if (bytesRead == -1) {
+                    throw new IOException("Unexpected end of file: " + path);
+                }
+                position += bytesRead;
+                remaining -= bytesRead;
+            }
+            return remaining > 0;
+        }
+
+        @Override
+        public void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+                channel = null;
+            }
+        }
+    }
+
+    private static final class InputStreamSegment extends StreamSegment {
+        private final Callable<InputStream> opener;
+        private final Executor executor;
+        private long remaining;
+        private CompletableFuture<InputStream> opening;
+        private InputStream inputStream;
+
+        InputStreamSegment(Callable<InputStream> opener, long length, Executor executor) {
+            this.opener = opener;
+            this.remaining = length;
+            this.executor = executor;
+        }
+
+        @Override
+        public void prefetch() {
+            if (opening == null && remaining > 0) {
+                opening = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return opener.call();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                }, executor);
+            }
+        }
+
+        @Override
+        public boolean isReady() {
+            return opening == null || opening.isDone();
+        }
+
+        @Override
+        public void whenReady(Runnable callback) {
+            opening.whenComplete((stream, e) -> callback.run());
+        }
+
+        @Override
+        public boolean fill(ByteBuffer buffer) throws IOException {
+            if (remaining <= 0) {
+                return false;
+            }
+            if (inputStream == null) {
+                inputStream = open();
+            }
+            while (buffer.hasRemaining() && remaining > 0) {
+                int count = (int) Math.min(buffer.remaining(), remaining);
+                int bytesRead = inputStream.read(buffer.array(), buffer.arrayOffset() + buffer.position(), count);
+                if (bytesRead == -1) {
+                    throw new IOException("Unexpected end of stream");
+                }
+                buffer.position(buffer.position() + bytesRead);
+                remaining -= bytesRead;
+            }
+            return remaining > 0;
+        }
+
+        @Override
+        public void close() {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException ignored) {
+                }
+                inputStream = null;
+            } else if (opening != null) {
+                // 还没开始读就结束了（客户端断开等），打开成功的流也要关闭
+                opening.thenAccept(stream -> {
+                    try {
+                        stream.close();
+                    } catch (IOException ignored) {
+                    }
+                });
+            }
+            opening = null;
+        }
+
+        private InputStream open() throws IOException {
+            if (opening == null) {
+                try {
+                    return opener.call();
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+            }
+            try {
+                return opening.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) e.getCause()).getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.kuangstudy.video;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 内存中的一个MP4 box（ISO/IEC 14496-12），data是包含它的整个字节数组
+ */
+final class Box {
+
+    final byte[] data;
+    final String type;
+    /**
+     * box在data中的起始位置、内容（跳过头部）的起始位置和结束位置
+     */
+    final int start;
+    final int payload;
+    final int end;
+
+    private Box(byte[] data, String type, int start, int payload, int end) {
+        this.data = data;
+        this.type = type;
+        this.start = start;
+        this.payload = payload;
+        this.end = end;
+    }
+
+    /**
+     * 解析 data[from, to) 中依次排列的box
+     */
+    static List<Box> parse(byte[] data, int from, int to) {
+        List<Box> boxes = new ArrayList<>();
+        int offset = from;
+        while (offset + 8 <= to) {
+            long size = u32(data, offset);
+            String type = fourcc(data, offset + 4);
+            int header = 8;
+            if (size == 1) {
+                size = u64(data, offset + 8);
+                header = 16;
+            } else if (size == 0) {
+                size = to - offset;
+            }
+            if (size < header || offset + size > to) {
+                throw new IllegalArgumentException("Malformed box " + type + " at " + offset);
+            }
+            boxes.add(new Box(data, type, offset, offset + header, (int) (offset + size)));
+            offset += size;
+        }
+        return boxes;
+    }
+
+    /**
+     * 整个字节数组就是一个box
+     */
+    static Box of(byte[] data) {
+        List<Box> boxes = parse(data, 0, data.length);
+        if (boxes.size() != 1) {
+            throw new IllegalArgumentException("Expected a single box");
+        }
+        return boxes.get(0);
+    }
+
+    List<Box> children() {
+        return parse(data, payload, end);
+    }
+
+    /**
+     * 第一个指定类型的子box，没有时返回null
+     */
+    Box child(String childType) {
+        for (Box box : children()) {
+            if (box.type.equals(childType)) {
+                return box;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 按路径查找子孙box，例如 find("mdia", "minf", "stbl")
+     */
+    Box find(String... path) {
+        Box box = this;
+        for (String childType : path) {
+            box = box.child(childType);
+            if (box == null) {
+                return null;
+            }
+        }
+        return box;
+    }
+
+    /**
+     * full box的version
+     */
+    int version() {
+        return data[payload] & 0xFF;
+    }
+
+    /**
+     * full box的flags
+     */
+    int flags() {
+        return (int) (u32(data, payload) & 0xFFFFFF);
+    }
+
+    int size() {
+        return end - start;
+    }
+
+    static long u32(byte[] data, int offset) {
+        return ((data[offset] & 0xFFL) << 24) | ((data[offset + 1] & 0xFFL) << 16)
+                | ((data[offset + 2] & 0xFFL) << 8) | (data[offset + 3] & 0xFFL);
+    }
+
+    static long u64(byte[] data, int offset) {
+        return (u32(data, offset) << 32) | u32(data, offset + 4);
+    }
+
+    static String fourcc(byte[] data, int offset) {
+        return new String(data, offset, 4, StandardCharsets.ISO_8859_1);
+    }
+}
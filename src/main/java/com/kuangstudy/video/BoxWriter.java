@@ -0,0 +1,90 @@
+package com.kuangstudy.video;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * 生成MP4 box，start()和end()之间写box的内容，end()时回填box的大小
+ */
+final class BoxWriter {
+
+    private byte[] buffer = new byte[1024];
+    private int position;
+    private final Deque<Integer> open = new ArrayDeque<>();
+
+    BoxWriter start(String type) {
+        open.push(position);
+        u32(0);
+        return fourcc(type);
+    }
+
+    BoxWriter startFull(String type, int version, int flags) {
+        start(type);
+        return u32(((long) version << 24) | (flags & 0xFFFFFF));
+    }
+
+    BoxWriter end() {
+        int start = open.pop();
+        putU32(start, position - start);
+        return this;
+    }
+
+    /**
+     * 原样复制一个box
+     */
+    BoxWriter copy(Box box) {
+        return bytes(box.data, box.start, box.size());
+    }
+
+    BoxWriter u32(long value) {
+        ensure(4);
+        putU32(position, value);
+        position += 4;
+        return this;
+    }
+
+    BoxWriter u64(long value) {
+        u32(value >>> 32);
+        return u32(value & 0xFFFFFFFFL);
+    }
+
+    BoxWriter fourcc(String type) {
+        return bytes(type.getBytes(StandardCharsets.ISO_8859_1), 0, 4);
+    }
+
+    BoxWriter bytes(byte[] bytes, int offset, int length) {
+        ensure(length);
+        System.arraycopy(bytes, offset, buffer, position, length);
+        position += length;
+        return this;
+    }
+
+    int position() {
+        return position;
+    }
+
+    /**
+     * 回填已经写过的位置（例如trun的data_offset）
+     */
+    void putU32(int at, long value) {
+        buffer[at] = (byte) (value >>> 24);
+        buffer[at + 1] = (byte) (value >>> 16);
+        buffer[at + 2] = (byte) (value >>> 8);
+        buffer[at + 3] = (byte) value;
+    }
+
+    byte[] toByteArray() {
+        if (!open.isEmpty()) {
+            throw new IllegalStateException("Unclosed box");
+        }
+        return Arrays.copyOf(buffer, position);
+    }
+
+    private void ensure(int length) {
+        if (position + length > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + length));
+        }
+    }
+}
@@ -0,0 +1,479 @@
+package com.kuangstudy.video;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 把MP4/MOV切成HLS的fMP4分段（纯Java，不依赖ffmpeg）
+ * - 普通（非分片）的MP4/MOV：按视频轨的关键帧切分，每个分段生成 moof + mdat头，
+ *   样本数据直接引用源文件中的字节区间（不复制、不转码）；初始化段是去掉样本表的moov加上mvex
+ * - 本身就是分片MP4（moov中有mvex）：按已有的 moof+mdat 分组，分段就是源文件中连续的一段
+ * 分段从关键帧开始，时长达到 segmentMillis（或视频轨数据达到 maxSegmentBytes）后的下一个关键帧开始新的分段
+ * 只保留视频和音频轨道（MOV中的时间码、元数据轨道去掉）
+ */
+public final class Mp4Segmenter {
+
+    /**
+     * 按区间读取源文件
+     */
+    public interface RangeReader {
+        byte[] read(long offset, int length) throws IOException;
+    }
+
+    private static final int MAX_MOOV_SIZE = 64 * 1024 * 1024;
+
+    private static final int MAX_MOOF_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * trun的flags：data-offset、sample-duration、sample-size、sample-flags、sample-composition-time-offset
+     */
+    private static final int TRUN_FLAGS = 0x000001 | 0x000100 | 0x000200 | 0x000400 | 0x000800;
+
+    /**
+     * 样本的flags：关键帧（不依赖其它帧）和非关键帧（依赖其它帧，is_non_sync）
+     */
+    private static final long SYNC_SAMPLE_FLAGS = 0x02000000L;
+    private static final long NON_SYNC_SAMPLE_FLAGS = 0x01010000L;
+
+    /**
+     * tfhd的 default-base-is-moof：trun的data_offset从moof开始算
+     */
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+
+    private Mp4Segmenter() {
+    }
+
+    /**
+     * 生成参数，和索引一起保存，参数变了索引重新生成
+     */
+    public static String settings(long segmentMillis, long maxSegmentBytes) {
+        return segmentMillis + "ms/" + maxSegmentBytes;
+    }
+
+    /**
+     * 解析源文件并生成分段索引
+     * @throws IllegalArgumentException 不是MP4/MOV、文件损坏或者没有音视频轨道
+     */
+    public static SegmentIndex index(RangeReader reader, long fileSize, String sourceETag,
+                                     long segmentMillis, long maxSegmentBytes) throws IOException {
+        byte[] ftyp = null;
+        byte[] moov = null;
+        List<long[]> topLevel = new ArrayList<>();
+        long offset = 0;
+        while (offset + 8 <= fileSize) {
+            byte[] header = reader.read(offset, (int) Math.min(16, fileSize - offset));
+            long size = Box.u32(header, 0);
+            String type = Box.fourcc(header, 4);
+            int headerSize = 8;
+            if (size == 1 && header.length >= 16) {
+                size = Box.u64(header, 8);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = fileSize - offset;
+            }
+            if (size < headerSize || offset + size > fileSize) {
+                throw new IllegalArgumentException("Malformed top-level box " + type + " at " + offset);
+            }
+            if ("ftyp".equals(type) && size <= 1024) {
+                ftyp = reader.read(offset, (int) size);
+            } else if ("moov".equals(type)) {
+                if (size > MAX_MOOV_SIZE) {
+                    throw new IllegalArgumentException("moov too large: " + size);
+                }
+                moov = reader.read(offset, (int) size);
+            }
+            topLevel.add(new long[]{fourcc(type), offset, size});
+            offset += size;
+        }
+        if (moov == null) {
+            throw new IllegalArgumentException("No moov box");
+        }
+
+        String settings = settings(segmentMillis, maxSegmentBytes);
+        try {
+            Box moovBox = Box.of(moov);
+            List<Mp4Track> tracks = new ArrayList<>();
+            for (Box trak : moovBox.children()) {
+                if (trak.type.equals("trak")) {
+                    Mp4Track track = Mp4Track.of(trak);
+                    if (track.isVideo() || track.isAudio()) {
+                        tracks.add(track);
+                    }
+                }
+            }
+            Mp4Track reference = referenceTrack(tracks);
+            Box mvex = moovBox.child("mvex");
+            if (mvex != null) {
+                return indexFragmented(reader, sourceETag, settings, ftyp, moovBox, mvex, tracks, reference,
+                        topLevel, segmentMillis, maxSegmentBytes);
+            }
+            return indexProgressive(sourceETag, settings, moovBox, tracks, reference, segmentMillis, maxSegmentBytes);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Malformed moov", e);
+        }
+    }
+
+    private static Mp4Track referenceTrack(List<Mp4Track> tracks) {
+        for (Mp4Track track : tracks) {
+            if (track.isVideo()) {
+                return track;
+            }
+        }
+        if (tracks.isEmpty()) {
+            throw new IllegalArgumentException("No audio or video track");
+        }
+        return tracks.get(0);
+    }
+
+    // ---------------------------------------------------------------- 普通MP4/MOV
+
+    private static SegmentIndex indexProgressive(String sourceETag, String settings, Box moov, List<Mp4Track> tracks,
+                                                 Mp4Track reference, long segmentMillis, long maxSegmentBytes) {
+        for (Mp4Track track : tracks) {
+            track.readSampleTable();
+        }
+        tracks.removeIf(track -> track.sampleCount() == 0);
+        if (!tracks.contains(reference) || reference.sampleCount() == 0) {
+            throw new IllegalArgumentException("Reference track has no samples");
+        }
+
+        // 按参考轨道（视频）的关键帧切分
+        List<Integer> cuts = new ArrayList<>();
+        cuts.add(0);
+        long target = segmentMillis * reference.timescale / 1000;
+        long bytes = 0;
+        int start = 0;
+        for (int i = 1; i < reference.sampleCount(); i++) {
+            bytes += reference.sizes[i - 1];
+            boolean longEnough = reference.dts[i] - reference.dts[start] >= target
+                    || (maxSegmentBytes > 0 && bytes >= maxSegmentBytes);
+            if (reference.sync[i] && longEnough) {
+                cuts.add(i);
+                start = i;
+                bytes = 0;
+            }
+        }
+
+        List<SegmentIndex.Segment> segments = new ArrayList<>(cuts.size());
+        int[] from = new int[tracks.size()];
+        for (int k = 0; k < cuts.size(); k++) {
+            boolean last = k == cuts.size() - 1;
+            long startTime = reference.dts[cuts.get(k)];
+            long endTime = last ? reference.dts[reference.sampleCount()] : reference.dts[cuts.get(k + 1)];
+            int[] to = new int[tracks.size()];
+            for (int t = 0; t < tracks.size(); t++) {
+                Mp4Track track = tracks.get(t);
+                to[t] = last ? track.sampleCount() : track.firstSampleAtOrAfter(endTime, reference.timescale);
+            }
+            double duration = (double) (endTime - startTime) / reference.timescale;
+            segments.add(fragment(k + 1, duration, tracks, from, to));
+            from = to;
+        }
+        return new SegmentIndex(sourceETag, settings, initSegment(moov, tracks), segments);
+    }
+
+    /**
+     * 初始化段：ftyp + moov（只保留音视频轨道，样本表清空，加上mvex）
+     */
+    private static byte[] initSegment(Box moov, List<Mp4Track> tracks) {
+        BoxWriter writer = new BoxWriter();
+        writer.start("ftyp").fourcc("iso5").u32(0).fourcc("iso5").fourcc("iso6").fourcc("mp41").end();
+        writer.start("moov");
+        Box mvhd = moov.child("mvhd");
+        if (mvhd != null) {
+            writer.copy(mvhd);
+        }
+        for (Mp4Track track : tracks) {
+            copyWithoutSamples(writer, track.trak);
+        }
+        writer.start("mvex");
+        for (Mp4Track track : tracks) {
+            writer.startFull("trex", 0, 0).u32(track.id).u32(1).u32(0).u32(0).u32(0).end();
+        }
+        writer.end();
+        writer.end();
+        return writer.toByteArray();
+    }
+
+    /**
+     * 复制trak，stbl中只保留样本描述（stsd，编码参数），其它表写成空表
+     */
+    private static void copyWithoutSamples(BoxWriter writer, Box box) {
+        writer.start(box.type);
+        for (Box child : box.children()) {
+            switch (child.type) {
+                case "mdia":
+                case "minf":
+                    copyWithoutSamples(writer, child);
+                    break;
+                case "stbl":
+                    writer.start("stbl");
+                    Box stsd = child.child("stsd");
+                    if (stsd == null) {
+                        throw new IllegalArgumentException("Track has no stsd");
+                    }
+                    writer.copy(stsd);
+                    writer.startFull("stts", 0, 0).u32(0).end();
+                    writer.startFull("stsc", 0, 0).u32(0).end();
+                    writer.startFull("stsz", 0, 0).u32(0).u32(0).end();
+                    writer.startFull("stco", 0, 0).u32(0).end();
+                    writer.end();
+                    break;
+                default:
+                    writer.copy(child);
+            }
+        }
+        writer.end();
+    }
+
+    /**
+     * 一个分段：moof（每条轨道一个traf）+ mdat头，mdat的内容是各轨道 [from, to) 的样本
+     * 源文件中音视频是交错存放的，mdat按源文件中的顺序排列（每段连续的样本一个trun），
+     * 这样整个分段在源文件中基本是一个连续区间，输出时只要读一次（对象存储只要一个请求）
+     */
+    private static SegmentIndex.Segment fragment(int sequence, double duration, List<Mp4Track> tracks,
+                                                 int[] from, int[] to) {
+        // 每条轨道中在源文件里连续的样本：{轨道, 第一个样本, 样本数, 文件偏移, 字节数}
+        List<long[]> runs = new ArrayList<>();
+        for (int t = 0; t < tracks.size(); t++) {
+            Mp4Track track = tracks.get(t);
+            long[] run = null;
+            for (int i = from[t]; i < to[t]; i++) {
+                if (run != null && run[3] + run[4] == track.offsets[i]) {
+                    run[2]++;
+                    run[4] += track.sizes[i];
+                } else {
+                    run = new long[]{t, i, 1, track.offsets[i], track.sizes[i]};
+                    runs.add(run);
+                }
+            }
+        }
+        List<long[]> layout = new ArrayList<>(runs);
+        layout.sort(Comparator.comparingLong(run -> run[3]));
+
+        // trun的data_offset位置，moof写完后回填
+        Map<long[], Integer> dataOffsetPositions = new IdentityHashMap<>();
+        BoxWriter writer = new BoxWriter();
+        writer.start("moof");
+        writer.startFull("mfhd", 0, 0).u32(sequence).end();
+        for (int t = 0; t < tracks.size(); t++) {
+            if (to[t] <= from[t]) {
+                continue;
+            }
+            Mp4Track track = tracks.get(t);
+            writer.start("traf");
+            writer.startFull("tfhd", 0, TFHD_DEFAULT_BASE_IS_MOOF).u32(track.id).end();
+            writer.startFull("tfdt", 1, 0).u64(track.dts[from[t]]).end();
+            for (long[] run : runs) {
+                if (run[0] != t) {
+                    continue;
+                }
+                // version 1：composition offset 是有符号数
+                writer.startFull("trun", 1, TRUN_FLAGS).u32(run[2]);
+                dataOffsetPositions.put(run, writer.position());
+                writer.u32(0);
+                for (int i = (int) run[1]; i < run[1] + run[2]; i++) {
+                    writer.u32(track.dts[i + 1] - track.dts[i])
+                            .u32(track.sizes[i])
+                            .u32(track.sync[i] ? SYNC_SAMPLE_FLAGS : NON_SYNC_SAMPLE_FLAGS)
+                            .u32(track.ctos[i] & 0xFFFFFFFFL);
+                }
+                writer.end();
+            }
+            writer.end();
+        }
+        writer.end();
+
+        int moofSize = writer.position();
+        long dataOffset = moofSize + 8;
+        List<long[]> ranges = new ArrayList<>();
+        for (long[] run : layout) {
+            writer.putU32(dataOffsetPositions.get(run), dataOffset);
+            long[] previous = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+            if (previous != null && previous[0] + previous[1] == run[3]) {
+                previous[1] += run[4];
+            } else {
+                ranges.add(new long[]{run[3], run[4]});
+            }
+            dataOffset += run[4];
+        }
+        long mdatSize = dataOffset - moofSize;
+        if (mdatSize > 0xFFFFFFFFL) {
+            throw new IllegalArgumentException("Segment too large: " + mdatSize);
+        }
+        writer.u32(mdatSize).fourcc("mdat");
+        return segment(duration, writer.toByteArray(), ranges);
+    }
+
+    // ---------------------------------------------------------------- 分片MP4
+
+    private static SegmentIndex indexFragmented(RangeReader reader, String sourceETag, String settings, byte[] ftyp,
+                                                Box moov, Box mvex, List<Mp4Track> tracks, Mp4Track reference,
+                                                List<long[]> topLevel, long segmentMillis, long maxSegmentBytes)
+            throws IOException {
+        for (Box trex : mvex.children()) {
+            if (trex.type.equals("trex")) {
+                int trackId = (int) Box.u32(trex.data, trex.payload + 4);
+                for (Mp4Track track : tracks) {
+                    if (track.id == trackId) {
+                        track.defaultDuration = Box.u32(trex.data, trex.payload + 12);
+                        track.defaultFlags = Box.u32(trex.data, trex.payload + 20);
+                    }
+                }
+            }
+        }
+
+        // 每个moof和它后面的mdat：起止位置、参考轨道的时长、是否从关键帧开始
+        List<long[]> fragments = new ArrayList<>();
+        long[] current = null;
+        for (long[] box : topLevel) {
+            if (box[0] == fourcc("moof")) {
+                if (box[2] > MAX_MOOF_SIZE) {
+                    throw new IllegalArgumentException("moof too large: " + box[2]);
+                }
+                Box moof = Box.of(reader.read(box[1], (int) box[2]));
+                long[] info = fragmentInfo(moof, reference);
+                current = new long[]{box[1], box[1] + box[2], info[0], info[1]};
+                fragments.add(current);
+            } else if (box[0] == fourcc("mdat") && current != null) {
+                current[1] = box[1] + box[2];
+            }
+        }
+        if (fragments.isEmpty()) {
+            throw new IllegalArgumentException("Fragmented file has no moof");
+        }
+
+        List<SegmentIndex.Segment> segments = new ArrayList<>();
+        long target = segmentMillis * reference.timescale / 1000;
+        long[] first = fragments.get(0);
+        long duration = 0;
+        long end = first[1];
+        for (int i = 0; i < fragments.size(); i++) {
+            long[] fragment = fragments.get(i);
+            boolean longEnough = duration >= target || (maxSegmentBytes > 0 && end - first[0] >= maxSegmentBytes);
+            if (i > 0 && fragment[3] == 1 && longEnough) {
+                segments.add(rawSegment((double) duration / reference.timescale, first[0], end));
+                first = fragment;
+                duration = 0;
+            }
+            duration += fragment[2];
+            end = fragment[1];
+        }
+        segments.add(rawSegment((double) duration / reference.timescale, first[0], end));
+
+        BoxWriter init = new BoxWriter();
+        if (ftyp != null) {
+            init.bytes(ftyp, 0, ftyp.length);
+        }
+        init.copy(moov);
+        return new SegmentIndex(sourceETag, settings, init.toByteArray(), segments);
+    }
+
+    /**
+     * 一个moof中参考轨道的总时长和第一个样本是不是关键帧
+     * @return {时长, 1=关键帧/0=非关键帧}
+     */
+    private static long[] fragmentInfo(Box moof, Mp4Track reference) {
+        for (Box traf : moof.children()) {
+            if (!traf.type.equals("traf")) {
+                continue;
+            }
+            Box tfhd = traf.child("tfhd");
+            if (tfhd == null || Box.u32(tfhd.data, tfhd.payload + 4) != reference.id) {
+                continue;
+            }
+            int tfhdFlags = tfhd.flags();
+            int position = tfhd.payload + 8;
+            if ((tfhdFlags & 0x1) != 0) {
+                position += 8;
+            }
+            if ((tfhdFlags & 0x2) != 0) {
+                position += 4;
+            }
+            long defaultDuration = reference.defaultDuration;
+            if ((tfhdFlags & 0x8) != 0) {
+                defaultDuration = Box.u32(tfhd.data, position);
+                position += 4;
+            }
+            if ((tfhdFlags & 0x10) != 0) {
+                position += 4;
+            }
+            long defaultFlags = reference.defaultFlags;
+            if ((tfhdFlags & 0x20) != 0) {
+                defaultFlags = Box.u32(tfhd.data, position);
+            }
+
+            long duration = 0;
+            Long firstFlags = null;
+            for (Box trun : traf.children()) {
+                if (!trun.type.equals("trun")) {
+                    continue;
+                }
+                int flags = trun.flags();
+                long count = Box.u32(trun.data, trun.payload + 4);
+                int p = trun.payload + 8;
+                if ((flags & 0x1) != 0) {
+                    p += 4;
+                }
+                Long firstSampleFlags = null;
+                if ((flags & 0x4) != 0) {
+                    firstSampleFlags = Box.u32(trun.data, p);
+                    p += 4;
+                }
+                for (long i = 0; i < count; i++) {
+                    long sampleDuration = defaultDuration;
+                    long sampleFlags = i == 0 && firstSampleFlags != null ? firstSampleFlags : defaultFlags;
+                    if ((flags & 0x100) != 0) {
+                        sampleDuration = Box.u32(trun.data, p);
+                        p += 4;
+                    }
+                    if ((flags & 0x200) != 0) {
+                        p += 4;
+                    }
+                    if ((flags & 0x400) != 0) {
+                        if (i != 0 || firstSampleFlags == null) {
+                            sampleFlags = Box.u32(trun.data, p);
+                        }
+                        p += 4;
+                    }
+                    if ((flags & 0x800) != 0) {
+                        p += 4;
+                    }
+                    if (firstFlags == null) {
+                        firstFlags = sampleFlags;
+                    }
+                    duration += sampleDuration;
+                }
+            }
+            // sample_is_non_sync_sample
+            boolean sync = firstFlags == null || reference.isAudio() || (firstFlags & 0x10000L) == 0;
+            return new long[]{duration, sync ? 1 : 0};
+        }
+        return new long[]{0, 0};
+    }
+
+    private static SegmentIndex.Segment rawSegment(double duration, long start, long end) {
+        List<long[]> ranges = new ArrayList<>(1);
+        ranges.add(new long[]{start, end - start});
+        return segment(duration, new byte[0], ranges);
+    }
+
+    private static SegmentIndex.Segment segment(double duration, byte[] header, List<long[]> ranges) {
+        long[] offsets = new long[ranges.size()];
+        long[] lengths = new long[ranges.size()];
+        for (int i = 0; i < ranges.size(); i++) {
+            offsets[i] = ranges.get(i)[0];
+            lengths[i] = ranges.get(i)[1];
+        }
+        return new SegmentIndex.Segment(duration, header, offsets, lengths);
+    }
+
+    private static long fourcc(String type) {
+        return Box.u32(type.getBytes(StandardCharsets.ISO_8859_1), 0);
+    }
+}
@@ -0,0 +1,225 @@
+package com.kuangstudy.video;
+
+import java.util.Arrays;
+
+/**
+ * moov中的一条轨道（trak）和它的样本表
+ * 非分片的MP4/MOV：由stts、ctts、stss、stsz、stsc、stco/co64算出每个样本在文件中的位置、大小、解码时间
+ */
+final class Mp4Track {
+
+    /**
+     * 一条轨道最多的样本数（按30fps约92小时），防止损坏的文件让数组分配过大
+     */
+    private static final int MAX_SAMPLES = 10_000_000;
+
+    final Box trak;
+    final int id;
+    final String handler;
+    final long timescale;
+
+    /**
+     * 每个样本的文件偏移、大小、解码时间（dts比样本数多一个，最后一个是轨道的结束时间）、
+     * 显示时间偏移（ctts）和是否关键帧
+     */
+    long[] offsets;
+    int[] sizes;
+    long[] dts;
+    int[] ctos;
+    boolean[] sync;
+
+    /**
+     * 分片MP4的默认值（moov/mvex/trex）
+     */
+    long defaultDuration;
+    long defaultFlags;
+
+    private Mp4Track(Box trak, int id, String handler, long timescale) {
+        this.trak = trak;
+        this.id = id;
+        this.handler = handler;
+        this.timescale = timescale;
+    }
+
+    /**
+     * 解析trak的轨道信息，不解析样本表
+     */
+    static Mp4Track of(Box trak) {
+        Box tkhd = trak.child("tkhd");
+        Box mdhd = trak.find("mdia", "mdhd");
+        Box hdlr = trak.find("mdia", "hdlr");
+        if (tkhd == null || mdhd == null || hdlr == null) {
+            throw new IllegalArgumentException("Incomplete trak");
+        }
+        int id = (int) Box.u32(tkhd.data, tkhd.payload + (tkhd.version() == 1 ? 20 : 12));
+        long timescale = Box.u32(mdhd.data, mdhd.payload + (mdhd.version() == 1 ? 20 : 12));
+        String handler = Box.fourcc(hdlr.data, hdlr.payload + 8);
+        if (timescale == 0) {
+            throw new IllegalArgumentException("Track " + id + " has no timescale");
+        }
+        return new Mp4Track(trak, id, handler, timescale);
+    }
+
+    boolean isVideo() {
+        return "vide".equals(handler);
+    }
+
+    boolean isAudio() {
+        return "soun".equals(handler);
+    }
+
+    int sampleCount() {
+        return sizes == null ? 0 : sizes.length;
+    }
+
+    /**
+     * 解析样本表
+     */
+    void readSampleTable() {
+        Box stbl = trak.find("mdia", "minf", "stbl");
+        if (stbl == null) {
+            throw new IllegalArgumentException("Track " + id + " has no stbl");
+        }
+        Box stsz = stbl.child("stsz");
+        if (stsz == null) {
+            throw new IllegalArgumentException("Track " + id + ": unsupported sample size table");
+        }
+        byte[] d = stsz.data;
+        long fixedSize = Box.u32(d, stsz.payload + 4);
+        long count = Box.u32(d, stsz.payload + 8);
+        if (count > MAX_SAMPLES) {
+            throw new IllegalArgumentException("Track " + id + " has too many samples: " + count);
+        }
+        if (fixedSize == 0) {
+            entries(stsz, 8, count, 4);
+        }
+        sizes = new int[(int) count];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = (int) (fixedSize != 0 ? fixedSize : Box.u32(d, stsz.payload + 12 + i * 4));
+        }
+
+        readTimes(stbl.child("stts"), sizes.length);
+        readCompositionOffsets(stbl.child("ctts"), sizes.length);
+        readSyncSamples(stbl.child("stss"), sizes.length);
+        readOffsets(stbl.child("stsc"), stbl.child("stco"), stbl.child("co64"), sizes.length);
+    }
+
+    private void readTimes(Box stts, int count) {
+        if (stts == null) {
+            throw new IllegalArgumentException("Track " + id + " has no stts");
+        }
+        dts = new long[count + 1];
+        int entries = entries(stts, 4, Box.u32(stts.data, stts.payload + 4), 8);
+        int sample = 0;
+        long time = 0;
+        for (int e = 0; e < entries; e++) {
+            long samples = Box.u32(stts.data, stts.payload + 8 + e * 8);
+            long delta = Box.u32(stts.data, stts.payload + 12 + e * 8);
+            for (long i = 0; i < samples && sample < count; i++) {
+                dts[sample++] = time;
+                time += delta;
+            }
+        }
+        if (sample != count) {
+            throw new IllegalArgumentException("Track " + id + ": stts covers " + sample + " of " + count + " samples");
+        }
+        dts[count] = time;
+    }
+
+    private void readCompositionOffsets(Box ctts, int count) {
+        ctos = new int[count];
+        if (ctts == null) {
+            return;
+        }
+        int entries = entries(ctts, 4, Box.u32(ctts.data, ctts.payload + 4), 8);
+        int sample = 0;
+        for (int e = 0; e < entries && sample < count; e++) {
+            long samples = Box.u32(ctts.data, ctts.payload + 8 + e * 8);
+            // version 0 规定是无符号数，实际上有的编码器也会写负数，统一按有符号处理
+            int offset = (int) Box.u32(ctts.data, ctts.payload + 12 + e * 8);
+            for (long i = 0; i < samples && sample < count; i++) {
+                ctos[sample++] = offset;
+            }
+        }
+    }
+
+    /**
+     * 没有stss时所有样本都是关键帧（音频）
+     */
+    private void readSyncSamples(Box stss, int count) {
+        sync = new boolean[count];
+        if (stss == null) {
+            Arrays.fill(sync, true);
+            return;
+        }
+        int entries = entries(stss, 4, Box.u32(stss.data, stss.payload + 4), 4);
+        for (int e = 0; e < entries; e++) {
+            long number = Box.u32(stss.data, stss.payload + 8 + e * 4);
+            if (number >= 1 && number <= count) {
+                sync[(int) number - 1] = true;
+            }
+        }
+    }
+
+    private void readOffsets(Box stsc, Box stco, Box co64, int count) {
+        if (stsc == null || (stco == null && co64 == null)) {
+            throw new IllegalArgumentException("Track " + id + " has no chunk table");
+        }
+        Box chunkBox = stco != null ? stco : co64;
+        int chunks = entries(chunkBox, 4, Box.u32(chunkBox.data, chunkBox.payload + 4), stco != null ? 4 : 8);
+        long[] chunkOffsets = new long[chunks];
+        for (int c = 0; c < chunks; c++) {
+            chunkOffsets[c] = stco != null
+                    ? Box.u32(stco.data, stco.payload + 8 + c * 4)
+                    : Box.u64(co64.data, co64.payload + 8 + c * 8);
+        }
+
+        offsets = new long[count];
+        int entries = entries(stsc, 4, Box.u32(stsc.data, stsc.payload + 4), 12);
+        int sample = 0;
+        for (int e = 0; e < entries && sample < count; e++) {
+            long firstChunk = Box.u32(stsc.data, stsc.payload + 8 + e * 12);
+            long perChunk = Box.u32(stsc.data, stsc.payload + 12 + e * 12);
+            long nextFirstChunk = e + 1 < entries ? Box.u32(stsc.data, stsc.payload + 8 + (e + 1) * 12) : chunks + 1;
+            for (long chunk = Math.max(firstChunk, 1); chunk < nextFirstChunk && chunk <= chunks && sample < count; chunk++) {
+                long offset = chunkOffsets[(int) chunk - 1];
+                for (long i = 0; i < perChunk && sample < count; i++) {
+                    offsets[sample] = offset;
+                    offset += sizes[sample];
+                    sample++;
+                }
+            }
+        }
+        if (sample != count) {
+            throw new IllegalArgumentException("Track " + id + ": chunks cover " + sample + " of " + count + " samples");
+        }
+    }
+
+    /**
+     * 检查表的条目数和box的大小一致
+     * @param headerBytes 条目数之前的字节数（version/flags等）
+     */
+    private int entries(Box box, int headerBytes, long entries, int entrySize) {
+        if (box.payload + headerBytes + 4 + entries * entrySize > box.end) {
+            throw new IllegalArgumentException("Track " + id + ": truncated " + box.type);
+        }
+        return (int) entries;
+    }
+
+    /**
+     * 第一个解码时间不早于 time/timescale 秒的样本，没有时返回样本数
+     */
+    int firstSampleAtOrAfter(long time, long timescale) {
+        int low = 0;
+        int high = sampleCount();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (dts[mid] * timescale >= time * this.timescale) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+}
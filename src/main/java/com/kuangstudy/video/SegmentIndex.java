@@ -0,0 +1,159 @@
+package com.kuangstudy.video;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 视频的分段索引：初始化段（ftyp+moov）和每个分段的内容
+ * 每个分段 = 生成好的头部（moof + mdat头，源文件本身是分片MP4时为空）+ 源文件中的若干字节区间，
+ * 输出分段时不用再解析源文件，只要把头部和这些区间依次写出去
+ */
+public class SegmentIndex {
+
+    private static final int MAGIC = 0x484c5349; // "HLSI"
+
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * 生成索引时源文件的ETag和生成参数，任何一个变了索引就要重新生成
+     */
+    private final String sourceETag;
+    private final String settings;
+    private final byte[] init;
+    private final List<Segment> segments;
+
+    public SegmentIndex(String sourceETag, String settings, byte[] init, List<Segment> segments) {
+        this.sourceETag = sourceETag;
+        this.settings = settings;
+        this.init = init;
+        this.segments = Collections.unmodifiableList(segments);
+    }
+
+    public String getSourceETag() {
+        return sourceETag;
+    }
+
+    public String getSettings() {
+        return settings;
+    }
+
+    public byte[] getInit() {
+        return init;
+    }
+
+    public List<Segment> getSegments() {
+        return segments;
+    }
+
+    public boolean matches(String sourceETag, String settings) {
+        return this.sourceETag.equals(sourceETag) && this.settings.equals(settings);
+    }
+
+    /**
+     * 最长的分段时长（秒，向上取整），即 #EXT-X-TARGETDURATION
+     */
+    public int getTargetDuration() {
+        double max = 0;
+        for (Segment segment : segments) {
+            max = Math.max(max, segment.getDuration());
+        }
+        return (int) Math.ceil(max);
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeUTF(sourceETag);
+        out.writeUTF(settings);
+        out.writeInt(init.length);
+        out.write(init);
+        out.writeInt(segments.size());
+        for (Segment segment : segments) {
+            out.writeDouble(segment.duration);
+            out.writeInt(segment.header.length);
+            out.write(segment.header);
+            out.writeInt(segment.offsets.length);
+            for (int i = 0; i < segment.offsets.length; i++) {
+                out.writeLong(segment.offsets[i]);
+                out.writeLong(segment.lengths[i]);
+            }
+        }
+    }
+
+    /**
+     * 读取 writeTo() 写出的索引，格式版本不同时返回null（重新生成）
+     */
+    public static SegmentIndex readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+            return null;
+        }
+        String sourceETag = in.readUTF();
+        String settings = in.readUTF();
+        byte[] init = new byte[in.readInt()];
+        in.readFully(init);
+        int count = in.readInt();
+        List<Segment> segments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            double duration = in.readDouble();
+            byte[] header = new byte[in.readInt()];
+            in.readFully(header);
+            int ranges = in.readInt();
+            long[] offsets = new long[ranges];
+            long[] lengths = new long[ranges];
+            for (int j = 0; j < ranges; j++) {
+                offsets[j] = in.readLong();
+                lengths[j] = in.readLong();
+            }
+            segments.add(new Segment(duration, header, offsets, lengths));
+        }
+        return new SegmentIndex(sourceETag, settings, init, segments);
+    }
+
+    public static final class Segment {
+        private final double duration;
+        private final byte[] header;
+        private final long[] offsets;
+        private final long[] lengths;
+
+        public Segment(double duration, byte[] header, long[] offsets, long[] lengths) {
+            this.duration = duration;
+            this.header = header;
+            this.offsets = offsets;
+            this.lengths = lengths;
+        }
+
+        /**
+         * 时长（秒）
+         */
+        public double getDuration() {
+            return duration;
+        }
+
+        public byte[] getHeader() {
+            return header;
+        }
+
+        /**
+         * 源文件中要依次写出的字节区间
+         */
+        public long[] getOffsets() {
+            return offsets;
+        }
+
+        public long[] getLengths() {
+            return lengths;
+        }
+
+        public long getSize() {
+            long size = header.length;
+            for (long length : lengths) {
+                size += length;
+            }
+            return size;
+        }
+    }
+}
@@ -0,0 +1,494 @@
+package com.kuangstudy.storage;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * S3StorageBackend 对一个进程内的S3替身（com.sun.net.httpserver）的测试，不需要真的对象存储
+ * 替身校验每个请求的签名，支持普通上传、分片上传、Range读取、HEAD、DELETE和ListObjectsV2
+ */
+class S3StorageBackendTests {
+
+    private static final int PART_SIZE = S3StorageBackend.MIN_PART_SIZE;
+
+    private FakeS3 s3;
+
+    private ExecutorService executor;
+
+    private S3StorageBackend storage;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        s3 = new FakeS3("test-access", "test-secret");
+        executor = Executors.newFixedThreadPool(8);
+        storage = newStorage("test-secret");
+    }
+
+    @AfterEach
+    void tearDown() {
+        s3.stop();
+        executor.shutdownNow();
+    }
+
+    @Test
+    void putAndReadSmallObject() throws IOException {
+        byte[] content = randomBytes(1000);
+        storage.put("bbs/20220101/a.jpg", new ByteArrayInputStream(content), content.length);
+
+        assertEquals(0, s3.multipartUploads.get());
+        StorageObject object = storage.stat("bbs/20220101/a.jpg");
+        assertNotNull(object);
+        assertEquals(content.length, object.getSize());
+        assertEquals("a.jpg", object.getName());
+        assertNotNull(object.getETag());
+        assertArrayEquals(content, readAll(storage.getRange("bbs/20220101/a.jpg", 0, -1)));
+        assertArrayEquals(Arrays.copyOfRange(content, 100, 300), readAll(storage.getRange("bbs/20220101/a.jpg", 100, 200)));
+    }
+
+    @Test
+    void largeObjectIsUploadedInParallelParts() throws IOException {
+        byte[] content = randomBytes(PART_SIZE * 4 + 12345);
+        s3.partDelayMillis = 100;
+        storage.put("video/big.mp4", new ByteArrayInputStream(content), -1);
+
+        assertEquals(1, s3.multipartUploads.get());
+        assertEquals(5, s3.partUploads.get());
+        assertTrue(s3.maxConcurrentParts.get() > 1, "parts should be uploaded concurrently");
+        assertArrayEquals(content, s3.objects.get("prefix/video/big.mp4"));
+    }
+
+    @Test
+    void largeRangeIsReadInParallel() throws IOException {
+        byte[] content = randomBytes(PART_SIZE * 4);
+        s3.objects.put("prefix/video/big.mp4", content);
+        s3.getDelayMillis = 100;
+
+        int offset = 1000;
+        int length = PART_SIZE * 3 + 1;
+        byte[] range = readAll(storage.getRange("video/big.mp4", offset, length));
+
+        assertArrayEquals(Arrays.copyOfRange(content, offset, offset + length), range);
+        assertEquals(4, s3.rangeGets.get());
+        assertTrue(s3.maxConcurrentGets.get() > 1, "ranges should be fetched concurrently");
+    }
+
+    @Test
+    void readAheadIsLimitedBySharedBudget() throws IOException {
+        byte[] content = randomBytes(PART_SIZE * 4);
+        s3.objects.put("prefix/video/big.mp4", content);
+        s3.getDelayMillis = 50;
+        Semaphore readAhead = new Semaphore(0);
+        S3StorageBackend limited = new S3StorageBackend(s3.endpoint(), "us-east-1", "bucket", "test-access",
+                "test-secret", "prefix/", PART_SIZE, 4, PART_SIZE, readAhead, executor);
+
+        byte[] range = readAll(limited.getRange("video/big.mp4", 0, content.length));
+
+        assertArrayEquals(content, range);
+        assertEquals(4, s3.rangeGets.get());
+        assertTrue(s3.maxConcurrentGets.get() <= 2, "only the current and the next part may be fetched without budget");
+        assertEquals(0, readAhead.availablePermits());
+    }
+
+    @Test
+    void readAheadBudgetIsReturnedOnClose() throws IOException {
+        byte[] content = randomBytes(PART_SIZE * 4);
+        s3.objects.put("prefix/video/big.mp4", content);
+        Semaphore readAhead = new Semaphore(PART_SIZE * 2);
+        S3StorageBackend limited = new S3StorageBackend(s3.endpoint(), "us-east-1", "bucket", "test-access",
+                "test-secret", "prefix/", PART_SIZE, 4, PART_SIZE, readAhead, executor);
+
+        try (InputStream inputStream = limited.getRange("video/big.mp4", 0, content.length)) {
+            assertEquals(content[0] & 0xff, inputStream.read());
+            assertTrue(readAhead.availablePermits() < PART_SIZE * 2);
+        }
+        assertEquals(PART_SIZE * 2, readAhead.availablePermits());
+    }
+
+    @Test
+    void rangeIgnoredByServerIsRejected() {
+        byte[] content = randomBytes(1000);
+        s3.objects.put("prefix/pdf/a.pdf", content);
+        s3.ignoreRange = true;
+
+        assertThrows(IOException.class, () -> readAll(storage.getRange("pdf/a.pdf", 100, 200)));
+        assertThrows(IOException.class, () -> readAll(storage.getRange("pdf/a.pdf", 0, PART_SIZE * 2L)));
+    }
+
+    @Test
+    void failedPartAbortsUpload() {
+        byte[] content = randomBytes(PART_SIZE * 3);
+        s3.failPartNumber = 2;
+
+        assertThrows(IOException.class, () -> storage.put("video/broken.mp4", new ByteArrayInputStream(content), -1));
+        assertEquals(1, s3.abortedUploads.get());
+        assertTrue(s3.uploads.isEmpty());
+        assertNull(s3.objects.get("prefix/video/broken.mp4"));
+    }
+
+    @Test
+    void listPagesByCursor() throws IOException {
+        for (String name : Arrays.asList("e.pdf", "a.pdf", "c.pdf", "b.pdf", "d.pdf")) {
+            storage.put("pdf/" + name, new ByteArrayInputStream(randomBytes(10)), 10);
+        }
+        storage.put("other/x.pdf", new ByteArrayInputStream(randomBytes(10)), 10);
+
+        List<String> keys = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            StoragePage page = storage.list("pdf/", cursor, 2);
+            page.getObjects().forEach(object -> keys.add(object.getKey()));
+            cursor = page.getNextCursor();
+            pages++;
+        } while (cursor != null);
+
+        assertEquals(Arrays.asList("pdf/a.pdf", "pdf/b.pdf", "pdf/c.pdf", "pdf/d.pdf", "pdf/e.pdf"), keys);
+        assertEquals(3, pages);
+    }
+
+    @Test
+    void deleteAndStatMissing() throws IOException {
+        storage.put("a.txt", new ByteArrayInputStream(randomBytes(10)), 10);
+        storage.delete("a.txt");
+
+        assertNull(storage.stat("a.txt"));
+        // 不存在的文件删除时不报错
+        storage.delete("a.txt");
+    }
+
+    @Test
+    void wrongSecretIsRejected() {
+        S3StorageBackend wrong = newStorage("wrong-secret");
+
+        assertThrows(IOException.class, () -> wrong.put("a.txt", new ByteArrayInputStream(randomBytes(10)), 10));
+        assertTrue(s3.objects.isEmpty());
+    }
+
+    @Test
+    void rejectsPathTraversal() {
+        assertThrows(IllegalArgumentException.class, () -> storage.stat("../etc/passwd"));
+    }
+
+    private S3StorageBackend newStorage(String secretKey) {
+        return new S3StorageBackend(s3.endpoint(), "us-east-1", "bucket", "test-access", secretKey,
+                "prefix/", PART_SIZE, 4, PART_SIZE, new Semaphore(Integer.MAX_VALUE), executor);
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] readAll(InputStream inputStream) throws IOException {
+        try (InputStream in = inputStream) {
+            return in.readAllBytes();
+        }
+    }
+
+    /**
+     * 进程内的S3替身，只实现测试用到的接口，对象保存在内存中
+     */
+    private static final class FakeS3 {
+        private static final Pattern SIGNED_HEADERS = Pattern.compile("SignedHeaders=([^,]+)");
+        private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+        private final HttpServer server;
+        private final S3Signer signer;
+        private final Map<String, byte[]> objects = new ConcurrentSkipListMap<>();
+        private final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+        private final AtomicInteger multipartUploads = new AtomicInteger();
+        private final AtomicInteger partUploads = new AtomicInteger();
+        private final AtomicInteger abortedUploads = new AtomicInteger();
+        private final AtomicInteger rangeGets = new AtomicInteger();
+        private final AtomicInteger concurrentParts = new AtomicInteger();
+        private final AtomicInteger maxConcurrentParts = new AtomicInteger();
+        private final AtomicInteger concurrentGets = new AtomicInteger();
+        private final AtomicInteger maxConcurrentGets = new AtomicInteger();
+        private volatile int failPartNumber = -1;
+        private volatile long partDelayMillis;
+        private volatile long getDelayMillis;
+        private volatile boolean ignoreRange;
+
+        FakeS3(String accessKey, String secretKey) throws IOException {
+            signer = new S3Signer("us-east-1", accessKey, secretKey);
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            server.setExecutor(Executors.newCachedThreadPool());
+            server.createContext("/", exchange -> {
+                try {
+                    handle(exchange);
+                } catch (Exception e) {
+                    send(exchange, 500, "<Error><Code>InternalError</Code></Error>");
+                } finally {
+                    exchange.close();
+                }
+            });
+            server.start();
+        }
+
+        URI endpoint() {
+            return URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+        }
+
+        void stop() {
+            server.stop(0);
+        }
+
+        private void handle(HttpExchange exchange) throws IOException, InterruptedException {
+            String method = exchange.getRequestMethod();
+            String rawPath = exchange.getRequestURI().getRawPath();
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            byte[] body = exchange.getRequestBody().readAllBytes();
+            if (!verifySignature(exchange, method, rawPath, query)) {
+                send(exchange, 403, "<Error><Code>SignatureDoesNotMatch</Code></Error>");
+                return;
+            }
+            String path = URLDecoder.decode(rawPath, StandardCharsets.UTF_8);
+            if (!path.startsWith("/bucket")) {
+                send(exchange, 404, "<Error><Code>NoSuchBucket</Code></Error>");
+                return;
+            }
+            String key = path.length() > "/bucket/".length() ? path.substring("/bucket/".length()) : null;
+
+            if (key == null && "GET".equals(method)) {
+                list(exchange, query);
+            } else if ("POST".equals(method) && query.containsKey("uploads")) {
+                String uploadId = UUID.randomUUID().toString();
+                uploads.put(uploadId, new ConcurrentSkipListMap<>());
+                multipartUploads.incrementAndGet();
+                send(exchange, 200, "<InitiateMultipartUploadResult><Bucket>bucket</Bucket><Key>" + key
+                        + "</Key><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+            } else if ("PUT".equals(method) && query.containsKey("partNumber")) {
+                uploadPart(exchange, query, body);
+            } else if ("POST".equals(method) && query.containsKey("uploadId")) {
+                completeUpload(exchange, key, query.get("uploadId"), new String(body, StandardCharsets.UTF_8));
+            } else if ("DELETE".equals(method) && query.containsKey("uploadId")) {
+                uploads.remove(query.get("uploadId"));
+                abortedUploads.incrementAndGet();
+                send(exchange, 204, null);
+            } else if ("PUT".equals(method)) {
+                objects.put(key, body);
+                exchange.getResponseHeaders().set("ETag", "\"" + Integer.toHexString(Arrays.hashCode(body)) + "\"");
+                send(exchange, 200, null);
+            } else if ("HEAD".equals(method) || "GET".equals(method)) {
+                get(exchange, method, key);
+            } else if ("DELETE".equals(method)) {
+                objects.remove(key);
+                send(exchange, 204, null);
+            } else {
+                send(exchange, 405, null);
+            }
+        }
+
+        private void uploadPart(HttpExchange exchange, Map<String, String> query, byte[] body) throws IOException, InterruptedException {
+            Map<Integer, byte[]> parts = uploads.get(query.get("uploadId"));
+            int partNumber = Integer.parseInt(query.get("partNumber"));
+            if (parts == null) {
+                send(exchange, 404, "<Error><Code>NoSuchUpload</Code></Error>");
+                return;
+            }
+            if (partNumber == failPartNumber) {
+                send(exchange, 500, "<Error><Code>InternalError</Code></Error>");
+                return;
+            }
+            int concurrent = concurrentParts.incrementAndGet();
+            maxConcurrentParts.accumulateAndGet(concurrent, Math::max);
+            try {
+                Thread.sleep(partDelayMillis);
+                parts.put(partNumber, body);
+                partUploads.incrementAndGet();
+            } finally {
+                concurrentParts.decrementAndGet();
+            }
+            exchange.getResponseHeaders().set("ETag", "\"part-" + partNumber + "\"");
+            send(exchange, 200, null);
+        }
+
+        private void completeUpload(HttpExchange exchange, String key, String uploadId, String xml) throws IOException {
+            Map<Integer, byte[]> parts = uploads.remove(uploadId);
+            if (parts == null) {
+                send(exchange, 404, "<Error><Code>NoSuchUpload</Code></Error>");
+                return;
+            }
+            Matcher matcher = Pattern.compile("<PartNumber>(\\d+)</PartNumber><ETag>&quot;part-(\\d+)&quot;</ETag>").matcher(xml);
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            int expected = 1;
+            while (matcher.find()) {
+                int partNumber = Integer.parseInt(matcher.group(1));
+                byte[] part = parts.get(partNumber);
+                if (partNumber != expected++ || !matcher.group(2).equals(matcher.group(1)) || part == null
+                        || (partNumber < parts.size() && part.length < S3StorageBackend.MIN_PART_SIZE)) {
+                    send(exchange, 400, "<Error><Code>InvalidPart</Code></Error>");
+                    return;
+                }
+                content.write(part);
+            }
+            if (expected - 1 != parts.size()) {
+                send(exchange, 400, "<Error><Code>InvalidPart</Code></Error>");
+                return;
+            }
+            objects.put(key, content.toByteArray());
+            send(exchange, 200, "<CompleteMultipartUploadResult><Key>" + key + "</Key></CompleteMultipartUploadResult>");
+        }
+
+        private void get(HttpExchange exchange, String method, String key) throws IOException, InterruptedException {
+            byte[] content = objects.get(key);
+            if (content == null) {
+                send(exchange, 404, "HEAD".equals(method) ? null : "<Error><Code>NoSuchKey</Code></Error>");
+                return;
+            }
+            exchange.getResponseHeaders().set("ETag", "\"" + Integer.toHexString(Arrays.hashCode(content)) + "\"");
+            exchange.getResponseHeaders().set("Last-Modified",
+                    DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC)));
+            if ("HEAD".equals(method)) {
+                exchange.getResponseHeaders().set("Content-Length", String.valueOf(content.length));
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range == null || ignoreRange) {
+                send(exchange, 200, content);
+                return;
+            }
+            Matcher matcher = RANGE.matcher(range);
+            if (!matcher.matches()) {
+                send(exchange, 416, null);
+                return;
+            }
+            int start = Integer.parseInt(matcher.group(1));
+            int end = Math.min(Integer.parseInt(matcher.group(2)), content.length - 1);
+            int concurrent = concurrentGets.incrementAndGet();
+            maxConcurrentGets.accumulateAndGet(concurrent, Math::max);
+            try {
+                Thread.sleep(getDelayMillis);
+                rangeGets.incrementAndGet();
+            } finally {
+                concurrentGets.decrementAndGet();
+            }
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+            send(exchange, 206, Arrays.copyOfRange(content, start, end + 1));
+        }
+
+        private void list(HttpExchange exchange, Map<String, String> query) throws IOException {
+            String prefix = query.getOrDefault("prefix", "");
+            String startAfter = query.getOrDefault("start-after", "");
+            int maxKeys = Integer.parseInt(query.getOrDefault("max-keys", "1000"));
+            List<String> keys = new ArrayList<>();
+            boolean truncated = false;
+            for (String key : objects.keySet()) {
+                if (!key.startsWith(prefix) || key.compareTo(startAfter) <= 0) {
+                    continue;
+                }
+                if (keys.size() == maxKeys) {
+                    truncated = true;
+                    break;
+                }
+                keys.add(key);
+            }
+            StringBuilder xml = new StringBuilder("<ListBucketResult><IsTruncated>").append(truncated).append("</IsTruncated>");
+            for (String key : keys) {
+                xml.append("<Contents><Key>").append(key).append("</Key><LastModified>")
+                        .append(Instant.now()).append("</LastModified><ETag>&quot;x&quot;</ETag><Size>")
+                        .append(objects.get(key).length).append("</Size></Contents>");
+            }
+            send(exchange, 200, xml.append("</ListBucketResult>").toString());
+        }
+
+        /**
+         * 用同样的输入重新计算签名，和请求中的Authorization比较
+         */
+        private boolean verifySignature(HttpExchange exchange, String method, String rawPath, Map<String, String> query) {
+            String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+            String amzDate = exchange.getRequestHeaders().getFirst("x-amz-date");
+            if (authorization == null || amzDate == null) {
+                return false;
+            }
+            Matcher matcher = SIGNED_HEADERS.matcher(authorization);
+            if (!matcher.find()) {
+                return false;
+            }
+            Map<String, String> headers = new HashMap<>();
+            String host = null;
+            for (String name : matcher.group(1).split(";")) {
+                String value = exchange.getRequestHeaders().getFirst(name);
+                if (value == null) {
+                    return false;
+                }
+                if ("host".equals(name)) {
+                    host = value;
+                } else if (!name.startsWith("x-amz-")) {
+                    headers.put(name, value);
+                }
+            }
+            ZonedDateTime date = ZonedDateTime.parse(amzDate, DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmssX"));
+            String expected = signer.sign(method, host, rawPath, query, headers, date).get("Authorization");
+            return authorization.equals(expected);
+        }
+
+        private static Map<String, String> parseQuery(String rawQuery) {
+            Map<String, String> query = new TreeMap<>();
+            if (rawQuery == null || rawQuery.isEmpty()) {
+                return query;
+            }
+            for (String parameter : rawQuery.split("&")) {
+                int equals = parameter.indexOf('=');
+                String name = equals == -1 ? parameter : parameter.substring(0, equals);
+                String value = equals == -1 ? "" : parameter.substring(equals + 1);
+                query.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+            }
+            return query;
+        }
+
+        private static void send(HttpExchange exchange, int status, Object body) throws IOException {
+            byte[] bytes = body == null ? new byte[0]
+                    : body instanceof byte[] ? (byte[]) body : body.toString().getBytes(StandardCharsets.UTF_8);
+            if (body instanceof String) {
+                exchange.getResponseHeaders().set("Content-Type", "application/xml");
+            }
+            exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+            if (bytes.length > 0) {
+                exchange.getResponseBody().write(bytes);
+            }
+        }
+    }
+}
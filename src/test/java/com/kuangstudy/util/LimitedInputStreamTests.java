@@ -0,0 +1,43 @@
+package com.kuangstudy.util;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * LimitedInputStream：正好到上限可以读完，超过一个字节就抛出 MaxUploadSizeExceededException
+ */
+class LimitedInputStreamTests {
+
+    @Test
+    void readsUpToLimit() throws IOException {
+        LimitedInputStream inputStream = new LimitedInputStream(new ByteArrayInputStream(new byte[100]), 100);
+
+        assertEquals(100, inputStream.readAllBytes().length);
+        assertEquals(100, inputStream.getCount());
+        assertEquals(-1, inputStream.read());
+    }
+
+    @Test
+    void bulkReadOverLimitFails() {
+        InputStream inputStream = new LimitedInputStream(new ByteArrayInputStream(new byte[101]), 100);
+
+        MaxUploadSizeExceededException e = assertThrows(MaxUploadSizeExceededException.class, inputStream::readAllBytes);
+        assertEquals(100, e.getMaxUploadSize());
+    }
+
+    @Test
+    void singleByteAndSkipCountTowardsLimit() throws IOException {
+        InputStream inputStream = new LimitedInputStream(new ByteArrayInputStream(new byte[10]), 5);
+
+        inputStream.read();
+        assertEquals(4, inputStream.skip(4));
+        assertThrows(MaxUploadSizeExceededException.class, inputStream::read);
+    }
+}
@@ -0,0 +1,196 @@
+package com.kuangstudy.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * MultipartStreamParser：头信息的解析、part内容和分隔符的边界（分隔符跨越读缓冲区、内容中有分隔符的前缀）
+ * 请求流每次只返回少量字节，模拟网络上分多次到达的请求体
+ */
+class MultipartStreamParserTests {
+
+    private static final String BOUNDARY = "----test7MA4YWxkTrZu0gW";
+
+    @Test
+    void extractsBoundary() {
+        assertEquals(BOUNDARY, MultipartStreamParser.extractBoundary("multipart/form-data; boundary=" + BOUNDARY));
+        assertEquals("a b", MultipartStreamParser.extractBoundary("Multipart/Form-Data; charset=UTF-8; boundary=\"a b\""));
+        assertNull(MultipartStreamParser.extractBoundary("application/json"));
+        assertNull(MultipartStreamParser.extractBoundary("multipart/form-data"));
+        assertNull(MultipartStreamParser.extractBoundary(null));
+    }
+
+    @Test
+    void readsFieldsAndFiles() throws IOException {
+        byte[] body = new Body()
+                .field("dir", "bbs")
+                .file("file", "a.txt", "hello".getBytes(StandardCharsets.UTF_8))
+                .end();
+        MultipartStreamParser parser = parser(body, 7);
+
+        MultipartStreamParser.Part field = parser.nextPart();
+        assertNotNull(field);
+        assertEquals("dir", field.getName());
+        assertFalse(field.isFile());
+        assertEquals("bbs", field.getString(255));
+
+        MultipartStreamParser.Part file = parser.nextPart();
+        assertNotNull(file);
+        assertEquals("file", file.getName());
+        assertEquals("a.txt", file.getFileName());
+        assertEquals("application/octet-stream", file.getContentType());
+        assertEquals("hello", new String(file.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+
+        assertNull(parser.nextPart());
+        assertNull(parser.nextPart());
+    }
+
+    @Test
+    void quotedFileNameKeepsSemicolonsAndUtf8() throws IOException {
+        byte[] body = new Body()
+                .file("file", "a;b.jpg", new byte[]{1})
+                .file("file", "日本語 name=x.png", new byte[]{2})
+                .end();
+        MultipartStreamParser parser = parser(body, 64);
+
+        assertEquals("a;b.jpg", parser.nextPart().getFileName());
+        MultipartStreamParser.Part second = parser.nextPart();
+        assertEquals("file", second.getName());
+        assertEquals("日本語 name=x.png", second.getFileName());
+    }
+
+    @Test
+    void contentContainingDelimiterPrefixIsPreserved() throws IOException {
+        // 内容中有分隔符的前半截、以及和缓冲区大小相当的随机数据
+        byte[] tricky = ("x\r\n--" + BOUNDARY.substring(0, 10) + "\r\n--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        byte[] large = new byte[200 * 1024];
+        new Random(42).nextBytes(large);
+        byte[] body = new Body()
+                .file("a", "tricky.bin", tricky)
+                .file("b", "large.bin", large)
+                .file("c", "empty.bin", new byte[0])
+                .end();
+
+        for (int chunk : new int[]{1, 3, 4096, Integer.MAX_VALUE}) {
+            MultipartStreamParser parser = parser(body, chunk);
+            assertArrayEquals(tricky, parser.nextPart().getInputStream().readAllBytes());
+            assertArrayEquals(large, parser.nextPart().getInputStream().readAllBytes());
+            assertArrayEquals(new byte[0], parser.nextPart().getInputStream().readAllBytes());
+            assertNull(parser.nextPart());
+        }
+    }
+
+    @Test
+    void skipsUnreadPartsAndPreamble() throws IOException {
+        byte[] body = new Body()
+                .preamble("ignored preamble\r\n")
+                .file("a", "skipped.bin", new byte[100000])
+                .field("b", "value")
+                .end();
+        MultipartStreamParser parser = parser(body, 1000);
+
+        assertEquals("a", parser.nextPart().getName());
+        MultipartStreamParser.Part second = parser.nextPart();
+        assertEquals("b", second.getName());
+        assertEquals("value", second.getString(255));
+        assertNull(parser.nextPart());
+    }
+
+    @Test
+    void truncatedBodyFails() throws IOException {
+        byte[] body = new Body().file("file", "a.txt", "hello world".getBytes(StandardCharsets.UTF_8)).end();
+        byte[] truncated = new byte[body.length - 30];
+        System.arraycopy(body, 0, truncated, 0, truncated.length);
+        MultipartStreamParser parser = parser(truncated, 16);
+
+        MultipartStreamParser.Part part = parser.nextPart();
+        assertThrows(IOException.class, () -> part.getInputStream().readAllBytes());
+    }
+
+    @Test
+    void fieldLongerThanLimitFails() throws IOException {
+        byte[] body = new Body().field("dir", "0123456789").end();
+        MultipartStreamParser.Part part = parser(body, 64).nextPart();
+
+        IOException e = assertThrows(IOException.class, () -> part.getString(5));
+        assertTrue(e.getMessage().contains("dir"));
+    }
+
+    private static MultipartStreamParser parser(byte[] body, int chunk) {
+        return new MultipartStreamParser(new ChunkedInputStream(body, chunk), BOUNDARY);
+    }
+
+    /**
+     * 请求体构造器
+     */
+    private static final class Body {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Body preamble(String text) {
+            write(text.getBytes(StandardCharsets.ISO_8859_1));
+            return this;
+        }
+
+        Body field(String name, String value) {
+            write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"" + name + "\"\r\n\r\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            write(value.getBytes(StandardCharsets.UTF_8));
+            write("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            return this;
+        }
+
+        Body file(String name, String fileName, byte[] content) {
+            write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"" + name + "\"; filename=\"" + fileName + "\"\r\n"
+                    + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+            write(content);
+            write("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            return this;
+        }
+
+        byte[] end() {
+            write(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            return out.toByteArray();
+        }
+
+        private void write(byte[] bytes) {
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * 每次read最多返回chunk个字节
+     */
+    private static final class ChunkedInputStream extends InputStream {
+        private final ByteArrayInputStream delegate;
+        private final int chunk;
+
+        ChunkedInputStream(byte[] bytes, int chunk) {
+            this.delegate = new ByteArrayInputStream(bytes);
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read() {
+            return delegate.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            return delegate.read(b, off, Math.min(len, chunk));
+        }
+    }
+}
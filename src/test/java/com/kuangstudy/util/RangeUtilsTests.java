@@ -0,0 +1,163 @@
+package com.kuangstudy.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * RangeUtils：Range头的解析（末尾区间、开放区间、合并、无法满足、语法错误）、If-Range校验和多区间响应的长度
+ */
+class RangeUtilsTests {
+
+    private static final long SIZE = 1000;
+
+    @Test
+    void parsesClosedAndOpenRanges() {
+        assertRanges("bytes=0-99", 0, 99);
+        assertRanges("bytes=100-", 100, 999);
+        // 终点超出文件大小时截到文件末尾
+        assertRanges("bytes=900-5000", 900, 999);
+        assertRanges("bytes= 10 - 19 ", 10, 19);
+    }
+
+    @Test
+    void parsesSuffixRanges() {
+        assertRanges("bytes=-500", 500, 999);
+        assertRanges("bytes=-2000", 0, 999);
+        // 末尾0字节和空文件的末尾区间都无法满足
+        assertEquals(Collections.emptyList(), RangeUtils.parseRanges("bytes=-0", SIZE));
+        assertEquals(Collections.emptyList(), RangeUtils.parseRanges("bytes=-10", 0));
+    }
+
+    @Test
+    void mergesOverlappingAndAdjacentRanges() {
+        assertRanges("bytes=0-99,50-199", 0, 199);
+        assertRanges("bytes=100-199,0-99", 0, 199);
+        assertRanges("bytes=0-99,-950,200-299", 0, 999);
+        assertRanges("bytes=0-0,0-0,0-0", 0, 0);
+    }
+
+    @Test
+    void keepsRequestOrderOfDisjointRanges() {
+        assertRanges("bytes=500-599,0-99", 500, 599, 0, 99);
+    }
+
+    @Test
+    void unsatisfiableRangesAreDropped() {
+        assertEquals(Collections.emptyList(), RangeUtils.parseRanges("bytes=1000-1999", SIZE));
+        assertEquals(Collections.emptyList(), RangeUtils.parseRanges("bytes=5000-", SIZE));
+        assertRanges("bytes=2000-3000,0-9", 0, 9);
+    }
+
+    @Test
+    void tooManyRangesAreUnsatisfiable() {
+        StringBuilder header = new StringBuilder("bytes=0-0");
+        for (int i = 1; i <= 100; i++) {
+            header.append(',').append(i * 2).append('-').append(i * 2);
+        }
+        assertEquals(Collections.emptyList(), RangeUtils.parseRanges(header.toString(), SIZE));
+    }
+
+    @Test
+    void malformedHeadersAreIgnored() {
+        assertNull(RangeUtils.parseRanges(null, SIZE));
+        assertNull(RangeUtils.parseRanges("items=0-99", SIZE));
+        assertNull(RangeUtils.parseRanges("bytes=abc", SIZE));
+        assertNull(RangeUtils.parseRanges("bytes=5", SIZE));
+        assertNull(RangeUtils.parseRanges("bytes=99-10", SIZE));
+        assertNull(RangeUtils.parseRanges("bytes=--5", SIZE));
+        assertNull(RangeUtils.parseRanges("bytes=x-9", SIZE));
+        // 一个区间不合法时整个头都忽略
+        assertNull(RangeUtils.parseRanges("bytes=0-9,abc", SIZE));
+    }
+
+    @Test
+    void ifRangeWithEtag() {
+        assertTrue(RangeUtils.isIfRangeSatisfied(null, "\"abc\"", 0));
+        assertTrue(RangeUtils.isIfRangeSatisfied("", "\"abc\"", 0));
+        assertTrue(RangeUtils.isIfRangeSatisfied("\"abc\"", "\"abc\"", 0));
+        assertFalse(RangeUtils.isIfRangeSatisfied("\"abd\"", "\"abc\"", 0));
+        assertFalse(RangeUtils.isIfRangeSatisfied("\"abc\"", null, 0));
+        // 弱ETag即使相同也不能用于If-Range
+        assertFalse(RangeUtils.isIfRangeSatisfied("W/\"abc\"", "W/\"abc\"", 0));
+        assertFalse(RangeUtils.isIfRangeSatisfied("W/\"abc\"", "\"abc\"", 0));
+    }
+
+    @Test
+    void ifRangeWithDate() {
+        long lastModified = 1640995200123L;
+        String date = DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(lastModified).atOffset(ZoneOffset.UTC));
+        String earlier = DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(lastModified - 1000).atOffset(ZoneOffset.UTC));
+
+        // HTTP日期只精确到秒，毫秒部分不影响
+        assertTrue(RangeUtils.isIfRangeSatisfied(date, "\"abc\"", lastModified));
+        assertFalse(RangeUtils.isIfRangeSatisfied(earlier, "\"abc\"", lastModified));
+        assertFalse(RangeUtils.isIfRangeSatisfied("yesterday", "\"abc\"", lastModified));
+    }
+
+    @Test
+    void multipartLengthMatchesWrittenBody() throws IOException {
+        byte[] content = new byte[(int) SIZE];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        List<RangeUtils.ByteRange> ranges = RangeUtils.parseRanges("bytes=0-9,500-599,-5", SIZE);
+        assertEquals(3, ranges.size());
+        long length = RangeUtils.multipartLength(ranges, "BOUNDARY", "video/mp4", SIZE);
+
+        byte[] fromBuffer = RangeUtils.readRanges(ByteBuffer.wrap(content), ranges, "BOUNDARY", "video/mp4", SIZE);
+        assertEquals(length, fromBuffer.length);
+
+        Path file = Files.createTempFile("range", ".bin");
+        try {
+            Files.write(file, content);
+            try (FileChannel channel = FileChannel.open(file)) {
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                RangeUtils.writeRanges(channel, ranges, "BOUNDARY", "video/mp4", SIZE, outputStream);
+                assertArrayEquals(fromBuffer, outputStream.toByteArray());
+                // 单区间直接写数据，没有multipart的头
+                List<RangeUtils.ByteRange> single = RangeUtils.parseRanges("bytes=500-599", SIZE);
+                assertArrayEquals(Arrays.copyOfRange(content, 500, 600),
+                        RangeUtils.readRanges(channel, single, "BOUNDARY", "video/mp4", SIZE));
+            }
+        } finally {
+            Files.delete(file);
+        }
+
+        String body = new String(fromBuffer, StandardCharsets.ISO_8859_1);
+        assertTrue(body.startsWith("\r\n--BOUNDARY\r\nContent-Type: video/mp4\r\nContent-Range: bytes 0-9/1000\r\n\r\n"));
+        assertTrue(body.contains("Content-Range: bytes 995-999/1000"));
+        assertTrue(body.endsWith("\r\n--BOUNDARY--\r\n"));
+    }
+
+    /**
+     * expected 是按顺序的 start, end, start, end...
+     */
+    private static void assertRanges(String header, long... expected) {
+        List<RangeUtils.ByteRange> ranges = RangeUtils.parseRanges(header, SIZE);
+        long[] actual = new long[ranges.size() * 2];
+        for (int i = 0; i < ranges.size(); i++) {
+            actual[i * 2] = ranges.get(i).getStart();
+            actual[i * 2 + 1] = ranges.get(i).getEnd();
+        }
+        assertArrayEquals(expected, actual, header);
+    }
+}
@@ -0,0 +1,226 @@
+package com.kuangstudy.video;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Mp4Segmenter 对示例视频（src/main/resources/video/IMG_1337.mp4，H.264 + AAC，约5秒）的测试
+ * 示例视频只有第一帧是关键帧，切分测试时把stss改成free（同样大小），所有帧都当作关键帧
+ * 生成的分段再按fMP4解析一遍，检查每个样本的字节和源文件中的完全一致
+ */
+class Mp4SegmenterTests {
+
+    private static final String ETAG = "\"test\"";
+
+    private byte[] source;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        source = Files.readAllBytes(Paths.get("src/main/resources/video/IMG_1337.mp4"));
+    }
+
+    @Test
+    void singleKeyframeGivesSingleSegment() throws IOException {
+        SegmentIndex index = index(source, 2000);
+
+        assertEquals(1, index.getSegments().size());
+        assertEquals(4.967, index.getSegments().get(0).getDuration(), 0.001);
+        // 整个分段在源文件中是一个连续区间
+        assertEquals(1, index.getSegments().get(0).getOffsets().length);
+        assertSamplesPreserved(source, index);
+    }
+
+    @Test
+    void cutsAtKeyframesAfterTargetDuration() throws IOException {
+        byte[] allSync = allKeyframes(source);
+        SegmentIndex index = index(allSync, 2000);
+
+        List<SegmentIndex.Segment> segments = index.getSegments();
+        assertEquals(3, segments.size());
+        assertEquals(2.0, segments.get(0).getDuration(), 0.001);
+        assertEquals(2.0, segments.get(1).getDuration(), 0.001);
+        assertEquals(0.967, segments.get(2).getDuration(), 0.001);
+        assertEquals(2, index.getTargetDuration());
+        assertSamplesPreserved(allSync, index);
+    }
+
+    @Test
+    void initSegmentHasEmptySampleTablesAndMvex() throws IOException {
+        SegmentIndex index = index(source, 2000);
+
+        List<Box> boxes = Box.parse(index.getInit(), 0, index.getInit().length);
+        assertEquals("ftyp", boxes.get(0).type);
+        Box moov = boxes.get(1);
+        assertEquals("moov", moov.type);
+        assertNotNull(moov.child("mvex"));
+        for (Box trak : moov.children()) {
+            if (trak.type.equals("trak")) {
+                Box stbl = trak.find("mdia", "minf", "stbl");
+                assertNotNull(stbl.child("stsd"));
+                assertEquals(0, Box.u32(stbl.child("stsz").data, stbl.child("stsz").payload + 8));
+            }
+        }
+    }
+
+    @Test
+    void fragmentedSourceIsGroupedByFragments() throws IOException {
+        // 把2秒的分段拼起来就是一个分片MP4，再按4秒分组
+        SegmentIndex fragmented = index(allKeyframes(source), 2000);
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        joined.write(fragmented.getInit());
+        for (SegmentIndex.Segment segment : fragmented.getSegments()) {
+            joined.write(materialize(allKeyframes(source), segment));
+        }
+        byte[] fmp4 = joined.toByteArray();
+
+        SegmentIndex index = index(fmp4, 4000);
+
+        assertEquals(2, index.getSegments().size());
+        assertEquals(4.0, index.getSegments().get(0).getDuration(), 0.001);
+        assertEquals(0.967, index.getSegments().get(1).getDuration(), 0.001);
+        assertArrayEquals(fragmented.getInit(), index.getInit());
+        // 分段就是源文件中的一段，不需要生成头部
+        SegmentIndex.Segment first = index.getSegments().get(0);
+        assertEquals(0, first.getHeader().length);
+        assertEquals(fragmented.getInit().length, first.getOffsets()[0]);
+    }
+
+    @Test
+    void indexSurvivesPersistence() throws IOException {
+        SegmentIndex index = index(allKeyframes(source), 2000);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        index.writeTo(new DataOutputStream(bytes));
+
+        SegmentIndex read = SegmentIndex.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertNotNull(read);
+        assertTrue(read.matches(ETAG, Mp4Segmenter.settings(2000, 0)));
+        assertArrayEquals(index.getInit(), read.getInit());
+        assertEquals(index.getSegments().size(), read.getSegments().size());
+        for (int i = 0; i < index.getSegments().size(); i++) {
+            SegmentIndex.Segment expected = index.getSegments().get(i);
+            SegmentIndex.Segment actual = read.getSegments().get(i);
+            assertArrayEquals(expected.getHeader(), actual.getHeader());
+            assertArrayEquals(expected.getOffsets(), actual.getOffsets());
+            assertArrayEquals(expected.getLengths(), actual.getLengths());
+        }
+    }
+
+    @Test
+    void rejectsFilesWithoutMoov() {
+        byte[] notVideo = "this is not a video file at all".getBytes(StandardCharsets.UTF_8);
+        assertThrows(IllegalArgumentException.class, () -> index(notVideo, 2000));
+        byte[] truncated = Arrays.copyOf(source, source.length / 2);
+        assertThrows(IllegalArgumentException.class, () -> index(truncated, 2000));
+    }
+
+    private static SegmentIndex index(byte[] file, long segmentMillis) throws IOException {
+        return Mp4Segmenter.index((offset, length) -> Arrays.copyOfRange(file, (int) offset, (int) offset + length),
+                file.length, ETAG, segmentMillis, 0);
+    }
+
+    /**
+     * 把stss改成free，所有帧都是关键帧
+     */
+    private static byte[] allKeyframes(byte[] file) {
+        byte[] copy = file.clone();
+        byte[] stss = "stss".getBytes(StandardCharsets.ISO_8859_1);
+        for (int i = 0; i + 4 <= copy.length; i++) {
+            if (copy[i] == stss[0] && Arrays.equals(copy, i, i + 4, stss, 0, 4)) {
+                System.arraycopy("free".getBytes(StandardCharsets.ISO_8859_1), 0, copy, i, 4);
+                return copy;
+            }
+        }
+        throw new IllegalStateException("no stss");
+    }
+
+    private static byte[] materialize(byte[] file, SegmentIndex.Segment segment) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(segment.getHeader());
+        for (int i = 0; i < segment.getOffsets().length; i++) {
+            out.write(file, (int) segment.getOffsets()[i], (int) segment.getLengths()[i]);
+        }
+        assertEquals(segment.getSize(), out.size());
+        return out.toByteArray();
+    }
+
+    /**
+     * 按fMP4解析所有分段，每条轨道的样本（字节和时长）和源文件的样本表一致
+     */
+    private static void assertSamplesPreserved(byte[] file, SegmentIndex index) throws IOException {
+        Box moov = null;
+        for (Box box : Box.parse(file, 0, file.length)) {
+            if (box.type.equals("moov")) {
+                moov = box;
+            }
+        }
+        assertNotNull(moov);
+        List<Mp4Track> tracks = new ArrayList<>();
+        for (Box trak : moov.children()) {
+            if (trak.type.equals("trak")) {
+                Mp4Track track = Mp4Track.of(trak);
+                track.readSampleTable();
+                tracks.add(track);
+            }
+        }
+
+        int[] next = new int[tracks.size()];
+        for (SegmentIndex.Segment segment : index.getSegments()) {
+            byte[] fragment = materialize(file, segment);
+            List<Box> boxes = Box.parse(fragment, 0, fragment.length);
+            Box moof = boxes.get(0);
+            assertEquals("moof", moof.type);
+            assertEquals("mdat", boxes.get(1).type);
+            for (Box traf : moof.children()) {
+                if (!traf.type.equals("traf")) {
+                    continue;
+                }
+                int trackId = (int) Box.u32(fragment, traf.child("tfhd").payload + 4);
+                int t = 0;
+                while (tracks.get(t).id != trackId) {
+                    t++;
+                }
+                Mp4Track track = tracks.get(t);
+                assertEquals(track.dts[next[t]], Box.u64(fragment, traf.child("tfdt").payload + 4));
+                for (Box trun : traf.children()) {
+                    if (!trun.type.equals("trun")) {
+                        continue;
+                    }
+                    long count = Box.u32(fragment, trun.payload + 4);
+                    long position = moof.start + (int) Box.u32(fragment, trun.payload + 8);
+                    int p = trun.payload + 12;
+                    for (long i = 0; i < count; i++, p += 16) {
+                        int sample = next[t]++;
+                        assertEquals(track.dts[sample + 1] - track.dts[sample], Box.u32(fragment, p));
+                        int size = (int) Box.u32(fragment, p + 4);
+                        assertEquals(track.sizes[sample], size);
+                        assertArrayEquals(Arrays.copyOfRange(file, (int) track.offsets[sample], (int) track.offsets[sample] + size),
+                                Arrays.copyOfRange(fragment, (int) position, (int) position + size));
+                        position += size;
+                    }
+                }
+            }
+        }
+        for (int t = 0; t < tracks.size(); t++) {
+            assertEquals(tracks.get(t).sampleCount(), next[t]);
+        }
+    }
+}